@@ -0,0 +1,256 @@
+package se.sics.jipv6.analyzer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import se.sics.jipv6.core.HC06Packeter;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.PacketPool;
+import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.pcap.PcapReader;
+
+/* Offline analysis of a capture file on all cores.
+ *
+ * The file is split into chunks that are decoded in parallel on a
+ * ForkJoinPool, each with its own FrameDecoder (and so its own fragment
+ * reassembly) and its own analyzer. A datagram whose first fragment is in
+ * one chunk may have the rest in the next chunk, so after its last frame
+ * a chunk reads on for a while and feeds only the following fragments to
+ * its decoder. The next chunk can not complete those datagrams as it never
+ * sees their first fragment, so each packet is analyzed once.
+ *
+ * The results are merged in capture order but the analyzer of a chunk does
+ * not see the packets of the other chunks - analyzers that depend on
+ * state carried between packets should be run with TestSniff.replay.
+ */
+public class BatchAnalyzer {
+
+    private static boolean DEBUG = false;
+
+    public static final long MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+    /* how far past its end a chunk looks for fragments - in capture time */
+    public static final long DEFAULT_OVERLAP = 2000000000L;
+    /* ... or in frames for captures without timestamps */
+    public static final int MAX_OVERLAP_FRAMES = 10000;
+
+    private final File file;
+    private ForkJoinPool pool;
+    private long chunkSize;
+    private long overlap = DEFAULT_OVERLAP;
+    private boolean lazyDecode;
+
+    private long frames;
+    private long ipPackets;
+    private long overlapPackets;
+
+    public BatchAnalyzer(File file) {
+        this.file = file;
+    }
+
+    /* default is the common pool */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /* bytes of capture per chunk - default is a few chunks per thread */
+    public void setChunkSize(long size) {
+        chunkSize = size;
+    }
+
+    /* nanoseconds of capture time */
+    public void setOverlap(long overlap) {
+        this.overlap = overlap;
+    }
+
+    public void setLazyDecode(boolean lazy) {
+        lazyDecode = lazy;
+    }
+
+    /* Analyzes the whole file and merges the result into the given
+     * analyzer, which is returned. */
+    public MergeableAnalyzer analyze(MergeableAnalyzer analyzer) throws IOException {
+        frames = ipPackets = overlapPackets = 0;
+        ForkJoinPool pool = this.pool != null ? this.pool : ForkJoinPool.commonPool();
+        ArrayList<Chunk> chunks = split(pool.getParallelism());
+        if (DEBUG) System.out.println("BatchAnalyzer: " + chunks.size() + " chunks of " + file);
+        if (chunks.isEmpty()) {
+            return analyzer;
+        }
+        try {
+            MergeableAnalyzer result = pool.invoke(new AnalyzeTask(analyzer, chunks, 0, chunks.size()));
+            analyzer.merge(result);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (Chunk chunk : chunks) {
+                chunk.reader.close();
+            }
+        }
+        for (Chunk chunk : chunks) {
+            frames += chunk.frames;
+            ipPackets += chunk.ipPackets;
+            overlapPackets += chunk.overlapPackets;
+        }
+        return analyzer;
+    }
+
+    private static class Chunk {
+        /* positioned at the first frame of the chunk */
+        final PcapReader reader;
+        final long end;
+        long frames;
+        long ipPackets;
+        long overlapPackets;
+
+        Chunk(PcapReader reader, long end) {
+            this.reader = reader;
+            this.end = end;
+        }
+    }
+
+    /* Finds the chunk boundaries. This reads through the file once but only
+     * the frame headers are looked at, and it leaves the file in the page
+     * cache for the chunks. */
+    private ArrayList<Chunk> split(int parallelism) throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        PcapReader reader = new PcapReader(file);
+        try {
+            long size = chunkSize > 0 ? chunkSize :
+                Math.max(MIN_CHUNK_SIZE, reader.getFileSize() / (parallelism * 4));
+            long next = 0;
+            PcapReader start = null;
+            while (reader.next()) {
+                long offset = reader.getFrameOffset();
+                if (offset >= next) {
+                    /* a new chunk starts at this frame */
+                    long position = reader.getPosition();
+                    reader.setPosition(offset);
+                    if (start != null) {
+                        chunks.add(new Chunk(start, offset));
+                    }
+                    start = new PcapReader(reader);
+                    reader.setPosition(position);
+                    next = offset + size;
+                }
+            }
+            if (start != null) {
+                chunks.add(new Chunk(start, Long.MAX_VALUE));
+            }
+        } catch (IOException e) {
+            for (Chunk chunk : chunks) {
+                chunk.reader.close();
+            }
+            throw e;
+        } finally {
+            reader.close();
+        }
+        return chunks;
+    }
+
+    private class AnalyzeTask extends RecursiveTask<MergeableAnalyzer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MergeableAnalyzer prototype;
+        private final ArrayList<Chunk> chunks;
+        private final int from;
+        private final int to;
+
+        AnalyzeTask(MergeableAnalyzer prototype, ArrayList<Chunk> chunks, int from, int to) {
+            this.prototype = prototype;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected MergeableAnalyzer compute() {
+            if (to - from == 1) {
+                MergeableAnalyzer analyzer = prototype.newInstance();
+                try {
+                    analyzeChunk(chunks.get(from), analyzer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return analyzer;
+            }
+            int middle = (from + to) >>> 1;
+            AnalyzeTask first = new AnalyzeTask(prototype, chunks, from, middle);
+            first.fork();
+            MergeableAnalyzer second = new AnalyzeTask(prototype, chunks, middle, to).compute();
+            MergeableAnalyzer result = first.join();
+            result.merge(second);
+            return result;
+        }
+    }
+
+    private void analyzeChunk(Chunk chunk, MergeableAnalyzer analyzer) throws IOException {
+        PcapReader reader = chunk.reader;
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setLazyDecode(lazyDecode);
+        PacketPool pool = PacketPool.get();
+        long lastTimestamp = 0;
+        boolean more;
+        while ((more = reader.next()) && reader.getFrameOffset() < chunk.end) {
+            Packet packet = pool.newPacket();
+            packet.setBytes(reader.getData(), 0, reader.getLength());
+            decoder.decodeMAC(packet);
+            analyzer.analyzePacket(packet);
+            IPv6Packet ipPacket = decoder.decodeIP(pool, packet);
+            if (ipPacket != null) {
+                analyzer.analyzeIPPacket(ipPacket);
+                pool.release(ipPacket);
+                chunk.ipPackets++;
+            }
+            pool.release(packet);
+            lastTimestamp = reader.getTimestamp();
+            chunk.frames++;
+        }
+        /* complete the datagrams that were started in this chunk - the
+         * frames themselves belong to the next chunk */
+        int count = 0;
+        while (more && decoder.getHC06Packeter().getFragmenter().getPendingCount() > 0 &&
+                count++ < MAX_OVERLAP_FRAMES &&
+                (lastTimestamp == 0 || reader.getTimestamp() - lastTimestamp <= overlap)) {
+            Packet packet = pool.newPacket();
+            packet.setBytes(reader.getData(), 0, reader.getLength());
+            decoder.decodeMAC(packet);
+            if (packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY) == IEEE802154Handler.DATAFRAME &&
+                    packet.getPayloadLength() > 0 &&
+                    (packet.getData(0) & 0xf8) == HC06Packeter.SICSLOWPAN_DISPATCH_FRAGN) {
+                IPv6Packet ipPacket = decoder.decodeIP(pool, packet);
+                if (ipPacket != null) {
+                    analyzer.analyzeIPPacket(ipPacket);
+                    pool.release(ipPacket);
+                    chunk.overlapPackets++;
+                    chunk.ipPackets++;
+                }
+            }
+            pool.release(packet);
+            more = reader.next();
+        }
+    }
+
+    /* frames analyzed by the last call to analyze */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public long getIPPacketCount() {
+        return ipPackets;
+    }
+
+    /* datagrams completed from fragments past the end of a chunk */
+    public long getOverlapPacketCount() {
+        return overlapPackets;
+    }
+
+    public String toString() {
+        return "BatchAnalyzer frames: " + frames + " ip: " + ipPackets +
+            " completed across chunks: " + overlapPackets;
+    }
+}
@@ -9,7 +9,7 @@ import se.sics.jipv6.core.RPLPacket;
 import se.sics.jipv6.core.UDPPacket;
 import se.sics.jipv6.mac.IEEE802154Handler;
 
-public class ExampleAnalyzer implements PacketAnalyzer {
+public class ExampleAnalyzer implements MergeableAnalyzer {
 
     private int dioPacket;
     private int bcDISPacket;
@@ -46,9 +46,29 @@ public class ExampleAnalyzer implements PacketAnalyzer {
         }).start();
     }
     
+    public MergeableAnalyzer newInstance() {
+        return new ExampleAnalyzer();
+    }
+
+    public void merge(MergeableAnalyzer other) {
+        ExampleAnalyzer o = (ExampleAnalyzer) other;
+        dioPacket += o.dioPacket;
+        bcDISPacket += o.bcDISPacket;
+        ucDISPacket += o.ucDISPacket;
+        dataPacket += o.dataPacket;
+        sleepPacket += o.sleepPacket;
+        daoPacket += o.daoPacket;
+        nsPacket += o.nsPacket;
+        totPacket += o.totPacket;
+        beacon += o.beacon;
+        ack += o.ack;
+        data += o.data;
+        cmd += o.cmd;
+    }
+
     /* MAC packet received */
     public void analyzePacket(Packet packet) {
-        int type = packet.getAttributeAsInt("802154.type");
+        int type = packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY);
         switch (type) {
         case IEEE802154Handler.BEACONFRAME:
             beacon++;
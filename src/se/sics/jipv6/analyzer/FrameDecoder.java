@@ -0,0 +1,141 @@
+package se.sics.jipv6.analyzer;
+
+import se.sics.jipv6.core.HC06Packeter;
+import se.sics.jipv6.core.HopByHopOption;
+import se.sics.jipv6.core.ICMP6Packet;
+import se.sics.jipv6.core.IPPayload;
+import se.sics.jipv6.core.IPv6ExtensionHeader;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.PacketPool;
+import se.sics.jipv6.core.UDPPacket;
+import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.mac.LoWPANHandler;
+import se.sics.jipv6.util.Log;
+
+/* The 802.15.4 + 6LoWPAN decoding of sniffed frames. Keeps the header
+ * compression contexts and fragment reassembly state so it must only be
+ * used by one thread at a time.
+ */
+public class FrameDecoder {
+
+    IEEE802154Handler i154Handler;
+    HC06Packeter hc06Packeter;
+    /* decode addresses and payloads only when the analyzer asks for them */
+    boolean lazyDecode = false;
+
+    public FrameDecoder() {
+        i154Handler = new IEEE802154Handler();
+        hc06Packeter = new HC06Packeter();
+        hc06Packeter.setContext(0, 0xaaaa0000, 0, 0, 0);
+    }
+
+    public void setLazyDecode(boolean lazy) {
+        lazyDecode = lazy;
+    }
+
+    public boolean isLazyDecode() {
+        return lazyDecode;
+    }
+
+    public IEEE802154Handler getMACHandler() {
+        return i154Handler;
+    }
+
+    public HC06Packeter getHC06Packeter() {
+        return hc06Packeter;
+    }
+
+    /* parse the 802.15.4 header - sets the MAC attributes of the packet */
+    public void decodeMAC(Packet packet) {
+        i154Handler.packetReceived(packet);
+        //    packet.printPacket();
+        //    i154Handler.printPacket(System.out, packet);
+    }
+
+    /* the IPv6 packet carried by a data frame - null if there is none (or
+     * it is a fragment of a packet that is not complete yet) */
+    public IPv6Packet decodeIP(PacketPool pool, Packet packet) {
+        if (packet.getPayloadLength() > 1 &&
+                packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY) == IEEE802154Handler.DATAFRAME) {
+            IPv6Packet ipPacket = pool.newIPv6Packet(packet);
+            ipPacket.setLazyDecode(lazyDecode);
+            int dispatch = packet.getData(0);
+            packet.setAttribute(LoWPANHandler.DISPATCH_KEY, dispatch);
+            if (hc06Packeter.parsePacketData(ipPacket)) {
+                boolean more = true;
+                byte nextHeader = ipPacket.getNextHeader();
+                IPv6ExtensionHeader extHeader = null;
+                IPPayload payload = ipPacket.getIPPayload();
+                if (payload != null) {
+                    /* headers already decompressed (NHC) - continue after
+                     * the last extension header if it is not followed by anything */
+                    while (payload instanceof IPv6ExtensionHeader &&
+                            ((IPv6ExtensionHeader) payload).getNext() != null) {
+                        payload = ((IPv6ExtensionHeader) payload).getNext();
+                    }
+                    if (payload instanceof IPv6ExtensionHeader) {
+                        extHeader = (IPv6ExtensionHeader) payload;
+                        nextHeader = extHeader.getNextHeader();
+                    } else {
+                        more = false;
+                    }
+                }
+                while(more) {
+                    //                System.out.printf("Next Header: %d pos:%d\n", nextHeader, ipPacket.getPos());
+                    //                ipPacket.printPayload();
+                    switch(nextHeader) {
+                    case HopByHopOption.DISPATCH:
+                        HopByHopOption hbh = pool.newHopByHopOption();
+                        hbh.parsePacketData(ipPacket);
+                        if (extHeader != null) {
+                            extHeader.setNext(hbh);
+                        } else {
+                            ipPacket.setIPPayload(hbh);
+                        }
+                        extHeader = hbh;
+                        nextHeader = hbh.getNextHeader();
+                        break;
+                    case UDPPacket.DISPATCH:
+                        if (ipPacket.getIPPayload() != null && ipPacket.getIPPayload() instanceof UDPPacket) {
+                            /* All done ? */
+                            //                        System.out.println("All done - UDP already part of payload?");
+                            more = false;
+                        } else {
+                            UDPPacket udpPacket = pool.newUDPPacket();
+                            udpPacket.parsePacketData(ipPacket);
+                            if (extHeader != null) {
+                                extHeader.setNext(udpPacket);
+                            } else {
+                                ipPacket.setIPPayload(udpPacket);
+                            }
+                            if (!udpPacket.isValid()) {
+                                pool.release(ipPacket);
+                                return null;
+                            }
+                            if (Log.UDP.debug) Log.UDP.log(Log.text(udpPacket));
+                            more = false;
+                        }
+                        break;
+                    case ICMP6Packet.DISPATCH:
+                        ICMP6Packet icmp6Packet = ICMP6Packet.parseICMP6Packet(ipPacket);
+                        if (extHeader != null) {
+                            extHeader.setNext(icmp6Packet);
+                        } else {
+                            ipPacket.setIPPayload(icmp6Packet);
+                        }
+                        if (Log.ICMP.debug) Log.ICMP.log(Log.text(icmp6Packet));
+                        more = false;
+                        break;
+                    default:
+                        more = false;
+                        break;
+                    }
+                }
+                return ipPacket;
+            }
+            pool.release(ipPacket);
+        }
+        return null;
+    }
+}
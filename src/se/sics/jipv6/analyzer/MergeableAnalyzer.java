@@ -0,0 +1,19 @@
+package se.sics.jipv6.analyzer;
+
+/* A packet analyzer whose results can be computed in parts and combined.
+ *
+ * Used by BatchAnalyzer to analyze chunks of a capture in parallel: each
+ * chunk gets its own analyzer from newInstance and the results are merged
+ * in capture order. The analyzers of different chunks are used by
+ * different threads but each one by one thread at a time. Partial
+ * analyzers are not init()ed.
+ */
+public interface MergeableAnalyzer extends PacketAnalyzer {
+
+    /* an empty analyzer with the same configuration as this one */
+    public MergeableAnalyzer newInstance();
+
+    /* add the results of an analyzer created by newInstance - it has
+     * analyzed packets that came after the ones of this analyzer */
+    public void merge(MergeableAnalyzer other);
+}
@@ -0,0 +1,201 @@
+package se.sics.jipv6.analyzer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Single producer / single consumer ring of preallocated slots.
+ *
+ * The producer claims a slot, fills it in and publishes it; the consumer
+ * takes the slot, uses it and releases it. Slots are reused so nothing is
+ * allocated per element. Only one thread may produce and one consume.
+ */
+public class SPSCRing<E> {
+
+    public interface Factory<E> {
+        public E create();
+    }
+
+    private final Object[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    /* next slot to consume - written by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /* next slot to publish - written by the producer */
+    private final AtomicLong tail = new AtomicLong();
+    /* producer's and consumer's cached view of the other side */
+    private long headCache;
+    private long tailCache;
+
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+
+    /* written by the producer only */
+    private volatile long published;
+    private volatile long dropped;
+    private volatile long stalls;
+
+    public SPSCRing(int size, Factory<E> factory, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        slots = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = factory.create();
+        }
+        mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private E slot(long index) {
+        return (E) slots[(int) index & mask];
+    }
+
+    /* producer: the next free slot or null (counted as a drop) if full */
+    public E claim() {
+        long t = tail.get();
+        if (t - headCache >= slots.length) {
+            headCache = head.get();
+            if (t - headCache >= slots.length) {
+                dropped++;
+                return null;
+            }
+        }
+        return slot(t);
+    }
+
+    /* producer: wait for a free slot - counted as a stall if it had to wait */
+    public E claimWait() throws InterruptedException {
+        long t = tail.get();
+        if (t - headCache < slots.length) {
+            return slot(t);
+        }
+        int counter = 0;
+        boolean stalled = false;
+        while (t - (headCache = head.get()) >= slots.length) {
+            if (!stalled) {
+                stalled = true;
+                stalls++;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy.shouldPark(counter)) {
+                waitingProducer = Thread.currentThread();
+                if (t - head.get() >= slots.length) {
+                    waitStrategy.idle(counter);
+                }
+                waitingProducer = null;
+            } else {
+                waitStrategy.idle(counter);
+            }
+            counter++;
+        }
+        return slot(t);
+    }
+
+    /* producer: make the claimed slot visible to the consumer */
+    public void publish() {
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            /* full fence so a parking consumer is seen below */
+            tail.set(tail.get() + 1);
+        } else {
+            tail.lazySet(tail.get() + 1);
+        }
+        published++;
+        Thread waiting = waitingConsumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /* consumer: the next published slot or null if empty */
+    public E poll() {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        return slot(h);
+    }
+
+    /* consumer: wait for the next published slot */
+    public E take() throws InterruptedException {
+        long h = head.get();
+        if (h < tailCache) {
+            return slot(h);
+        }
+        int counter = 0;
+        while (h >= (tailCache = tail.get())) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy.shouldPark(counter)) {
+                waitingConsumer = Thread.currentThread();
+                if (h >= tail.get()) {
+                    waitStrategy.idle(counter);
+                }
+                waitingConsumer = null;
+            } else {
+                waitStrategy.idle(counter);
+            }
+            counter++;
+        }
+        return slot(h);
+    }
+
+    /* consumer: true if there is nothing to take */
+    boolean isEmpty() {
+        long h = head.get();
+        if (h < tailCache) {
+            return false;
+        }
+        tailCache = tail.get();
+        return h >= tailCache;
+    }
+
+    /* consumer: a consumer waiting on several rings is woken by any of them */
+    void setWaitingConsumer(Thread thread) {
+        waitingConsumer = thread;
+    }
+
+    /* consumer: done with the slot returned by poll or take */
+    public void release() {
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            head.set(head.get() + 1);
+        } else {
+            head.lazySet(head.get() + 1);
+        }
+        Thread waiting = waitingProducer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    public long getPublishedCount() {
+        return published;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /* number of times the producer had to wait for a free slot */
+    public long getStallCount() {
+        return stalls;
+    }
+
+    public String toString() {
+        return "published: " + published + " dropped: " + dropped + " stalls: " + stalls +
+            " queued: " + size() + "/" + slots.length;
+    }
+}
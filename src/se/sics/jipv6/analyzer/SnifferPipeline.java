@@ -0,0 +1,418 @@
+package se.sics.jipv6.analyzer;
+
+import java.util.ArrayList;
+
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.PacketPool;
+import se.sics.jipv6.mac.IEEE802154Frame;
+import se.sics.jipv6.mac.RadioInfo;
+
+/* Staged sniffer:
+ *
+ *   I/O thread --raw frames--> decode lane(s) --packets--> analyzer thread(s)
+ *
+ * The I/O thread only copies each frame into a preallocated ring slot so
+ * the radio socket is kept drained. With more than one decode lane the
+ * frames are spread over the lanes by 802.15.4 source address, so all
+ * frames (and fragments) from one node are decoded in order by the same
+ * lane with its own header compression and reassembly state. Frames
+ * without a source address go to the first lane.
+ *
+ * Each analyzer runs on its own thread. It sees the frames of each source
+ * in order, and - with setOrdered - all frames in the order they were
+ * received. The packets are shared between the analyzers and are not
+ * recycled in the packet pool.
+ *
+ * When a ring is full the frame is dropped and counted, or - with
+ * setBlockWhenFull - the producing stage waits (counted as a stall).
+ */
+public class SnifferPipeline {
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+    public static final int DEFAULT_FRAME_SIZE = 128;
+    /* how long an ordered analyzer waits for an earlier frame on another
+     * lane that may have been dropped */
+    public static final long DEFAULT_REORDER_TIMEOUT = 10;
+
+    static final class RawFrame {
+        byte[] data = new byte[DEFAULT_FRAME_SIZE];
+        int length;
+        long seqNo;
+        final RadioInfo info = new RadioInfo();
+        boolean hasInfo;
+    }
+
+    static final class DecodedFrame {
+        Packet packet;
+        IPv6Packet ipPacket;
+        long seqNo;
+    }
+
+    private static final SPSCRing.Factory<RawFrame> RAW_FACTORY = new SPSCRing.Factory<RawFrame>() {
+        public RawFrame create() {
+            return new RawFrame();
+        }
+    };
+
+    private static final SPSCRing.Factory<DecodedFrame> DECODED_FACTORY = new SPSCRing.Factory<DecodedFrame>() {
+        public DecodedFrame create() {
+            return new DecodedFrame();
+        }
+    };
+
+    /* one decoder with its own thread and input ring */
+    final class DecodeLane implements Runnable {
+        final int index;
+        final FrameDecoder decoder;
+        final SPSCRing<RawFrame> ring;
+        long decoded;
+
+        DecodeLane(int index, FrameDecoder decoder) {
+            this.index = index;
+            this.decoder = decoder;
+            ring = new SPSCRing<RawFrame>(ringSize, RAW_FACTORY, waitStrategy);
+        }
+
+        public void run() {
+            /* nothing is released so the pool only hands out new objects */
+            PacketPool pool = PacketPool.get();
+            try {
+                while (running) {
+                    RawFrame raw = ring.take();
+                    Packet packet = new Packet();
+                    packet.setBytes(raw.data, 0, raw.length);
+                    if (raw.hasInfo) {
+                        raw.info.setAttributes(packet);
+                    }
+                    long seqNo = raw.seqNo;
+                    ring.release();
+
+                    decoder.decodeMAC(packet);
+                    IPv6Packet ipPacket = decoder.decodeIP(pool, packet);
+                    /* the analyzers share the attributes - no lazy lookups */
+                    packet.getAttributes().resolveAll();
+                    decoded++;
+                    for (int i = 0, n = analyzers.size(); i < n; i++) {
+                        SPSCRing<DecodedFrame> out = analyzers.get(i).rings[index];
+                        DecodedFrame frame = blockWhenFull ? out.claimWait() : out.claim();
+                        if (frame != null) {
+                            frame.packet = packet;
+                            frame.ipPacket = ipPacket;
+                            frame.seqNo = seqNo;
+                            out.publish();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* stopped */
+            }
+        }
+    }
+
+    /* one analyzer with its own thread and one input ring per lane */
+    final class AnalyzerStage implements Runnable {
+        final PacketAnalyzer analyzer;
+        final SPSCRing<DecodedFrame>[] rings;
+        long analyzed;
+        long reorderTimeouts;
+        private int nextLane;
+        private long nextSeqNo;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AnalyzerStage(PacketAnalyzer analyzer) {
+            this.analyzer = analyzer;
+            rings = new SPSCRing[lanes.length];
+            for (int i = 0; i < rings.length; i++) {
+                rings[i] = new SPSCRing<DecodedFrame>(ringSize, DECODED_FACTORY, waitStrategy);
+            }
+        }
+
+        private void analyze(SPSCRing<DecodedFrame> ring, DecodedFrame frame) {
+            analyzer.analyzePacket(frame.packet);
+            if (frame.ipPacket != null) {
+                analyzer.analyzeIPPacket(frame.ipPacket);
+            }
+            frame.packet = null;
+            frame.ipPacket = null;
+            ring.release();
+            analyzed++;
+        }
+
+        public void run() {
+            try {
+                if (rings.length == 1) {
+                    while (running) {
+                        analyze(rings[0], rings[0].take());
+                    }
+                } else {
+                    int counter = 0;
+                    long waitStart = 0;
+                    while (running) {
+                        boolean done = ordered ? nextOrdered(waitStart) : nextAny();
+                        if (done) {
+                            counter = 0;
+                            waitStart = 0;
+                        } else {
+                            if (waitStart == 0) {
+                                waitStart = System.nanoTime();
+                            }
+                            idle(counter++);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* stopped */
+            }
+        }
+
+        /* round robin over the lanes - per lane order is kept */
+        private boolean nextAny() {
+            for (int i = 0; i < rings.length; i++) {
+                int lane = (nextLane + i) % rings.length;
+                DecodedFrame frame = rings[lane].poll();
+                if (frame != null) {
+                    nextLane = lane + 1;
+                    analyze(rings[lane], frame);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /* the frame with the lowest sequence number - it is known to be the
+         * next one when it is the expected number or all lanes have frames
+         * queued; otherwise wait a while for the earlier frame */
+        private boolean nextOrdered(long waitStart) {
+            int best = -1;
+            long bestSeqNo = Long.MAX_VALUE;
+            boolean allQueued = true;
+            for (int i = 0; i < rings.length; i++) {
+                DecodedFrame frame = rings[i].poll();
+                if (frame == null) {
+                    allQueued = false;
+                } else if (frame.seqNo < bestSeqNo) {
+                    best = i;
+                    bestSeqNo = frame.seqNo;
+                }
+            }
+            if (best < 0) {
+                return false;
+            }
+            if (bestSeqNo != nextSeqNo && !allQueued) {
+                /* nothing is dropped after the I/O thread when blocking */
+                if (blockWhenFull || waitStart == 0 ||
+                        System.nanoTime() - waitStart < reorderTimeout * 1000000) {
+                    return false;
+                }
+                /* earlier frames were dropped */
+                reorderTimeouts++;
+            }
+            nextSeqNo = bestSeqNo + 1;
+            analyze(rings[best], rings[best].poll());
+            return true;
+        }
+
+        private void idle(int counter) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy.shouldPark(counter)) {
+                Thread current = Thread.currentThread();
+                boolean empty = true;
+                for (SPSCRing<DecodedFrame> ring : rings) {
+                    ring.setWaitingConsumer(current);
+                    empty &= ring.isEmpty();
+                }
+                /* an ordered analyzer waiting for a late frame only naps */
+                if (empty || !ordered) {
+                    waitStrategy.idle(counter);
+                } else {
+                    WaitStrategy.SLEEPING.idle(counter + WaitStrategy.YIELD_TRIES);
+                }
+                for (SPSCRing<DecodedFrame> ring : rings) {
+                    ring.setWaitingConsumer(null);
+                }
+            } else {
+                waitStrategy.idle(counter);
+            }
+        }
+    }
+
+    private final int ringSize;
+    private final WaitStrategy waitStrategy;
+    private final DecodeLane[] lanes;
+    private final ArrayList<AnalyzerStage> analyzers = new ArrayList<AnalyzerStage>();
+    private final ArrayList<Thread> threads = new ArrayList<Thread>();
+    /* used by the I/O thread to find the lane of a frame */
+    private final IEEE802154Frame laneFrame = new IEEE802154Frame();
+
+    /* read by the lane and analyzer threads - may be changed while running */
+    private volatile boolean blockWhenFull = false;
+    private volatile boolean ordered = false;
+    private volatile long reorderTimeout = DEFAULT_REORDER_TIMEOUT;
+    private volatile boolean running;
+    private long seqNo;
+
+    public SnifferPipeline(FrameDecoder decoder, int ringSize, WaitStrategy waitStrategy) {
+        this(new FrameDecoder[] { decoder }, ringSize, waitStrategy);
+    }
+
+    /* one decode lane per decoder */
+    public SnifferPipeline(FrameDecoder[] decoders, int ringSize, WaitStrategy waitStrategy) {
+        this.ringSize = ringSize;
+        this.waitStrategy = waitStrategy;
+        lanes = new DecodeLane[decoders.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new DecodeLane(i, decoders[i]);
+        }
+    }
+
+    /* must be called before start */
+    public void addAnalyzer(PacketAnalyzer analyzer) {
+        analyzers.add(new AnalyzerStage(analyzer));
+    }
+
+    /* wait for room instead of dropping - may be called while running,
+     * e.g. before an offline replay */
+    public void setBlockWhenFull(boolean block) {
+        blockWhenFull = block;
+    }
+
+    /* deliver all frames to the analyzers in the order they were received
+     * instead of only per source - must be called before start */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /* milliseconds to wait for a frame that may have been dropped */
+    public void setReorderTimeout(long timeout) {
+        reorderTimeout = timeout;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (DecodeLane lane : lanes) {
+            /* the decoders are only used by their lane threads from now on
+             * and packets are analyzed on other threads - no lazy decoding */
+            lane.decoder.setLazyDecode(false);
+            threads.add(new Thread(lane, "sniffer-decode-" + lane.index));
+        }
+        for (int i = 0; i < analyzers.size(); i++) {
+            threads.add(new Thread(analyzers.get(i), "sniffer-analyzer-" + i));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        threads.clear();
+    }
+
+    /* the lane for the frame - by source address */
+    private int getLane(byte[] data, int offset, int len) {
+        if (lanes.length == 1 || !laneFrame.parse(data, offset, len) ||
+                laneFrame.getSourceMode() == 0) {
+            return 0;
+        }
+        long h = laneFrame.getSourceAddress() * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % lanes.length);
+    }
+
+    /* Called by the I/O thread - copies the frame into the ring. Returns
+     * false if the frame was dropped. The rings have a single producer so
+     * with several input threads the callers must serialize. */
+    public boolean publish(byte[] data, int offset, int len) {
+        return publish(null, data, offset, len);
+    }
+
+    /* with what the radio knows about the frame (may be null) */
+    public boolean publish(RadioInfo info, byte[] data, int offset, int len) {
+        SPSCRing<RawFrame> ring = lanes[getLane(data, offset, len)].ring;
+        RawFrame frame;
+        if (blockWhenFull) {
+            try {
+                frame = ring.claimWait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        } else {
+            frame = ring.claim();
+            if (frame == null) {
+                return false;
+            }
+        }
+        if (frame.data.length < len) {
+            frame.data = new byte[len];
+        }
+        System.arraycopy(data, offset, frame.data, 0, len);
+        frame.length = len;
+        frame.seqNo = seqNo++;
+        frame.hasInfo = info != null;
+        if (info != null) {
+            frame.info.copy(info);
+        }
+        ring.publish();
+        return true;
+    }
+
+    /* frames dropped because the decode lanes could not keep up */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (DecodeLane lane : lanes) {
+            dropped += lane.ring.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /* times the I/O thread had to wait for a decode lane */
+    public long getStallCount() {
+        long stalls = 0;
+        for (DecodeLane lane : lanes) {
+            stalls += lane.ring.getStallCount();
+        }
+        return stalls;
+    }
+
+    public long getDecodedCount() {
+        long decoded = 0;
+        for (DecodeLane lane : lanes) {
+            decoded += lane.decoded;
+        }
+        return decoded;
+    }
+
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (DecodeLane lane : lanes) {
+            sb.append("lane ").append(lane.index).append(": ").append(lane.ring)
+                .append(" decoded: ").append(lane.decoded).append('\n');
+        }
+        for (int i = 0; i < analyzers.size(); i++) {
+            AnalyzerStage stage = analyzers.get(i);
+            sb.append("analyzer ").append(i).append(":");
+            for (SPSCRing<DecodedFrame> ring : stage.rings) {
+                sb.append(" [").append(ring).append(']');
+            }
+            sb.append(" analyzed: ").append(stage.analyzed);
+            if (ordered) {
+                sb.append(" reorder timeouts: ").append(stage.reorderTimeouts);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
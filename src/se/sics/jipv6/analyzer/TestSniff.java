@@ -1,128 +1,253 @@
 package se.sics.jipv6.analyzer;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 
-import se.sics.jipv6.core.HC06Packeter;
-import se.sics.jipv6.core.HopByHopOption;
-import se.sics.jipv6.core.ICMP6Packet;
-import se.sics.jipv6.core.IPv6ExtensionHeader;
 import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.Packet;
-import se.sics.jipv6.core.UDPPacket;
-import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.core.PacketPool;
+import se.sics.jipv6.mac.RadioInfo;
+import se.sics.jipv6.pcap.CaptureListener;
+import se.sics.jipv6.pcap.CaptureStore;
+import se.sics.jipv6.pcap.PcapNGWriter;
+import se.sics.jipv6.pcap.PcapReader;
+import se.sics.jipv6.util.RadioSelector;
 import se.sics.jipv6.util.SerialRadioConnection;
 import se.sics.jipv6.util.Utils;
+import se.sics.jipv6.util.ZepReceiver;
 
 public class TestSniff {
     /* Run JIPv6 over TUN on linux of OS-X */
 
     PacketAnalyzer analyzer;
-    IEEE802154Handler i154Handler;
-    HC06Packeter hc06Packeter;
+    FrameDecoder decoder;
     SerialRadioConnection serialRadio;
+    /* when set frames are decoded and analyzed on the pipeline threads */
+    SnifferPipeline pipeline;
+    /* radio ids reserved for each ZEP receiver */
+    static final int MAX_ZEP_SNIFFERS = 64;
+    /* gets all frames from the radios before they are decoded */
+    CaptureListener captureTap;
+    int radioCount;
 
     public TestSniff(PacketAnalyzer a) {
         analyzer = a;
-        i154Handler = new IEEE802154Handler();
-        hc06Packeter = new HC06Packeter();
-        hc06Packeter.setContext(0, 0xaaaa0000, 0, 0, 0);
-        a.init();
+        decoder = new FrameDecoder();
+        if (a != null) {
+            a.init();
+        }
+    }
+
+    public void setLazyDecode(boolean lazy) {
+        decoder.setLazyDecode(lazy);
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /* decode and analyze on separate threads from now on - the caller of
+     * packetData only copies the frame into the pipeline */
+    public SnifferPipeline startPipeline(int ringSize, WaitStrategy waitStrategy) {
+        return startPipeline(1, ringSize, waitStrategy, false);
+    }
+
+    /* decode on several lanes - each with its own decoder state. The
+     * analyzer gets the frames of each node in order, or all frames in
+     * order if ordered is set. */
+    public SnifferPipeline startPipeline(int lanes, int ringSize, WaitStrategy waitStrategy,
+            boolean ordered) {
+        FrameDecoder[] decoders = new FrameDecoder[Math.max(1, lanes)];
+        decoders[0] = decoder;
+        for (int i = 1; i < decoders.length; i++) {
+            decoders[i] = new FrameDecoder();
+        }
+        pipeline = new SnifferPipeline(decoders, ringSize, waitStrategy);
+        pipeline.setOrdered(ordered);
+        if (analyzer != null) {
+            pipeline.addAnalyzer(analyzer);
+        }
+        pipeline.start();
+        return pipeline;
+    }
+
+    public SnifferPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /* record frames from the radios - the radio id is the order in which
+     * they were connected */
+    public void setCaptureTap(CaptureListener tap) {
+        captureTap = tap;
     }
 
     public void connect(String host) throws UnknownHostException, IOException {
-        serialRadio = new SerialRadioConnection(new SerialRadioConnection.PacketListener() {
-            public void packetReceived(byte[] data) {
-                packetData(data);
+        connect(host, null);
+    }
+
+    /* with a selector several radios can share one I/O thread - all of
+     * them are delivered to packetData on that thread */
+    public void connect(String host, RadioSelector selector) throws UnknownHostException, IOException {
+        final int radioId = radioCount++;
+        serialRadio = new SerialRadioConnection(new SerialRadioConnection.FrameListener() {
+            public void frameReceived(byte[] data, int offset, int len) {
+                CaptureListener tap = captureTap;
+                if (tap != null) {
+                    tap.captureFrame(PcapNGWriter.now(), radioId, data, offset, len);
+                }
+                packetData(data, offset, len);
             }
         });
-        serialRadio.connect(host);
+        if (selector != null) {
+            serialRadio.connect(host, selector);
+        } else {
+            serialRadio.connect(host);
+        }
         serialRadio.send("!C" + (char)0x26);
         serialRadio.send("!m" + (char)0x02);
     }
     
     
-    public void packetData(byte[] data) {
-        Packet packet = new Packet();
-        packet.setBytes(data);
-        i154Handler.packetReceived(packet);
-        //    packet.printPacket();
-        //    i154Handler.printPacket(System.out, packet);
-        if (analyzer != null) {
-            analyzer.analyzePacket(packet);
+    /* Receive frames from remote ZEP sniffers - they get radio ids from
+     * the current radio count and up */
+    public ZepReceiver connectZep(int port) throws IOException {
+        ZepReceiver receiver = new ZepReceiver(new InetSocketAddress(port), new ZepReceiver.Listener() {
+            public void frameReceived(RadioInfo info, byte[] data, int offset, int len) {
+                CaptureListener tap = captureTap;
+                if (tap != null) {
+                    /* ZEP tells the channel - kept when the frame goes to pcapng */
+                    tap.captureFrame(info.getTimestamp(), info.getRadioId(),
+                            info.getChannel() == RadioInfo.UNKNOWN ? -1 : info.getChannel(),
+                            data, offset, len);
+                }
+                packetData(info, data, offset, len);
+            }
+        }, ZepReceiver.DEFAULT_BATCH, radioCount);
+        radioCount += MAX_ZEP_SNIFFERS;
+        receiver.start();
+        return receiver;
+    }
+
+    /* records to both a pcapng writer and a capture store */
+    static class CaptureTee implements CaptureListener {
+        final PcapNGWriter writer;
+        final CaptureStore store;
+
+        CaptureTee(PcapNGWriter writer, CaptureStore store) {
+            this.writer = writer;
+            this.store = store;
         }
 
-        if (packet.getPayloadLength() > 1 && 
-                packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE) == IEEE802154Handler.DATAFRAME) {
-            IPv6Packet ipPacket = new IPv6Packet(packet);
-            int dispatch = packet.getData(0);
-            packet.setAttribute("6lowpan.dispatch", dispatch);
-            if (hc06Packeter.parsePacketData(ipPacket)) {
-                boolean more = true;
-                byte nextHeader = ipPacket.getNextHeader();
-                IPv6ExtensionHeader extHeader = null;
-                while(more) {
-                    //                System.out.printf("Next Header: %d pos:%d\n", nextHeader, ipPacket.getPos());
-                    //                ipPacket.printPayload();
-                    switch(nextHeader) {
-                    case HopByHopOption.DISPATCH:
-                        HopByHopOption hbh = new HopByHopOption();
-                        hbh.parsePacketData(ipPacket);
-                        ipPacket.setIPPayload(hbh);
-                        extHeader = hbh;
-                        nextHeader = hbh.getNextHeader();
-                        break;
-                    case UDPPacket.DISPATCH:
-                        if (ipPacket.getIPPayload() != null && ipPacket.getIPPayload() instanceof UDPPacket) {
-                            /* All done ? */
-                            //                        System.out.println("All done - UDP already part of payload?");
-                            more = false;
-                        } else {
-                            UDPPacket udpPacket = new UDPPacket();
-                            udpPacket.parsePacketData(ipPacket);
-                            if (extHeader != null) {
-                                extHeader.setNext(udpPacket);
-                            } else {
-                                ipPacket.setIPPayload(udpPacket);
-                            }
-                            //                        System.out.println("UDP Packet handled...");
-                            udpPacket.printPacket(System.out);
-                            more = false;
-                        }
-                        break;
-                    case ICMP6Packet.DISPATCH:
-                        ICMP6Packet icmp6Packet = ICMP6Packet.parseICMP6Packet(ipPacket);
-                        if (extHeader != null) {
-                            extHeader.setNext(icmp6Packet);
-                        } else {
-                            ipPacket.setIPPayload(icmp6Packet);
-                        }
-                        //                    System.out.println("ICMP6 packet handled...");
-                        icmp6Packet.printPacket(System.out);
-                        more = false;
-                        break;
-                    default:
-                        more = false;
-                        break;
-                    }
-                }
-                if (analyzer != null) {
-                    analyzer.analyzeIPPacket(ipPacket);
+        public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len) {
+            writer.captureFrame(timestamp, interfaceId, data, offset, len);
+            store.captureFrame(timestamp, interfaceId, data, offset, len);
+        }
+
+        public void captureFrame(long timestamp, int interfaceId, int channelNo, byte[] data, int offset, int len) {
+            writer.captureFrame(timestamp, interfaceId, channelNo, data, offset, len);
+            store.captureFrame(timestamp, interfaceId, channelNo, data, offset, len);
+        }
+    }
+
+    /* Feed a pcap/pcapng capture to the analyzer - as fast as possible
+     * with speed 0 or following the capture timestamps (1 = real time) */
+    public long replay(File file, double speed) throws IOException {
+        if (pipeline != null && speed == 0) {
+            /* offline - better wait than drop */
+            pipeline.setBlockWhenFull(true);
+        }
+        PcapReader reader = new PcapReader(file);
+        try {
+            return reader.replay(new CaptureListener() {
+                public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len) {
+                    packetData(data, offset, len);
                 }
+            }, speed);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* Feed the frames from the source (any if null) between from and to
+     * (nanoseconds since the epoch) to the analyzer */
+    public long query(CaptureStore store, long from, long to, byte[] source) throws IOException {
+        if (pipeline != null) {
+            pipeline.setBlockWhenFull(true);
+        }
+        return store.query(from, to, source, new CaptureListener() {
+            public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len) {
+                packetData(data, offset, len);
             }
-        } 
+        });
+    }
+
+    /* Frames come from the radio, ZEP and stdin threads. The packetData
+     * methods are synchronized as the pipeline rings take one producer and
+     * the decoder keeps state between frames. */
+    public synchronized void packetData(byte[] data) {
+        if (pipeline != null) {
+            pipeline.publish(data, 0, data.length);
+            return;
+        }
+        PacketPool pool = PacketPool.get();
+        Packet packet = pool.newPacket();
+        packet.setBytes(data);
+        packetData(pool, packet);
+    }
+
+    /* the data is copied - the caller may reuse it after the call */
+    public synchronized void packetData(byte[] data, int offset, int len) {
+        if (pipeline != null) {
+            pipeline.publish(data, offset, len);
+            return;
+        }
+        PacketPool pool = PacketPool.get();
+        Packet packet = pool.newPacket();
+        packet.setBytes(data, offset, len);
+        packetData(pool, packet);
     }
 
+    /* the data is copied - info is set as packet attributes */
+    public synchronized void packetData(RadioInfo info, byte[] data, int offset, int len) {
+        if (pipeline != null) {
+            pipeline.publish(info, data, offset, len);
+            return;
+        }
+        PacketPool pool = PacketPool.get();
+        Packet packet = pool.newPacket();
+        packet.setBytes(data, offset, len);
+        if (info != null) {
+            info.setAttributes(packet);
+        }
+        packetData(pool, packet);
+    }
+
+    private void packetData(PacketPool pool, Packet packet) {
+        decoder.decodeMAC(packet);
+        if (analyzer != null) {
+            analyzer.analyzePacket(packet);
+        }
+        IPv6Packet ipPacket = decoder.decodeIP(pool, packet);
+        if (ipPacket != null) {
+            if (analyzer != null) {
+                analyzer.analyzeIPPacket(ipPacket);
+            }
+            pool.release(ipPacket);
+        }
+        pool.release(packet);
+    }
 
     public static void main(String[] args) throws ClassNotFoundException, InstantiationException, 
     IllegalAccessException, UnknownHostException, IOException {
         PacketAnalyzer analyzer = null;
         if (args.length > 0) {
             if ("help".equals(args[0]) || "-h".equals(args[0])) {
-                System.out.println("Usage: " + TestSniff.class.getSimpleName() + " [packetanalyzer] [host]");
+                System.out.println("Usage: " + TestSniff.class.getSimpleName() + " [packetanalyzer] [host... | capturefile...]");
                 System.exit(0);
             }
             Class<?> paClass = Class.forName(args[0]);
@@ -136,11 +261,111 @@ public class TestSniff {
             }
         }
         TestSniff sniff = new TestSniff(analyzer);
-        if(args.length > 1) {
+        /* -Djipv6.pipeline=<ring size> decodes and analyzes on separate threads,
+         * -Djipv6.lanes=<n> decodes on n threads (-Djipv6.ordered=true to
+         * keep the global order) */
+        int ringSize = Integer.getInteger("jipv6.pipeline", 0);
+        if (ringSize > 0) {
+            sniff.startPipeline(Integer.getInteger("jipv6.lanes", 1), ringSize,
+                    WaitStrategy.valueOf(System.getProperty("jipv6.wait", "BLOCKING")),
+                    Boolean.getBoolean("jipv6.ordered"));
+        }
+        /* -Djipv6.store=<dir> keeps all frames in an indexed capture store.
+         * With -Djipv6.queryFrom/queryTo (epoch ms) and/or -Djipv6.querySource
+         * (hex address) the stored frames are analyzed instead. */
+        String storeDir = System.getProperty("jipv6.store");
+        CaptureStore store = null;
+        if (storeDir != null) {
+            store = new CaptureStore(new File(storeDir));
+            String source = System.getProperty("jipv6.querySource");
+            Long from = Long.getLong("jipv6.queryFrom");
+            Long to = Long.getLong("jipv6.queryTo");
+            if (source != null || from != null || to != null) {
+                long count = sniff.query(store,
+                        from != null ? from * 1000000 : Long.MIN_VALUE,
+                        to != null ? to * 1000000 : Long.MAX_VALUE,
+                        source != null ? Utils.hexconv(source) : null);
+                System.out.println("Found " + count + " of " + store.getFrameCount() + " frames");
+                store.close();
+                return;
+            }
+        }
+        if (args.length > 1 && new File(args[1]).isFile() && Boolean.getBoolean("jipv6.batch")) {
+            /* offline on all cores - -Djipv6.batch=true */
+            if (!(analyzer instanceof MergeableAnalyzer)) {
+                System.out.println("Batch analysis needs a " + MergeableAnalyzer.class.getSimpleName());
+                System.exit(1);
+            }
+            for (int i = 1; i < args.length; i++) {
+                BatchAnalyzer batch = new BatchAnalyzer(new File(args[i]));
+                batch.analyze((MergeableAnalyzer) analyzer);
+                System.out.println(args[i] + ": " + batch);
+            }
+            return;
+        } else if (args.length > 1 && new File(args[1]).isFile()) {
+            /* offline - -Djipv6.replaySpeed=1 replays in real time */
+            double speed = Double.parseDouble(System.getProperty("jipv6.replaySpeed", "0"));
+            for (int i = 1; i < args.length; i++) {
+                long count = sniff.replay(new File(args[i]), speed);
+                System.out.println("Replayed " + count + " frames from " + args[i]);
+            }
+            return;
+        }
+        /* -Djipv6.capture=<prefix> records all frames to <prefix>-<n>.pcapng,
+         * starting a new file every jipv6.captureSize MB or jipv6.captureTime s */
+        String capture = System.getProperty("jipv6.capture");
+        /* -Djipv6.zep=<port> receives from ZEP sniffers (17754 is the standard
+         * port) - in addition to the hosts if any are given */
+        Integer zepPort = Integer.getInteger("jipv6.zep");
+        PcapNGWriter writer = null;
+        if (capture != null) {
+            writer = new PcapNGWriter(capture, zepPort != null ? args.length - 1 + MAX_ZEP_SNIFFERS :
+                Math.max(1, args.length - 1));
+            writer.setMaxFileSize(Long.getLong("jipv6.captureSize",
+                    PcapNGWriter.DEFAULT_MAX_FILE_SIZE / (1024 * 1024)) * 1024 * 1024);
+            writer.setMaxFileAge(Long.getLong("jipv6.captureTime", 0) * 1000);
+        }
+        if (writer != null || store != null) {
+            final PcapNGWriter w = writer;
+            final CaptureStore s = store;
+            if (w == null) {
+                sniff.setCaptureTap(s);
+            } else if (s == null) {
+                sniff.setCaptureTap(w);
+            } else {
+                sniff.setCaptureTap(new CaptureTee(w, s));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    if (w != null) {
+                        w.close();
+                        System.out.println(w);
+                    }
+                    if (s != null) {
+                        try {
+                            s.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        System.out.println(s);
+                    }
+                }
+            });
+        }
+        if (args.length > 2) {
+            /* many radios - one I/O thread */
+            RadioSelector selector = new RadioSelector();
+            for (int i = 1; i < args.length; i++) {
+                sniff.connect(args[i], selector);
+            }
+        } else if(args.length > 1) {
             sniff.connect(args[1]);
-        } else {
+        } else if (zepPort == null) {
             sniff.connect("localhost");
         }
+        if (zepPort != null) {
+            sniff.connectZep(zepPort);
+        }
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
         String line;
         try {
@@ -0,0 +1,57 @@
+package se.sics.jipv6.analyzer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/* How a pipeline stage waits for its ring buffer. The spinning strategies
+ * give the lowest latency but keep a core busy; BLOCKING parks the thread
+ * and is woken by the other side of the ring.
+ */
+public enum WaitStrategy {
+    BUSY_SPIN,
+    YIELDING,
+    SLEEPING,
+    BLOCKING;
+
+    static final int SPIN_TRIES = 100;
+    static final int YIELD_TRIES = 200;
+    static final long SLEEP_NANOS = 100000;
+    /* BLOCKING re-checks now and then in case a wakeup is missed */
+    static final long PARK_NANOS = 10000000;
+
+    /* true if the waiting thread should park and be woken by the ring */
+    boolean shouldPark(int counter) {
+        return this == BLOCKING && counter >= SPIN_TRIES;
+    }
+
+    /* one round of waiting - counter is the number of rounds so far */
+    void idle(int counter) {
+        switch (this) {
+        case BUSY_SPIN:
+            Thread.onSpinWait();
+            break;
+        case YIELDING:
+            if (counter < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            break;
+        case SLEEPING:
+            if (counter < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (counter < YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            }
+            break;
+        case BLOCKING:
+            if (counter < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            break;
+        }
+    }
+}
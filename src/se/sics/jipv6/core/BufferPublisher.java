@@ -0,0 +1,225 @@
+package se.sics.jipv6.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Publisher of received data for one subscriber. The stack offers data
+ * into a buffer of a fixed number of bytes and the buffers are handed to
+ * the subscriber as it requests them - onNext is called by the stack
+ * thread or by the thread calling request, never by two at once.
+ *
+ * Subclasses learn when buffered bytes have been delivered (released)
+ * and when the subscription is cancelled.
+ */
+abstract class BufferPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    /* only one thread delivers - the others add to the missed count */
+    private final AtomicInteger wip = new AtomicInteger();
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private int buffered;
+    private long demand;
+    private boolean cancelled;
+    private boolean completed;
+    private boolean terminated;
+    private Throwable error;
+    /* a bad request ends the stream at once */
+    private Throwable requestError;
+
+    private long delivered;
+
+    BufferPublisher(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> s) {
+        lock.lock();
+        try {
+            if (subscriber == null && !cancelled) {
+                subscriber = s;
+                s = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (s != null) {
+            /* rule 1.9 - onSubscribe before the error */
+            s.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("only one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+                BufferPublisher.this.request(n);
+            }
+            public void cancel() {
+                BufferPublisher.this.cancel();
+            }
+        });
+        drain();
+    }
+
+    private void request(long n) {
+        lock.lock();
+        try {
+            if (n <= 0) {
+                /* rule 3.9 */
+                requestError = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    private void cancel() {
+        lock.lock();
+        try {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            queue.clear();
+            buffered = 0;
+            bufferChanged(capacity);
+        } finally {
+            lock.unlock();
+        }
+        cancelled();
+    }
+
+    /* false if the data does not fit or nobody wants it anymore */
+    boolean offer(ByteBuffer data) {
+        lock.lock();
+        try {
+            if (cancelled || completed) {
+                return false;
+            }
+            if (buffered + data.remaining() > capacity) {
+                return false;
+            }
+            queue.add(data);
+            buffered += data.remaining();
+            bufferChanged(capacity - buffered);
+        } finally {
+            lock.unlock();
+        }
+        drain();
+        return true;
+    }
+
+    /* no more data - the subscriber gets what is buffered first */
+    void complete(Throwable error) {
+        lock.lock();
+        try {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            this.error = error;
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            int released = 0;
+            while (true) {
+                Flow.Subscriber<? super ByteBuffer> s;
+                ByteBuffer next = null;
+                boolean done = false;
+                Throwable failure = null;
+                lock.lock();
+                try {
+                    s = subscriber;
+                    if (s == null || cancelled || terminated) {
+                        break;
+                    }
+                    if (requestError != null) {
+                        terminated = done = true;
+                        failure = requestError;
+                        queue.clear();
+                    } else if (demand > 0 && !queue.isEmpty()) {
+                        next = queue.poll();
+                        buffered -= next.remaining();
+                        released += next.remaining();
+                        bufferChanged(capacity - buffered);
+                        demand--;
+                        delivered++;
+                    } else if (completed && queue.isEmpty()) {
+                        terminated = done = true;
+                        failure = error;
+                    } else {
+                        break;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (next != null) {
+                    s.onNext(next);
+                } else if (done) {
+                    if (failure != null) {
+                        s.onError(failure);
+                    } else {
+                        s.onComplete();
+                    }
+                    break;
+                }
+            }
+            if (released > 0) {
+                released(released);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /* bytes that fit before offer fails */
+    int free() {
+        lock.lock();
+        try {
+            return capacity - buffered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    /* the free space - called with the lock held */
+    protected void bufferChanged(int free) {
+    }
+
+    /* the subscriber has taken bytes from the buffer */
+    protected void released(int bytes) {
+    }
+
+    protected void cancelled() {
+    }
+}
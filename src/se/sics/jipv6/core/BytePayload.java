@@ -1,70 +1,70 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-
-import java.io.PrintStream;
-
-/* keep the packet payload untouched ... */
-public class BytePayload implements IPPayload {
-
-  byte[] payloadData;
-  byte dispatch;
-  
-  public BytePayload(IPv6Packet packet) {
-    parsePacketData(packet);
-  }
-  
-  public byte[] generatePacketData(IPv6Packet packet) {
-    return payloadData;
-  }
-
-  public byte getDispatch() {
-    return dispatch;
-  }
-
-  public void parsePacketData(IPv6Packet packet) {
-    dispatch = packet.getDispatch();
-    payloadData = packet.getPayload();
-  }
-
-  public void printPacket(PrintStream out) {
-  }
-}
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+
+import java.io.PrintStream;
+
+/* keep the packet payload untouched ... */
+public class BytePayload implements IPPayload {
+
+  byte[] payloadData;
+  byte dispatch;
+  
+  public BytePayload(IPv6Packet packet) {
+    parsePacketData(packet);
+  }
+  
+  public byte[] generatePacketData(IPv6Packet packet) {
+    return payloadData;
+  }
+
+  public byte getDispatch() {
+    return dispatch;
+  }
+
+  public void parsePacketData(IPv6Packet packet) {
+    dispatch = packet.getDispatch();
+    payloadData = packet.getPayload();
+  }
+
+  public void printPacket(PrintStream out) {
+  }
+}
@@ -0,0 +1,43 @@
+package se.sics.jipv6.core;
+
+import java.io.PrintStream;
+
+/* IPv6-in-IPv6 - an IPv6 packet carried as the payload of another */
+public class EncapsulatedIPv6Packet implements IPPayload {
+
+    public static final byte DISPATCH = 41;
+
+    IPv6Packet packet;
+
+    public EncapsulatedIPv6Packet() {
+    }
+
+    public EncapsulatedIPv6Packet(IPv6Packet packet) {
+        this.packet = packet;
+    }
+
+    public IPv6Packet getPacket() {
+        return packet;
+    }
+
+    public byte getDispatch() {
+        return DISPATCH;
+    }
+
+    public byte[] generatePacketData(IPv6Packet outer) {
+        return packet.generatePacketData(packet);
+    }
+
+    /* uncompressed inner header - the inner packet shares the buffer and
+     * the rest of the outer payload belongs to it */
+    public void parsePacketData(IPv6Packet outer) {
+        packet = new IPv6Packet(outer);
+        packet.encapsulating = outer;
+        packet.parsePacketData(packet);
+    }
+
+    public void printPacket(PrintStream out) {
+        out.println("IPv6 in IPv6:");
+        packet.printPacket(out);
+    }
+}
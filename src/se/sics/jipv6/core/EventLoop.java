@@ -0,0 +1,151 @@
+package se.sics.jipv6.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/* A single thread running submitted tasks and the timeouts of a timing
+ * wheel. State that is only touched by tasks and timeouts of the loop
+ * needs no locks - other threads hand work over with execute.
+ *
+ * Tasks are run in submission order. Timeouts scheduled from other threads
+ * are added to the wheel by the loop and cancel must be called from the
+ * loop (or through cancel(Timeout)).
+ */
+public class EventLoop {
+
+    /* tasks run before the timers are checked again */
+    private static final int MAX_TASKS = 1024;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final TimingWheel wheel;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    private long taskCount;
+
+    public EventLoop() {
+        this("jipv6-eventloop", TimingWheel.DEFAULT_TICK, TimingWheel.DEFAULT_SLOTS);
+    }
+
+    public EventLoop(String name, long tickDuration, int slots) {
+        wheel = new TimingWheel(tickDuration, slots, now());
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.start();
+    }
+
+    /* milliseconds of the clock used by the wheel */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /* runs the task on the loop - directly if already on the loop */
+    public void run(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            execute(task);
+        }
+    }
+
+    public TimingWheel.Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /* with a period > 0 the task is repeated until cancelled */
+    public TimingWheel.Timeout schedule(Runnable task, final long delay, long period) {
+        final TimingWheel.Timeout timeout = new TimingWheel.Timeout(task, period);
+        if (inEventLoop()) {
+            wheel.schedule(timeout, delay, now());
+        } else {
+            execute(new Runnable() {
+                public void run() {
+                    if (!timeout.isCancelled()) {
+                        wheel.schedule(timeout, delay, now());
+                    }
+                }
+            });
+        }
+        return timeout;
+    }
+
+    public void cancel(final TimingWheel.Timeout timeout) {
+        if (inEventLoop()) {
+            timeout.cancel();
+        } else {
+            timeout.cancelled = true;
+            execute(new Runnable() {
+                public void run() {
+                    timeout.cancel();
+                }
+            });
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            int count = 0;
+            Runnable task;
+            while (count < MAX_TASKS && (task = tasks.poll()) != null) {
+                count++;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            taskCount += count;
+            long time = now();
+            wheel.advance(time);
+            if (tasks.isEmpty()) {
+                /* sleep until the next tick or a new task */
+                long wait = wheel.size() > 0 ? wheel.getNextTickTime() - time : 1000;
+                sleeping = true;
+                if (tasks.isEmpty() && running && wait > 0) {
+                    LockSupport.parkNanos(this, wait * 1000000);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    /* stops the loop after the tasks already submitted */
+    public void shutdown() {
+        execute(new Runnable() {
+            public void run() {
+                running = false;
+            }
+        });
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    public TimingWheel getTimingWheel() {
+        return wheel;
+    }
+
+    public long getTaskCount() {
+        return taskCount;
+    }
+
+    public String toString() {
+        return "EventLoop tasks: " + taskCount + " queued: " + tasks.size() + " " + wheel;
+    }
+}
@@ -0,0 +1,145 @@
+package se.sics.jipv6.core;
+
+import java.io.PrintStream;
+
+import se.sics.jipv6.util.Utils;
+
+/* Generic IPv6 extension header - next header, length and the rest of
+ * the header kept as raw data.
+ */
+public class ExtensionHeader implements IPv6ExtensionHeader, Poolable {
+
+    public static final byte HOP_BY_HOP = 0;
+    public static final byte ROUTING = 43;
+    public static final byte FRAGMENT = 44;
+    public static final byte DESTINATION_OPTIONS = 60;
+    public static final byte MOBILITY = (byte) 135;
+
+    final byte dispatch;
+    byte nextHeader = 0;
+    /* total length of the uncompressed header */
+    int len;
+    /* the header after the next header and length fields */
+    byte[] data;
+    IPPayload next;
+
+    public ExtensionHeader(byte dispatch) {
+        this.dispatch = dispatch;
+    }
+
+    public void reset() {
+        nextHeader = 0;
+        len = 0;
+        data = null;
+        next = null;
+    }
+
+    public byte getDispatch() {
+        return dispatch;
+    }
+
+    public byte getNextHeader() {
+        return nextHeader;
+    }
+
+    public void setNextHeader(byte nextHeader) {
+        this.nextHeader = nextHeader;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /* option headers are padded to a multiple of 8 when generated */
+    public void setData(byte[] data) {
+        this.data = data;
+        len = getHeaderLength();
+    }
+
+    boolean isOptionHeader() {
+        return dispatch == HOP_BY_HOP || dispatch == DESTINATION_OPTIONS;
+    }
+
+    /* length of the header including next header and length fields */
+    public int getHeaderLength() {
+        int size = 2 + (data == null ? 0 : data.length);
+        if (isOptionHeader()) {
+            size = (size + 7) & ~7;
+        }
+        return size;
+    }
+
+    public void parsePacketData(IPv6Packet packet) {
+        /* Assumes that this is the correct position */
+        nextHeader = packet.getData(0);
+        if (dispatch == FRAGMENT) {
+            len = 8;
+        } else {
+            len = (packet.getData(1) & 0xff) * 8 + 8;
+        }
+        data = new byte[len - 2];
+        packet.copy(2, data, 0, len - 2);
+        packet.incPos(len);
+    }
+
+    /* the header only - with trailing Pad1/PadN restored if needed */
+    public byte[] generateHeaderData() {
+        int size = getHeaderLength();
+        byte[] header = new byte[size];
+        header[0] = next != null ? next.getDispatch() : nextHeader;
+        if (dispatch == FRAGMENT) {
+            /* reserved field instead of length */
+            header[1] = 0;
+        } else {
+            header[1] = (byte) (size / 8 - 1);
+        }
+        int dlen = data == null ? 0 : data.length;
+        if (dlen > 0) {
+            System.arraycopy(data, 0, header, 2, dlen);
+        }
+        int pad = size - 2 - dlen;
+        if (pad == 1) {
+            /* Pad1 */
+            header[size - 1] = 0;
+        } else if (pad > 1) {
+            /* PadN */
+            header[2 + dlen] = 1;
+            header[3 + dlen] = (byte) (pad - 2);
+        }
+        return header;
+    }
+
+    public byte[] generatePacketData(IPv6Packet packet) {
+        byte[] header = generateHeaderData();
+        if (next == null) {
+            return header;
+        }
+        byte[] payload = next.generatePacketData(packet);
+        byte[] data = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(payload, 0, data, header.length, payload.length);
+        return data;
+    }
+
+    public void printPacket(PrintStream out) {
+        out.print("Extension header " + (dispatch & 0xff) + " NH: " +
+                (nextHeader & 0xff) + " len: " + len + " ");
+        if (data != null) {
+            for (int i = 0; i < data.length; i++) {
+                out.print(Utils.hex8(data[i]));
+            }
+        }
+        out.println();
+    }
+
+    public void setNext(IPPayload payload) {
+        next = payload;
+        if (payload != null) {
+            nextHeader = payload.getDispatch();
+        }
+    }
+
+    public IPPayload getNext() {
+        return next;
+    }
+}
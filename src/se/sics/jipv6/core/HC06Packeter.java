@@ -1,753 +1,1264 @@
-package se.sics.jipv6.core;
-
-public class HC06Packeter implements IPPacketer {
-
-    public final static int SICSLOWPAN_UDP_PORT_MIN                     = 0xF0B0;
-    public final static int SICSLOWPAN_UDP_PORT_MAX                     = 0xF0BF;   /* F0B0 + 15 */
-
-    public final static int SICSLOWPAN_DISPATCH_IPV6                    = 0x41; /* 01000001 = 65 */
-    public final static int SICSLOWPAN_DISPATCH_HC1                     = 0x42; /* 01000010 = 66 */
-    public final static int SICSLOWPAN_DISPATCH_IPHC                    = 0x60; /* 011xxxxx = ... */
-    public final static int SICSLOWPAN_DISPATCH_FRAG1                   = 0xc0; /* 1100= 0xxx */
-    public final static int SICSLOWPAN_DISPATCH_FRAGN                   = 0xe0; /* 1110= 0xxx */
-
-    /*
-     * Values of fields within the IPHC encoding first byte
-     * (C stands for compressed and I for inline)
-     */
-    public final static int SICSLOWPAN_IPHC_TC_C                        = 0x10;
-    public final static int SICSLOWPAN_IPHC_FL_C                        = 0x08;
-    public final static int SICSLOWPAN_IPHC_NH_C                        = 0x04;
-    public final static int SICSLOWPAN_IPHC_TTL_1                       = 0x01;
-    public final static int SICSLOWPAN_IPHC_TTL_64                      = 0x02;
-    public final static int SICSLOWPAN_IPHC_TTL_255                     = 0x03;
-    public final static int SICSLOWPAN_IPHC_TTL_I                       = 0x00;
-
-
-    /* Values of fields within the IPHC encoding second byte */
-    public final static int SICSLOWPAN_IPHC_CID                         = 0x80;
-
-    public final static int SICSLOWPAN_IPHC_SAC                         = 0x40;
-    public final static int SICSLOWPAN_IPHC_SAM_00                      = 0x00;
-    public final static int SICSLOWPAN_IPHC_SAM_01                      = 0x10;
-    public final static int SICSLOWPAN_IPHC_SAM_10                      = 0x20;
-    public final static int SICSLOWPAN_IPHC_SAM_11                      = 0x30;
-
-    public final static int SICSLOWPAN_IPHC_M                           = 0x08;
-    public final static int SICSLOWPAN_IPHC_DAC                         = 0x04;
-    public final static int SICSLOWPAN_IPHC_DAM_00                      = 0x00;
-    public final static int SICSLOWPAN_IPHC_DAM_01                      = 0x01;
-    public final static int SICSLOWPAN_IPHC_DAM_10                      = 0x02;
-    public final static int SICSLOWPAN_IPHC_DAM_11                      = 0x03;
-
-    private static final int SICSLOWPAN_NHC_UDP_MASK                    = 0xf8;
-    private static final int SICSLOWPAN_NHC_UDP_ID                      = 0xf0;
-    private static final int SICSLOWPAN_NHC_UDP_CS_P00  =                 0xf0;
-    private static final int SICSLOWPAN_NHC_UDP_CS_P01 =                  0xf1;
-    private static final int SICSLOWPAN_NHC_UDP_CS_P10 =                  0xf2;
-    private static final int SICSLOWPAN_NHC_UDP_CS_P11 =                  0xf3;
-    private static final int SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR =          0x04;
-
-    public final static int PROTO_UDP = 17;
-    public final static int PROTO_TCP = 6;
-    public final static int PROTO_ICMP = 58;
-
-    private static final boolean DEBUG = false;
-
-    private LoWPANFragmenter fragmenter = new LoWPANFragmenter();
-        
-    /**
-     * \brief check whether we can compress the IID in
-     * address to 16 bits.
-     * This is used for unicast addresses only, and is true
-     * if first 49 bits of IID are 0
-     * @return 
-     */
-    private boolean is16bitCompressable(byte[] address) {
-      return ((address[8] | address[9] | address[10] | address[11] |
-          address[12] | address[13]) == 0) &&
-          (address[14] & 0x80) == 0;
-    }
-
-    /* FFXX::00XX:XXXX:XXXX */
-    private boolean isMcastAddrCompressable48(byte[] a) {
-        for(int i = 2; i < 11; i++) {
-            if (a[i] != 0) return false;
-        }
-        return true;
-    }
-
-    /* FFXX::00XX:XXXX */
-    private boolean isMcastAddrCompressable32(byte[] a) {
-        for(int i = 2; i < 13; i++) {
-            if (a[i] != 0) return false;
-        }
-        return true;
-    }
-    
-    /* FF02::00XX */
-    private boolean isMcastAddrCompressable8(byte[] a) {
-        if (a[1] != 0x02) return false;
-        for(int i = 2; i < 15; i++) {
-            if (a[i] != 0) return false;
-        }
-        return true;
-    }
-    
-    
-    /* ripped from HC01 */
-    private static class AddrContext {
-        byte[] prefix = new byte[16];
-
-        public AddrContext(long a1,long a2,long a3,long a4) {
-            for(int i = 0; i < 4; i++) {
-                prefix[3 - i] = (byte)(a1 & 0xff);
-                a1 = a1 >> 8;
-                prefix[4 + 3 - i] = (byte)(a2 & 0xff);
-                a2 = a2 >> 8;
-                prefix[8 + 3 - i] = (byte)(a3 & 0xff);
-                a3 = a3 >> 8;
-                prefix[12 + 3 - i] = (byte)(a4 & 0xff);
-                a4 = a4 >> 8;
-            }
-        }
-
-        public boolean matchPrefix(byte[] address) {
-            for (int i = 0; i < prefix.length; i++) {
-                if (prefix[i] != address[i])
-                    return false;
-            }
-            return true;
-        }
-    }
-
-    /* HC06 specifies 16 contexts */
-    private AddrContext[] contexts = new AddrContext[16];
-
-    public void setContext(int cIndex, long a1, long a2, long a3, long a4) {
-        contexts[cIndex] = new AddrContext(a1, a2, a3, a4);
-    }
-    
-    
-    private int lookupContext(byte[] address) {
-        for (int i = 0; i < contexts.length; i++) {
-            if (contexts[i] != null && contexts[i].matchPrefix(address)) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
-    public byte[] generatePacketData(IPv6Packet packet) {
-        byte[] data = new byte[40 + 8];
-        int hc06_ptr = 2;
-
-        data[0] = SICSLOWPAN_DISPATCH_IPHC;
-        data[1] = 0;
-        data[2] = 0; /* might not be used - but needs to be cleared */
-
-        /* check if dest context exists (for allocating third byte) */
-        /* TODO: fix this so that it remembers the looked up values for
-           avoiding two lookups - or set the lookup values immediately */
-        if(lookupContext(packet.destAddress) != -1 ||
-                lookupContext(packet.sourceAddress) != -1) {
-            /* set context flag and increase hc06_ptr */
-            System.out.println("IPHC: compressing dest or src ipaddr - setting CID\n");
-            data[1] |= SICSLOWPAN_IPHC_CID;
-            hc06_ptr++;
-        }
-
-        /*
-         * Traffic class, flow label
-         * If flow label is 0, compress it. If traffic class is 0, compress it
-         * We have to process both in the same time as the offset of traffic class
-         * depends on the presence of version and flow label
-         */
-
-        /* hc06 format of tc is ECN | DSCP , original is DSCP | ECN */
-        int tmp = (packet.trafficClass << 6) & 0xff | (packet.trafficClass >> 2);
-
-        if(packet.flowLabel == 0) {
-            /* flow label can be compressed */
-            data[0] |= SICSLOWPAN_IPHC_FL_C;
-            if(packet.trafficClass == 0) {
-                /* compress (elide) all */
-                data[0] |= SICSLOWPAN_IPHC_TC_C;
-            } else {
-                /* compress only the flow label */
-                data[hc06_ptr] = (byte) (tmp & 0xff);
-                hc06_ptr += 1;
-            }
-        } else {
-            /* Flow label cannot be compressed - maybe check traffic class 0x3f */
-            if((packet.trafficClass & 0x03) == 0) {
-                /* compress only traffic class */
-                data[0] |= SICSLOWPAN_IPHC_TC_C;
-                data[hc06_ptr] = (byte) ((tmp & 0xc0) | (packet.flowLabel >> 16) & 0x0f);
-                data[hc06_ptr + 1] = (byte) ((packet.flowLabel >> 8) & 0xff);
-                data[hc06_ptr + 2] = (byte) (packet.flowLabel & 0xff);
-                hc06_ptr += 3;
-            } else {
-                /* compress nothing */
-                data[hc06_ptr] = (byte) tmp;
-                /* but replace the top byte with the new ECN | DSCP format*/
-                data[hc06_ptr + 1] = (byte) ((packet.flowLabel >> 16) & 0x0f);
-                data[hc06_ptr + 2] = (byte) ((packet.flowLabel >> 8) & 0xff);
-                data[hc06_ptr + 3] = (byte) (packet.flowLabel & 0xff);
-                hc06_ptr += 4;
-            }
-        }
-
-        /* Next header compression */
-        if(packet.nextHeader == PROTO_UDP) {
-            data[0] |= SICSLOWPAN_IPHC_NH_C;
-        } else {
-            data[hc06_ptr] = packet.nextHeader;
-            hc06_ptr += 1;
-        }
-        
-        /*
-         * Hop limit
-         * if 1: compress, encoding is 01
-         * if 64: compress, encoding is 10
-         * if 255: compress, encoding is 11
-         * else do not compress
-         */
-        switch(packet.hopLimit) {
-          case 1:
-            data[0] |= SICSLOWPAN_IPHC_TTL_1;
-            break;
-          case 64:
-            data[0] |= SICSLOWPAN_IPHC_TTL_64;
-            break;
-          case 255:
-            data[0] |= SICSLOWPAN_IPHC_TTL_255;
-            break;
-          default:
-            data[hc06_ptr] = (byte) packet.hopLimit;
-            hc06_ptr += 1;
-            break;
-        }
-
-        int context = 0;
-        /* source address - cannot be multicast */
-        if(packet.isSourceUnspecified()) {
-            System.out.println("IPHC: compressing unspecified - setting SAC\n");
-            data[1] |= SICSLOWPAN_IPHC_SAC;
-            data[1] |= SICSLOWPAN_IPHC_SAM_00;
-        } else if((context = lookupContext(packet.sourceAddress)) != -1) {
-            /* elide the prefix - indicate by CID and set context + SAC */
-            System.out.println("IPHC: compressing src with context - setting CID & SAC ctx: " +
-                    context);
-            data[1] |= SICSLOWPAN_IPHC_CID | SICSLOWPAN_IPHC_SAC;
-            data[2] |= context << 4;
-            /* compession compare with this nodes address (source) */
-            if(packet.isSourceMACBased()){
-                /* elide the IID */
-                data[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
-          } else {
-            if(is16bitCompressable(packet.sourceAddress)){
-              /* compress IID to 16 bits */
-                data[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
-                data[hc06_ptr++] = packet.sourceAddress[14];
-                data[hc06_ptr++] = packet.sourceAddress[15];
-            } else {
-              /* do not compress IID */
-              data[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
-              System.arraycopy(packet.sourceAddress, 8, data, hc06_ptr, 8);
-              hc06_ptr += 8;
-            }
-          }
-            /* No context found for this address */
-        } else if(IPStack.isLinkLocal(packet.sourceAddress)) {
-            // TODO: make a function of this: compress_ll_hc06(&UIP_IP_BUF->srcipaddr);
-            if(packet.isSourceMACBased()){
-                data[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
-            } else if(is16bitCompressable(packet.sourceAddress)){
-                /* compress IID to 16 bits fe80::XXXX */
-                data[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
-                data[hc06_ptr++] = packet.sourceAddress[14];
-                data[hc06_ptr++] = packet.sourceAddress[15];
-                hc06_ptr += 2;
-            } else {
-                /* do not compress IID => fe80::IID */
-                data[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
-                System.arraycopy(packet.sourceAddress, 8, data, hc06_ptr, 8);
-                hc06_ptr += 8;
-            }
-        } else {
-            /* send the full address => SAC = 0, SAM = 00 */
-            data[1] |= SICSLOWPAN_IPHC_SAM_00; /* 128-bits */
-            System.arraycopy(packet.sourceAddress, 0, data, hc06_ptr, 16);
-            hc06_ptr += 16;
-        }
-
-        /* dest address*/
-        if(packet.isMulticastDestination()) {
-            /* Address is multicast, try to compress */
-            data[1] |= SICSLOWPAN_IPHC_M;
-            if(isMcastAddrCompressable8(packet.destAddress)) {
-                data[1] |= SICSLOWPAN_IPHC_DAM_11;
-                /* use last byte */
-                data[hc06_ptr++] = packet.destAddress[15];
-            } else if(isMcastAddrCompressable32(packet.destAddress)){
-                data[1] |= SICSLOWPAN_IPHC_DAM_10;
-                /* second byte + the last three */
-                data[hc06_ptr] = packet.destAddress[1];
-                System.arraycopy(packet.destAddress, 13, data, hc06_ptr + 1, 3);
-                hc06_ptr += 4;
-            } else if(isMcastAddrCompressable48(packet.destAddress)){
-                data[1] |= SICSLOWPAN_IPHC_DAM_01;
-            /* second byte + the last five */
-                data[hc06_ptr] = packet.destAddress[1];
-                System.arraycopy(packet.destAddress, 11, data, hc06_ptr + 1, 5);
-                hc06_ptr += 6;
-            } else {
-                data[1] |= SICSLOWPAN_IPHC_DAM_00;
-                /* full address */
-                System.arraycopy(packet.destAddress, 0, data, hc06_ptr + 1, 16);
-                hc06_ptr += 16;
-            }
-        } else {
-            /* Address is unicast, try to compress */
-            if((context = lookupContext(packet.destAddress)) != -1) {
-                /* elide the prefix */
-                data[1] |= SICSLOWPAN_IPHC_DAC;
-                data[2] |= context;
-                /* compession compare with link adress (destination) */
-                if(packet.isDestinationMACBased()) {
-                    /* elide the IID */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
-                } else {
-                    if(is16bitCompressable(packet.destAddress)) {
-                        /* compress IID to 16 bits */
-                        data[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
-                        data[hc06_ptr++] = packet.destAddress[14];
-                        data[hc06_ptr++] = packet.destAddress[15];
-                    } else {
-                      /* do not compress IID */
-                      data[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
-                      System.arraycopy(packet.destAddress, 8, data, hc06_ptr, 8);
-                      hc06_ptr += 8;
-                    }
-                }
-                /* No context found for this address */
-            } else if(IPStack.isLinkLocal(packet.destAddress)) {
-                // TODO: make a function of this: compress_ll_hc06(&UIP_IP_BUF->destipaddr);
-                if(packet.isDestinationMACBased()) {
-                    data[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
-                } else if(is16bitCompressable(packet.destAddress)){
-                    /* compress IID to 16 bits fe80::XXXX */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
-                    data[hc06_ptr++] = packet.destAddress[14];
-                    data[hc06_ptr++] = packet.destAddress[15];
-                } else {
-                    /* do not compress IID => fe80::IID */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
-                    System.arraycopy(packet.destAddress, 8, data, hc06_ptr, 8);
-                    hc06_ptr += 8;
-                }
-            } else {
-                /* send the full address */
-                data[1] |= SICSLOWPAN_IPHC_DAM_00; /* 128-bits */
-                System.arraycopy(packet.destAddress, 0, data, hc06_ptr, 16);
-                hc06_ptr += 16;
-            }
-        }
-
-        /* UDP header compression */
-        if(packet.nextHeader == UDPPacket.DISPATCH) {
-          UDPPacket udp = (UDPPacket) packet.getIPPayload();
-          if( udp.sourcePort  >= SICSLOWPAN_UDP_PORT_MIN &&
-              udp.sourcePort <  SICSLOWPAN_UDP_PORT_MAX &&
-              udp.destinationPort >= SICSLOWPAN_UDP_PORT_MIN &&
-              udp.destinationPort <  SICSLOWPAN_UDP_PORT_MAX) {
-            /* we can compress. Copy compressed ports, full chcksum */
-            data[hc06_ptr++] = (byte) (((udp.sourcePort - SICSLOWPAN_UDP_PORT_MIN) << 4) +
-                (udp.destinationPort - SICSLOWPAN_UDP_PORT_MIN));
-            int checksum = udp.doVirtualChecksum(packet);
-            data[hc06_ptr++] = (byte) (checksum >> 8);
-            data[hc06_ptr++] = (byte) (checksum & 0xff);
-          } else {
-            /* we cannot compress. Copy uncompressed ports, full chcksum */
-            data[hc06_ptr++] = (byte) (udp.sourcePort >> 8);
-            data[hc06_ptr++] = (byte) (udp.sourcePort & 0xff);
-            data[hc06_ptr++] = (byte) (udp.destinationPort >> 8);
-            data[hc06_ptr++] = (byte) (udp.destinationPort & 0xff);
-            int checksum = udp.doVirtualChecksum(packet);
-            data[hc06_ptr++] = (byte) (checksum >> 8);
-            data[hc06_ptr++] = (byte) (checksum & 0xff);
-          }
-        }
-
-        
-        if (DEBUG) System.out.println("HC06 Header compression: size " + hc06_ptr);
-        if (DEBUG) {
-            System.out.print("HC01: From ");
-            IPv6Packet.printAddress(System.out, packet.sourceAddress);
-            System.out.print("HC01:   To ");
-            IPv6Packet.printAddress(System.out, packet.destAddress);
-        }
-        byte[] pload;
-        if (packet.nextHeader == UDPPacket.DISPATCH) {
-            UDPPacket udp = (UDPPacket) packet.getIPPayload();
-            /* already have the udp header */
-            pload = udp.payload;
-        } else {
-            IPPayload payload = packet.getIPPayload();
-            pload = payload.generatePacketData(packet);
-        }
-        if (DEBUG) System.out.println("HC06 Payload size: " + pload.length);
-
-        byte[] dataPacket = new byte[hc06_ptr + pload.length];
-        System.arraycopy(data, 0, dataPacket, 0, hc06_ptr);
-        System.arraycopy(pload, 0, dataPacket, hc06_ptr, pload.length);
-        return dataPacket;
-    }
-
-    public byte getDispatch() {
-        return 0;
-    }
-
-    public boolean parsePacketData(IPv6Packet packet) {
-        int headerSize = 0;
-        int compressedHeaderSize = 0;
-        if ((packet.getData(0) & 0xf8) == SICSLOWPAN_DISPATCH_FRAG1) {
-            /* first fragment need to decompress first to get "size" diff. */
-            packet.incPos(4);
-            int pos = packet.currentPos;
-            headerSize = decompress(packet);
-            compressedHeaderSize = packet.currentPos - pos;
-            System.out.println("HDR Size: " + headerSize + " Compr:" + compressedHeaderSize);
-            packet.currentPos = pos - 4;
-        }
-                
-        if (!fragmenter.handleFragment(packet, headerSize, compressedHeaderSize)) {
-            /* fragment - and not a complete packet */
-            return false;
-        }
-        
-        return decompress(packet) != 0;
-    }
-    
-   public int decompress(IPv6Packet packet) {       
-        int headerSize = 40;
-        
-        /* Handle "uncompression" */
-        int cid = (packet.getData(1) >> 7) & 0x01;
-        int sci = 0;
-        int dci = 0;
-
-        if (cid == 1) {
-            sci = packet.getData(2) >> 4;
-            dci = packet.getData(2) & 0x0f;
-        }
-
-        int hc06_ptr = 2 + cid;
-
-        packet.version = 6;
-        UDPPacket udp = null;
-
-        int checkSum = 0;
-        int srcPort = 0;
-        int destPort = 0;
-
-        /* Traffic class and flow label */
-        if((packet.getData(0) & SICSLOWPAN_IPHC_FL_C) == 0) {
-            /* Flow label are carried inline */
-            if((packet.getData(0) & SICSLOWPAN_IPHC_TC_C) == 0) {
-                /* Traffic class is carried inline */
-                packet.flowLabel = packet.get24(hc06_ptr + 1);
-                int tmp = packet.getData(hc06_ptr);
-                hc06_ptr += 4;
-                /* hc06 format of tc is ECN | DSCP , original is DSCP | ECN */
-                packet.trafficClass = ((tmp >> 2) & 0x3f) | (tmp << 6) & (0x80 + 0x40);
-                /* ECN rolled down two steps + lowest DSCP bits at top two bits */
-            } else {
-                /* highest flow label bits + ECN bits */
-                int tmp = packet.getData(hc06_ptr);
-                packet.trafficClass = (tmp >> 6) & 0x0f; 
-                packet.flowLabel = packet.get16(hc06_ptr + 1);
-                hc06_ptr += 3;
-            }
-        } else {
-            /* Version is always 6! */
-            /* Version and flow label are compressed */
-            if((packet.getData(0) & SICSLOWPAN_IPHC_TC_C) == 0) {
-                /* Traffic class is inline */
-                packet.trafficClass =((packet.getData(hc06_ptr) >> 6) & 0x03);
-                packet.trafficClass = (packet.getData(hc06_ptr) << 2);
-                hc06_ptr += 1;
-            }
-        }
-
-        /* Next Header */
-        if((packet.getData(0) & SICSLOWPAN_IPHC_NH_C) == 0) {
-            /* Next header is carried inline */
-            packet.nextHeader = packet.getData(hc06_ptr);
-            hc06_ptr += 1;
-        } else {
-            if (DEBUG) System.out.println("Next header compressed!");
-        }
-
-        /* Hop limit */
-        switch(packet.getData(0) & 0x03) {
-        case SICSLOWPAN_IPHC_TTL_1:
-            packet.hopLimit = 1;
-            break;
-        case SICSLOWPAN_IPHC_TTL_64:
-            packet.hopLimit = 64;
-            break;
-        case SICSLOWPAN_IPHC_TTL_255:
-            packet.hopLimit = 255;
-            break;
-        case SICSLOWPAN_IPHC_TTL_I:
-            packet.hopLimit = packet.getData(hc06_ptr);
-            hc06_ptr += 1;
-            break;
-        }
-
-        /* context based compression */
-        if((packet.getData(1) & SICSLOWPAN_IPHC_SAC) > 0) {
-            /* Source address */
-            AddrContext context = null;
-            if((packet.getData(1) & SICSLOWPAN_IPHC_SAM_11) != SICSLOWPAN_IPHC_SAM_00) {
-                if (DEBUG) System.out.println("Setting context:" + sci + " SAM:" + (packet.getData(1) & SICSLOWPAN_IPHC_SAM_11));
-                context = contexts[sci];
-            }
-
-            switch(packet.getData(1) & SICSLOWPAN_IPHC_SAM_11) {
-            case SICSLOWPAN_IPHC_SAM_00:
-                /* copy the unspecificed address */
-                packet.sourceAddress = IPStack.UNSPECIFIED;
-                break;
-            case SICSLOWPAN_IPHC_SAM_01: /* 64 bits */
-                /* copy prefix from context */
-                System.arraycopy(context.prefix, 0, packet.sourceAddress, 0, 8);
-                /* copy IID from packet */
-                packet.copy(hc06_ptr, packet.sourceAddress, 8, 8);
-                hc06_ptr += 8;
-                break;
-            case SICSLOWPAN_IPHC_SAM_10: /* 16 bits */
-                /* unicast address */
-                System.arraycopy(context.prefix, 0, packet.sourceAddress, 0, 8);
-                /* copy 6 NULL bytes then 2 last bytes of IID */
-                packet.copy(hc06_ptr, packet.sourceAddress, 14, 2);
-                hc06_ptr += 2;
-                break;
-            case SICSLOWPAN_IPHC_SAM_11: /* 0-bits */
-                /* copy prefix from context */
-                System.arraycopy(context.prefix, 0, packet.sourceAddress, 0, 8);
-                /* infer IID from L2 address */
-                byte[] llsender = packet.getLinkSource(); 
-                System.arraycopy(llsender, 0, packet.sourceAddress, 
-                        16 - llsender.length, llsender.length);
-                break;
-            }
-            /* end context based compression */
-        } else {
-            /* no compression and link local */
-            switch(packet.getData(1) & SICSLOWPAN_IPHC_SAM_11) {
-            case SICSLOWPAN_IPHC_SAM_00: /* 128 bits */
-                /* copy whole address from packet */
-                packet.copy(hc06_ptr, packet.sourceAddress, 0, 16);
-                hc06_ptr += 16;
-                break;
-            case SICSLOWPAN_IPHC_SAM_01: /* 64 bits */
-                packet.sourceAddress[0] = (byte) 0xfe;
-                packet.sourceAddress[1] = (byte) 0x80;
-                /* copy IID from packet */
-                packet.copy(hc06_ptr, packet.sourceAddress, 8, 8);
-                hc06_ptr += 8;
-                break;
-            case SICSLOWPAN_IPHC_SAM_10: /* 16 bits */
-                packet.sourceAddress[0] = (byte) 0xfe;
-                packet.sourceAddress[1] = (byte) 0x80;
-                packet.copy(hc06_ptr, packet.sourceAddress, 14, 2);
-                hc06_ptr += 2;
-                break;
-            case SICSLOWPAN_IPHC_SAM_11: /* 0 bits */
-                /* setup link-local address */
-                packet.sourceAddress[0] = (byte) 0xfe;
-                packet.sourceAddress[1] = (byte) 0x80;
-                /* infer IID from L2 address */
-                byte[] llsender = packet.getLinkSource();
-                System.arraycopy(llsender, 0, packet.sourceAddress, 
-                        16 - llsender.length, llsender.length);
-                break;
-            }
-        }
-
-        /* Destination address */
-
-        /* multicast compression */
-        if((packet.getData(1) & SICSLOWPAN_IPHC_M) != 0) {
-            /* context based multicast compression */
-            if((packet.getData(1) & SICSLOWPAN_IPHC_DAC) != 0) {
-                /* TODO: implement this */
-            } else {
-                /* non-context based multicast compression */
-                switch (packet.getData(1) & SICSLOWPAN_IPHC_DAM_11) {
-                case SICSLOWPAN_IPHC_DAM_00: /* 128 bits */
-                    /* copy whole address from packet */
-                    packet.copy(hc06_ptr, packet.destAddress, 0, 16);
-                    hc06_ptr += 16;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_01: /* 48 bits FFXX::00XX:XXXX:XXXX */
-                    packet.destAddress[0] = (byte) 0xff;
-                    packet.destAddress[1] = packet.getData(hc06_ptr);
-                    packet.copy(hc06_ptr + 1, packet.destAddress, 11, 5);
-                    hc06_ptr += 6;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_10: /* 32 bits FFXX::00XX:XXXX */
-                    packet.destAddress[0] = (byte) 0xff;
-                    packet.destAddress[1] = packet.getData(hc06_ptr);
-                    packet.copy(hc06_ptr + 1, packet.destAddress, 13, 3);
-                    hc06_ptr += 4;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_11: /* 8 bits FF02::00XX */
-                    packet.destAddress[0] = (byte) 0xff;
-                    packet.destAddress[1] = (byte) 0x02;
-                    packet.destAddress[15] = packet.getData(hc06_ptr);
-                    hc06_ptr++;
-                    break;
-                }
-            }
-        } else {
-            /* no multicast */
-            /* Context based */
-            if((packet.getData(1) & SICSLOWPAN_IPHC_DAC) != 0) {
-                AddrContext context = contexts[dci];
-
-                switch (packet.getData(1) & SICSLOWPAN_IPHC_DAM_11) {
-                case SICSLOWPAN_IPHC_DAM_01: /* 64 bits */
-                    System.arraycopy(context.prefix, 0, packet.destAddress, 0, 8);
-                    /* copy IID from packet */
-                    packet.copy(hc06_ptr, packet.destAddress, 8, 8);
-                    hc06_ptr += 8;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_10: /* 16 bits */
-                    /* unicast address */
-                    System.arraycopy(context.prefix, 0, packet.destAddress, 0, 8);
-                    /* copy IID from packet */
-                    packet.copy(hc06_ptr, packet.destAddress, 14, 2);
-                    hc06_ptr += 2;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_11: /* 0 bits */
-                    /* unicast address */
-                    System.arraycopy(context.prefix, 0, packet.destAddress, 0, 8);
-                    /* infer IID from L2 address */
-                    byte[] llreceiver = packet.getLinkDestination();
-                    System.arraycopy(llreceiver, 0, packet.destAddress, 
-                            16 - llreceiver.length, llreceiver.length);
-                    break;
-                }      
-            } else {
-                /* not context based => link local M = 0, DAC = 0 - same as SAC */
-                switch (packet.getData(1) & SICSLOWPAN_IPHC_DAM_11) {
-                case SICSLOWPAN_IPHC_DAM_00: /* 128 bits */
-                    packet.copy(hc06_ptr, packet.destAddress, 0, 16);
-                    hc06_ptr += 16;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_01: /* 64 bits */
-                    packet.destAddress[0] = (byte) 0xfe;
-                    packet.destAddress[1] = (byte) 0x80;
-                    packet.copy(hc06_ptr, packet.destAddress, 8, 8);
-                    hc06_ptr += 8;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_10: /* 16 bits */
-                    packet.destAddress[0] = (byte) 0xfe;
-                    packet.destAddress[1] = (byte) 0x80;
-                    packet.copy(hc06_ptr, packet.destAddress, 14, 2);
-                    hc06_ptr += 2;
-                    break;
-                case SICSLOWPAN_IPHC_DAM_11: /* 0 bits */
-                    packet.destAddress[0] = (byte) 0xfe;
-                    packet.destAddress[1] = (byte) 0x80;
-                    byte[] llreceiver = packet.getLinkDestination();
-                    System.arraycopy(llreceiver, 0, packet.destAddress, 
-                            16 - llreceiver.length, llreceiver.length);
-                    break;
-                }
-            }
-        }
-        
-        /* Next header processing - continued */
-        if((packet.getData(0) & SICSLOWPAN_IPHC_NH_C) != 0) {
-            /* TODO: check if this is correct in hc-06 */
-            /* The next header is compressed, NHC is following */
-            if((packet.getData(hc06_ptr) & SICSLOWPAN_NHC_UDP_MASK) == SICSLOWPAN_NHC_UDP_ID) {
-                packet.nextHeader = PROTO_UDP;
-                boolean checksumCompressed = (packet.getData(hc06_ptr) & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) != 0;
-                switch(packet.getData(hc06_ptr) & SICSLOWPAN_NHC_UDP_CS_P11) {
-                case SICSLOWPAN_NHC_UDP_CS_P00:
-                    /* 1 byte for NHC, 4 byte for ports */
-                    srcPort = packet.get16(hc06_ptr + 1);
-                    destPort = packet.get16(hc06_ptr + 3);
-                    hc06_ptr += 5;
-                break;
-/* TODO: ADD P01 / P10 also!!!! */
-                case SICSLOWPAN_NHC_UDP_CS_P11:
-                    /* 1 byte for NHC, 1 byte for ports */
-                    srcPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(hc06_ptr + 1) >> 4);
-                    destPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(hc06_ptr + 1) & 0x0F);
-                    hc06_ptr += 2;
-                    break;                    
-                default:
-                    System.out.println("sicslowpan uncompress_hdr: error unsupported UDP compression\n");
-                }
-                if (!checksumCompressed) {
-                    checkSum = ((packet.getData(hc06_ptr) & 0xff) << 8) +
-                            (packet.getData(hc06_ptr + 1) & 0xff);
-                }
-
-                udp = new UDPPacket();
-                udp.sourcePort = srcPort;
-                udp.destinationPort = destPort;
-                udp.checkSum = checkSum;
-                headerSize += 8;
-            } else {
-                System.out.printf("Unsupported next header compression:%02x\n",(packet.getData(hc06_ptr) & 0xFC));
-            }
-        }
-
-        //        /* IP length field. */
-        //        if(ip_len == 0) {
-        //            /* This is not a fragmented packet */
-        //            SICSLOWPAN_IP_BUF->len[0] = 0;
-        //            SICSLOWPAN_IP_BUF->len[1] = packetbuf_datalen() - rime_hdr_len + uncomp_hdr_len - UIP_IPH_LEN;
-        //        } else {
-        //            /* This is a 1st fragment */
-        //            SICSLOWPAN_IP_BUF->len[0] = (ip_len - UIP_IPH_LEN) >> 8;
-        //            SICSLOWPAN_IP_BUF->len[1] = (ip_len - UIP_IPH_LEN) & 0x00FF;
-        //        }
-
-        //        /* length field in UDP header */
-        //        if(SICSLOWPAN_IP_BUF->proto == UIP_PROTO_UDP) {
-        //            memcpy(&SICSLOWPAN_UDP_BUF->udplen, ipBuf + len[0], 2);
-        //        }
-
-        if (DEBUG) {
-            System.out.println("IPv6 / IPHC packet received NH:" + packet.nextHeader);
-            System.out.println("TTL: " + (packet.hopLimit & 0xff));
-            System.out.print("Src Addr: ");
-            IPv6Packet.printAddress(System.out, packet.sourceAddress);
-            System.out.print("Dst Addr: ");
-            IPv6Packet.printAddress(System.out, packet.destAddress);
-        }
-        
-        packet.incPos(hc06_ptr);
-        
-        if (udp != null) {
-            /* if we have a udp payload we already have the udp headers in place */
-            /* the rest is only the payload */
-            udp.payload = packet.getPayload();
-            udp.length = udp.payload.length + 8;
-            /* add 8 to the payload length of the UDP packet */
-            packet.payloadLen += 8;
-            udp.doVirtualChecksum(packet);
-            packet.setIPPayload(udp);
-        }
-        return headerSize;
-    }
-}
+package se.sics.jipv6.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.sics.jipv6.util.Log;
+import se.sics.jipv6.util.Utils;
+
+public class HC06Packeter implements IPPacketer {
+
+    public final static int SICSLOWPAN_UDP_PORT_MIN                     = 0xF0B0;
+    public final static int SICSLOWPAN_UDP_PORT_MAX                     = 0xF0BF;   /* F0B0 + 15 */
+
+    public final static int SICSLOWPAN_DISPATCH_IPV6                    = 0x41; /* 01000001 = 65 */
+    public final static int SICSLOWPAN_DISPATCH_HC1                     = 0x42; /* 01000010 = 66 */
+    public final static int SICSLOWPAN_DISPATCH_IPHC                    = 0x60; /* 011xxxxx = ... */
+    public final static int SICSLOWPAN_DISPATCH_FRAG1                   = 0xc0; /* 1100= 0xxx */
+    public final static int SICSLOWPAN_DISPATCH_FRAGN                   = 0xe0; /* 1110= 0xxx */
+
+    /*
+     * Values of fields within the IPHC encoding first byte
+     * (C stands for compressed and I for inline)
+     */
+    public final static int SICSLOWPAN_IPHC_TC_C                        = 0x10;
+    public final static int SICSLOWPAN_IPHC_FL_C                        = 0x08;
+    public final static int SICSLOWPAN_IPHC_NH_C                        = 0x04;
+    public final static int SICSLOWPAN_IPHC_TTL_1                       = 0x01;
+    public final static int SICSLOWPAN_IPHC_TTL_64                      = 0x02;
+    public final static int SICSLOWPAN_IPHC_TTL_255                     = 0x03;
+    public final static int SICSLOWPAN_IPHC_TTL_I                       = 0x00;
+
+
+    /* Values of fields within the IPHC encoding second byte */
+    public final static int SICSLOWPAN_IPHC_CID                         = 0x80;
+
+    public final static int SICSLOWPAN_IPHC_SAC                         = 0x40;
+    public final static int SICSLOWPAN_IPHC_SAM_00                      = 0x00;
+    public final static int SICSLOWPAN_IPHC_SAM_01                      = 0x10;
+    public final static int SICSLOWPAN_IPHC_SAM_10                      = 0x20;
+    public final static int SICSLOWPAN_IPHC_SAM_11                      = 0x30;
+
+    public final static int SICSLOWPAN_IPHC_M                           = 0x08;
+    public final static int SICSLOWPAN_IPHC_DAC                         = 0x04;
+    public final static int SICSLOWPAN_IPHC_DAM_00                      = 0x00;
+    public final static int SICSLOWPAN_IPHC_DAM_01                      = 0x01;
+    public final static int SICSLOWPAN_IPHC_DAM_10                      = 0x02;
+    public final static int SICSLOWPAN_IPHC_DAM_11                      = 0x03;
+
+    private static final int SICSLOWPAN_NHC_UDP_MASK                    = 0xf8;
+    private static final int SICSLOWPAN_NHC_UDP_ID                      = 0xf0;
+    private static final int SICSLOWPAN_NHC_UDP_CS_P00  =                 0xf0;
+    private static final int SICSLOWPAN_NHC_UDP_CS_P01 =                  0xf1;
+    private static final int SICSLOWPAN_NHC_UDP_CS_P10 =                  0xf2;
+    private static final int SICSLOWPAN_NHC_UDP_CS_P11 =                  0xf3;
+    private static final int SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR =          0x04;
+
+    /* 8 bit port compression - 0xF000 - 0xF0FF */
+    public final static int SICSLOWPAN_UDP_8BIT_PORT_MIN                = 0xF000;
+
+    /* extension header NHC - 1110 EID(3) NH(1) */
+    private static final int SICSLOWPAN_NHC_EXT_MASK                    = 0xf0;
+    private static final int SICSLOWPAN_NHC_EXT_ID                      = 0xe0;
+    private static final int SICSLOWPAN_NHC_EXT_NH                      = 0x01;
+    private static final int SICSLOWPAN_NHC_EID_HOP_BY_HOP              = 0;
+    private static final int SICSLOWPAN_NHC_EID_ROUTING                 = 1;
+    private static final int SICSLOWPAN_NHC_EID_FRAGMENT                = 2;
+    private static final int SICSLOWPAN_NHC_EID_DEST_OPTIONS            = 3;
+    private static final int SICSLOWPAN_NHC_EID_MOBILITY                = 4;
+    private static final int SICSLOWPAN_NHC_EID_IPV6                    = 7;
+
+    public final static int PROTO_UDP = 17;
+    public final static int PROTO_TCP = 6;
+    public final static int PROTO_ICMP = 58;
+
+    private static final boolean DEBUG = false;
+
+    private LoWPANFragmenter fragmenter = new LoWPANFragmenter();
+    /* set while a FRAG1 header is decompressed only to learn its size */
+    private boolean sizeProbe;
+    private boolean elideUDPChecksum = false;
+        
+    /**
+     * \brief check whether we can compress the IID in
+     * address to 16 bits.
+     * This is used for unicast addresses only, and is true
+     * if first 49 bits of IID are 0
+     * @return 
+     */
+    private boolean is16bitCompressable(IPv6Address address) {
+      return (address.getLow() & 0xffffffffffff8000L) == 0;
+    }
+
+    /* FFXX::00XX:XXXX:XXXX */
+    private boolean isMcastAddrCompressable48(IPv6Address a) {
+        return (a.getHigh() & 0x0000ffffffffffffL) == 0 &&
+            (a.getLow() & 0xffffff0000000000L) == 0;
+    }
+
+    /* FFXX::00XX:XXXX */
+    private boolean isMcastAddrCompressable32(IPv6Address a) {
+        return (a.getHigh() & 0x0000ffffffffffffL) == 0 &&
+            (a.getLow() & 0xffffffffff000000L) == 0;
+    }
+    
+    /* FF02::00XX */
+    private boolean isMcastAddrCompressable8(IPv6Address a) {
+        return a.getHigh() == 0xff02000000000000L &&
+            (a.getLow() & 0xffffffffffffff00L) == 0;
+    }
+    
+    
+    /* ripped from HC01 */
+    private static class AddrContext {
+        final IPv6Address prefix;
+
+        public AddrContext(long a1,long a2,long a3,long a4) {
+            prefix = IPv6Address.valueOf(((a1 & 0xffffffffL) << 32) | (a2 & 0xffffffffL),
+                    ((a3 & 0xffffffffL) << 32) | (a4 & 0xffffffffL));
+        }
+
+        /* contexts carry a 64 bit prefix */
+        public boolean matchPrefix(IPv6Address address) {
+            return address.matchPrefix(prefix, 64);
+        }
+    }
+
+    /* HC06 specifies 16 contexts */
+    private AddrContext[] contexts = new AddrContext[16];
+
+    public void setContext(int cIndex, long a1, long a2, long a3, long a4) {
+        contexts[cIndex] = new AddrContext(a1, a2, a3, a4);
+        /* cached headers might have been compressed against the old context */
+        synchronized (flowCache) {
+            flowCache.clear();
+        }
+    }
+
+    /* Flow cache - nodes send the same flows over and over, so the IPHC
+     * header (dispatch up to and including the addresses) is kept per
+     * flow with the hop limit left out. Only hop limit and the UDP
+     * ports and checksum are filled in for each packet.
+     */
+    private static class FlowKey {
+        IPv6Address source;
+        IPv6Address destination;
+        int nextHeader;
+        int trafficClass;
+        int flowLabel;
+        /* bit 0 = source MAC based, bit 1 = destination MAC based,
+         * bit 2 = next header sent as NHC */
+        int macBased;
+
+        FlowKey() {
+        }
+
+        FlowKey(FlowKey key) {
+            source = key.source;
+            destination = key.destination;
+            nextHeader = key.nextHeader;
+            trafficClass = key.trafficClass;
+            flowLabel = key.flowLabel;
+            macBased = key.macBased;
+        }
+
+        void set(IPv6Packet packet) {
+            source = packet.sourceAddress;
+            destination = packet.destAddress;
+            nextHeader = packet.nextHeader & 0xff;
+            trafficClass = packet.trafficClass;
+            flowLabel = packet.flowLabel;
+            macBased = (packet.isSourceMACBased() ? 1 : 0) |
+                (packet.isDestinationMACBased() ? 2 : 0) |
+                (isNHCCompressible(packet.getIPPayload()) ? 4 : 0);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey)) return false;
+            FlowKey k = (FlowKey) o;
+            return nextHeader == k.nextHeader && trafficClass == k.trafficClass &&
+                flowLabel == k.flowLabel && macBased == k.macBased &&
+                source.equals(k.source) && destination.equals(k.destination);
+        }
+
+        public int hashCode() {
+            return (source.hashCode() * 31 + destination.hashCode()) * 31 +
+                (nextHeader ^ flowLabel ^ (trafficClass << 20) ^ (macBased << 28));
+        }
+    }
+
+    private static class FlowTemplate {
+        /* the header without any inline hop limit */
+        final byte[] header;
+        final int hopLimitPos;
+
+        FlowTemplate(byte[] data, int start, int len, int hopLimitPos) {
+            int inline = (data[start] & SICSLOWPAN_IPHC_TTL_255) == SICSLOWPAN_IPHC_TTL_I ? 1 : 0;
+            header = new byte[len - inline];
+            System.arraycopy(data, start, header, 0, hopLimitPos);
+            System.arraycopy(data, start + hopLimitPos + inline, header, hopLimitPos,
+                    len - hopLimitPos - inline);
+            header[0] &= ~SICSLOWPAN_IPHC_TTL_255;
+            this.hopLimitPos = hopLimitPos;
+        }
+
+        /* copy the header to start in data and patch the hop limit -
+         * returns the end of the header */
+        int apply(byte[] data, int start, int hopLimit) {
+            System.arraycopy(header, 0, data, start, hopLimitPos);
+            int pos = start + hopLimitPos;
+            switch(hopLimit) {
+            case 1:
+                data[start] |= SICSLOWPAN_IPHC_TTL_1;
+                break;
+            case 64:
+                data[start] |= SICSLOWPAN_IPHC_TTL_64;
+                break;
+            case 255:
+                data[start] |= SICSLOWPAN_IPHC_TTL_255;
+                break;
+            default:
+                data[pos++] = (byte) hopLimit;
+                break;
+            }
+            System.arraycopy(header, hopLimitPos, data, pos, header.length - hopLimitPos);
+            return pos + header.length - hopLimitPos;
+        }
+    }
+
+    public static final int DEFAULT_FLOW_CACHE_SIZE = 32;
+
+    private int flowCacheSize = DEFAULT_FLOW_CACHE_SIZE;
+    /* access ordered => iteration order is least recently used first */
+    private final LinkedHashMap<FlowKey, FlowTemplate> flowCache =
+        new LinkedHashMap<FlowKey, FlowTemplate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<FlowKey, FlowTemplate> eldest) {
+            return size() > flowCacheSize;
+        }
+    };
+    private final FlowKey flowProbe = new FlowKey();
+    private int hopLimitPos;
+    private int flowCacheHits;
+    private int flowCacheMisses;
+
+    /* 0 disables the flow cache */
+    public void setFlowCacheSize(int size) {
+        synchronized (flowCache) {
+            flowCacheSize = size;
+            flowCache.clear();
+        }
+    }
+
+    public int getFlowCacheHits() {
+        return flowCacheHits;
+    }
+
+    public int getFlowCacheMisses() {
+        return flowCacheMisses;
+    }
+    
+    
+    private int lookupContext(IPv6Address address) {
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i] != null && contexts[i].matchPrefix(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* unicast prefix based multicast (RFC 3306) with a 64 bit prefix
+     * that matches a context */
+    private int lookupMcastContext(IPv6Address address) {
+        if (!address.isMulticast() || ((address.getHigh() >>> 32) & 0xff) != 64) {
+            return -1;
+        }
+        long prefix = (address.getHigh() << 32) | (address.getLow() >>> 32);
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i] != null && contexts[i].prefix.getHigh() == prefix) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* the reassembly of received fragments */
+    public LoWPANFragmenter getFragmenter() {
+        return fragmenter;
+    }
+
+    /* the UDP checksum may only be elided when the upper layer is
+     * protected by other means (RFC 6282, 4.3.2) */
+    public void setElideUDPChecksum(boolean elide) {
+        elideUDPChecksum = elide;
+    }
+
+    public byte[] generatePacketData(IPv6Packet packet) {
+        byte[] data = new byte[getMaxHeaderSize(packet)];
+        int hc06_ptr = compressHeader(packet, data, 0);
+        byte[] pload = getPayloadData(packet);
+
+        byte[] dataPacket = new byte[hc06_ptr + pload.length];
+        System.arraycopy(data, 0, dataPacket, 0, hc06_ptr);
+        System.arraycopy(pload, 0, dataPacket, hc06_ptr, pload.length);
+        return dataPacket;
+    }
+
+    /* compress directly into the packet buffer - leaving room in front
+     * for the dispatch and 802.15.4 header. The payload is written once,
+     * right after the compressed header. */
+    public void generatePacket(IPv6Packet packet) {
+        UDPPacket udp = getUDPData(packet);
+        byte[] pload = udp == null ? getPayloadData(packet) : null;
+        int plen = udp == null ? pload.length : udp.getPayloadLength();
+
+        int pos = packet.allocate(Packet.DEFAULT_HEADROOM, getMaxHeaderSize(packet) + plen,
+                Packet.DEFAULT_TAILROOM);
+        int hc06_ptr = compressHeader(packet, packet.packetData, pos);
+        if (udp != null) {
+            udp.copyPayload(packet.packetData, pos + hc06_ptr);
+        } else {
+            System.arraycopy(pload, 0, packet.packetData, pos + hc06_ptr, plen);
+        }
+        packet.endPos = pos + hc06_ptr + plen;
+        packet.compressedHeaderSize = hc06_ptr;
+        packet.headerSize = getHeaderSize(packet);
+    }
+
+    /* compresses to start in data - returns the header length */
+    private int compressHeader(IPv6Packet packet, byte[] data, int start) {
+        /* a forwarded packet might still be lazily decoded */
+        packet.getSourceAddress();
+        packet.getDestinationAddress();
+
+        if (flowCacheSize <= 0) {
+            return compressNextHeaders(packet, data, compressIPHeader(packet, data, start)) - start;
+        }
+        int hc06_ptr;
+        synchronized (flowCache) {
+            flowProbe.set(packet);
+            FlowTemplate template = flowCache.get(flowProbe);
+            if (template != null) {
+                flowCacheHits++;
+                hc06_ptr = template.apply(data, start, packet.hopLimit);
+            } else {
+                flowCacheMisses++;
+                hc06_ptr = compressIPHeader(packet, data, start);
+                flowCache.put(new FlowKey(flowProbe),
+                        new FlowTemplate(data, start, hc06_ptr - start, hopLimitPos));
+            }
+        }
+        return compressNextHeaders(packet, data, hc06_ptr) - start;
+    }
+
+    /* IPHC up to and including the addresses - returns the end position */
+    private int compressIPHeader(IPv6Packet packet, byte[] data, int start) {
+        int hc06_ptr = start + 2;
+
+        data[start] = SICSLOWPAN_DISPATCH_IPHC;
+        data[start + 1] = 0;
+        data[start + 2] = 0; /* might not be used - but needs to be cleared */
+
+        /* check if dest context exists (for allocating third byte) */
+        /* TODO: fix this so that it remembers the looked up values for
+           avoiding two lookups - or set the lookup values immediately */
+        if(lookupContext(packet.destAddress) != -1 ||
+                lookupContext(packet.sourceAddress) != -1 ||
+                lookupMcastContext(packet.destAddress) != -1) {
+            /* set context flag and increase hc06_ptr */
+            if (Log.LOWPAN.debug) Log.LOWPAN.log("IPHC: compressing dest or src ipaddr - setting CID");
+            data[start + 1] |= SICSLOWPAN_IPHC_CID;
+            hc06_ptr++;
+        }
+
+        /*
+         * Traffic class, flow label
+         * If flow label is 0, compress it. If traffic class is 0, compress it
+         * We have to process both in the same time as the offset of traffic class
+         * depends on the presence of version and flow label
+         */
+
+        /* hc06 format of tc is ECN | DSCP , original is DSCP | ECN */
+        int tmp = (packet.trafficClass << 6) & 0xff | (packet.trafficClass >> 2);
+
+        if(packet.flowLabel == 0) {
+            /* flow label can be compressed */
+            data[start] |= SICSLOWPAN_IPHC_FL_C;
+            if(packet.trafficClass == 0) {
+                /* compress (elide) all */
+                data[start] |= SICSLOWPAN_IPHC_TC_C;
+            } else {
+                /* compress only the flow label */
+                data[hc06_ptr] = (byte) (tmp & 0xff);
+                hc06_ptr += 1;
+            }
+        } else {
+            /* Flow label cannot be compressed - maybe check traffic class 0x3f */
+            if((packet.trafficClass & 0x03) == 0) {
+                /* compress only traffic class */
+                data[start] |= SICSLOWPAN_IPHC_TC_C;
+                data[hc06_ptr] = (byte) ((tmp & 0xc0) | (packet.flowLabel >> 16) & 0x0f);
+                data[hc06_ptr + 1] = (byte) ((packet.flowLabel >> 8) & 0xff);
+                data[hc06_ptr + 2] = (byte) (packet.flowLabel & 0xff);
+                hc06_ptr += 3;
+            } else {
+                /* compress nothing */
+                data[hc06_ptr] = (byte) tmp;
+                /* but replace the top byte with the new ECN | DSCP format*/
+                data[hc06_ptr + 1] = (byte) ((packet.flowLabel >> 16) & 0x0f);
+                data[hc06_ptr + 2] = (byte) ((packet.flowLabel >> 8) & 0xff);
+                data[hc06_ptr + 3] = (byte) (packet.flowLabel & 0xff);
+                hc06_ptr += 4;
+            }
+        }
+
+        /* Next header compression */
+        if(isNHCCompressible(packet.getIPPayload())) {
+            data[start] |= SICSLOWPAN_IPHC_NH_C;
+        } else {
+            data[hc06_ptr] = packet.nextHeader;
+            hc06_ptr += 1;
+        }
+        
+        /*
+         * Hop limit
+         * if 1: compress, encoding is 01
+         * if 64: compress, encoding is 10
+         * if 255: compress, encoding is 11
+         * else do not compress
+         */
+        hopLimitPos = hc06_ptr - start;
+        switch(packet.hopLimit) {
+          case 1:
+            data[start] |= SICSLOWPAN_IPHC_TTL_1;
+            break;
+          case 64:
+            data[start] |= SICSLOWPAN_IPHC_TTL_64;
+            break;
+          case 255:
+            data[start] |= SICSLOWPAN_IPHC_TTL_255;
+            break;
+          default:
+            data[hc06_ptr] = (byte) packet.hopLimit;
+            hc06_ptr += 1;
+            break;
+        }
+
+        int context = 0;
+        /* source address - cannot be multicast */
+        if(packet.isSourceUnspecified()) {
+            if (Log.LOWPAN.debug) Log.LOWPAN.log("IPHC: compressing unspecified - setting SAC");
+            data[start + 1] |= SICSLOWPAN_IPHC_SAC;
+            data[start + 1] |= SICSLOWPAN_IPHC_SAM_00;
+        } else if((context = lookupContext(packet.sourceAddress)) != -1) {
+            /* elide the prefix - indicate by CID and set context + SAC */
+            if (Log.LOWPAN.debug) Log.LOWPAN.log("IPHC: compressing src with context - setting CID & SAC ctx: " +
+                    context);
+            data[start + 1] |= SICSLOWPAN_IPHC_CID | SICSLOWPAN_IPHC_SAC;
+            data[start + 2] |= context << 4;
+            /* compession compare with this nodes address (source) */
+            if(packet.isSourceMACBased()){
+                /* elide the IID */
+                data[start + 1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
+          } else {
+            if(is16bitCompressable(packet.sourceAddress)){
+              /* compress IID to 16 bits */
+                data[start + 1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
+                data[hc06_ptr++] = (byte) packet.sourceAddress.getByte(14);
+                data[hc06_ptr++] = (byte) packet.sourceAddress.getByte(15);
+            } else {
+              /* do not compress IID */
+              data[start + 1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
+              packet.sourceAddress.copy(8, data, hc06_ptr, 8);
+              hc06_ptr += 8;
+            }
+          }
+            /* No context found for this address */
+        } else if(packet.sourceAddress.getHigh() == IPv6Address.LINK_LOCAL_PREFIX) {
+            // TODO: make a function of this: compress_ll_hc06(&UIP_IP_BUF->srcipaddr);
+            if(packet.isSourceMACBased()){
+                data[start + 1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
+            } else if(is16bitCompressable(packet.sourceAddress)){
+                /* compress IID to 16 bits fe80::XXXX */
+                data[start + 1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
+                data[hc06_ptr++] = (byte) packet.sourceAddress.getByte(14);
+                data[hc06_ptr++] = (byte) packet.sourceAddress.getByte(15);
+            } else {
+                /* do not compress IID => fe80::IID */
+                data[start + 1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
+                packet.sourceAddress.copy(8, data, hc06_ptr, 8);
+                hc06_ptr += 8;
+            }
+        } else {
+            /* send the full address => SAC = 0, SAM = 00 */
+            data[start + 1] |= SICSLOWPAN_IPHC_SAM_00; /* 128-bits */
+            packet.sourceAddress.copy(0, data, hc06_ptr, 16);
+            hc06_ptr += 16;
+        }
+
+        /* dest address*/
+        if(packet.isMulticastDestination()) {
+            /* Address is multicast, try to compress */
+            data[start + 1] |= SICSLOWPAN_IPHC_M;
+            if(isMcastAddrCompressable8(packet.destAddress)) {
+                data[start + 1] |= SICSLOWPAN_IPHC_DAM_11;
+                /* use last byte */
+                data[hc06_ptr++] = (byte) packet.destAddress.getByte(15);
+            } else if(isMcastAddrCompressable32(packet.destAddress)){
+                data[start + 1] |= SICSLOWPAN_IPHC_DAM_10;
+                /* second byte + the last three */
+                data[hc06_ptr] = (byte) packet.destAddress.getByte(1);
+                packet.destAddress.copy(13, data, hc06_ptr + 1, 3);
+                hc06_ptr += 4;
+            } else if(isMcastAddrCompressable48(packet.destAddress)){
+                data[start + 1] |= SICSLOWPAN_IPHC_DAM_01;
+            /* second byte + the last five */
+                data[hc06_ptr] = (byte) packet.destAddress.getByte(1);
+                packet.destAddress.copy(11, data, hc06_ptr + 1, 5);
+                hc06_ptr += 6;
+            } else if((context = lookupMcastContext(packet.destAddress)) != -1) {
+                /* prefix from context - ffXX:XX + the last four bytes */
+                data[start + 1] |= SICSLOWPAN_IPHC_DAC | SICSLOWPAN_IPHC_DAM_00;
+                data[start + 2] |= context;
+                data[hc06_ptr] = (byte) packet.destAddress.getByte(1);
+                data[hc06_ptr + 1] = (byte) packet.destAddress.getByte(2);
+                packet.destAddress.copy(12, data, hc06_ptr + 2, 4);
+                hc06_ptr += 6;
+            } else {
+                data[start + 1] |= SICSLOWPAN_IPHC_DAM_00;
+                /* full address */
+                packet.destAddress.copy(0, data, hc06_ptr, 16);
+                hc06_ptr += 16;
+            }
+        } else {
+            /* Address is unicast, try to compress */
+            if((context = lookupContext(packet.destAddress)) != -1) {
+                /* elide the prefix */
+                data[start + 1] |= SICSLOWPAN_IPHC_DAC;
+                data[start + 2] |= context;
+                /* compession compare with link adress (destination) */
+                if(packet.isDestinationMACBased()) {
+                    /* elide the IID */
+                    data[start + 1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
+                } else {
+                    if(is16bitCompressable(packet.destAddress)) {
+                        /* compress IID to 16 bits */
+                        data[start + 1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
+                        data[hc06_ptr++] = (byte) packet.destAddress.getByte(14);
+                        data[hc06_ptr++] = (byte) packet.destAddress.getByte(15);
+                    } else {
+                      /* do not compress IID */
+                      data[start + 1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
+                      packet.destAddress.copy(8, data, hc06_ptr, 8);
+                      hc06_ptr += 8;
+                    }
+                }
+                /* No context found for this address */
+            } else if(packet.destAddress.getHigh() == IPv6Address.LINK_LOCAL_PREFIX) {
+                // TODO: make a function of this: compress_ll_hc06(&UIP_IP_BUF->destipaddr);
+                if(packet.isDestinationMACBased()) {
+                    data[start + 1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
+                } else if(is16bitCompressable(packet.destAddress)){
+                    /* compress IID to 16 bits fe80::XXXX */
+                    data[start + 1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
+                    data[hc06_ptr++] = (byte) packet.destAddress.getByte(14);
+                    data[hc06_ptr++] = (byte) packet.destAddress.getByte(15);
+                } else {
+                    /* do not compress IID => fe80::IID */
+                    data[start + 1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
+                    packet.destAddress.copy(8, data, hc06_ptr, 8);
+                    hc06_ptr += 8;
+                }
+            } else {
+                /* send the full address */
+                data[start + 1] |= SICSLOWPAN_IPHC_DAM_00; /* 128-bits */
+                packet.destAddress.copy(0, data, hc06_ptr, 16);
+                hc06_ptr += 16;
+            }
+        }
+
+        return hc06_ptr;
+    }
+
+    /* NHC - UDP, extension headers and IPv6-in-IPv6 */
+    private int compressNextHeaders(IPv6Packet packet, byte[] data, int hc06_ptr) {
+        IPPayload payload = packet.getIPPayload();
+        boolean nhc = isNHCCompressible(payload);
+        while (nhc) {
+            if (payload instanceof UDPPacket) {
+                hc06_ptr = compressUDPHeader(packet, (UDPPacket) payload, data, hc06_ptr);
+                break;
+            }
+            int eid = getExtensionEID(payload);
+            if (eid == SICSLOWPAN_NHC_EID_IPV6) {
+                /* the inner header is IPHC compressed as well */
+                data[hc06_ptr++] = (byte) (SICSLOWPAN_NHC_EXT_ID | (eid << 1));
+                IPv6Packet inner = ((EncapsulatedIPv6Packet) payload).getPacket();
+                inner.encapsulating = packet;
+                hc06_ptr += compressHeader(inner, data, hc06_ptr);
+                break;
+            }
+            ExtensionHeader ext = (ExtensionHeader) payload;
+            IPPayload next = ext.getNext();
+            nhc = isNHCCompressible(next);
+            data[hc06_ptr++] = (byte) (SICSLOWPAN_NHC_EXT_ID | (eid << 1) |
+                    (nhc ? SICSLOWPAN_NHC_EXT_NH : 0));
+            if (!nhc) {
+                data[hc06_ptr++] = next != null ? next.getDispatch() : ext.nextHeader;
+            }
+            /* length excludes next header and length - padding is not sent */
+            int len = ext.data == null ? 0 : ext.data.length;
+            data[hc06_ptr++] = (byte) len;
+            if (len > 0) {
+                System.arraycopy(ext.data, 0, data, hc06_ptr, len);
+                hc06_ptr += len;
+            }
+            payload = next;
+        }
+
+        if (DEBUG) System.out.println("HC06 Header compression: size " + hc06_ptr);
+        if (DEBUG) {
+            System.out.print("HC01: From ");
+            IPv6Packet.printAddress(System.out, packet.sourceAddress);
+            System.out.print("HC01:   To ");
+            IPv6Packet.printAddress(System.out, packet.destAddress);
+        }
+        return hc06_ptr;
+    }
+
+    private int compressUDPHeader(IPv6Packet packet, UDPPacket udp, byte[] data, int hc06_ptr) {
+        int nhcPos = hc06_ptr++;
+        int nhcByte;
+        if ((udp.sourcePort & 0xfff0) == SICSLOWPAN_UDP_PORT_MIN &&
+                (udp.destinationPort & 0xfff0) == SICSLOWPAN_UDP_PORT_MIN) {
+            /* 4 bits of each port */
+            nhcByte = SICSLOWPAN_NHC_UDP_CS_P11;
+            data[hc06_ptr++] = (byte) (((udp.sourcePort - SICSLOWPAN_UDP_PORT_MIN) << 4) +
+                    (udp.destinationPort - SICSLOWPAN_UDP_PORT_MIN));
+        } else if ((udp.destinationPort & 0xff00) == SICSLOWPAN_UDP_8BIT_PORT_MIN) {
+            /* source port inline, 8 bits of dest port */
+            nhcByte = SICSLOWPAN_NHC_UDP_CS_P01;
+            data[hc06_ptr++] = (byte) (udp.sourcePort >> 8);
+            data[hc06_ptr++] = (byte) (udp.sourcePort & 0xff);
+            data[hc06_ptr++] = (byte) (udp.destinationPort & 0xff);
+        } else if ((udp.sourcePort & 0xff00) == SICSLOWPAN_UDP_8BIT_PORT_MIN) {
+            /* 8 bits of source port, dest port inline */
+            nhcByte = SICSLOWPAN_NHC_UDP_CS_P10;
+            data[hc06_ptr++] = (byte) (udp.sourcePort & 0xff);
+            data[hc06_ptr++] = (byte) (udp.destinationPort >> 8);
+            data[hc06_ptr++] = (byte) (udp.destinationPort & 0xff);
+        } else {
+            /* we cannot compress. Copy uncompressed ports */
+            nhcByte = SICSLOWPAN_NHC_UDP_CS_P00;
+            data[hc06_ptr++] = (byte) (udp.sourcePort >> 8);
+            data[hc06_ptr++] = (byte) (udp.sourcePort & 0xff);
+            data[hc06_ptr++] = (byte) (udp.destinationPort >> 8);
+            data[hc06_ptr++] = (byte) (udp.destinationPort & 0xff);
+        }
+        if (elideUDPChecksum) {
+            /* receiver recomputes it */
+            nhcByte |= SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR;
+        } else {
+            int checksum = udp.computeChecksum(packet);
+            data[hc06_ptr++] = (byte) (checksum >> 8);
+            data[hc06_ptr++] = (byte) (checksum & 0xff);
+        }
+        data[nhcPos] = (byte) nhcByte;
+        return hc06_ptr;
+    }
+
+    /* upper bound of the compressed header size */
+    private static int getMaxHeaderSize(IPv6Packet packet) {
+        int size = 40 + 8;
+        IPPayload payload = packet.getIPPayload();
+        while (payload instanceof IPv6ExtensionHeader) {
+            if (payload instanceof ExtensionHeader) {
+                size += 3 + ((ExtensionHeader) payload).getHeaderLength();
+            }
+            payload = ((IPv6ExtensionHeader) payload).getNext();
+        }
+        if (payload instanceof EncapsulatedIPv6Packet) {
+            size += 1 + getMaxHeaderSize(((EncapsulatedIPv6Packet) payload).getPacket());
+        }
+        return size;
+    }
+
+    /* uncompressed size of the headers that are sent compressed */
+    private static int getHeaderSize(IPv6Packet packet) {
+        int size = 40;
+        IPPayload payload = packet.getIPPayload();
+        while (payload instanceof ExtensionHeader && getExtensionEID(payload) != -1) {
+            size += ((ExtensionHeader) payload).getHeaderLength();
+            payload = ((ExtensionHeader) payload).getNext();
+            if (!isNHCCompressible(payload)) {
+                return size;
+            }
+        }
+        if (payload instanceof UDPPacket) {
+            size += 8;
+        } else if (payload instanceof EncapsulatedIPv6Packet) {
+            size += getHeaderSize(((EncapsulatedIPv6Packet) payload).getPacket());
+        }
+        return size;
+    }
+
+    /* the UDP packet whose data follows the compressed headers - null if
+     * the rest has to be generated by getPayloadData */
+    private static UDPPacket getUDPData(IPv6Packet packet) {
+        IPPayload payload = packet.getIPPayload();
+        while (payload instanceof ExtensionHeader && getExtensionEID(payload) != -1 &&
+                isNHCCompressible(((ExtensionHeader) payload).getNext())) {
+            payload = ((ExtensionHeader) payload).getNext();
+        }
+        if (payload instanceof UDPPacket) {
+            return (UDPPacket) payload;
+        }
+        if (payload instanceof EncapsulatedIPv6Packet) {
+            return getUDPData(((EncapsulatedIPv6Packet) payload).getPacket());
+        }
+        return null;
+    }
+
+    /* the part of the payload that is not compressed */
+    private byte[] getPayloadData(IPv6Packet packet) {
+        byte[] pload;
+        IPPayload payload = packet.getIPPayload();
+        while (payload instanceof ExtensionHeader && getExtensionEID(payload) != -1 &&
+                isNHCCompressible(((ExtensionHeader) payload).getNext())) {
+            payload = ((ExtensionHeader) payload).getNext();
+        }
+        if (payload instanceof UDPPacket) {
+            /* already have the udp header */
+            pload = ((UDPPacket) payload).getPayload();
+            if (pload == null) {
+                pload = new byte[0];
+            }
+        } else if (payload instanceof EncapsulatedIPv6Packet) {
+            pload = getPayloadData(((EncapsulatedIPv6Packet) payload).getPacket());
+        } else if (payload instanceof ExtensionHeader && getExtensionEID(payload) != -1) {
+            /* the header is compressed but what follows is not */
+            IPPayload next = ((ExtensionHeader) payload).getNext();
+            pload = next != null ? next.generatePacketData(packet) : new byte[0];
+        } else {
+            pload = payload.generatePacketData(packet);
+        }
+        if (DEBUG) System.out.println("HC06 Payload size: " + pload.length);
+        return pload;
+    }
+
+    public byte getDispatch() {
+        return 0;
+    }
+
+    public boolean parsePacketData(IPv6Packet packet) {
+        int headerSize = 0;
+        int compressedHeaderSize = 0;
+        if ((packet.getData(0) & 0xf8) == SICSLOWPAN_DISPATCH_FRAG1) {
+            /* first fragment need to decompress first to get "size" diff. */
+            packet.incPos(4);
+            int pos = packet.currentPos;
+            /* lazy - the payload is not complete so no checksum check */
+            boolean lazy = packet.lazyDecode;
+            packet.lazyDecode = true;
+            sizeProbe = true;
+            try {
+                headerSize = decompress(packet);
+            } finally {
+                sizeProbe = false;
+            }
+            packet.lazyDecode = lazy;
+            compressedHeaderSize = packet.currentPos - pos;
+            if (DEBUG) System.out.println("HDR Size: " + headerSize + " Compr:" + compressedHeaderSize);
+            packet.currentPos = pos - 4;
+        }
+                
+        if (!fragmenter.handleFragment(packet, headerSize, compressedHeaderSize)) {
+            /* fragment - and not a complete packet */
+            return false;
+        }
+        
+        return decompress(packet) != 0;
+    }
+    
+   public int decompress(IPv6Packet packet) {       
+        int headerSize = 40;
+        
+        /* Handle "uncompression" */
+        int cid = (packet.getData(1) >> 7) & 0x01;
+        int sci = 0;
+        int dci = 0;
+
+        if (cid == 1) {
+            sci = (packet.getData(2) >> 4) & 0x0f;
+            dci = packet.getData(2) & 0x0f;
+        }
+
+        int hc06_ptr = 2 + cid;
+
+        packet.version = 6;
+        UDPPacket udp = null;
+        boolean udpChecksumElided = false;
+
+        int checkSum = 0;
+        int srcPort = 0;
+        int destPort = 0;
+
+        /* Traffic class and flow label */
+        if((packet.getData(0) & SICSLOWPAN_IPHC_FL_C) == 0) {
+            /* Flow label are carried inline */
+            if((packet.getData(0) & SICSLOWPAN_IPHC_TC_C) == 0) {
+                /* Traffic class is carried inline */
+                packet.flowLabel = packet.get24(hc06_ptr + 1);
+                int tmp = packet.getData(hc06_ptr);
+                hc06_ptr += 4;
+                /* hc06 format of tc is ECN | DSCP , original is DSCP | ECN */
+                packet.trafficClass = ((tmp >> 2) & 0x3f) | (tmp << 6) & (0x80 + 0x40);
+                /* ECN rolled down two steps + lowest DSCP bits at top two bits */
+            } else {
+                /* highest flow label bits + ECN bits */
+                int tmp = packet.getData(hc06_ptr);
+                packet.trafficClass = (tmp >> 6) & 0x0f; 
+                packet.flowLabel = packet.get16(hc06_ptr + 1);
+                hc06_ptr += 3;
+            }
+        } else {
+            /* Version is always 6! */
+            /* Version and flow label are compressed */
+            if((packet.getData(0) & SICSLOWPAN_IPHC_TC_C) == 0) {
+                /* Traffic class is inline */
+                packet.trafficClass =((packet.getData(hc06_ptr) >> 6) & 0x03);
+                packet.trafficClass = (packet.getData(hc06_ptr) << 2);
+                hc06_ptr += 1;
+            }
+        }
+
+        /* Next Header */
+        if((packet.getData(0) & SICSLOWPAN_IPHC_NH_C) == 0) {
+            /* Next header is carried inline */
+            packet.nextHeader = packet.getData(hc06_ptr);
+            hc06_ptr += 1;
+        } else {
+            if (DEBUG) System.out.println("Next header compressed!");
+        }
+
+        /* Hop limit */
+        switch(packet.getData(0) & 0x03) {
+        case SICSLOWPAN_IPHC_TTL_1:
+            packet.hopLimit = 1;
+            break;
+        case SICSLOWPAN_IPHC_TTL_64:
+            packet.hopLimit = 64;
+            break;
+        case SICSLOWPAN_IPHC_TTL_255:
+            packet.hopLimit = 255;
+            break;
+        case SICSLOWPAN_IPHC_TTL_I:
+            packet.hopLimit = packet.getData(hc06_ptr) & 0xff;
+            hc06_ptr += 1;
+            break;
+        }
+
+        /* Addresses - either decoded now or, in lazy mode, when accessed */
+        int encoding = ((packet.getData(1) & 0xff) << 8) | (sci << 4) | dci;
+        int bufPos = packet.startPos + packet.currentPos;
+        if (packet.lazyDecode) {
+            packet.lazyData = packet.packetData;
+            packet.addrDecoder = this;
+            packet.addrEncoding = encoding;
+            packet.srcAddrPos = bufPos + hc06_ptr;
+        } else {
+            packet.setSourceAddress(uncompressSource(packet, encoding, packet.packetData, bufPos + hc06_ptr));
+        }
+        hc06_ptr += sourceAddressSize(encoding >> 8);
+
+        if (packet.lazyDecode) {
+            packet.dstAddrPos = bufPos + hc06_ptr;
+        } else {
+            packet.setDestinationAddress(uncompressDestination(packet, encoding, packet.packetData, bufPos + hc06_ptr));
+        }
+        hc06_ptr += destAddressSize(encoding >> 8);
+        
+        /* Next header processing - continued */
+        /* header of the chain that gets the next decompressed payload */
+        IPv6ExtensionHeader last = null;
+        boolean nhc = (packet.getData(0) & SICSLOWPAN_IPHC_NH_C) != 0;
+        IPv6Packet inner = null;
+        while (nhc) {
+            /* The next header is compressed, NHC is following */
+            int nhcByte = packet.getData(hc06_ptr) & 0xff;
+            if((nhcByte & SICSLOWPAN_NHC_UDP_MASK) == SICSLOWPAN_NHC_UDP_ID) {
+                boolean checksumCompressed = (nhcByte & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) != 0;
+                switch(nhcByte & SICSLOWPAN_NHC_UDP_CS_P11) {
+                case SICSLOWPAN_NHC_UDP_CS_P00:
+                    /* 1 byte for NHC, 4 byte for ports */
+                    srcPort = packet.get16(hc06_ptr + 1);
+                    destPort = packet.get16(hc06_ptr + 3);
+                    hc06_ptr += 5;
+                    break;
+                case SICSLOWPAN_NHC_UDP_CS_P01:
+                    /* 1 byte for NHC, source port inline, 8 bits of dest port */
+                    srcPort = packet.get16(hc06_ptr + 1);
+                    destPort = SICSLOWPAN_UDP_8BIT_PORT_MIN + (packet.getData(hc06_ptr + 3) & 0xff);
+                    hc06_ptr += 4;
+                    break;
+                case SICSLOWPAN_NHC_UDP_CS_P10:
+                    /* 1 byte for NHC, 8 bits of source port, dest port inline */
+                    srcPort = SICSLOWPAN_UDP_8BIT_PORT_MIN + (packet.getData(hc06_ptr + 1) & 0xff);
+                    destPort = packet.get16(hc06_ptr + 2);
+                    hc06_ptr += 4;
+                    break;
+                case SICSLOWPAN_NHC_UDP_CS_P11:
+                    /* 1 byte for NHC, 1 byte for ports */
+                    srcPort = SICSLOWPAN_UDP_PORT_MIN + ((packet.getData(hc06_ptr + 1) >> 4) & 0x0F);
+                    destPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(hc06_ptr + 1) & 0x0F);
+                    hc06_ptr += 2;
+                    break;
+                }
+                if (!checksumCompressed) {
+                    checkSum = packet.get16(hc06_ptr);
+                    hc06_ptr += 2;
+                }
+
+                udp = PacketPool.get().newUDPPacket();
+                udp.sourcePort = srcPort;
+                udp.destinationPort = destPort;
+                udp.checkSum = checkSum;
+                udpChecksumElided = checksumCompressed;
+                headerSize += 8;
+                last = linkPayload(packet, last, udp);
+                nhc = false;
+            } else if ((nhcByte & SICSLOWPAN_NHC_EXT_MASK) == SICSLOWPAN_NHC_EXT_ID) {
+                int eid = (nhcByte >> 1) & 0x07;
+                hc06_ptr++;
+                if (eid == SICSLOWPAN_NHC_EID_IPV6) {
+                    /* IPv6-in-IPv6 - an IPHC header follows */
+                    packet.incPos(hc06_ptr);
+                    hc06_ptr = 0;
+                    inner = new IPv6Packet(packet);
+                    inner.encapsulating = packet;
+                    inner.lazyDecode = packet.lazyDecode;
+                    int innerSize = decompress(inner);
+                    if (innerSize == 0) {
+                        return 0;
+                    }
+                    headerSize += innerSize;
+                    linkPayload(packet, last, new EncapsulatedIPv6Packet(inner));
+                    break;
+                }
+                byte proto = getExtensionProtocol(eid);
+                if (proto == -1) {
+                    if (Log.LOWPAN.warn) Log.LOWPAN.warn("Unsupported extension header NHC EID:" + eid);
+                    return 0;
+                }
+                ExtensionHeader ext = proto == HopByHopOption.DISPATCH ?
+                        PacketPool.get().newHopByHopOption() : new ExtensionHeader(proto);
+                nhc = (nhcByte & SICSLOWPAN_NHC_EXT_NH) != 0;
+                if (!nhc) {
+                    ext.nextHeader = packet.getData(hc06_ptr++);
+                }
+                int len = packet.getData(hc06_ptr++) & 0xff;
+                byte[] extData = new byte[len];
+                packet.copy(hc06_ptr, extData, 0, len);
+                hc06_ptr += len;
+                ext.setData(extData);
+                headerSize += ext.len;
+                last = linkPayload(packet, last, ext);
+            } else {
+                if (Log.LOWPAN.warn) Log.LOWPAN.warn("Unsupported next header compression:" +
+                        Utils.hex8(nhcByte & 0xFC));
+                nhc = false;
+            }
+        }
+
+        //        /* IP length field. */
+        //        if(ip_len == 0) {
+        //            /* This is not a fragmented packet */
+        //            SICSLOWPAN_IP_BUF->len[0] = 0;
+        //            SICSLOWPAN_IP_BUF->len[1] = packetbuf_datalen() - rime_hdr_len + uncomp_hdr_len - UIP_IPH_LEN;
+        //        } else {
+        //            /* This is a 1st fragment */
+        //            SICSLOWPAN_IP_BUF->len[0] = (ip_len - UIP_IPH_LEN) >> 8;
+        //            SICSLOWPAN_IP_BUF->len[1] = (ip_len - UIP_IPH_LEN) & 0x00FF;
+        //        }
+
+        //        /* length field in UDP header */
+        //        if(SICSLOWPAN_IP_BUF->proto == UIP_PROTO_UDP) {
+        //            memcpy(&SICSLOWPAN_UDP_BUF->udplen, ipBuf + len[0], 2);
+        //        }
+
+        if (Log.LOWPAN.debug) {
+            Log.LOWPAN.log("IPv6 / IPHC packet received NH:" + packet.nextHeader +
+                    " TTL: " + (packet.hopLimit & 0xff) +
+                    " Src Addr: " + packet.getSourceAddress() +
+                    " Dst Addr: " + packet.getDestinationAddress());
+        }
+        
+        packet.incPos(hc06_ptr);
+        
+        if (udp != null) {
+            /* if we have a udp payload we already have the udp headers in place */
+            /* the rest is only the payload */
+            if (packet.lazyDecode) {
+                /* payload is left in the frame - summed there for the checksum */
+                int len = packet.getPayloadLength();
+                udp.setPayloadView(packet.packetData,
+                        packet.startPos + packet.currentPos, len);
+                udp.length = len + 8;
+                if (sizeProbe) {
+                    /* only the first fragment is here - nothing to check */
+                } else if (udpChecksumElided) {
+                    udp.checkSum = udp.computeChecksum(packet);
+                } else {
+                    udp.doVirtualChecksum(packet);
+                }
+                packet.payloadLen = udp.length;
+            } else {
+                udp.payload = packet.getPayload();
+                udp.length = udp.payload.length + 8;
+                if (udpChecksumElided) {
+                    /* elided checksum - recompute it instead */
+                    udp.checkSum = udp.computeChecksum(packet);
+                } else {
+                    udp.doVirtualChecksum(packet);
+                }
+            }
+        }
+        return headerSize;
+    }
+
+    /* add a decompressed payload to the end of the header chain */
+    private static IPv6ExtensionHeader linkPayload(IPv6Packet packet,
+            IPv6ExtensionHeader last, IPPayload payload) {
+        if (last == null) {
+            packet.setIPPayload(payload);
+        } else {
+            last.setNext(payload);
+        }
+        return payload instanceof IPv6ExtensionHeader ?
+                (IPv6ExtensionHeader) payload : last;
+    }
+
+    private static byte getExtensionProtocol(int eid) {
+        switch (eid) {
+        case SICSLOWPAN_NHC_EID_HOP_BY_HOP:
+            return ExtensionHeader.HOP_BY_HOP;
+        case SICSLOWPAN_NHC_EID_ROUTING:
+            return ExtensionHeader.ROUTING;
+        case SICSLOWPAN_NHC_EID_FRAGMENT:
+            return ExtensionHeader.FRAGMENT;
+        case SICSLOWPAN_NHC_EID_DEST_OPTIONS:
+            return ExtensionHeader.DESTINATION_OPTIONS;
+        case SICSLOWPAN_NHC_EID_MOBILITY:
+            return ExtensionHeader.MOBILITY;
+        case SICSLOWPAN_NHC_EID_IPV6:
+            return EncapsulatedIPv6Packet.DISPATCH;
+        }
+        return -1;
+    }
+
+    /* the NHC EID for a payload, -1 if it can not be compressed */
+    private static int getExtensionEID(IPPayload payload) {
+        if (payload instanceof EncapsulatedIPv6Packet) {
+            return SICSLOWPAN_NHC_EID_IPV6;
+        }
+        if (!(payload instanceof ExtensionHeader)) {
+            return -1;
+        }
+        switch (payload.getDispatch()) {
+        case ExtensionHeader.HOP_BY_HOP:
+            return SICSLOWPAN_NHC_EID_HOP_BY_HOP;
+        case ExtensionHeader.ROUTING:
+            return SICSLOWPAN_NHC_EID_ROUTING;
+        case ExtensionHeader.FRAGMENT:
+            return SICSLOWPAN_NHC_EID_FRAGMENT;
+        case ExtensionHeader.DESTINATION_OPTIONS:
+            return SICSLOWPAN_NHC_EID_DEST_OPTIONS;
+        case ExtensionHeader.MOBILITY:
+            return SICSLOWPAN_NHC_EID_MOBILITY;
+        }
+        return -1;
+    }
+
+    /* true if the payload is sent as NHC */
+    private static boolean isNHCCompressible(IPPayload payload) {
+        return payload instanceof UDPPacket || getExtensionEID(payload) != -1;
+    }
+
+    /* number of inline bytes used by the source address */
+    private static int sourceAddressSize(int iphc1) {
+        switch (iphc1 & SICSLOWPAN_IPHC_SAM_11) {
+        case SICSLOWPAN_IPHC_SAM_00:
+            /* unspecified address if SAC is set */
+            return (iphc1 & SICSLOWPAN_IPHC_SAC) != 0 ? 0 : 16;
+        case SICSLOWPAN_IPHC_SAM_01:
+            return 8;
+        case SICSLOWPAN_IPHC_SAM_10:
+            return 2;
+        default:
+            return 0;
+        }
+    }
+
+    /* number of inline bytes used by the destination address */
+    private static int destAddressSize(int iphc1) {
+        int dam = iphc1 & SICSLOWPAN_IPHC_DAM_11;
+        if ((iphc1 & SICSLOWPAN_IPHC_M) != 0) {
+            if ((iphc1 & SICSLOWPAN_IPHC_DAC) != 0) {
+                /* context based multicast - only DAM 00 is defined */
+                return dam == SICSLOWPAN_IPHC_DAM_00 ? 6 : 0;
+            }
+            switch (dam) {
+            case SICSLOWPAN_IPHC_DAM_00: return 16;
+            case SICSLOWPAN_IPHC_DAM_01: return 6;
+            case SICSLOWPAN_IPHC_DAM_10: return 4;
+            default: return 1;
+            }
+        }
+        switch (dam) {
+        case SICSLOWPAN_IPHC_DAM_00:
+            return (iphc1 & SICSLOWPAN_IPHC_DAC) != 0 ? 0 : 16;
+        case SICSLOWPAN_IPHC_DAM_01:
+            return 8;
+        case SICSLOWPAN_IPHC_DAM_10:
+            return 2;
+        default:
+            return 0;
+        }
+    }
+
+    /* elided IIDs are taken from the link layer - or for tunneled
+     * packets from the encapsulating header */
+    private static long getSourceIID(IPv6Packet packet) {
+        if (packet.encapsulating != null) {
+            return packet.encapsulating.getSourceAddress().getIID();
+        }
+        return IPv6Address.getIID(packet.getLinkSource());
+    }
+
+    private static long getDestinationIID(IPv6Packet packet) {
+        if (packet.encapsulating != null) {
+            return packet.encapsulating.getDestinationAddress().getIID();
+        }
+        return IPv6Address.getIID(packet.getLinkDestination());
+    }
+
+    /* encoding is IPHC byte 1 << 8 | SCI << 4 | DCI, pos is the offset
+     * of the inline address bytes in data */
+    IPv6Address uncompressSource(IPv6Packet packet, int encoding, byte[] data, int pos) {
+        int iphc1 = encoding >> 8;
+        if ((iphc1 & SICSLOWPAN_IPHC_SAC) != 0) {
+            /* context based compression */
+            AddrContext context = null;
+            if ((iphc1 & SICSLOWPAN_IPHC_SAM_11) != SICSLOWPAN_IPHC_SAM_00) {
+                int sci = (encoding >> 4) & 0x0f;
+                if (DEBUG) System.out.println("Setting context:" + sci + " SAM:" + (iphc1 & SICSLOWPAN_IPHC_SAM_11));
+                context = contexts[sci];
+            }
+
+            switch (iphc1 & SICSLOWPAN_IPHC_SAM_11) {
+            case SICSLOWPAN_IPHC_SAM_00:
+                /* the unspecificed address */
+                return IPv6Address.UNSPECIFIED;
+            case SICSLOWPAN_IPHC_SAM_01: /* 64 bits */
+                /* prefix from context, IID from packet */
+                return IPv6Address.valueOf(context.prefix, Packet.get64(data, pos));
+            case SICSLOWPAN_IPHC_SAM_10: /* 16 bits */
+                /* unicast address - 6 NULL bytes then 2 last bytes of IID */
+                return IPv6Address.valueOf(context.prefix, Packet.get16(data, pos));
+            default: /* 0-bits */
+                /* prefix from context, infer IID from L2 address */
+                return IPv6Address.valueOf(context.prefix,
+                        getSourceIID(packet));
+            }
+        }
+        /* no compression and link local */
+        switch (iphc1 & SICSLOWPAN_IPHC_SAM_11) {
+        case SICSLOWPAN_IPHC_SAM_00: /* 128 bits */
+            /* whole address from packet */
+            return IPv6Address.valueOf(data, pos);
+        case SICSLOWPAN_IPHC_SAM_01: /* 64 bits */
+            /* IID from packet */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    Packet.get64(data, pos));
+        case SICSLOWPAN_IPHC_SAM_10: /* 16 bits */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    Packet.get16(data, pos));
+        default: /* 0 bits */
+            /* link-local address - infer IID from L2 address */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    getSourceIID(packet));
+        }
+    }
+
+    IPv6Address uncompressDestination(IPv6Packet packet, int encoding, byte[] data, int pos) {
+        int iphc1 = encoding >> 8;
+        /* multicast compression */
+        if ((iphc1 & SICSLOWPAN_IPHC_M) != 0) {
+            /* context based multicast compression */
+            if ((iphc1 & SICSLOWPAN_IPHC_DAC) != 0) {
+                if ((iphc1 & SICSLOWPAN_IPHC_DAM_11) != SICSLOWPAN_IPHC_DAM_00) {
+                    /* reserved */
+                    return IPv6Address.UNSPECIFIED;
+                }
+                /* 48 bits ffXX:XXLL:PPPP:PPPP:PPPP:PPPP:XXXX:XXXX - prefix
+                 * and prefix length from the context */
+                AddrContext context = contexts[encoding & 0x0f];
+                long prefix = context.prefix.getHigh();
+                return IPv6Address.valueOf(0xff00000000000000L |
+                        ((data[pos] & 0xffL) << 48) | ((data[pos + 1] & 0xffL) << 40) |
+                        (64L << 32) | (prefix >>> 32),
+                        (prefix << 32) | (Packet.get32(data, pos + 2) & 0xffffffffL));
+            }
+            /* non-context based multicast compression */
+            long scope = (data[pos] & 0xffL) << 48;
+            switch (iphc1 & SICSLOWPAN_IPHC_DAM_11) {
+            case SICSLOWPAN_IPHC_DAM_00: /* 128 bits */
+                /* whole address from packet */
+                return IPv6Address.valueOf(data, pos);
+            case SICSLOWPAN_IPHC_DAM_01: /* 48 bits FFXX::00XX:XXXX:XXXX */
+                return IPv6Address.valueOf(0xff00000000000000L | scope,
+                        ((data[pos + 1] & 0xffL) << 32) |
+                        (Packet.get32(data, pos + 2) & 0xffffffffL));
+            case SICSLOWPAN_IPHC_DAM_10: /* 32 bits FFXX::00XX:XXXX */
+                return IPv6Address.valueOf(0xff00000000000000L | scope,
+                        ((data[pos + 1] & 0xff) << 16) | Packet.get16(data, pos + 2));
+            default: /* 8 bits FF02::00XX */
+                return IPv6Address.valueOf(0xff02000000000000L, data[pos] & 0xff);
+            }
+        }
+        /* no multicast */
+        if ((iphc1 & SICSLOWPAN_IPHC_DAC) != 0) {
+            /* Context based */
+            AddrContext context = contexts[encoding & 0x0f];
+            switch (iphc1 & SICSLOWPAN_IPHC_DAM_11) {
+            case SICSLOWPAN_IPHC_DAM_01: /* 64 bits */
+                /* IID from packet */
+                return IPv6Address.valueOf(context.prefix, Packet.get64(data, pos));
+            case SICSLOWPAN_IPHC_DAM_10: /* 16 bits */
+                return IPv6Address.valueOf(context.prefix, Packet.get16(data, pos));
+            case SICSLOWPAN_IPHC_DAM_11: /* 0 bits */
+                /* infer IID from L2 address */
+                return IPv6Address.valueOf(context.prefix,
+                        getDestinationIID(packet));
+            default:
+                /* reserved */
+                return IPv6Address.UNSPECIFIED;
+            }
+        }
+        /* not context based => link local M = 0, DAC = 0 - same as SAC */
+        switch (iphc1 & SICSLOWPAN_IPHC_DAM_11) {
+        case SICSLOWPAN_IPHC_DAM_00: /* 128 bits */
+            return IPv6Address.valueOf(data, pos);
+        case SICSLOWPAN_IPHC_DAM_01: /* 64 bits */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    Packet.get64(data, pos));
+        case SICSLOWPAN_IPHC_DAM_10: /* 16 bits */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    Packet.get16(data, pos));
+        default: /* 0 bits */
+            return IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX,
+                    getDestinationIID(packet));
+        }
+    }
+}
@@ -1,381 +1,500 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-
-import java.io.IOException;
-import java.io.PrintStream;
-import java.util.Timer;
-import se.sics.jipv6.util.Utils;
-
-public class IPStack {
-
-  private static final boolean DEBUG = false;
-  
-  public static final byte[] ALL_NODES = {(byte) 0xff, 0x02, 0, 0, 0, 0, 0, 0,
-       0, 0, 0, 0, 0, 0, 0, 1};
-  public static final byte[] ALL_ROUTERS = {(byte) 0xff, 0x02, 0, 0, 0, 0, 0, 0,
-    0, 0, 0, 0, 0, 0, 0, 2};
-  public static final byte[] UNSPECIFIED = {(byte) 0, 0, 0, 0, 0, 0, 0, 0,
-    0, 0, 0, 0, 0, 0, 0, 0};
-  
-  byte[] prefix = null;
-  int prefixSize = 0;
-  
-  byte[] myIPAddress = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
-      0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x00};
-  byte[] myLocalIPAddress = new byte[] { (byte)0xfe, (byte)0x80,
-      0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-      0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x00};
-  
-  byte[] myLocalSolicited = new byte[] {(byte) 0xff, 0x02, 0, 0,
-      0, 0, 0, 0,  0, 0, 0, 0x01,  (byte) 0xff, 0, 0, 0};
-
-  /* currently assumes only one link-layer and one address */
-  byte[] myLinkAddress = new byte[] {0x00, 0x12, 0x75, 0x04, 0x05, 0x06, 0x07, 0x08};
-
-  
-  
-  byte[] linkBroadcast = new byte[] {(byte) 0xff, (byte) 0xff};
-  
-  private PacketHandler linkLayerHandler;
-  private IPPacketer defaultPacketer = new HC01Packeter();
-  private ICMP6PacketHandler icmp6Handler;
-  private TCPHandler tcpHandler = null;
-  private UDPHandler udpHandler = null;
-  
-  /* is router -> router behavior */
-  private boolean isRouter = false;
-
-  private NetworkInterface tunnel;
-  //TSPClient
-  /* this needs to be generalized later... and down to lowpan too... */
-  //private HC01Packeter ipPacketer = new HC01Packeter();
-
-  private NeighborTable neighborTable = new NeighborTable();
-  private NeighborManager neighborManager;
-  private NetworkEventListener networkEventListener;
-  private Timer timer = new Timer();
-  // TODO: read from configfile...
-
-  public IPStack() {
-    icmp6Handler = new ICMP6PacketHandler(this);
-    prefix = new byte[] {(byte) 0xaa, (byte)0xaa, 0, 0, 0, 0, 0, 0};
-    prefixSize = 64; /* link size */
-    configureIPAddress();
-    neighborManager = new NeighborManager(this, neighborTable);
-    tcpHandler = new TCPHandler(this);
-    udpHandler = new UDPHandler();
-  }
-
-  public Timer getTimer() {
-    return timer;
-  }
-  
-  public void setICMP6Listener(ICMP6Listener l) {
-      icmp6Handler.setICMP6Listener(l);
-  }
-  
-  /* this needs some error handling!!! */
-  public TCPConnection listen(int port) {
-    return tcpHandler.addListenConnection(port);
-  }
-  
-  public void listen(UDPListener listener, int port) throws IOException {
-      udpHandler.addUDPListener(listener, port);
-  }
-  
-  public static boolean isLinkLocal(byte[] address) {
-      return address[0] == (byte) 0xfe && address[1] == (byte) 0x80;
-  }
-  
-  public NeighborTable getNeighborTable() {
-    return neighborTable;
-  }
-
-  public NeighborManager getNeighborManager() {
-    return neighborManager;
-  }
-  
-  public void setLinkLayerHandler(PacketHandler handler) {
-    linkLayerHandler = handler;
-  }
-
-  public void setNetworkEventListener(NetworkEventListener li) {
-    networkEventListener = li;
-  }
-  
-  public void setTunnel(NetworkInterface tunnel) {
-    this.tunnel = tunnel;
-  }
-  
-  public void setPrefix(byte[] prefix, int size) {
-    this.prefix = prefix;
-    prefixSize = size;
-    configureIPAddress();
-  }
-  
-  public boolean isOnLink(byte[] address) {
-    /* bc or link local */
-    if (address[0] == ((byte) 0xff) || (address[0] == ((byte) 0xfe) &&
-        address[1] == ((byte)0x80))) {
-      return true;
-    }
-
-    /* unspecified - on link ?? */
-    if (Utils.equals(UNSPECIFIED, address)) return true;
-    /* prefix match? */
-    for (int i = 0; i < prefixSize / 8; i++) {
-      if (address[i] != prefix[i]) return false;
-    }
-    return true;
-  }
-  
-  public void configureIPAddress() {
-    if (prefix != null) {
-      System.arraycopy(prefix, 0, myIPAddress, 0, prefixSize / 8);
-    }
-    for (int i = 0; i < 8; i++) {
-      myLocalIPAddress[8 + i] = myIPAddress[8 + i] = myLinkAddress[i];
-    }
-    /* autoconfig ?? */
-    myLocalIPAddress[8] = myIPAddress[8] = (byte) (myIPAddress[8] ^ 0x02);
-
-    /* create multicast solicited address */
-    for (int i = 13; i < 16; i++) {
-      myLocalSolicited[i] = myIPAddress[i];
-    }
-    
-    System.out.print("***** Configured IP address: ");
-    IPv6Packet.printAddress(System.out, myIPAddress);
-    System.out.println();
-    System.out.print("***** Configured Local IP address: ");
-    IPv6Packet.printAddress(System.out, myLocalIPAddress);
-    System.out.println();
-    System.out.print("***** Configured Solicited IP address: ");
-    IPv6Packet.printAddress(System.out, myLocalSolicited);
-    System.out.println();
-  }
-  
-  private boolean findRoute(IPv6Packet packet) {
-    // this does not do anything yet... we assume that the low 8 byte is MAC
-    if (packet.getLinkDestination() == null) {
-      /* find a MAC address for this packets destination... */
-      byte[] destAddr = packet.getDestinationAddress();
-      /* is it a bc to all nodes? */
-      if (Utils.equals(ALL_ROUTERS, destAddr)) {
-        packet.setAttribute("link.destination", linkBroadcast);
-      } else if (Utils.equals(ALL_NODES, destAddr)) {
-        packet.setAttribute("link.destination", linkBroadcast);
-      } else {
-        byte[] destMAC;
-        Neighbor n = neighborTable.getNeighbor(destAddr);
-        if (n == null) {
-          if (neighborTable.getDefrouter() != null) {
-            destMAC = neighborTable.getDefrouter().linkAddress;
-          } else {
-          /* fill the array with a autoconf address ... */
-          destMAC = new byte[8];
-          makeLLAddress(destAddr, destMAC);
-          }
-        } else {
-          destMAC = n.linkAddress;
-        }
-        packet.setAttribute("link.destination", destMAC);
-      }
-    }
-    packet.setAttribute("link.source", myLinkAddress);
-    return true;
-  }
-
-  public void makeLLAddress(byte[] ipAddr, byte[] macAddr) {
-    for (int i = 0; i < macAddr.length; i++) {
-      macAddr[i] = ipAddr[8 + i];
-    }
-    macAddr[0] = (byte) (macAddr[0] ^ 0x02);
-  }
-  
-  /* send a packet - can be bound for specific interface */
-  public void sendPacket(IPv6Packet packet, NetworkInterface nIf) {
-    /* find route checks if there are link addr, and otherwise sets them */
-    if (nIf == linkLayerHandler ||
-        (nIf == null && isOnLink(packet.getDestinationAddress()))) {
-      if (findRoute(packet)) {
-        linkLayerHandler.sendPacket(packet);
-      }
-    } else {
-      if (DEBUG) {
-          System.out.println("*** Should go out on tunnel: " + tunnel);
-          System.out.print("MyAddress: ");
-          IPv6Packet.printAddress(System.out, myIPAddress);
-          System.out.print(", Dest: ");
-          IPv6Packet.printAddress(System.out, packet.getDestinationAddress());
-      }
-      if (tunnel != null && tunnel.isReady()) {
-        tunnel.sendPacket(packet);
-      }
-    }
-  }
-  
-  public void receivePacket(IPv6Packet packet) {
-    if (DEBUG) {
-      System.out.println("IPv6 packet received!");
-      packet.printPacket(System.out);
-    }
-    
-    if (isForMe(packet.getDestinationAddress())){
-      if (DEBUG) System.out.println("#### PACKET FOR ME!!! " + packet.getDispatch());
-      switch (packet.nextHeader) {
-      case ICMP6Packet.DISPATCH:
-        icmp6Handler.handlePacket(packet);
-        if (networkEventListener != null) {
-          networkEventListener.packetHandled(packet);
-        }
-        break;
-      case UDPPacket.DISPATCH:
-        // TODO: move to HC01 compression handler... => generate raw UDP
-        if (packet.getIPPayload() != null) {
-          packet.getIPPayload().printPacket(System.out);
-          udpHandler.handlePacket(packet, (UDPPacket) packet.getIPPayload());
-        } else {
-          UDPPacket p = new UDPPacket();
-          p.parsePacketData(packet);
-          p.printPacket(System.out);
-          packet.setIPPayload(p);
-          udpHandler.handlePacket(packet, p);
-        }
-        if (networkEventListener != null) {
-          networkEventListener.packetHandled(packet);
-        }
-        break;
-      case TCPPacket.DISPATCH:
-        TCPPacket p = new TCPPacket();
-        p.parsePacketData(packet);
-        p.printPacket(System.out);
-        packet.setIPPayload(p);
-        tcpHandler.handlePacket(packet);
-        if (networkEventListener != null) {
-          networkEventListener.packetHandled(packet);
-        }
-        break;
-      }
-    } else if (!isOnLink(packet.getDestinationAddress()) &&
-        packet.netInterface != tunnel) {
-        if (DEBUG) System.out.println("**** Should go out on tunnel!!!!" + tunnel);
-      if (packet.ipPayload == null) {
-          packet.setIPPayload(new BytePayload(packet));
-      }
-      /* will this work ??? */
-      if (DEBUG) {
-          System.out.print("MyAddress: ");
-          IPv6Packet.printAddress(System.out, myIPAddress);
-          System.out.print(", Dest: ");
-          IPv6Packet.printAddress(System.out, packet.getDestinationAddress());
-      }
-      if (tunnel != null && tunnel.isReady()) {
-        tunnel.sendPacket(packet);
-      }
-    } else if (packet.netInterface != linkLayerHandler) {
-      /* Can not be from link layer (default) -- */
-      /* if HC01 - we need to handle UDP at least... */
-      if (DEBUG) System.out.println("#### PACKET FOR: " + packet.getDestinationAddress() + " sent to link");
-      if (packet.ipPayload == null) {
-        packet.setIPPayload(new BytePayload(packet));
-        if (findRoute(packet)) {
-          linkLayerHandler.sendPacket(packet);
-        }
-      }
-    } else {
-      System.out.println("#### PACKET ignored...");
-    }
-  }
-
-  /* is the packet for me ? */
-  private boolean isForMe(byte[] address) {
-    if (Utils.equals(myIPAddress, address) ||
-        Utils.equals(myLocalIPAddress, address) ||
-        Utils.equals(myLocalSolicited, address)) return true;
-    if (isRouter && Utils.equals(ALL_ROUTERS, address)) return true;
-    if (Utils.equals(ALL_NODES, address)) return true;
-    if (Utils.equals(UNSPECIFIED, address)) return true;
-    return false;
-  }
-  
-  public void setLinkLayerAddress(byte[] addr) {
-    myLinkAddress = addr;
-    configureIPAddress();
-  }
-  
-  public void setIPAddress(byte[] addr) {
-    myIPAddress = addr;
-  }
-  
-  public byte[] getLinkLayerAddress() {
-    return myLinkAddress;
-  }
-  
-  public byte[] getIPAddress() {
-    return myIPAddress;
-  }
-
-  public IPPacketer getPacketer() {
-    return getDefaultPacketer();
-  }
-
-  public void setDefaultPacketer(IPPacketer defaultPacketer) {
-    this.defaultPacketer = defaultPacketer;
-  }
-
-  public IPPacketer getDefaultPacketer() {
-    return defaultPacketer;
-  }
-  
-  public void setRouter(boolean isRouter) {
-    this.isRouter = isRouter;
-  }
-  
-  public boolean isRouter() {
-    return isRouter ;
-  }
-  
-  public void printTCPStatus(PrintStream out) {
-	  tcpHandler.printStatus(out);
-  }
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+
+import se.sics.jipv6.util.Log;
+import se.sics.jipv6.util.Trace;
+
+public class IPStack {
+
+  private static final boolean DEBUG = false;
+  
+  public static final IPv6Address ALL_NODES = IPv6Address.ALL_NODES;
+  public static final IPv6Address ALL_ROUTERS = IPv6Address.ALL_ROUTERS;
+  public static final IPv6Address UNSPECIFIED = IPv6Address.UNSPECIFIED;
+  
+  byte[] prefix = null;
+  int prefixSize = 0;
+  /* prefix as an address - for on-link checks */
+  IPv6Address prefixAddress = IPv6Address.UNSPECIFIED;
+  
+  IPv6Address myIPAddress = IPv6Address.valueOf(0x0102030405060708L, 0x090a0b0c0d0e0f00L);
+  IPv6Address myLocalIPAddress = IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX, 0x090a0b0c0d0e0f00L);
+  
+  IPv6Address myLocalSolicited = myIPAddress.getSolicitedNode();
+
+  /* currently assumes only one link-layer and one address */
+  byte[] myLinkAddress = new byte[] {0x00, 0x12, 0x75, 0x04, 0x05, 0x06, 0x07, 0x08};
+
+  
+  
+  byte[] linkBroadcast = new byte[] {(byte) 0xff, (byte) 0xff};
+  
+  private PacketHandler linkLayerHandler;
+  private IPPacketer defaultPacketer = new HC01Packeter();
+  private ICMP6PacketHandler icmp6Handler;
+  private TCPHandler tcpHandler = null;
+  private UDPHandler udpHandler = null;
+  
+  /* is router -> router behavior */
+  private boolean isRouter = false;
+
+  private NetworkInterface tunnel;
+  //TSPClient
+  /* this needs to be generalized later... and down to lowpan too... */
+  //private HC01Packeter ipPacketer = new HC01Packeter();
+
+  private NeighborTable neighborTable = new NeighborTable();
+  private NeighborManager neighborManager;
+  private NetworkEventListener networkEventListener;
+  private Timer timer;
+  /* null => the handlers run on the caller threads and a Timer */
+  private final EventLoop eventLoop;
+  // TODO: read from configfile...
+
+  public IPStack() {
+    this(Boolean.getBoolean("jipv6.eventloop") ? new EventLoop() : null);
+  }
+
+  /* With an event loop all packet processing and protocol timers run on
+   * the loop thread - packets and calls from other threads are handed
+   * over to the loop. */
+  public IPStack(EventLoop eventLoop) {
+    this(eventLoop, null);
+  }
+
+  /* a stack using the neighbor table and neighbor management of another
+   * stack - the shards of a ShardedIPStack */
+  IPStack(EventLoop eventLoop, IPStack neighbors) {
+    this.eventLoop = eventLoop;
+    icmp6Handler = new ICMP6PacketHandler(this);
+    prefix = new byte[] {(byte) 0xaa, (byte)0xaa, 0, 0, 0, 0, 0, 0};
+    prefixSize = 64; /* link size */
+    configureIPAddress();
+    if (neighbors != null) {
+      neighborTable = neighbors.neighborTable;
+      neighborManager = neighbors.neighborManager;
+    } else {
+      neighborManager = new NeighborManager(this, neighborTable);
+    }
+    tcpHandler = new TCPHandler(this);
+    udpHandler = new UDPHandler();
+  }
+
+  public synchronized Timer getTimer() {
+    if (timer == null) {
+      timer = new Timer();
+    }
+    return timer;
+  }
+
+  public EventLoop getEventLoop() {
+    return eventLoop;
+  }
+
+  /* runs the task where the stack runs - on the event loop if there is one */
+  public void execute(Runnable task) {
+    if (eventLoop != null) {
+      eventLoop.run(task);
+    } else {
+      task.run();
+    }
+  }
+
+  private boolean isOtherThread() {
+    return eventLoop != null && !eventLoop.inEventLoop();
+  }
+
+  void updateTCPTimer(TCPConnection connection) {
+    tcpHandler.updateTimer(connection);
+  }
+  
+  public void setICMP6Listener(ICMP6Listener l) {
+      icmp6Handler.setICMP6Listener(l);
+  }
+  
+  /* this needs some error handling!!! */
+  public TCPConnection listen(int port) {
+    return tcpHandler.addListenConnection(port);
+  }
+
+  /* stops a connection returned by listen from accepting connections */
+  public void unlisten(TCPConnection connection) {
+    tcpHandler.removeListenConnection(connection);
+  }
+
+  /* Active open - returns at once with the connection in SYN_SENT. See
+   * TCPSocket for waiting until it is established. */
+  public TCPConnection connect(IPv6Address address, int port) {
+    return connect(address, port, tcpHandler.nextLocalPort());
+  }
+
+  public TCPConnection connect(IPv6Address address, int port, int localPort) {
+    return tcpHandler.connect(address, port, localPort);
+  }
+
+  int nextLocalPort() {
+    return tcpHandler.nextLocalPort();
+  }
+
+  /* Active open without blocking - completed on the stack thread when the
+   * connection is established, or exceptionally if it is refused or the
+   * SYNs are given up. Use orTimeout for a shorter connect timeout. */
+  public CompletableFuture<TCPConnection> connectAsync(IPv6Address address, int port) {
+    return established(connect(address, port));
+  }
+
+  static CompletableFuture<TCPConnection> established(TCPConnection connection) {
+    if (connection == null) {
+      CompletableFuture<TCPConnection> future = new CompletableFuture<TCPConnection>();
+      future.completeExceptionally(new IOException("No free TCP connection"));
+      return future;
+    }
+    return connection.whenEstablished();
+  }
+  
+  public void listen(UDPListener listener, int port) throws IOException {
+      udpHandler.addUDPListener(listener, port);
+  }
+
+  /* the datagrams to the port - next to other listeners of the port */
+  public UDPPublisher udpPublisher(int port) throws IOException {
+    UDPPublisher publisher = new UDPPublisher(port, UDPPublisher.DEFAULT_CAPACITY);
+    listen(publisher, port);
+    return publisher;
+  }
+  
+  public static boolean isLinkLocal(byte[] address) {
+      return address[0] == (byte) 0xfe && address[1] == (byte) 0x80;
+  }
+
+  public static boolean isLinkLocal(IPv6Address address) {
+      return address.isLinkLocal();
+  }
+  
+  public NeighborTable getNeighborTable() {
+    return neighborTable;
+  }
+
+  public NeighborManager getNeighborManager() {
+    return neighborManager;
+  }
+  
+  public void setLinkLayerHandler(PacketHandler handler) {
+    linkLayerHandler = handler;
+  }
+
+  public void setNetworkEventListener(NetworkEventListener li) {
+    networkEventListener = li;
+  }
+  
+  public void setTunnel(NetworkInterface tunnel) {
+    this.tunnel = tunnel;
+  }
+  
+  public void setPrefix(byte[] prefix, int size) {
+    this.prefix = prefix;
+    prefixSize = size;
+    configureIPAddress();
+  }
+  
+  public boolean isOnLink(IPv6Address address) {
+    /* bc or link local */
+    if (address.isMulticast() || address.isLinkLocal()) {
+      return true;
+    }
+
+    /* unspecified - on link ?? */
+    if (address.isUnspecified()) return true;
+    /* prefix match? */
+    return address.matchPrefix(prefixAddress, prefixSize);
+  }
+  
+  public void configureIPAddress() {
+    long hi = myIPAddress.getHigh();
+    if (prefix != null) {
+      /* prefix arrays may be shorter than 16 bytes */
+      byte[] p = new byte[16];
+      System.arraycopy(prefix, 0, p, 0, Math.min(prefix.length, 16));
+      prefixAddress = IPv6Address.valueOf(p);
+      int bits = Math.min(prefixSize, 64);
+      long mask = bits <= 0 ? 0 : -1L << (64 - bits);
+      hi = (prefixAddress.getHigh() & mask) | (hi & ~mask);
+    }
+    /* autoconfig ?? */
+    long iid = IPv6Address.getIID(myLinkAddress);
+    myIPAddress = IPv6Address.valueOf(hi, iid);
+    myLocalIPAddress = IPv6Address.valueOf(IPv6Address.LINK_LOCAL_PREFIX, iid);
+
+    /* create multicast solicited address */
+    myLocalSolicited = myIPAddress.getSolicitedNode();
+    
+    if (Log.IP.info) {
+      Log.IP.log("Configured IP address: " + myIPAddress);
+      Log.IP.log("Configured Local IP address: " + myLocalIPAddress);
+      Log.IP.log("Configured Solicited IP address: " + myLocalSolicited);
+    }
+  }
+  
+  private boolean findRoute(IPv6Packet packet) {
+    // this does not do anything yet... we assume that the low 8 byte is MAC
+    if (packet.getLinkDestination() == null) {
+      /* find a MAC address for this packets destination... */
+      IPv6Address destAddr = packet.getDestinationAddress();
+      /* is it a bc to all nodes? */
+      if (ALL_ROUTERS.equals(destAddr)) {
+        packet.setAttribute(Packet.LL_DESTINATION_KEY, linkBroadcast);
+      } else if (ALL_NODES.equals(destAddr)) {
+        packet.setAttribute(Packet.LL_DESTINATION_KEY, linkBroadcast);
+      } else {
+        byte[] destMAC;
+        Neighbor n = neighborTable.getNeighbor(destAddr);
+        if (n == null) {
+          if (neighborTable.getDefrouter() != null) {
+            destMAC = neighborTable.getDefrouter().linkAddress;
+          } else {
+          /* fill the array with a autoconf address ... */
+          destMAC = new byte[8];
+          makeLLAddress(destAddr, destMAC);
+          }
+        } else {
+          destMAC = n.linkAddress;
+        }
+        packet.setAttribute(Packet.LL_DESTINATION_KEY, destMAC);
+      }
+    }
+    packet.setAttribute(Packet.LL_SOURCE_KEY, myLinkAddress);
+    return true;
+  }
+
+  public void makeLLAddress(byte[] ipAddr, byte[] macAddr) {
+    for (int i = 0; i < macAddr.length; i++) {
+      macAddr[i] = ipAddr[8 + i];
+    }
+    macAddr[0] = (byte) (macAddr[0] ^ 0x02);
+  }
+
+  public void makeLLAddress(IPv6Address ipAddr, byte[] macAddr) {
+    IPv6Address.getLinkAddress(ipAddr.getIID(), macAddr);
+  }
+  
+  /* send a packet - can be bound for specific interface */
+  public void sendPacket(final IPv6Packet packet, final NetworkInterface nIf) {
+    if (isOtherThread()) {
+      eventLoop.execute(new Runnable() {
+        public void run() {
+          sendPacket(packet, nIf);
+        }
+      });
+      return;
+    }
+    if (Trace.enabled) Trace.event(Trace.IP_SEND, packet.nextHeader, packet.getPayloadLength());
+    /* find route checks if there are link addr, and otherwise sets them */
+    if (nIf == linkLayerHandler ||
+        (nIf == null && isOnLink(packet.getDestinationAddress()))) {
+      if (findRoute(packet)) {
+        linkLayerHandler.sendPacket(packet);
+      }
+    } else {
+      if (DEBUG) {
+          System.out.println("*** Should go out on tunnel: " + tunnel);
+          System.out.print("MyAddress: ");
+          IPv6Packet.printAddress(System.out, myIPAddress);
+          System.out.print(", Dest: ");
+          IPv6Packet.printAddress(System.out, packet.getDestinationAddress());
+      }
+      if (tunnel != null && tunnel.isReady()) {
+        tunnel.sendPacket(packet);
+      }
+    }
+  }
+  
+  /* with an event loop the packet is handled later when called from
+   * another thread - it must not be reused by the caller */
+  public void receivePacket(final IPv6Packet packet) {
+    if (isOtherThread()) {
+      eventLoop.execute(new Runnable() {
+        public void run() {
+          receivePacket(packet);
+        }
+      });
+      return;
+    }
+    if (Log.IP.debug) Log.IP.log("IPv6 packet received: " + Log.text(packet));
+    if (Trace.enabled) Trace.event(Trace.IP_RECEIVE, packet.nextHeader, packet.getPayloadLength());
+    
+    if (isForMe(packet.getDestinationAddress())){
+      if (DEBUG) System.out.println("#### PACKET FOR ME!!! " + packet.getDispatch());
+      switch (packet.nextHeader) {
+      case ICMP6Packet.DISPATCH:
+        icmp6Handler.handlePacket(packet);
+        if (networkEventListener != null) {
+          networkEventListener.packetHandled(packet);
+        }
+        break;
+      case UDPPacket.DISPATCH:
+        // TODO: move to HC01 compression handler... => generate raw UDP
+        if (packet.getIPPayload() != null) {
+          if (Log.UDP.debug) Log.UDP.log(Log.text(packet.getIPPayload()));
+          udpHandler.handlePacket(packet, (UDPPacket) packet.getIPPayload());
+        } else {
+          UDPPacket p = PacketPool.get().newUDPPacket();
+          p.parsePacketData(packet);
+          packet.setIPPayload(p);
+          if (!p.isValid()) {
+            /* length field does not fit the packet - already logged */
+            break;
+          }
+          if (Log.UDP.debug) Log.UDP.log(Log.text(p));
+          udpHandler.handlePacket(packet, p);
+        }
+        if (networkEventListener != null) {
+          networkEventListener.packetHandled(packet);
+        }
+        break;
+      case TCPPacket.DISPATCH:
+        TCPPacket p = PacketPool.get().newTCPPacket();
+        p.parsePacketData(packet);
+        if (Log.TCP.debug) Log.TCP.log(Log.text(p));
+        packet.setIPPayload(p);
+        tcpHandler.handlePacket(packet);
+        if (networkEventListener != null) {
+          networkEventListener.packetHandled(packet);
+        }
+        break;
+      }
+    } else if (!isOnLink(packet.getDestinationAddress()) &&
+        packet.netInterface != tunnel) {
+        if (DEBUG) System.out.println("**** Should go out on tunnel!!!!" + tunnel);
+      if (packet.ipPayload == null) {
+          packet.setIPPayload(new BytePayload(packet));
+      }
+      /* will this work ??? */
+      if (DEBUG) {
+          System.out.print("MyAddress: ");
+          IPv6Packet.printAddress(System.out, myIPAddress);
+          System.out.print(", Dest: ");
+          IPv6Packet.printAddress(System.out, packet.getDestinationAddress());
+      }
+      if (tunnel != null && tunnel.isReady()) {
+        tunnel.sendPacket(packet);
+      }
+    } else if (packet.netInterface != linkLayerHandler) {
+      /* Can not be from link layer (default) -- */
+      /* if HC01 - we need to handle UDP at least... */
+      if (DEBUG) System.out.println("#### PACKET FOR: " + packet.getDestinationAddress() + " sent to link");
+      if (packet.ipPayload == null) {
+        packet.setIPPayload(new BytePayload(packet));
+        if (findRoute(packet)) {
+          linkLayerHandler.sendPacket(packet);
+        }
+      }
+    } else {
+      if (Log.IP.debug) Log.IP.log("packet ignored: " + packet.getDestinationAddress());
+      if (Trace.enabled) Trace.event(Trace.IP_DROP, packet.nextHeader, packet.getPayloadLength());
+    }
+  }
+
+  /* is the packet for me ? */
+  private boolean isForMe(IPv6Address address) {
+    if (myIPAddress.equals(address) ||
+        myLocalIPAddress.equals(address) ||
+        myLocalSolicited.equals(address)) return true;
+    if (isRouter && ALL_ROUTERS.equals(address)) return true;
+    if (ALL_NODES.equals(address)) return true;
+    if (address.isUnspecified()) return true;
+    return false;
+  }
+  
+  public void setLinkLayerAddress(byte[] addr) {
+    myLinkAddress = addr;
+    configureIPAddress();
+  }
+  
+  public void setIPAddress(IPv6Address addr) {
+    myIPAddress = addr;
+  }
+
+  public void setIPAddress(byte[] addr) {
+    myIPAddress = IPv6Address.valueOf(addr);
+  }
+  
+  public byte[] getLinkLayerAddress() {
+    return myLinkAddress;
+  }
+  
+  public IPv6Address getIPAddress() {
+    return myIPAddress;
+  }
+
+  public IPPacketer getPacketer() {
+    return getDefaultPacketer();
+  }
+
+  public void setDefaultPacketer(IPPacketer defaultPacketer) {
+    this.defaultPacketer = defaultPacketer;
+    if (eventLoop != null && defaultPacketer instanceof HC06Packeter) {
+      /* reassembly timeouts on the loop */
+      ((HC06Packeter) defaultPacketer).getFragmenter().setEventLoop(eventLoop);
+    }
+  }
+
+  public IPPacketer getDefaultPacketer() {
+    return defaultPacketer;
+  }
+  
+  public void setRouter(boolean isRouter) {
+    this.isRouter = isRouter;
+  }
+  
+  public boolean isRouter() {
+    return isRouter ;
+  }
+  
+  public void printTCPStatus(PrintStream out) {
+	  tcpHandler.printStatus(out);
+  }
 }
\ No newline at end of file
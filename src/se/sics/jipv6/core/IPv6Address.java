@@ -0,0 +1,200 @@
+package se.sics.jipv6.core;
+
+import java.io.PrintStream;
+import java.util.Hashtable;
+
+import se.sics.jipv6.util.Utils;
+
+/* Immutable IPv6 address stored as two longs (network byte order - the
+ * first byte of the address is the top byte of hi). Equality, hashing and
+ * prefix matching are a couple of long operations instead of byte loops.
+ */
+public final class IPv6Address {
+
+    public static final long LINK_LOCAL_PREFIX = 0xfe80000000000000L;
+
+    public static final IPv6Address UNSPECIFIED = new IPv6Address(0, 0);
+    public static final IPv6Address ALL_NODES = new IPv6Address(0xff02000000000000L, 1);
+    public static final IPv6Address ALL_ROUTERS = new IPv6Address(0xff02000000000000L, 2);
+
+    /* interning cache - addresses seen on a network are few, so keep one
+     * instance per address; the cache is flushed if it grows too large */
+    private static final int MAX_INTERNED = 1024;
+    private static final Hashtable<IPv6Address, IPv6Address> interned =
+        new Hashtable<IPv6Address, IPv6Address>();
+
+    private final long hi;
+    private final long lo;
+
+    private IPv6Address(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    public static IPv6Address valueOf(long hi, long lo) {
+        if (hi == 0 && lo == 0) return UNSPECIFIED;
+        return new IPv6Address(hi, lo);
+    }
+
+    public static IPv6Address valueOf(byte[] address) {
+        return valueOf(address, 0);
+    }
+
+    public static IPv6Address valueOf(byte[] data, int pos) {
+        return valueOf(Packet.get64(data, pos), Packet.get64(data, pos + 8));
+    }
+
+    /* prefix (top 64 bits) + interface identifier (low 64 bits) */
+    public static IPv6Address valueOf(IPv6Address prefix, long iid) {
+        return valueOf(prefix.hi, iid);
+    }
+
+    public static IPv6Address parse(String address) {
+        return valueOf(IPv6Packet.parseAddress(address));
+    }
+
+    public static IPv6Address intern(IPv6Address address) {
+        IPv6Address a = interned.get(address);
+        if (a == null) {
+            if (interned.size() >= MAX_INTERNED) {
+                interned.clear();
+            }
+            interned.put(address, address);
+            a = address;
+        }
+        return a;
+    }
+
+    public IPv6Address intern() {
+        return intern(this);
+    }
+
+    /* EUI-64 based interface identifier from a 802.15.4 link address - long
+     * addresses get the U/L bit flipped, short addresses are 0000:00ff:fe00:XXXX */
+    public static long getIID(byte[] linkAddress) {
+        if (linkAddress.length == 8) {
+            return Packet.get64(linkAddress, 0) ^ 0x0200000000000000L;
+        }
+        long iid = 0x000000fffe000000L;
+        for (int i = 0; i < linkAddress.length; i++) {
+            iid |= (linkAddress[i] & 0xffL) << ((linkAddress.length - 1 - i) * 8);
+        }
+        return iid;
+    }
+
+    /* inverse of getIID for 8 byte link addresses */
+    public static void getLinkAddress(long iid, byte[] linkAddress) {
+        iid ^= 0x0200000000000000L;
+        for (int i = 0; i < linkAddress.length; i++) {
+            linkAddress[i] = (byte) (iid >> ((7 - i) * 8));
+        }
+    }
+
+    public long getHigh() {
+        return hi;
+    }
+
+    public long getLow() {
+        return lo;
+    }
+
+    /* the interface identifier */
+    public long getIID() {
+        return lo;
+    }
+
+    public int getByte(int i) {
+        long v = i < 8 ? hi : lo;
+        return (int) (v >> ((7 - (i & 7)) * 8)) & 0xff;
+    }
+
+    public void copy(int pos, byte[] dst, int dstPos, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstPos + i] = (byte) getByte(pos + i);
+        }
+    }
+
+    public byte[] getBytes() {
+        byte[] data = new byte[16];
+        copy(0, data, 0, 16);
+        return data;
+    }
+
+    public boolean isUnspecified() {
+        return (hi | lo) == 0;
+    }
+
+    public boolean isMulticast() {
+        return (hi >>> 56) == 0xff;
+    }
+
+    public boolean isLinkLocal() {
+        return (hi >>> 48) == 0xfe80;
+    }
+
+    public boolean isMACBased(byte[] linkAddress) {
+        return linkAddress != null && lo == getIID(linkAddress);
+    }
+
+    /* true if the first bits of this address equals the first bits of prefix */
+    public boolean matchPrefix(IPv6Address prefix, int bits) {
+        if (bits <= 0) return true;
+        if (bits < 64) {
+            long mask = -1L << (64 - bits);
+            return ((hi ^ prefix.hi) & mask) == 0;
+        }
+        if (hi != prefix.hi) return false;
+        if (bits == 64) return true;
+        if (bits >= 128) return lo == prefix.lo;
+        long mask = -1L << (128 - bits);
+        return ((lo ^ prefix.lo) & mask) == 0;
+    }
+
+    /* the solicited-node multicast address ff02::1:ffXX:XXXX */
+    public IPv6Address getSolicitedNode() {
+        return valueOf(0xff02000000000000L, 0x00000001ff000000L | (lo & 0xffffffL));
+    }
+
+    /* add the address to an ongoing internet checksum */
+    public int checkSum(int sum) {
+        sum = checkSum(sum, hi);
+        return checkSum(sum, lo);
+    }
+
+    private static int checkSum(int sum, long v) {
+        for (int i = 48; i >= 0; i -= 16) {
+            int dsum = (int) (v >> i) & 0xffff;
+            sum = (sum + dsum) & 0xffff;
+            if (sum < dsum) sum++;
+        }
+        return sum;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof IPv6Address)) return false;
+        IPv6Address a = (IPv6Address) o;
+        return a.hi == hi && a.lo == lo;
+    }
+
+    public int hashCode() {
+        long h = hi * 31 + lo;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public void print(PrintStream out) {
+        out.print(toString());
+    }
+
+    /* same format as IPv6Packet.printAddress */
+    public String toString() {
+        StringBuilder sb = new StringBuilder(39);
+        for (int i = 0; i < 16; i += 2) {
+            sb.append(Utils.hex16((getByte(i) << 8) | getByte(i + 1)));
+            if (i < 14) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -4,4 +4,6 @@ package se.sics.jipv6.core;
 public interface IPv6ExtensionHeader extends IPPayload {
     public void setNext(IPPayload payload);
     public IPPayload getNext();
+    /* next header of a header that has not got its next payload parsed yet */
+    public byte getNextHeader();
 }
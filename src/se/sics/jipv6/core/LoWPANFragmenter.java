@@ -1,106 +1,431 @@
 package se.sics.jipv6.core;
 
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 public class LoWPANFragmenter {
 
     private static final boolean DEBUG = false;
-    
-    class FragmentContext {
-        int tag;
-        int size;
-        int receivedSize;
-        long time;
-        byte[] data;
-        int firstFragmentOffset = 0;
-        HashMap <String, String> map = new HashMap<String, String>();
-        
-        FragmentContext(int tag, int size) {
-            data = new byte[size];
+
+    public static final int FRAG1_HEADER_SIZE = 4;
+    public static final int FRAGN_HEADER_SIZE = 5;
+    /* datagram_size is 11 bits */
+    public static final int MAX_DATAGRAM_SIZE = 0x7ff;
+
+    private static final int MAX_TAG_DESTINATIONS = 256;
+    /* next datagram tag per link destination */
+    private HashMap<Long, Integer> tags = new HashMap<Long, Integer>();
+    private int nextTag = (int) System.nanoTime() & 0xffff;
+
+    /* Fragments of one datagram. The fragments are views into the buffer
+     * of the generated packet and each fragment header (and the lower
+     * layer headers) are written in front of its data when it is
+     * requested - over the end of the previous fragment. Each fragment
+     * must therefore have been sent (or copied) by the lower layers
+     * before the next one is requested, and the datagram buffer is not
+     * usable afterwards.
+     */
+    public class Fragments {
+        private final IPv6Packet packet;
+        private final int size;
+        private final int tag;
+        private final int maxFragmentSize;
+        /* next fragment - buffer position and uncompressed offset */
+        private int pos;
+        private int offset;
+        private final int end;
+
+        Fragments(IPv6Packet packet, int size, int tag, int maxFragmentSize) {
+            this.packet = packet;
+            this.size = size;
             this.tag = tag;
-            this.time = System.currentTimeMillis();
+            this.maxFragmentSize = maxFragmentSize;
+            pos = packet.startPos;
+            end = packet.endPos;
+            offset = 0;
+        }
+
+        public boolean hasNext() {
+            return pos < end;
+        }
+
+        public Packet next() {
+            int len;
+            int hdrSize;
+            if (offset == 0) {
+                /* compressed headers + payload up to an 8 byte boundary in
+                 * the uncompressed datagram */
+                int cap = maxFragmentSize - FRAG1_HEADER_SIZE - packet.compressedHeaderSize;
+                len = packet.compressedHeaderSize +
+                    ((packet.headerSize + cap) & ~7) - packet.headerSize;
+                hdrSize = FRAG1_HEADER_SIZE;
+                offset = len - packet.compressedHeaderSize + packet.headerSize;
+            } else {
+                len = (maxFragmentSize - FRAGN_HEADER_SIZE) & ~7;
+                hdrSize = FRAGN_HEADER_SIZE;
+            }
+            if (len > end - pos) {
+                len = end - pos;
+            }
+            Packet fragment = new Packet();
+            fragment.attributes = packet.attributes;
+            fragment.setBuffer(packet.packetData, pos, len);
+            int hpos = fragment.reserveHeader(hdrSize);
+            byte[] buffer = fragment.packetData;
+            if (hdrSize == FRAG1_HEADER_SIZE) {
+                buffer[hpos] = (byte) (HC06Packeter.SICSLOWPAN_DISPATCH_FRAG1 | (size >> 8));
+            } else {
+                buffer[hpos] = (byte) (HC06Packeter.SICSLOWPAN_DISPATCH_FRAGN | (size >> 8));
+                buffer[hpos + 4] = (byte) (offset >> 3);
+                offset += len;
+            }
+            buffer[hpos + 1] = (byte) (size & 0xff);
+            buffer[hpos + 2] = (byte) (tag >> 8);
+            buffer[hpos + 3] = (byte) (tag & 0xff);
+            pos += len;
+            return fragment;
+        }
+    }
+
+    /* Returns the fragments for a packet generated with generatePacket or
+     * null if it fits in one frame of maxFragmentSize bytes. */
+    public Fragments fragment(IPv6Packet packet, int maxFragmentSize) {
+        int len = packet.getTotalLength();
+        if (len <= maxFragmentSize) {
+            return null;
+        }
+        int size = len - packet.compressedHeaderSize + packet.headerSize;
+        if (size > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("datagram too large for 6lowpan: " + size);
+        }
+        if (packet.compressedHeaderSize + FRAG1_HEADER_SIZE + 8 > maxFragmentSize) {
+            throw new IllegalArgumentException("headers do not fit in first fragment: " +
+                    packet.compressedHeaderSize);
+        }
+        return new Fragments(packet, size, getTag(packet.getLinkDestination()), maxFragmentSize);
+    }
+
+    /* a link address as a long - short addresses are marked in the top
+     * byte so they do not clash with long addresses */
+    static long getLinkKey(byte[] address) {
+        long key = 0;
+        if (address != null) {
+            for (int i = 0; i < address.length; i++) {
+                key = (key << 8) | (address[i] & 0xff);
+            }
+            if (address.length < 8) {
+                key ^= (long) address.length << 56;
+            }
+        }
+        return key;
+    }
+
+    private int getTag(byte[] linkDestination) {
+        long key = getLinkKey(linkDestination);
+        synchronized (tags) {
+            if (tags.size() > MAX_TAG_DESTINATIONS) {
+                tags.clear();
+            }
+            Integer tag = tags.get(key);
+            int t = tag == null ? nextTag++ : tag.intValue();
+            tags.put(key, (t + 1) & 0xffff);
+            return t & 0xffff;
+        }
+    }
+
+    /* Reassembly - datagrams are identified by link source, link
+     * destination, tag and size (RFC 4944). Received data is tracked in
+     * 8 byte units and incomplete datagrams are dropped after a timeout,
+     * when the total buffer memory is used up (oldest first) or when a
+     * source has too many datagrams in progress.
+     */
+    public static final long DEFAULT_TIMEOUT = 60000;
+    public static final int DEFAULT_MAX_MEMORY = 16 * 1024;
+    public static final int DEFAULT_MAX_PER_SOURCE = 4;
+
+    private static final class FragmentKey {
+        long source;
+        long destination;
+        /* tag << 16 | size */
+        int tagSize;
+
+        FragmentKey() {
+        }
+
+        FragmentKey(FragmentKey key) {
+            source = key.source;
+            destination = key.destination;
+            tagSize = key.tagSize;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof FragmentKey)) return false;
+            FragmentKey k = (FragmentKey) o;
+            return source == k.source && destination == k.destination && tagSize == k.tagSize;
+        }
+
+        public int hashCode() {
+            long h = source * 31 + destination;
+            return (int) (h ^ (h >>> 32)) ^ tagSize;
+        }
+    }
+
+    private static final class FragmentContext {
+        final FragmentKey key;
+        final int size;
+        final long time;
+        /* datagram data at uncompressed offsets - the headers of the first
+         * fragment are kept compressed in header */
+        final byte[] data;
+        byte[] header;
+        int headerSize;
+        /* one bit per 8 byte unit of the datagram */
+        final long[] received = new long[(MAX_DATAGRAM_SIZE + 8 * 64) / (8 * 64)];
+        /* reassembly timeout when run on an event loop */
+        TimingWheel.Timeout timer;
+
+        FragmentContext(FragmentKey key, int size, long time) {
+            this.key = key;
             this.size = size;
-            this.receivedSize = 0;
+            this.time = time;
+            data = new byte[size];
         }
 
-        /* copy whole packet payload to buffer */
-        public boolean copyData(IPv6Packet packet, int offset) {
-            int plen = packet.getPayloadLength();
-            if (map.get("" + offset + ":" + plen) == null) {
-                if(offset > 0) {
-                    /* compensate for this offset */
-                    offset = offset - firstFragmentOffset;
+        /* mark [offset, offset + len[ as received - false if already received */
+        boolean mark(int offset, int len) {
+            boolean fresh = false;
+            int end = (offset + len + 7) >> 3;
+            for (int unit = offset >> 3; unit < end; unit++) {
+                long bit = 1L << (unit & 63);
+                if ((received[unit >> 6] & bit) == 0) {
+                    received[unit >> 6] |= bit;
+                    fresh = true;
                 }
-                packet.copy(0, data, offset);
-                map.put("" + offset + ":" + plen, "");
-                return true;
-            } else {
-                if(DEBUG) System.out.println("*** already received that part");
-                return false;
             }
+            return fresh;
+        }
+
+        boolean isComplete() {
+            if (header == null) return false;
+            int units = (size + 7) >> 3;
+            for (int i = 0; i < units >> 6; i++) {
+                if (received[i] != -1L) return false;
+            }
+            int rest = units & 63;
+            return rest == 0 || received[units >> 6] == (1L << rest) - 1;
         }
 
-        public void setPacketPayload(IPv6Packet packet) {
-            byte[] cleanedData = Arrays.copyOf(data, data.length - firstFragmentOffset);
-            packet.setBytePayload(cleanedData);
+        /* the datagram with compressed headers */
+        void setPacketPayload(IPv6Packet packet) {
+            byte[] payload = new byte[header.length + size - headerSize];
+            System.arraycopy(header, 0, payload, 0, header.length);
+            System.arraycopy(data, headerSize, payload, header.length, size - headerSize);
+            packet.setBytePayload(payload);
         }
     }
-    
-    private HashMap<String, FragmentContext> fragmentMap = new HashMap<String, FragmentContext>();
 
+    /* insertion ordered => oldest first */
+    private final LinkedHashMap<FragmentKey, FragmentContext> fragmentMap =
+        new LinkedHashMap<FragmentKey, FragmentContext>();
+    private final FragmentKey probe = new FragmentKey();
+    private long timeout = DEFAULT_TIMEOUT;
+    private int maxMemory = DEFAULT_MAX_MEMORY;
+    private int maxPerSource = DEFAULT_MAX_PER_SOURCE;
+    private int memory;
+    private EventLoop eventLoop;
+
+    private int completed;
+    private int timedOut;
+    private int evicted;
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /* One timeout per datagram on the timing wheel of the loop instead of
+     * checking for expired datagrams on each received fragment. */
+    public void setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    public void setMaxMemory(int maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    public void setMaxPerSource(int maxPerSource) {
+        this.maxPerSource = maxPerSource;
+    }
+
+    public int getPendingCount() {
+        synchronized (fragmentMap) {
+            return fragmentMap.size();
+        }
+    }
+
+    public int getCompletedCount() {
+        return completed;
+    }
+
+    public int getTimedOutCount() {
+        return timedOut;
+    }
+
+    public int getEvictedCount() {
+        return evicted;
+    }
+
+    private void remove(FragmentContext ctx) {
+        fragmentMap.remove(ctx.key);
+        removed(ctx);
+    }
+
+    /* ctx is no longer in the map */
+    private void removed(FragmentContext ctx) {
+        memory -= ctx.size;
+        if (ctx.timer != null) {
+            eventLoop.cancel(ctx.timer);
+            ctx.timer = null;
+        }
+    }
+
+    private void startTimer(final FragmentContext ctx) {
+        ctx.timer = eventLoop.schedule(new Runnable() {
+            public void run() {
+                synchronized (fragmentMap) {
+                    if (fragmentMap.get(ctx.key) == ctx) {
+                        if (DEBUG) System.out.println("Reassembly timeout tag:" + (ctx.key.tagSize >>> 16));
+                        ctx.timer = null;
+                        remove(ctx);
+                        timedOut++;
+                    }
+                }
+            }
+        }, timeout);
+    }
+
+    /* drop datagrams that have not completed within the timeout */
+    public void expire(long now) {
+        synchronized (fragmentMap) {
+            Iterator<FragmentContext> it = fragmentMap.values().iterator();
+            while (it.hasNext()) {
+                FragmentContext ctx = it.next();
+                if (now - ctx.time < timeout) {
+                    /* the rest are newer */
+                    break;
+                }
+                if (DEBUG) System.out.println("Reassembly timeout tag:" + (ctx.key.tagSize >>> 16));
+                it.remove();
+                removed(ctx);
+                timedOut++;
+            }
+        }
+    }
+
+    private FragmentContext getContext(int size, long now) {
+        FragmentContext ctx = fragmentMap.get(probe);
+        if (ctx != null) {
+            return ctx;
+        }
+        /* per source quota - drop the oldest of the source */
+        int count = 0;
+        FragmentContext oldest = null;
+        for (FragmentContext c : fragmentMap.values()) {
+            if (c.key.source == probe.source) {
+                if (oldest == null) oldest = c;
+                count++;
+            }
+        }
+        if (count >= maxPerSource && oldest != null) {
+            remove(oldest);
+            evicted++;
+        }
+        /* memory cap - drop the oldest */
+        Iterator<FragmentContext> it = fragmentMap.values().iterator();
+        while (memory + size > maxMemory && it.hasNext()) {
+            FragmentContext c = it.next();
+            it.remove();
+            removed(c);
+            evicted++;
+        }
+        if (memory + size > maxMemory) {
+            return null;
+        }
+        ctx = new FragmentContext(new FragmentKey(probe), size, now);
+        fragmentMap.put(ctx.key, ctx);
+        memory += size;
+        if (eventLoop != null) {
+            startTimer(ctx);
+        }
+        return ctx;
+    }
+
+    /* returns true if the packet is not a fragment or if it completed a
+     * datagram - the packet then contains the reassembled datagram */
     public boolean handleFragment(IPv6Packet packet, int uncomprSize, int comprSize) {
         int data = packet.getData(0);
+        boolean first = (data & 0xf8) == HC06Packeter.SICSLOWPAN_DISPATCH_FRAG1;
+        if (!first && (data & 0xf8) != HC06Packeter.SICSLOWPAN_DISPATCH_FRAGN) {
+            return true;
+        }
+        int fragSize = packet.get16(0) & 0x7ff;
+        int fragTag = packet.get16(2);
+        int hdrSize = first ? FRAG1_HEADER_SIZE : FRAGN_HEADER_SIZE;
+        int fragOffset = first ? 0 : (packet.getData(4) & 0xff) * 8;
+        long now = System.currentTimeMillis();
 
-        if ((data & 0xf8) == HC06Packeter.SICSLOWPAN_DISPATCH_FRAG1) {
-            /* This is a first fragment */
-            int fragSize = packet.get16(0) & 0x7ff;
-            int fragTag = packet.get16(2);
-            String id = packet.getLinkDestinationAsString() + "-" + fragTag;
-            if (DEBUG) System.out.printf("First Fragment found: size:%d tag:%d ID:%s\n", fragSize, fragTag, id);
-            packet.incPos(4);
-            
-            FragmentContext ctx = fragmentMap.get(id);
-            if (ctx == null) {
-                ctx = new FragmentContext(fragTag, fragSize);
-                fragmentMap.put(id, ctx);
+        synchronized (fragmentMap) {
+            if (eventLoop == null) {
+                expire(now);
             }
-            if (ctx.copyData(packet, 0)) {
-                ctx.receivedSize += packet.getPayloadLength() + (uncomprSize - comprSize);
-                ctx.firstFragmentOffset = (uncomprSize - comprSize);
-            }
-            if (DEBUG) System.out.println("Received:" + ctx.receivedSize);
-            /* Fragment 1 should never be "complete" since it would not be fragmentet then? */
-            return false;
-        } else if ((data & 0xf8) == HC06Packeter.SICSLOWPAN_DISPATCH_FRAGN) {
-            int fragSize = packet.get16(0) & 0x7ff;
-            int fragTag = packet.get16(2);    
-            int fragOffset = packet.getData(4) * 8;
-            String id = packet.getLinkDestinationAsString() + "-" + fragTag;
-            if (DEBUG) System.out.printf("N Fragment found: size:%d tag:%d offset:%d ID:%s\n", fragSize, fragTag, fragOffset, id);
-            packet.incPos(5);
-            /* here we should handle appending the packet data to the fragment buffers... */
-            FragmentContext ctx = fragmentMap.get(id);
+            probe.source = getLinkKey(packet.getLinkSource());
+            probe.destination = getLinkKey(packet.getLinkDestination());
+            probe.tagSize = (fragTag << 16) | fragSize;
+            if (DEBUG) System.out.printf("Fragment found: size:%d tag:%d offset:%d first:%b\n",
+                    fragSize, fragTag, fragOffset, first);
+            packet.incPos(hdrSize);
+            int plen = packet.getPayloadLength();
+            FragmentContext ctx = getContext(fragSize, now);
             if (ctx == null) {
-                ctx = new FragmentContext(fragTag, fragSize);
-                fragmentMap.put(id, ctx);
+                return false;
             }
-            /* typically no extra header size here? */
-            if (ctx.copyData(packet, fragOffset)) {
-                ctx.receivedSize += packet.getPayloadLength();
+            if (first) {
+                /* compressed headers are kept as is, the payload goes to
+                 * its uncompressed offset */
+                if (ctx.header != null || comprSize > plen) {
+                    return false;
+                }
+                plen -= comprSize;
+                if (uncomprSize + plen > fragSize) {
+                    remove(ctx);
+                    return false;
+                }
+                ctx.header = new byte[comprSize];
+                packet.copy(0, ctx.header, 0, comprSize);
+                ctx.headerSize = uncomprSize;
+                ctx.mark(0, uncomprSize + plen);
+                packet.copy(comprSize, ctx.data, uncomprSize, plen);
+            } else {
+                if (fragOffset + plen > fragSize) {
+                    remove(ctx);
+                    return false;
+                }
+                if (!ctx.mark(fragOffset, plen)) {
+                    if (DEBUG) System.out.println("*** already received that part");
+                    return false;
+                }
+                packet.copy(0, ctx.data, fragOffset, plen);
             }
-            if (DEBUG) System.out.println("Received:" + ctx.receivedSize);
-            if (ctx.receivedSize == ctx.size) {
+            if (ctx.isComplete()) {
                 if (DEBUG) System.out.println("**** Packet done !!!!");
-                packet.currentPos -= 5; /* back down to regular 802.15.4 header - then put a "big" packet there... */
+                /* back down to the fragment header - then put a "big" packet there... */
+                packet.currentPos -= hdrSize;
                 ctx.setPacketPayload(packet);
-                /* remove from fragmentMap */
-                fragmentMap.remove(id);
+                remove(ctx);
+                completed++;
                 return true;
             }
             return false;
         }
-        return true;
     }
-    
 }
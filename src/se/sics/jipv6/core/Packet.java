@@ -1,274 +1,443 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-import java.util.Hashtable;
-
-public class Packet {
-
-  public static final String LL_SOURCE = "link.source";
-  public static final String LL_DESTINATION = "link.destination";
-  private static final boolean DEBUG = false;
-  
-  protected Hashtable<String, Object> attributes = new Hashtable<String, Object>();
-
-  /* this is the packet data array */
-  protected byte[] packetData;
-  /* current position of packet data cursor */
-  int currentPos = 0;
-
-  public int getPos() {
-      return currentPos;
-  }
-  
-  public void setBytes(byte[] data) {
-    packetData = data;
-    currentPos = 0;
-  }
-  
-  public void setBytes(byte[] data, int startPos, int len) {
-    byte[] payload = new byte[len];
-    System.arraycopy(data, startPos, payload, 0, len);
-    packetData = payload;
-    /* reset cursor in this case !!! */
-    currentPos = 0;
-  }
-
-  /* This will replace any data after the specific position with the data array */
-  public void setBytePayload(byte[] data) {
-      byte[] newData = new byte[data.length + currentPos];
-      System.arraycopy(packetData, 0, newData, 0, currentPos);
-      System.arraycopy(data, 0, newData, currentPos, data.length);
-      packetData = newData;
-  }
-  
-  public void appendBytes(byte[] data) {
-    if (packetData == null) {
-      packetData = data;
-    } else {
-      setPacketData(packetData, data);
-    }
-  }
-  
-  public void prependBytes(byte[] data) {
-    if (packetData == null) {
-      packetData = data;
-    } else {
-      setPacketData(data, packetData);
-    }
-  }
-  
-  private void setPacketData(byte[] data1, byte[] data2) {
-    byte[] newData = new byte[data1.length + data2.length];
-    System.arraycopy(data1, 0, newData, 0, data1.length);
-    System.arraycopy(data2, 0, newData, data1.length, data2.length);
-    packetData = newData;
-  }
-  
-  public byte[] getBytes() {
-    return packetData;
-  }
-
-  /* total packet length */
-  public int getTotalLength() {
-    return packetData.length;
-  }
-  
-  /* called when headers are parsed to get current payload lenght 
-   * only useful when parsing messages... */
-  public int getPayloadLength() {
-    return packetData.length - currentPos;
-  }
-  
-  public void setAttribute(String name, Object object) {
-    attributes.put(name, object);
-  }
-
-  public void setAttribute(String name, int data) {
-    attributes.put(name, new Integer(data));
-  }
-  
-  public Object getAttribute(String name) {
-    return attributes.get(name);
-  }
-
-  public String addressToString(byte[] addr) {
-      StringBuilder addrStr = new StringBuilder();
-      for(int i = 0; i < addr.length; i++) {
-          if (i > 0) {
-              addrStr.append(':');
-          }
-          addrStr.append(String.format("%02x", addr[i] & 0xff));
-      }
-      return addrStr.toString();
-  }
-  
-  public byte[] getLinkSource() {
-    return (byte[]) attributes.get(LL_SOURCE);
-  }
-  
-  public String getLinkSourceAsString() {
-      return addressToString(getLinkSource());
-  }
-
-  public byte[] getLinkDestination() {
-    return (byte[]) attributes.get(LL_DESTINATION);
-  }
-
-  public String getLinkDestinationAsString() {
-      return addressToString(getLinkDestination());
-  }
-
-  
-  public int get32(int pos) {
-    pos = currentPos + pos;
-    if (packetData.length >= pos + 3) {
-    return ((packetData[pos] & 0xff) << 24) |
-    ((packetData[pos + 1] & 0xff) << 16) |
-    ((packetData[pos + 2] & 0xff) << 8) |
-    (packetData[pos + 3] & 0xff);
-    }
-    return 0;
-  }
-
-  public int get24(int pos) {
-      pos = currentPos + pos;
-      if (packetData.length >= pos + 2) {
-          return ((packetData[pos] & 0xff) << 16) |
-          ((packetData[pos + 1] & 0xff) << 8) |
-          (packetData[pos + 2] & 0xff);
-      }
-      return 0;
-  }
-
-  
-  static int get32(byte[] data, int pos) {
-    if (data.length >= pos + 3) {
-    return ((data[pos] & 0xff) << 24) |
-    ((data[pos + 1] & 0xff) << 16) |
-    ((data[pos + 2] & 0xff) << 8) |
-    (data[pos + 3] & 0xff);
-    }
-    return 0;
-  }
-
-  static int get16(byte[] data, int pos) {
-    if (data.length >= pos + 1) {
-    return ((data[pos] & 0xff) << 8) |
-    ((data[pos + 1] & 0xff) << 0);
-    }
-    return 0;
-  }
-
-  
-  public int get16(int pos) {
-    pos = currentPos + pos;
-    if (packetData.length > pos + 1)
-      return ((packetData[pos] & 0xff) << 8) | packetData[pos + 1] & 0xff;
-    return 0;
-  }
-
-  public byte getData(int pos) {
-    return packetData[currentPos + pos];
-  }
-  
-  public void incPos(int delta) {
-    currentPos += delta;
-  }
-
-  public byte[] getPayload() {
-    // payload is from pos to end...
-    byte[] payload = new byte[packetData.length - currentPos];
-    System.arraycopy(packetData, currentPos, payload, 0, payload.length);
-    return payload;
-  }
-  
-  public int getAttributeAsInt(String attr) {
-    Object val = attributes.get(attr);
-    if (val instanceof Integer) return ((Integer)val).intValue();
-    if (val instanceof String) return Integer.parseInt((String) val);
-    return -1;
-  }
-
-  /* copies bytes from currentPos + pos to the given array */
-  public void copy(int pos, byte[] dst, int dstPos, int len) {
-    // TODO Auto-generated method stub
-    int tPos = pos + currentPos;
-    System.arraycopy(packetData, tPos, dst, dstPos, len);
-  }
-
-  /* copies bytes from currentPos + pos to the given array full length */
-  public void copy(int pos, byte[] dst, int dstPos) {
-    // TODO Auto-generated method stub
-    int tPos = pos + currentPos;
-    int len = getPayloadLength()  - pos;
-    if (DEBUG) System.out.println("Copying data: " + tPos + " Len: " + len);
-    System.arraycopy(packetData, tPos, dst, dstPos, len);
-  }
-
-  
-  public void setData(int pos, byte val) {
-    packetData[currentPos + pos] = val;
-  }
-  
-  public void printPayload() {
-      for(int i = currentPos; i < packetData.length; i++) {
-          System.out.printf("%02x", packetData[i] & 0xff);
-      }
-      System.out.println();
-  }
-  
-  public void printPacket() {
-      for (String key : attributes.keySet().toArray(new String[0])) {
-          Object value = attributes.get(key);
-          if(key.equals(LL_SOURCE) || key.equals(LL_DESTINATION)) {
-              byte[] addr = (byte[]) value;
-              System.out.print(key + " = ");
-              for(int i = 0; i < addr.length; i++) {
-                  if(i > 0) System.out.print(":");
-                  System.out.printf("%02x", addr[i]);
-              }
-              System.out.println();
-          } else {
-              System.out.println(key + " = " + value);
-          }
-      }
-  }
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+
+package se.sics.jipv6.core;
+import java.nio.ByteBuffer;
+
+public class Packet implements Poolable {
+
+  public static final String LL_SOURCE = "link.source";
+  public static final String LL_DESTINATION = "link.destination";
+  public static final PacketAttributes.Key LL_SOURCE_KEY =
+      PacketAttributes.registerObject(LL_SOURCE);
+  public static final PacketAttributes.Key LL_DESTINATION_KEY =
+      PacketAttributes.registerObject(LL_DESTINATION);
+  private static final boolean DEBUG = false;
+
+  /* room reserved in front of the data when a send buffer is allocated -
+   * enough for a full 802.15.4 header, the 6LoWPAN dispatch and a
+   * fragmentation header */
+  public static final int DEFAULT_HEADROOM = 32;
+  public static final int DEFAULT_TAILROOM = 4;
+
+  protected PacketAttributes attributes = new PacketAttributes();
+
+  /* this is the packet data array - the frame is packetData[startPos..endPos[
+   * and the bytes before startPos / after endPos are free head/tail room */
+  protected byte[] packetData;
+  int startPos = 0;
+  int endPos = 0;
+  /* current position of packet data cursor (relative to startPos) */
+  int currentPos = 0;
+
+  public int getPos() {
+      return currentPos;
+  }
+  
+  public void setBytes(byte[] data) {
+    packetData = data;
+    startPos = 0;
+    endPos = data.length;
+    currentPos = 0;
+  }
+  
+  public void setBytes(byte[] data, int startPos, int len) {
+    byte[] payload = new byte[len];
+    System.arraycopy(data, startPos, payload, 0, len);
+    setBytes(payload);
+  }
+
+  /* use the given part of the array as packet data without copying it */
+  public void setBuffer(byte[] data, int offset, int len) {
+    packetData = data;
+    startPos = offset;
+    endPos = offset + len;
+    currentPos = 0;
+  }
+
+  /* Allocates a new buffer with the given head and tail room and returns
+   * the buffer offset where the len bytes of packet data starts.
+   */
+  public int allocate(int headroom, int len, int tailroom) {
+    packetData = new byte[headroom + len + tailroom];
+    startPos = headroom;
+    endPos = headroom + len;
+    currentPos = 0;
+    return startPos;
+  }
+
+  /* Make room for a header of len bytes in front of the packet and return
+   * the buffer offset where the header should be written. The packet data
+   * is only moved if there is not enough headroom left. */
+  public int reserveHeader(int len) {
+    if (packetData == null) {
+      allocate(DEFAULT_HEADROOM, 0, DEFAULT_TAILROOM);
+    }
+    if (startPos < len) {
+      grow(len + DEFAULT_HEADROOM, 0);
+    }
+    startPos -= len;
+    return startPos;
+  }
+
+  /* Make room for len bytes after the packet and return the buffer offset
+   * where they should be written. */
+  public int reserveTrailer(int len) {
+    if (packetData == null) {
+      allocate(DEFAULT_HEADROOM, 0, DEFAULT_TAILROOM);
+    }
+    if (packetData.length - endPos < len) {
+      grow(0, len + DEFAULT_TAILROOM);
+    }
+    int pos = endPos;
+    endPos += len;
+    return pos;
+  }
+
+  private void grow(int headroom, int tailroom) {
+    int len = endPos - startPos;
+    byte[] newData = new byte[headroom + len + tailroom];
+    System.arraycopy(packetData, startPos, newData, headroom, len);
+    packetData = newData;
+    startPos = headroom;
+    endPos = headroom + len;
+  }
+
+  /* This will replace any data after the specific position with the data array */
+  public void setBytePayload(byte[] data) {
+      int pos = startPos + currentPos;
+      if (pos + data.length > packetData.length) {
+          grow(startPos, pos + data.length - endPos);
+          pos = startPos + currentPos;
+      }
+      System.arraycopy(data, 0, packetData, pos, data.length);
+      endPos = pos + data.length;
+  }
+  
+  public void appendBytes(byte[] data) {
+    if (packetData == null) {
+      setBytes(data);
+    } else {
+      int pos = reserveTrailer(data.length);
+      System.arraycopy(data, 0, packetData, pos, data.length);
+    }
+  }
+  
+  public void prependBytes(byte[] data) {
+    if (packetData == null) {
+      setBytes(data);
+    } else {
+      int pos = reserveHeader(data.length);
+      System.arraycopy(data, 0, packetData, pos, data.length);
+    }
+  }
+
+  /* back to the state of a new packet - for pooling */
+  public void reset() {
+    packetData = null;
+    startPos = 0;
+    endPos = 0;
+    currentPos = 0;
+    attributes.clear();
+  }
+
+  /* A view of part of this packet (from currentPos + pos) sharing the same
+   * buffer - the attributes are shared with this packet */
+  public Packet slice(int pos, int len) {
+    Packet packet = new Packet();
+    packet.attributes = attributes;
+    packet.setBuffer(packetData, startPos + currentPos + pos, len);
+    return packet;
+  }
+
+  /* A copy of the rest of the packet (from currentPos) and of the
+   * attributes - for keeping a packet whose buffer will be reused */
+  public Packet copy() {
+    Packet packet = new Packet();
+    packet.setBytes(packetData, startPos + currentPos, getPayloadLength());
+    packet.attributes.copyFrom(attributes);
+    return packet;
+  }
+
+  /* the packet data - copies only when the frame does not fill the buffer */
+  public byte[] getBytes() {
+    if (packetData == null || (startPos == 0 && endPos == packetData.length)) {
+      return packetData;
+    }
+    byte[] data = new byte[endPos - startPos];
+    System.arraycopy(packetData, startPos, data, 0, data.length);
+    return data;
+  }
+
+  /* the backing buffer - the frame starts at getOffset() */
+  public byte[] getBuffer() {
+    return packetData;
+  }
+
+  public int getOffset() {
+    return startPos;
+  }
+
+  /* the whole frame as a ByteBuffer view of the backing buffer */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(packetData, startPos, endPos - startPos).slice();
+  }
+
+  /* total packet length */
+  public int getTotalLength() {
+    return endPos - startPos;
+  }
+  
+  /* called when headers are parsed to get current payload lenght 
+   * only useful when parsing messages... */
+  public int getPayloadLength() {
+    return endPos - startPos - currentPos;
+  }
+  
+  public void setAttribute(String name, Object object) {
+    attributes.put(name, object);
+  }
+
+  public void setAttribute(String name, int data) {
+    PacketAttributes.Key key = PacketAttributes.getKey(name);
+    if (key != null) {
+      attributes.set(key, data);
+    } else {
+      attributes.put(name, Integer.valueOf(data));
+    }
+  }
+  
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  /* typed attribute access - no boxing and no string lookups */
+  public void setAttribute(PacketAttributes.Key key, int data) {
+    attributes.set(key, data);
+  }
+
+  public void setAttribute(PacketAttributes.Key key, long data) {
+    attributes.set(key, data);
+  }
+
+  public void setAttribute(PacketAttributes.Key key, Object object) {
+    attributes.set(key, object);
+  }
+
+  public Object getAttribute(PacketAttributes.Key key) {
+    return attributes.get(key);
+  }
+
+  public int getAttributeAsInt(PacketAttributes.Key key) {
+    return attributes.getInt(key);
+  }
+
+  public long getAttributeAsLong(PacketAttributes.Key key) {
+    return attributes.getLong(key);
+  }
+
+  public boolean hasAttribute(PacketAttributes.Key key) {
+    return attributes.isSet(key);
+  }
+
+  public PacketAttributes getAttributes() {
+    return attributes;
+  }
+
+  public String addressToString(byte[] addr) {
+      StringBuilder addrStr = new StringBuilder();
+      for(int i = 0; i < addr.length; i++) {
+          if (i > 0) {
+              addrStr.append(':');
+          }
+          addrStr.append(String.format("%02x", addr[i] & 0xff));
+      }
+      return addrStr.toString();
+  }
+  
+  public byte[] getLinkSource() {
+    return (byte[]) attributes.get(LL_SOURCE_KEY);
+  }
+  
+  public String getLinkSourceAsString() {
+      return addressToString(getLinkSource());
+  }
+
+  public byte[] getLinkDestination() {
+    return (byte[]) attributes.get(LL_DESTINATION_KEY);
+  }
+
+  public String getLinkDestinationAsString() {
+      return addressToString(getLinkDestination());
+  }
+
+  
+  public int get32(int pos) {
+    pos = startPos + currentPos + pos;
+    if (endPos >= pos + 3) {
+    return ((packetData[pos] & 0xff) << 24) |
+    ((packetData[pos + 1] & 0xff) << 16) |
+    ((packetData[pos + 2] & 0xff) << 8) |
+    (packetData[pos + 3] & 0xff);
+    }
+    return 0;
+  }
+
+  public int get24(int pos) {
+      pos = startPos + currentPos + pos;
+      if (endPos >= pos + 2) {
+          return ((packetData[pos] & 0xff) << 16) |
+          ((packetData[pos + 1] & 0xff) << 8) |
+          (packetData[pos + 2] & 0xff);
+      }
+      return 0;
+  }
+
+  
+  static int get32(byte[] data, int pos) {
+    if (data.length >= pos + 3) {
+    return ((data[pos] & 0xff) << 24) |
+    ((data[pos + 1] & 0xff) << 16) |
+    ((data[pos + 2] & 0xff) << 8) |
+    (data[pos + 3] & 0xff);
+    }
+    return 0;
+  }
+
+  static int get16(byte[] data, int pos) {
+    if (data.length >= pos + 1) {
+    return ((data[pos] & 0xff) << 8) |
+    ((data[pos + 1] & 0xff) << 0);
+    }
+    return 0;
+  }
+
+  /* 64 bits - big endian */
+  static long get64(byte[] data, int pos) {
+    long val = 0;
+    for (int i = 0; i < 8; i++) {
+      val = (val << 8) | (data[pos + i] & 0xff);
+    }
+    return val;
+  }
+
+  public long get64(int pos) {
+    return get64(packetData, startPos + currentPos + pos);
+  }
+
+  public int get16(int pos) {
+    pos = startPos + currentPos + pos;
+    if (endPos > pos + 1)
+      return ((packetData[pos] & 0xff) << 8) | packetData[pos + 1] & 0xff;
+    return 0;
+  }
+
+  public byte getData(int pos) {
+    return packetData[startPos + currentPos + pos];
+  }
+  
+  public void incPos(int delta) {
+    currentPos += delta;
+  }
+
+  public byte[] getPayload() {
+    // payload is from pos to end...
+    byte[] payload = new byte[getPayloadLength()];
+    System.arraycopy(packetData, startPos + currentPos, payload, 0, payload.length);
+    return payload;
+  }
+  
+  public int getAttributeAsInt(String attr) {
+    PacketAttributes.Key key = PacketAttributes.getKey(attr);
+    if (key != null) {
+      return attributes.getInt(key);
+    }
+    Object val = attributes.get(attr);
+    if (val instanceof Integer) return ((Integer)val).intValue();
+    if (val instanceof String) return Integer.parseInt((String) val);
+    return -1;
+  }
+
+  /* copies bytes from currentPos + pos to the given array */
+  public void copy(int pos, byte[] dst, int dstPos, int len) {
+    // TODO Auto-generated method stub
+    int tPos = startPos + currentPos + pos;
+    System.arraycopy(packetData, tPos, dst, dstPos, len);
+  }
+
+  /* copies bytes from currentPos + pos to the given array full length */
+  public void copy(int pos, byte[] dst, int dstPos) {
+    // TODO Auto-generated method stub
+    int tPos = startPos + currentPos + pos;
+    int len = getPayloadLength()  - pos;
+    if (DEBUG) System.out.println("Copying data: " + tPos + " Len: " + len);
+    System.arraycopy(packetData, tPos, dst, dstPos, len);
+  }
+
+  
+  public void setData(int pos, byte val) {
+    packetData[startPos + currentPos + pos] = val;
+  }
+  
+  public void printPayload() {
+      for(int i = startPos + currentPos; i < endPos; i++) {
+          System.out.printf("%02x", packetData[i] & 0xff);
+      }
+      System.out.println();
+  }
+  
+  public void printPacket() {
+      for (String key : attributes.getNames()) {
+          Object value = attributes.get(key);
+          if(key.equals(LL_SOURCE) || key.equals(LL_DESTINATION)) {
+              byte[] addr = (byte[]) value;
+              System.out.print(key + " = ");
+              for(int i = 0; i < addr.length; i++) {
+                  if(i > 0) System.out.print(":");
+                  System.out.printf("%02x", addr[i]);
+              }
+              System.out.println();
+          } else {
+              System.out.println(key + " = " + value);
+          }
+      }
+  }
 }
\ No newline at end of file
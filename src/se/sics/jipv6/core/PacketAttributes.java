@@ -0,0 +1,300 @@
+package se.sics.jipv6.core;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/* Attribute storage for a packet. Keys registered up front get a fixed slot
+ * in a primitive (int/long) or object array - only unregistered string keys
+ * end up in the (lazily created) hashtable.
+ */
+public class PacketAttributes {
+
+    public static final int MAX_INT_SLOTS = 32;
+    public static final int MAX_OBJECT_SLOTS = 16;
+
+    public static final class Key {
+        final String name;
+        final int slot;
+        final boolean isObject;
+
+        private Key(String name, int slot, boolean isObject) {
+            this.name = name;
+            this.slot = slot;
+            this.isObject = isObject;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    /* Supplies the values of a group of attributes when they are first
+     * looked up instead of when the packet is parsed. The values are derived
+     * from data[offset..offset+len[ which must not change meanwhile.
+     */
+    public static abstract class Resolver {
+        final Key[] keys;
+        final long intMask;
+        final long objectMask;
+
+        protected Resolver(Key[] keys) {
+            long ints = 0;
+            long objects = 0;
+            for (Key key : keys) {
+                if (key.isObject) {
+                    objects |= 1L << key.slot;
+                } else {
+                    ints |= 1L << key.slot;
+                }
+            }
+            this.keys = keys;
+            this.intMask = ints;
+            this.objectMask = objects;
+        }
+
+        /* set the value of key - leave it unset if the data has none */
+        protected abstract void resolve(PacketAttributes attributes, Key key,
+                byte[] data, int offset, int len);
+    }
+
+    private static final Hashtable<String, Key> registry = new Hashtable<String, Key>();
+    private static final ArrayList<Key> keys = new ArrayList<Key>();
+    private static int intSlots = 0;
+    private static int objectSlots = 0;
+
+    /* register a primitive (int / long) attribute - registering an already
+     * registered name returns the existing key */
+    public static synchronized Key registerInt(String name) {
+        Key key = registry.get(name);
+        if (key == null) {
+            if (intSlots >= MAX_INT_SLOTS) {
+                throw new IllegalStateException("too many int attributes: " + name);
+            }
+            key = new Key(name, intSlots++, false);
+            registry.put(name, key);
+            keys.add(key);
+        } else if (key.isObject) {
+            throw new IllegalArgumentException("attribute already registered as object: " + name);
+        }
+        return key;
+    }
+
+    public static synchronized Key registerObject(String name) {
+        Key key = registry.get(name);
+        if (key == null) {
+            if (objectSlots >= MAX_OBJECT_SLOTS) {
+                throw new IllegalStateException("too many object attributes: " + name);
+            }
+            key = new Key(name, objectSlots++, true);
+            registry.put(name, key);
+            keys.add(key);
+        } else if (!key.isObject) {
+            throw new IllegalArgumentException("attribute already registered as int: " + name);
+        }
+        return key;
+    }
+
+    public static Key getKey(String name) {
+        return registry.get(name);
+    }
+
+    /* bit n set => int slot n has a value */
+    private long intSet;
+    private final long[] intValues = new long[MAX_INT_SLOTS];
+    private final Object[] objectValues = new Object[MAX_OBJECT_SLOTS];
+    /* attributes that are not registered */
+    private Hashtable<String, Object> other;
+
+    /* deferred attributes - bit n set => slot n is still to be resolved */
+    private Resolver resolver;
+    private byte[] resolveData;
+    private int resolveOffset;
+    private int resolveLen;
+    private long pendingInts;
+    private long pendingObjects;
+
+    /* the keys of resolver get their values from data on first lookup - an
+     * explicit set of one of them wins over the deferred value */
+    public void defer(Resolver resolver, byte[] data, int offset, int len) {
+        if (this.resolver != null) {
+            resolveAll();
+        }
+        this.resolver = resolver;
+        resolveData = data;
+        resolveOffset = offset;
+        resolveLen = len;
+        pendingInts = resolver.intMask;
+        pendingObjects = resolver.objectMask;
+    }
+
+    private boolean isPending(Key key) {
+        return ((key.isObject ? pendingObjects : pendingInts) & (1L << key.slot)) != 0;
+    }
+
+    private void clearPending(Key key) {
+        if (key.isObject) {
+            pendingObjects &= ~(1L << key.slot);
+        } else {
+            pendingInts &= ~(1L << key.slot);
+        }
+    }
+
+    private void resolve(Key key) {
+        clearPending(key);
+        resolver.resolve(this, key, resolveData, resolveOffset, resolveLen);
+        if (pendingInts == 0 && pendingObjects == 0) {
+            resolver = null;
+            resolveData = null;
+        }
+    }
+
+    /* resolve all deferred values - needed before the attributes are read
+     * by more than one thread */
+    public void resolveAll() {
+        if (resolver != null) {
+            Key[] keys = resolver.keys;
+            for (int i = 0; i < keys.length && resolver != null; i++) {
+                if (isPending(keys[i])) {
+                    resolve(keys[i]);
+                }
+            }
+        }
+    }
+
+    public void set(Key key, long value) {
+        if (resolver != null) {
+            clearPending(key);
+        }
+        if (key.isObject) {
+            objectValues[key.slot] = Long.valueOf(value);
+        } else {
+            intValues[key.slot] = value;
+            intSet |= 1L << key.slot;
+        }
+    }
+
+    public void set(Key key, Object value) {
+        if (resolver != null) {
+            clearPending(key);
+        }
+        if (key.isObject) {
+            objectValues[key.slot] = value;
+        } else if (value instanceof Number) {
+            set(key, ((Number) value).longValue());
+        } else if (value == null) {
+            intSet &= ~(1L << key.slot);
+        } else {
+            set(key, Long.parseLong(value.toString()));
+        }
+    }
+
+    public boolean isSet(Key key) {
+        if (resolver != null && isPending(key)) {
+            resolve(key);
+        }
+        if (key.isObject) {
+            return objectValues[key.slot] != null;
+        }
+        return (intSet & (1L << key.slot)) != 0;
+    }
+
+    /* returns -1 when the attribute is not set */
+    public int getInt(Key key) {
+        return (int) getLong(key);
+    }
+
+    public long getLong(Key key) {
+        if (resolver != null && isPending(key)) {
+            resolve(key);
+        }
+        if (key.isObject) {
+            Object val = objectValues[key.slot];
+            return val instanceof Number ? ((Number) val).longValue() : -1;
+        }
+        if ((intSet & (1L << key.slot)) == 0) {
+            return -1;
+        }
+        return intValues[key.slot];
+    }
+
+    public Object get(Key key) {
+        if (resolver != null && isPending(key)) {
+            resolve(key);
+        }
+        if (key.isObject) {
+            return objectValues[key.slot];
+        }
+        if ((intSet & (1L << key.slot)) == 0) {
+            return null;
+        }
+        return Integer.valueOf((int) intValues[key.slot]);
+    }
+
+    /* string based access - for compatibility */
+    public void put(String name, Object value) {
+        Key key = registry.get(name);
+        if (key != null) {
+            set(key, value);
+        } else {
+            if (other == null) {
+                other = new Hashtable<String, Object>();
+            }
+            other.put(name, value);
+        }
+    }
+
+    public Object get(String name) {
+        Key key = registry.get(name);
+        if (key != null) {
+            return get(key);
+        }
+        return other == null ? null : other.get(name);
+    }
+
+    public void clear() {
+        intSet = 0;
+        for (int i = 0; i < objectSlots; i++) {
+            objectValues[i] = null;
+        }
+        other = null;
+        resolver = null;
+        resolveData = null;
+        pendingInts = 0;
+        pendingObjects = 0;
+    }
+
+    /* replaces all attributes with those of src - deferred values of src
+     * are resolved as its data may not outlive it */
+    public void copyFrom(PacketAttributes src) {
+        src.resolveAll();
+        resolver = null;
+        resolveData = null;
+        pendingInts = 0;
+        pendingObjects = 0;
+        intSet = src.intSet;
+        System.arraycopy(src.intValues, 0, intValues, 0, MAX_INT_SLOTS);
+        System.arraycopy(src.objectValues, 0, objectValues, 0, MAX_OBJECT_SLOTS);
+        other = src.other == null ? null : new Hashtable<String, Object>(src.other);
+    }
+
+    /* names of all attributes that currently have a value */
+    public String[] getNames() {
+        resolveAll();
+        ArrayList<String> names = new ArrayList<String>();
+        synchronized (PacketAttributes.class) {
+            for (Key key : keys) {
+                if (isSet(key)) {
+                    names.add(key.name);
+                }
+            }
+        }
+        if (other != null) {
+            names.addAll(other.keySet());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+}
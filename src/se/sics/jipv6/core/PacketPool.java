@@ -0,0 +1,154 @@
+package se.sics.jipv6.core;
+
+/* Optional per-thread recycling of the objects created for each received
+ * frame. Pooling is off by default (or enable with -Djipv6.pool=true) -
+ * when off all get methods just create new objects and release does nothing.
+ *
+ * When pooling is enabled the packet passed to IPStack.receivePacket and
+ * PacketAnalyzer.analyzeIPPacket is released when the call returns, so
+ * listeners and analyzers must copy what they want to keep.
+ */
+public final class PacketPool {
+
+    private static final int DEFAULT_SIZE = 32;
+
+    private static volatile boolean enabled = Boolean.getBoolean("jipv6.pool");
+
+    private static final ThreadLocal<PacketPool> pools = new ThreadLocal<PacketPool>() {
+        protected PacketPool initialValue() {
+            return new PacketPool(DEFAULT_SIZE);
+        }
+    };
+
+    /* simple LIFO free list */
+    private static final class FreeList {
+        final Poolable[] free;
+        int count;
+        FreeList(int size) {
+            free = new Poolable[size];
+        }
+        Poolable get() {
+            if (count == 0) return null;
+            Poolable p = free[--count];
+            free[count] = null;
+            return p;
+        }
+        void put(Poolable p) {
+            p.reset();
+            if (count < free.length) {
+                free[count++] = p;
+            }
+        }
+    }
+
+    private final FreeList packets;
+    private final FreeList ipPackets;
+    private final FreeList udpPackets;
+    private final FreeList tcpPackets;
+    private final FreeList icmp6Packets;
+    private final FreeList hbhOptions;
+
+    private int allocated;
+    private int reused;
+
+    private PacketPool(int size) {
+        packets = new FreeList(size);
+        ipPackets = new FreeList(size);
+        udpPackets = new FreeList(size);
+        tcpPackets = new FreeList(size);
+        icmp6Packets = new FreeList(size);
+        hbhOptions = new FreeList(size);
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /* the pool for the calling thread */
+    public static PacketPool get() {
+        return pools.get();
+    }
+
+    private Poolable get(FreeList list) {
+        if (!enabled) return null;
+        Poolable p = list.get();
+        if (p == null) {
+            allocated++;
+        } else {
+            reused++;
+        }
+        return p;
+    }
+
+    public Packet newPacket() {
+        Packet p = (Packet) get(packets);
+        return p != null ? p : new Packet();
+    }
+
+    public IPv6Packet newIPv6Packet(Packet packet) {
+        IPv6Packet p = (IPv6Packet) get(ipPackets);
+        if (p == null) {
+            return new IPv6Packet(packet);
+        }
+        p.wrap(packet);
+        return p;
+    }
+
+    public UDPPacket newUDPPacket() {
+        UDPPacket p = (UDPPacket) get(udpPackets);
+        return p != null ? p : new UDPPacket();
+    }
+
+    public TCPPacket newTCPPacket() {
+        TCPPacket p = (TCPPacket) get(tcpPackets);
+        return p != null ? p : new TCPPacket();
+    }
+
+    public ICMP6Packet newICMP6Packet() {
+        ICMP6Packet p = (ICMP6Packet) get(icmp6Packets);
+        return p != null ? p : new ICMP6Packet();
+    }
+
+    public HopByHopOption newHopByHopOption() {
+        HopByHopOption p = (HopByHopOption) get(hbhOptions);
+        return p != null ? p : new HopByHopOption();
+    }
+
+    public void release(Packet packet) {
+        if (!enabled || packet == null) return;
+        if (packet instanceof IPv6Packet) {
+            IPv6Packet ipPacket = (IPv6Packet) packet;
+            IPPayload payload = ipPacket.getIPPayload();
+            while (payload != null) {
+                IPPayload next = payload instanceof IPv6ExtensionHeader ?
+                        ((IPv6ExtensionHeader) payload).getNext() : null;
+                release(payload);
+                payload = next;
+            }
+            ipPackets.put(ipPacket);
+        } else if (packet.getClass() == Packet.class) {
+            packets.put(packet);
+        }
+    }
+
+    private void release(IPPayload payload) {
+        Class<?> c = payload.getClass();
+        if (c == UDPPacket.class) {
+            udpPackets.put((Poolable) payload);
+        } else if (c == TCPPacket.class) {
+            tcpPackets.put((Poolable) payload);
+        } else if (c == ICMP6Packet.class) {
+            icmp6Packets.put((Poolable) payload);
+        } else if (c == HopByHopOption.class) {
+            hbhOptions.put((Poolable) payload);
+        }
+    }
+
+    public String toString() {
+        return "PacketPool allocated: " + allocated + " reused: " + reused;
+    }
+}
@@ -0,0 +1,9 @@
+package se.sics.jipv6.core;
+
+/* Objects that can be recycled by a PacketPool. reset() must bring the
+ * object back to the state of a newly constructed one and drop all
+ * references to buffers and other packets.
+ */
+public interface Poolable {
+    public void reset();
+}
@@ -21,11 +21,39 @@ public class RPLPacket extends ICMP6Packet {
     public RPLPacket() {
     }
 
+    /* the message after the ICMP header (DIO base, DAO base + options...) */
+    private byte[] body;
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
     public RPLPacket createDIS() {
         RPLPacket p = new RPLPacket(RPL_DIS);
         return p;
     }
     
+    public byte[] generatePacketData(IPv6Packet packet) {
+        int len = 4 + (body != null ? body.length : 0);
+        byte[] packetData = new byte[len];
+        packetData[0] = (byte) type;
+        packetData[1] = (byte) code;
+        if (body != null) {
+            System.arraycopy(body, 0, packetData, 4, body.length);
+        }
+        packet.payloadLen = len;
+        int sum = packet.upperLayerHeaderChecksum(DISPATCH);
+        sum = IPv6Packet.checkSum(sum, packetData, packetData.length);
+        sum = (~sum) & 0xffff;
+        packetData[2] = (byte) (sum >> 8);
+        packetData[3] = (byte) (sum & 0xff);
+        return packetData;
+    }
+
     public void printPacket(PrintStream out) {
         String name = "";
         if (code < RPL_NAMES.length) {
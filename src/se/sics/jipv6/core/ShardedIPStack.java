@@ -0,0 +1,193 @@
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+
+/* N independent IP stacks (shards) with one event loop each. Every flow -
+ * addresses, protocol and ports - is owned by one shard, so TCP and UDP
+ * state is only touched by the thread of its shard. The flow hash is
+ * symmetric, so replies are sent from the shard that receives the flow.
+ *
+ * Neighbor discovery runs on the first shard only: ICMPv6 always goes to
+ * shard 0 and the other shards use its neighbor table for routing.
+ *
+ * All shards are configured the same through this class. Each shard has
+ * its own packeter (HC01 by default) - set one per shard with
+ * getShard(i).setDefaultPacketer to use another. The link layer hands
+ * incoming packets to the owning shard (see mac.ShardedLoWPANHandler).
+ */
+public class ShardedIPStack {
+
+    private final IPStack[] shards;
+    private final EventLoop[] loops;
+
+    public ShardedIPStack(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("need at least one shard: " + count);
+        }
+        shards = new IPStack[count];
+        loops = new EventLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new EventLoop("jipv6-shard-" + i, TimingWheel.DEFAULT_TICK,
+                    TimingWheel.DEFAULT_SLOTS);
+            shards[i] = new IPStack(loops[i], i == 0 ? null : shards[0]);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public IPStack getShard(int index) {
+        return shards[index];
+    }
+
+    /* the shard owning the flow of the packet */
+    public int getShardIndex(IPv6Packet packet) {
+        if (shards.length == 1 || packet.getNextHeader() == ICMP6Packet.DISPATCH) {
+            return 0;
+        }
+        return (flowHash(packet) & 0x7fffffff) % shards.length;
+    }
+
+    public IPStack getShard(IPv6Packet packet) {
+        return shards[getShardIndex(packet)];
+    }
+
+    /* The same for both directions of a flow. Ports are taken from the
+     * decoded transport header or from the start of the payload. */
+    public static int flowHash(IPv6Packet packet) {
+        int a = packet.getSourceAddress().hashCode();
+        int b = packet.getDestinationAddress().hashCode();
+        int nextHeader = packet.getNextHeader();
+        int sp = 0;
+        int dp = 0;
+        IPPayload payload = packet.getIPPayload();
+        while (payload instanceof IPv6ExtensionHeader) {
+            payload = ((IPv6ExtensionHeader) payload).getNext();
+        }
+        if (payload instanceof UDPPacket) {
+            sp = ((UDPPacket) payload).sourcePort;
+            dp = ((UDPPacket) payload).destinationPort;
+        } else if (payload instanceof TCPPacket) {
+            sp = ((TCPPacket) payload).sourcePort;
+            dp = ((TCPPacket) payload).destinationPort;
+        } else if (payload == null && packet.getPayloadLength() >= 4 &&
+                (nextHeader == TCPPacket.DISPATCH || nextHeader == UDPPacket.DISPATCH)) {
+            sp = packet.get16(0);
+            dp = packet.get16(2);
+        }
+        int h = Math.min(a, b) * 31 + Math.max(a, b);
+        h = h * 31 + ((Math.min(sp, dp) << 16) | Math.max(sp, dp));
+        h = h * 31 + nextHeader;
+        /* murmur3 finalizer */
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /* from a tunnel or another link - handled by the owning shard */
+    public void receivePacket(IPv6Packet packet) {
+        getShard(packet).receivePacket(packet);
+    }
+
+    public void sendPacket(IPv6Packet packet, NetworkInterface nIf) {
+        getShard(packet).sendPacket(packet, nIf);
+    }
+
+    /* active open on the shard that will own the flow */
+    public TCPConnection connect(IPv6Address address, int port) {
+        IPStack first = shards[0];
+        int localPort = first.nextLocalPort();
+        TCPPacket probe = new TCPPacket();
+        probe.sourcePort = localPort;
+        probe.destinationPort = port;
+        IPv6Address local = address.isLinkLocal() ? first.myLocalIPAddress : first.myIPAddress;
+        return getShard(new IPv6Packet(probe, local, address)).connect(address, port, localPort);
+    }
+
+    public CompletableFuture<TCPConnection> connectAsync(IPv6Address address, int port) {
+        return IPStack.established(connect(address, port));
+    }
+
+    /* the listener is called by the shard owning the new connection */
+    public void listen(int port, TCPListener listener) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].listen(port).setTCPListener(listener);
+        }
+    }
+
+    /* the listener is called by the shards of the flows */
+    public void listen(UDPListener listener, int port) throws IOException {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].listen(listener, port);
+        }
+    }
+
+    /* one publisher for the datagrams of all shards */
+    public UDPPublisher udpPublisher(int port) throws IOException {
+        UDPPublisher publisher = new UDPPublisher(port, UDPPublisher.DEFAULT_CAPACITY);
+        listen(publisher, port);
+        return publisher;
+    }
+
+    public void setPrefix(byte[] prefix, int size) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setPrefix(prefix, size);
+        }
+    }
+
+    public void setLinkLayerAddress(byte[] addr) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setLinkLayerAddress(addr);
+        }
+    }
+
+    public void setIPAddress(IPv6Address addr) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setIPAddress(addr);
+        }
+    }
+
+    public void setRouter(boolean isRouter) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setRouter(isRouter);
+        }
+    }
+
+    /* the tunnel gets packets from all shards */
+    public void setTunnel(NetworkInterface tunnel) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setTunnel(tunnel);
+        }
+    }
+
+    public void setNetworkEventListener(NetworkEventListener listener) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setNetworkEventListener(listener);
+        }
+    }
+
+    public void setICMP6Listener(ICMP6Listener listener) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setICMP6Listener(listener);
+        }
+    }
+
+    public void printTCPStatus(PrintStream out) {
+        for (int i = 0; i < shards.length; i++) {
+            out.println("Shard " + i + ": " + loops[i]);
+            shards[i].printTCPStatus(out);
+        }
+    }
+
+    public void shutdown() {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].shutdown();
+        }
+    }
+}
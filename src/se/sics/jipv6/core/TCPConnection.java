@@ -1,385 +1,635 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-
-import se.sics.jipv6.util.Utils;
-
-public class TCPConnection {
-    // States of the connection
-    public static final int CLOSED = 0;
-    public static final int LISTEN = 1;
-    public static final int SYN_SENT = 2;
-    public static final int SYN_RECEIVED = 3;
-    public static final int ESTABLISHED = 4;
-    public static final int CLOSE_WAIT = 5;
-    public static final int LAST_ACK = 6;
-    public static final int FIN_WAIT_1 = 7;
-    public static final int FIN_WAIT_2 = 8;
-    public static final int CLOSING = 9;
-    public static final int TIME_WAIT = 10;
-
-    public static final long TIME_WAIT_MILLIS = 1000;
-    private static final int OUT_BUFFER = 128;
-
-    /* retransmission time in milliseconds */
-    int retransmissionTime = 1000;
-
-    // my port & IP (IP can be null here...)
-    int localPort;
-    byte[] localIP;
-    // other port
-    int externalPort = -1;
-    byte[] externalIP;
-
-    /* position in connection array - debug */
-    byte pos;
-
-    int state;
-
-    /* sent unacked and nextSend byte */
-    int sentUnack;
-    int sendNext;
-    int sendWindow = TCPPacket.DEFAULT_WINDOW;
-
-    /* last received seqNo + payloadLen*/
-    int receiveNext;
-    int receiveWindow = TCPPacket.DEFAULT_WINDOW;
-
-    private IPStack ipStack;
-    private NetworkInterface netInterface;
-    private TCPListener tcpListener;
-    TCPConnection serverConnection;
-
-    long lastSendTime;
-
-    private byte[] outgoingBuffer = new byte[OUT_BUFFER];
-    int bufPos = 0;
-    int bufNextEmpty = 0;
-    /* sentUnack == bufPos */
-
-    private TCPInputStream inputStream;
-    private TCPOutputStream outputStream;
-    private boolean closing;
-
-    /* no read timeout */
-    int timeout = -1;
-
-    TCPConnection(IPStack stack, NetworkInterface nIf) {
-        ipStack = stack;
-        netInterface = nIf;
-    }
-
-    public InputStream getInputStream() {
-        if (inputStream == null) {
-            System.out.println("TCPConnection: creating new input stream...");
-            inputStream = new TCPInputStream(this);
-            /* steal the listener... */
-            tcpListener = inputStream.listener;
-        }
-        return inputStream;
-    }
-
-    public OutputStream getOutputStream() {
-        if (outputStream == null) {
-            outputStream = new TCPOutputStream(this);
-        }
-        return outputStream;
-    }
-
-    public void setTCPListener(TCPListener listener) {
-        if (tcpListener == null) {
-            tcpListener = listener;
-        } else {
-            throw new IllegalStateException("TCPListener already set: " + tcpListener);
-        }
-    }
-
-    public void newConnection(TCPConnection c) {
-        if (tcpListener != null) {
-            tcpListener.newConnection(c);
-        }
-    }
-
-    /* check if incoming packet matches */
-    public boolean matches(IPv6Packet packet, TCPPacket tcpPacket) {
-        if ((externalPort == -1 || tcpPacket.sourcePort == externalPort) &&
-                tcpPacket.destinationPort == localPort &&
-                (localIP == null || Utils.equals(localIP, packet.destAddress)) &&
-                (externalIP == null || Utils.equals(externalIP, packet.sourceAddress))) {
-            return true;
-        }
-        return false;
-    }
-
-    /* send packet + update sendNext - this should take into account ext window */
-    /* is this what mess up the stuff */
-    public void send(TCPPacket tcpPacket) throws IOException {
-        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
-        tcpPacket.seqNo = sendNext;
-        tcpPacket.ackNo = receiveNext;
-
-        if (tcpPacket.payload != null) {
-            copyToBuffer(tcpPacket.payload);
-            sendNext += tcpPacket.payload.length;
-            System.out.println("SEND: Updated sendNext: " + sendNext +
-                    " outSize: " + outSize() + " seqDiff: " +
-                    (sendNext - sentUnack));
-        }
-        /* fin also is a payload byte */
-        if (tcpPacket.isFin()) {
-            sendNext++;
-        }
-        lastSendTime = System.currentTimeMillis();
-        tcpPacket.printPacket(System.out);
-        ipStack.sendPacket(packet, netInterface);
-    }
-
-    /* number of currently un-acked bytes in buffer */
-    int outSize() {
-        int bytesToSend = bufNextEmpty - bufPos;
-        if (bytesToSend < 0) bytesToSend += outgoingBuffer.length;
-        return bytesToSend;
-    }
-
-    private synchronized void copyToBuffer(byte[] data) throws IOException {
-        int empty = outgoingBuffer.length - outSize();
-        while (empty < data.length || state == TCPConnection.SYN_RECEIVED
-                || state == TCPConnection.SYN_SENT) {
-            /* if closed... just return */
-            if (state == TCPConnection.CLOSED) throw new IOException("Connection closed");
-            /* need to block this tread until place for data is available...*/
-            try {
-                System.out.println("blocking output... state: " + state);
-                wait(1000);
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                return;
-            }
-            empty = outgoingBuffer.length - outSize();
-        }
-        for (int i = 0; i < data.length; i++) {
-            outgoingBuffer[bufNextEmpty++] = data[i];
-            if (bufNextEmpty >= outgoingBuffer.length)
-                bufNextEmpty = 0;
-        }
-    }
-
-    synchronized void resend() {
-        TCPPacket tcpPacket; 
-        if (state == FIN_WAIT_1 || state == FIN_WAIT_2) {
-            /* FIN WAIT 2 should have received ack... but... */
-            System.out.println("Resending FIN!!!!");
-            tcpPacket = createPacket();
-            tcpPacket.flags |= TCPPacket.FIN;
-        } else {
-            int size = outSize();
-            System.out.println("### Bytes to resend: " + outSize() + " seqDiff: " +
-                    (sendNext - sentUnack));
-            /* nothing to resend... TODO: this should handle resend of FIN also! */
-            if (size == 0) return;
-
-            if (outSize() < size) size = outSize();
-            /* ensure small payload size... this should be handled at IP level...*/
-            if (size > 40) {
-                size = 40;
-            }
-            byte[] data = new byte[size];
-            int pos = bufPos;
-            for (int i = 0; i < data.length; i++) {
-                data[i] = outgoingBuffer[pos++];
-                if (pos >= outgoingBuffer.length) {
-                    pos = 0;
-                }
-            }
-            tcpPacket = createPacket();
-            tcpPacket.payload = data;
-            System.out.println("**** TCPConnection resending data: size = " + size);
-        }
-
-
-        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
-        tcpPacket.seqNo = sentUnack;
-        lastSendTime = System.currentTimeMillis();
-        tcpPacket.printPacket(System.out);
-        ipStack.sendPacket(packet, netInterface);
-    }
-
-    synchronized void receive(TCPPacket tcpPacket) {
-        int plen = tcpPacket.payload == null ? 0 : tcpPacket.payload.length;
-
-        if (tcpPacket.isAck()) {
-            /* check if correct ack - this is the "max" case*/
-            if (sentUnack <= tcpPacket.ackNo && sendNext >= tcpPacket.ackNo) {
-                /* no more unacked data */
-                int noAcked = tcpPacket.ackNo - sentUnack;
-                sentUnack = tcpPacket.ackNo;
-                bufPos += noAcked;
-                if (bufPos >= outgoingBuffer.length)
-                    bufPos -= outgoingBuffer.length;
-                System.out.println("ACK for " + noAcked + " bytes. pos: " + bufPos +
-                        " nxtE:" + bufNextEmpty + " unack: " + Integer.toString(sentUnack & 0xffff, 16) + " sendNext: " 
-                        + Integer.toString(sendNext & 0xffff, 16) + " outSize: " + outSize() + 
-                        " seqDiff: " + (sendNext - sentUnack) + " plen: " + plen);
-                notify();
-                /* this means that we can send more data !!*/
-                if (state == ESTABLISHED && closing && outSize() == 0) {
-                    System.out.println("==== Closing connection...");
-                    state = FIN_WAIT_1;
-                    sendFIN();
-                }
-            } else {
-                System.out.println("TCPHandler: Unexpected ACK no: " +
-                        Integer.toString(tcpPacket.ackNo & 0xffff, 16) +
-                        " sendNext: " + Integer.toString(sendNext & 0xffff, 16) + " sentUnack: " +
-                        Integer.toString(sentUnack & 0xffff,16));
-                if (tcpPacket.ackNo == sentUnack) {
-                    resend();
-                }
-            }
-        }
-
-        if (tcpPacket.isFin()) {
-            System.out.println("***** FIN RECEIVED!!!!!");
-        }
-        
-        if (receiveNext == tcpPacket.seqNo) {
-            //System.out.println("TCPHandler: data received ok!!!");
-            /* only ack if new data arrived! */
-
-            /* update what to expect next - after this packet! */
-            receiveNext = tcpPacket.seqNo + plen;
-
-            /* fin is equal to a packet of 1 additional byte */
-            if (tcpPacket.isFin()) {
-                receiveNext++;
-                if (plen == 0) sendAck(tcpPacket);
-            }
-
-            if (plen > 0) {
-                /* ack the new data! - this could be done from the connection itself!!*/	    
-                sendAck(tcpPacket);
-
-                if (tcpListener != null) {
-                    tcpListener.tcpDataReceived(this, tcpPacket);
-                } else {
-                    System.out.println("*** ERROR: dropped data: did not have listener...");
-                }
-            }
-        } else {
-            /* error - did we miss a packet??? - send ack to say where we are...*/
-            System.out.println("TCPHandler: seq error: expSeq: " +
-                    Integer.toString(receiveNext & 0xffff, 16) + " != seqNo: " +
-                    Integer.toString(tcpPacket.seqNo & 0xffff, 16));
-            sendAck(tcpPacket);
-        }
-    }
-
-    void sendAck(TCPPacket tcpPacket) {
-        TCPPacket tcpReply = TCPHandler.createAck(tcpPacket, 0);
-        try {
-            send(tcpReply);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void send(byte[] bytes) throws IOException {
-        if (closing) throw new IOException("TCPConnection closing...");
-        TCPPacket tcpPacket = createPacket();
-        tcpPacket.payload = bytes;
-        send(tcpPacket);
-    }
-
-    /* should close autoflush??? */
-    public void close() {
-        if (state == ESTABLISHED) {
-            System.out.println("=== Closing connection... outSize: " + outSize());
-            closing = true;
-            if (outSize() == 0) {
-                state = FIN_WAIT_1;
-                sendFIN();
-            }
-        }
-    }
-
-    void closed() {
-        if (tcpListener != null)
-            tcpListener.connectionClosed(this);
-    }
-
-    void sendFIN() {
-        System.out.println("Sending FIN!!!!");
-        TCPPacket packet = createPacket();
-        packet.flags |= TCPPacket.FIN;
-        try {
-            send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public TCPPacket createPacket() {
-        TCPPacket tcpPacket = new TCPPacket();
-        tcpPacket.sourcePort = localPort;
-        tcpPacket.destinationPort = externalPort;
-        return tcpPacket;
-    }
-
-    public void setTimeout(int tms) {
-        timeout = tms;
-    }
-
-    void sendReset() {
-        System.out.println("Sending RESET!!!!");
-        TCPPacket packet = createPacket();
-        packet.flags |= TCPPacket.RST;
-        try {
-            send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.sics.jipv6.util.Log;
+import se.sics.jipv6.util.Trace;
+
+public class TCPConnection {
+    // States of the connection
+    public static final int CLOSED = 0;
+    public static final int LISTEN = 1;
+    public static final int SYN_SENT = 2;
+    public static final int SYN_RECEIVED = 3;
+    public static final int ESTABLISHED = 4;
+    public static final int CLOSE_WAIT = 5;
+    public static final int LAST_ACK = 6;
+    public static final int FIN_WAIT_1 = 7;
+    public static final int FIN_WAIT_2 = 8;
+    public static final int CLOSING = 9;
+    public static final int TIME_WAIT = 10;
+
+    public static final long TIME_WAIT_MILLIS = 1000;
+    private static final int OUT_BUFFER = 128;
+    public static final int DEFAULT_MSS = 1280 - 40 - 20;
+
+    /* retransmission time in milliseconds */
+    int retransmissionTime = 1000;
+    /* IPv6 minimum MTU - IPv6 and TCP headers */
+    int maxSegmentSize = DEFAULT_MSS;
+
+    // my port & IP (IP can be null here...)
+    int localPort;
+    IPv6Address localIP;
+    // other port
+    int externalPort = -1;
+    IPv6Address externalIP;
+
+    /* position in connection array - debug */
+    byte pos;
+
+    int state;
+
+    /* sent unacked and nextSend byte */
+    int sentUnack;
+    int sendNext;
+    int sendWindow = TCPPacket.DEFAULT_WINDOW;
+
+    /* last received seqNo + payloadLen*/
+    int receiveNext;
+    /* advertised in every segment - the free space of the reader when it
+     * does flow control, set by the reader under its own lock */
+    volatile int receiveWindow = TCPPacket.DEFAULT_WINDOW;
+    volatile int advertisedWindow = TCPPacket.DEFAULT_WINDOW;
+    boolean flowControl;
+
+    private IPStack ipStack;
+    private NetworkInterface netInterface;
+    private TCPListener tcpListener;
+    TCPConnection serverConnection;
+
+    long lastSendTime;
+    /* event loop timer - see TCPHandler.updateTimer */
+    TimingWheel.Timeout timer;
+    long timerDeadline;
+
+    private byte[] outgoingBuffer = new byte[OUT_BUFFER];
+    int bufPos = 0;
+    int bufNextEmpty = 0;
+    /* sentUnack == bufPos */
+
+    private TCPInputStream inputStream;
+    private TCPOutputStream outputStream;
+    private TCPPublisher publisher;
+    private CompletableFuture<TCPConnection> established;
+    private boolean closing;
+
+    /* idle time before the stack closes the connection, -1 for none */
+    int timeout = -1;
+    /* read and write waits - see TCPSocket.setSoTimeout, -1 for none */
+    int soTimeout = -1;
+    /* SYNs sent by connect */
+    int synCount;
+
+    /* Guards the out buffer. Writers wait on changed for buffer space or
+     * the end of the handshake - no monitors, so blocked virtual threads
+     * do not pin their carrier. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    TCPConnection(IPStack stack, NetworkInterface nIf) {
+        ipStack = stack;
+        netInterface = nIf;
+    }
+
+    public InputStream getInputStream() {
+        if (inputStream == null) {
+            if (publisher != null) {
+                throw new IllegalStateException("publisher already in use");
+            }
+            if (Log.TCP.debug) Log.TCP.log("TCPConnection: creating new input stream...");
+            inputStream = new TCPInputStream(this);
+            /* steal the listener... */
+            tcpListener = inputStream.listener;
+        }
+        return inputStream;
+    }
+
+    /* The received data as a stream of buffers - instead of the input
+     * stream. The advertised window follows the demand of the subscriber. */
+    public Flow.Publisher<ByteBuffer> getPublisher() {
+        return getPublisher(TCPPublisher.DEFAULT_CAPACITY);
+    }
+
+    public Flow.Publisher<ByteBuffer> getPublisher(int capacity) {
+        if (publisher == null) {
+            if (inputStream != null) {
+                throw new IllegalStateException("input stream already in use");
+            }
+            publisher = new TCPPublisher(this, capacity);
+            tcpListener = publisher.listener;
+        }
+        return publisher;
+    }
+
+    public OutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new TCPOutputStream(this);
+        }
+        return outputStream;
+    }
+
+    public void setTCPListener(TCPListener listener) {
+        if (tcpListener == null) {
+            tcpListener = listener;
+        } else {
+            throw new IllegalStateException("TCPListener already set: " + tcpListener);
+        }
+    }
+
+    public void newConnection(TCPConnection c) {
+        if (tcpListener != null) {
+            tcpListener.newConnection(c);
+        }
+    }
+
+    /* check if incoming packet matches */
+    public boolean matches(IPv6Packet packet, TCPPacket tcpPacket) {
+        if ((externalPort == -1 || tcpPacket.sourcePort == externalPort) &&
+                tcpPacket.destinationPort == localPort &&
+                (localIP == null || localIP.equals(packet.getDestinationAddress())) &&
+                (externalIP == null || externalIP.equals(packet.getSourceAddress()))) {
+            return true;
+        }
+        return false;
+    }
+
+    /* send packet + update sendNext - this should take into account ext window */
+    /* is this what mess up the stuff */
+    public void send(TCPPacket tcpPacket) throws IOException {
+        if (tcpPacket.payload != null) {
+            copyToBuffer(tcpPacket.payload);
+        }
+        transmit(tcpPacket);
+    }
+
+    /* the payload is already in the out buffer */
+    private void transmit(TCPPacket tcpPacket) {
+        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
+        tcpPacket.seqNo = sendNext;
+        tcpPacket.ackNo = receiveNext;
+        tcpPacket.window = advertisedWindow = receiveWindow;
+
+        if (tcpPacket.payload != null) {
+            sendNext += tcpPacket.payload.length;
+            if (Log.TCP.debug) Log.TCP.log("SEND: Updated sendNext: " + sendNext +
+                    " outSize: " + outSize() + " seqDiff: " +
+                    (sendNext - sentUnack));
+        }
+        /* fin also is a payload byte */
+        if (tcpPacket.isFin()) {
+            sendNext++;
+        }
+        lastSendTime = System.currentTimeMillis();
+        if (Log.TCP.debug) Log.TCP.log("send " + Log.text(tcpPacket));
+        if (Trace.enabled) Trace.event(Trace.TCP_SEND, tcpPacket.seqNo,
+                tcpPacket.payload == null ? 0 : tcpPacket.payload.length);
+        ipStack.sendPacket(packet, netInterface);
+    }
+
+    /* number of currently un-acked bytes in buffer */
+    int outSize() {
+        int bytesToSend = bufNextEmpty - bufPos;
+        if (bytesToSend < 0) bytesToSend += outgoingBuffer.length;
+        return bytesToSend;
+    }
+
+    /* One slot of the ring is always left free - a full ring would read
+     * as empty in outSize and the unacked data would be overwritten. */
+    private void copyToBuffer(byte[] data) throws IOException {
+        if (data.length >= outgoingBuffer.length) {
+            throw new IOException("Segment of " + data.length + " bytes does not fit the buffer");
+        }
+        lock.lock();
+        try {
+            long nanos = soTimeout == -1 ? 0 : TimeUnit.MILLISECONDS.toNanos(soTimeout);
+            int empty = outgoingBuffer.length - outSize();
+            while (empty <= data.length || state == TCPConnection.SYN_RECEIVED
+                    || state == TCPConnection.SYN_SENT) {
+                /* if closed... just return */
+                if (state == TCPConnection.CLOSED) throw new IOException("Connection closed");
+                /* need to block this tread until place for data is available...*/
+                if (Log.TCP.debug) Log.TCP.log("blocking output... state: " + state);
+                try {
+                    if (soTimeout == -1) {
+                        changed.await();
+                    } else if ((nanos = changed.awaitNanos(nanos)) <= 0) {
+                        throw new SocketTimeoutException("Write timed out");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Write interrupted");
+                }
+                empty = outgoingBuffer.length - outSize();
+            }
+            for (int i = 0; i < data.length; i++) {
+                outgoingBuffer[bufNextEmpty++] = data[i];
+                if (bufNextEmpty >= outgoingBuffer.length)
+                    bufNextEmpty = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* wakes up writers and connect - after acks and state changes */
+    void signal() {
+        CompletableFuture<TCPConnection> future;
+        lock.lock();
+        try {
+            changed.signalAll();
+            future = established;
+        } finally {
+            lock.unlock();
+        }
+        if (future != null) {
+            completeEstablished(future);
+        }
+    }
+
+    /* Completed when the handshake is over, exceptionally if it failed.
+     * Dependent actions run on the thread of the stack unless added with
+     * an async method. */
+    public CompletableFuture<TCPConnection> whenEstablished() {
+        CompletableFuture<TCPConnection> future;
+        lock.lock();
+        try {
+            if (established == null) {
+                established = new CompletableFuture<TCPConnection>();
+            }
+            future = established;
+        } finally {
+            lock.unlock();
+        }
+        completeEstablished(future);
+        return future;
+    }
+
+    private void completeEstablished(CompletableFuture<TCPConnection> future) {
+        int s = state;
+        if (s == SYN_SENT || s == SYN_RECEIVED || future.isDone()) {
+            return;
+        }
+        if (s == ESTABLISHED || s == CLOSE_WAIT) {
+            future.complete(this);
+        } else {
+            future.completeExceptionally(new IOException("Connection refused"));
+        }
+    }
+
+    private boolean windowOpened() {
+        int window = receiveWindow;
+        return window - advertisedWindow > window / 2;
+    }
+
+    /* Called by the reader when it has taken data - a window update is
+     * sent when the window has at least doubled since last advertised */
+    void updateWindow() {
+        if (!windowOpened()) {
+            return;
+        }
+        EventLoop loop = ipStack.getEventLoop();
+        if (loop != null && !loop.inEventLoop()) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    updateWindow();
+                }
+            });
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == ESTABLISHED && windowOpened()) {
+                TCPPacket update = createPacket();
+                update.flags |= TCPPacket.ACK;
+                transmit(update);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Waits until the handshake is over - returns true if the connection
+     * was established. 0 waits without timeout. */
+    boolean awaitEstablished(long timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (state == SYN_SENT || state == SYN_RECEIVED) {
+                try {
+                    if (timeoutMillis <= 0) {
+                        changed.await();
+                    } else if ((nanos = changed.awaitNanos(nanos)) <= 0) {
+                        throw new SocketTimeoutException("Connect timed out");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Connect interrupted");
+                }
+            }
+            return state == ESTABLISHED || state == CLOSE_WAIT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void resend() {
+        lock.lock();
+        try {
+            resendLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resendLocked() {
+        TCPPacket tcpPacket; 
+        if (state == SYN_SENT) {
+            if (Log.TCP.debug) Log.TCP.log("Resending SYN!!!!");
+            tcpPacket = createPacket();
+            tcpPacket.flags |= TCPPacket.SYN;
+            synCount++;
+        } else if (state == FIN_WAIT_1 || state == FIN_WAIT_2) {
+            /* FIN WAIT 2 should have received ack... but... */
+            if (Log.TCP.debug) Log.TCP.log("Resending FIN!!!!");
+            tcpPacket = createPacket();
+            tcpPacket.flags |= TCPPacket.FIN;
+        } else {
+            int size = outSize();
+            if (Log.TCP.debug) Log.TCP.log("### Bytes to resend: " + outSize() + " seqDiff: " +
+                    (sendNext - sentUnack));
+            /* nothing to resend... TODO: this should handle resend of FIN also! */
+            if (size == 0) return;
+
+            if (outSize() < size) size = outSize();
+            /* larger packets are fragmented by the link layer */
+            if (size > maxSegmentSize) {
+                size = maxSegmentSize;
+            }
+            /* within the window of the peer - one byte probes a zero window */
+            if (size > sendWindow) {
+                size = Math.max(sendWindow, 1);
+            }
+            byte[] data = new byte[size];
+            int pos = bufPos;
+            for (int i = 0; i < data.length; i++) {
+                data[i] = outgoingBuffer[pos++];
+                if (pos >= outgoingBuffer.length) {
+                    pos = 0;
+                }
+            }
+            tcpPacket = createPacket();
+            tcpPacket.payload = data;
+            if (Log.TCP.debug) Log.TCP.log("**** TCPConnection resending data: size = " + size);
+        }
+
+
+        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
+        /* the SYN is the byte before the first data byte */
+        tcpPacket.seqNo = state == SYN_SENT ? sentUnack - 1 : sentUnack;
+        lastSendTime = System.currentTimeMillis();
+        if (Log.TCP.debug) Log.TCP.log("resend " + Log.text(tcpPacket));
+        if (Trace.enabled) Trace.event(Trace.TCP_RESEND, tcpPacket.seqNo,
+                tcpPacket.payload == null ? 0 : tcpPacket.payload.length);
+        ipStack.sendPacket(packet, netInterface);
+    }
+
+    void receive(TCPPacket tcpPacket) {
+        lock.lock();
+        try {
+            receiveLocked(tcpPacket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void receiveLocked(TCPPacket tcpPacket) {
+        int plen = tcpPacket.payload == null ? 0 : tcpPacket.payload.length;
+        if (Trace.enabled) Trace.event(Trace.TCP_RECEIVE, tcpPacket.seqNo, plen);
+
+        if (tcpPacket.isAck()) {
+            int lastWindow = sendWindow;
+            sendWindow = tcpPacket.window;
+            if (sentUnack <= tcpPacket.ackNo && sendNext >= tcpPacket.ackNo) {
+                /* no more unacked data */
+                int noAcked = tcpPacket.ackNo - sentUnack;
+                sentUnack = tcpPacket.ackNo;
+                bufPos += noAcked;
+                if (bufPos >= outgoingBuffer.length)
+                    bufPos -= outgoingBuffer.length;
+                if (Log.TCP.debug) Log.TCP.log("ACK for " + noAcked + " bytes. pos: " + bufPos +
+                        " nxtE:" + bufNextEmpty + " unack: " + Integer.toString(sentUnack & 0xffff, 16) + " sendNext: " 
+                        + Integer.toString(sendNext & 0xffff, 16) + " outSize: " + outSize() + 
+                        " seqDiff: " + (sendNext - sentUnack) + " plen: " + plen);
+                changed.signalAll();
+                /* a window update - no need to wait for the timer */
+                if (noAcked == 0 && sendWindow > lastWindow && outSize() > 0) {
+                    resendLocked();
+                }
+                /* this means that we can send more data !!*/
+                if (state == ESTABLISHED && closing && outSize() == 0) {
+                    if (Log.TCP.debug) Log.TCP.log("==== Closing connection...");
+                    state = FIN_WAIT_1;
+                    sendFIN();
+                }
+            } else {
+                if (Log.TCP.debug) Log.TCP.log("TCPHandler: Unexpected ACK no: " +
+                        Integer.toString(tcpPacket.ackNo & 0xffff, 16) +
+                        " sendNext: " + Integer.toString(sendNext & 0xffff, 16) + " sentUnack: " +
+                        Integer.toString(sentUnack & 0xffff,16));
+                if (tcpPacket.ackNo == sentUnack) {
+                    resend();
+                }
+            }
+        }
+
+        if (plen > 0 && receiveNext == tcpPacket.seqNo &&
+                (tcpListener == null || (flowControl && plen > receiveWindow))) {
+            /* no reader yet or no room - not acked, so the peer sends it again */
+            if (Trace.enabled) Trace.event(Trace.TCP_REFUSED, tcpPacket.seqNo, plen);
+            if (Log.TCP.debug) Log.TCP.log("TCPConnection: refused " + plen + " bytes, window: " + receiveWindow);
+            sendAck(tcpPacket);
+            return;
+        }
+
+        if (tcpPacket.isFin()) {
+            if (Log.TCP.debug) Log.TCP.log("***** FIN RECEIVED!!!!!");
+        }
+        
+        if (receiveNext == tcpPacket.seqNo) {
+            //System.out.println("TCPHandler: data received ok!!!");
+            /* only ack if new data arrived! */
+
+            /* update what to expect next - after this packet! */
+            receiveNext = tcpPacket.seqNo + plen;
+
+            /* fin is equal to a packet of 1 additional byte */
+            if (tcpPacket.isFin()) {
+                receiveNext++;
+                if (plen == 0) sendAck(tcpPacket);
+            }
+
+            if (plen > 0) {
+                /* the reader first - so the ack has the window after the data */
+                tcpListener.tcpDataReceived(this, tcpPacket);
+
+                /* ack the new data! - this could be done from the connection itself!!*/	    
+                sendAck(tcpPacket);
+            }
+        } else {
+            /* error - did we miss a packet??? - send ack to say where we are...*/
+            if (Log.TCP.debug) Log.TCP.log("TCPHandler: seq error: expSeq: " +
+                    Integer.toString(receiveNext & 0xffff, 16) + " != seqNo: " +
+                    Integer.toString(tcpPacket.seqNo & 0xffff, 16));
+            sendAck(tcpPacket);
+        }
+    }
+
+    void sendAck(TCPPacket tcpPacket) {
+        TCPPacket tcpReply = TCPHandler.createAck(tcpPacket, 0);
+        try {
+            send(tcpReply);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void send(byte[] bytes) throws IOException {
+        if (closing) throw new IOException("TCPConnection closing...");
+        final TCPPacket tcpPacket = createPacket();
+        tcpPacket.payload = bytes;
+        final EventLoop loop = ipStack.getEventLoop();
+        if (loop != null && !loop.inEventLoop()) {
+            /* wait for buffer space here - the loop sends the packet */
+            lock.lock();
+            try {
+                copyToBuffer(bytes);
+                loop.execute(new Runnable() {
+                    public void run() {
+                        transmit(tcpPacket);
+                        ipStack.updateTCPTimer(TCPConnection.this);
+                    }
+                });
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            send(tcpPacket);
+        }
+    }
+
+    /* should close autoflush??? */
+    public void close() {
+        EventLoop loop = ipStack.getEventLoop();
+        if (loop != null && !loop.inEventLoop()) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    close();
+                    ipStack.updateTCPTimer(TCPConnection.this);
+                }
+            });
+            return;
+        }
+        if (state == ESTABLISHED) {
+            if (Log.TCP.debug) Log.TCP.log("=== Closing connection... outSize: " + outSize());
+            closing = true;
+            if (outSize() == 0) {
+                state = FIN_WAIT_1;
+                sendFIN();
+            }
+        }
+    }
+
+    void closed() {
+        signal();
+        if (tcpListener != null)
+            tcpListener.connectionClosed(this);
+    }
+
+    void sendFIN() {
+        if (Log.TCP.debug) Log.TCP.log("Sending FIN!!!!");
+        TCPPacket packet = createPacket();
+        packet.flags |= TCPPacket.FIN;
+        try {
+            send(packet);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public TCPPacket createPacket() {
+        TCPPacket tcpPacket = new TCPPacket();
+        tcpPacket.sourcePort = localPort;
+        tcpPacket.destinationPort = externalPort;
+        return tcpPacket;
+    }
+
+    public void setTimeout(int tms) {
+        timeout = tms;
+    }
+
+    public void setSoTimeout(int tms) {
+        soTimeout = tms;
+    }
+
+    void sendReset() {
+        if (Log.TCP.debug) Log.TCP.log("Sending RESET!!!!");
+        TCPPacket packet = createPacket();
+        packet.flags |= TCPPacket.RST;
+        try {
+            send(packet);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
\ No newline at end of file
@@ -1,280 +1,461 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-import java.io.IOException;
-import java.io.PrintStream;
-import java.util.Timer;
-import java.util.TimerTask;
-
-
-public class TCPHandler extends TimerTask {
-  /* MAX 16 simult. connections for now */
-  private static final int MAX_CONNECTIONS = 16;
-  private static final int MAX_LISTEN = 16;
-
-  TCPConnection[] activeConnections = new TCPConnection[MAX_CONNECTIONS];
-  TCPConnection[] listenConnections = new TCPConnection[MAX_LISTEN];
-  
-  int connectionNo = 0;
-  int listenNo = 0;
-  IPStack ipStack;
-  Timer timer;
-  
-  public TCPHandler(IPStack stack) {
-    this.ipStack = stack;
-    timer = ipStack.getTimer();
-    timer.schedule(this, 100, 100);
-  }
-  
-  public synchronized TCPConnection addListenConnection(int port) {
-    TCPConnection conn = listenConnections[listenNo++] =
-      new TCPConnection(ipStack, null);
-
-    conn.localPort = port;
-    conn.state = TCPConnection.LISTEN;
-    return conn;
-  }
-
-  private synchronized void addConnection(TCPConnection c) {
-      c.pos = (byte) connectionNo;
-      activeConnections[connectionNo++] = c;
-  }
-
-  public void handlePacket(IPv6Packet packet) {
-      TCPPacket tcpPacket = (TCPPacket) packet.getIPPayload();
-
-      TCPConnection connection = findConnection(packet, tcpPacket);
-      if (connection == null) {
-          connection = findListenConnection(packet, tcpPacket);
-          if (connection == null) {
-              System.out.println("TCPHandler: can not find active or listen connection for this packet");        
-          } else {
-              if (tcpPacket.isSyn()) {
-                  TCPPacket tcpReply = createAck(tcpPacket, TCPPacket.SYN);
-                  TCPConnection tc = new TCPConnection(ipStack, packet.netInterface);
-                  /* setup the connection */
-                  tc.externalIP = packet.sourceAddress;
-                  tc.externalPort = tcpPacket.sourcePort;
-                  tc.localIP = ipStack.myIPAddress;
-                  tc.localPort = tcpPacket.destinationPort;
-                  tc.state = TCPConnection.SYN_RECEIVED;
-                  tc.receiveNext = tcpPacket.seqNo + 1;
-                  tc.sentUnack = tc.sendNext = tcpReply.seqNo = (int) (System.currentTimeMillis() * 7);
-
-                  addConnection(tc);
-
-                  /* established => report to listeners... */
-                  connection.newConnection(tc);
-
-                  tcpReply.ackNo = tc.receiveNext;
-                  try {
-                      tc.send(tcpReply);
-                  } catch (IOException e) {
-                      e.printStackTrace();
-                  }
-                  tc.sentUnack = tc.sendNext = tc.sendNext + 1;
-                  tc.serverConnection = connection;          
-              } else {
-                  System.out.println("TCPHandler: dropping packet & sending RST - likely for old connection?");
-                  TCPPacket tcpReply = tcpPacket.replyPacket();
-                  tcpReply.flags = TCPPacket.RST | TCPPacket.ACK;
-                  tcpReply.seqNo = tcpPacket.ackNo;
-                  tcpReply.ackNo = tcpPacket.seqNo + 1;
-                  IPv6Packet ipReply = packet.replyPacket(tcpReply);
-                  ipStack.sendPacket(ipReply, packet.netInterface);
-              }
-          }
-      } else {
-      if (tcpPacket.isReset()) {
-          /* something is very wrong - just close and remove... */
-          connection.state = TCPConnection.CLOSED;
-      }
-      switch(connection.state) {
-      case TCPConnection.SYN_RECEIVED:
-        if (tcpPacket.isAck()) {
-          System.out.println("TCPConnection: gotten ACK on syn! => ESTABLISHED!! " + connection.pos);
-          connection.state = TCPConnection.ESTABLISHED;
-          connection.receive(tcpPacket);
-          
-          synchronized(connection) {
-              /* for any early outputter to the output stream */
-              connection.notify();
-          }
-        }
-        break;
-      case TCPConnection.ESTABLISHED:
-        if (tcpPacket.isFin()) {
-          System.out.println("TCPConnection: received FIN => CLOSE_WAIT!!!");
-          connection.state = TCPConnection.CLOSE_WAIT;
-        }
-        
-        connection.receive(tcpPacket);
-        break;
-      case TCPConnection.LAST_ACK:
-	  if (tcpPacket.isAck()) {
-	      System.out.println("Received ACK on FIN => CLOSED! " + connection.pos);
-	      connection.state = TCPConnection.CLOSED;
-	  }
-        break;
-      case TCPConnection.FIN_WAIT_1:
-        if (tcpPacket.isAck()) {
-          connection.state = TCPConnection.FIN_WAIT_2;
-        }
-        if (tcpPacket.isFin()) {
-            connection.state = TCPConnection.TIME_WAIT;
-        }
-        connection.receive(tcpPacket);
-        break;
-      case TCPConnection.FIN_WAIT_2:
-        if (tcpPacket.isFin()) {
-          System.out.println("TCPHandler: setting connection in TIME_WAIT... " + connection.pos);
-          connection.state = TCPConnection.TIME_WAIT;
-          connection.lastSendTime = System.currentTimeMillis();
-          connection.receiveNext++;
-          connection.sendAck(tcpPacket);
-        } else {
-          connection.sendReset();
-        }
-        break;
-      case TCPConnection.CLOSE_WAIT:
-        /* ignore... */
-          connection.sendReset();
-        break;
-      }
-    }
-  }
-  
-  static TCPPacket createAck(TCPPacket tcpPacket, int flags) {
-    TCPPacket tcpReply = tcpPacket.replyPacket();
-    tcpReply.flags |= flags | TCPPacket.ACK;
-    return tcpReply;
-  }
-  
-  private TCPConnection findConnection(IPv6Packet packet, TCPPacket tcpPacket) {
-    for (int i = 0; i < connectionNo; i++) {
-      if (activeConnections[i].matches(packet, tcpPacket)) {
-        return activeConnections[i];
-      }
-    }
-    return null;
-  }
-
-  private TCPConnection findListenConnection(IPv6Packet packet, TCPPacket tcpPacket) {
-    for (int i = 0; i < listenNo; i++) {
-      if (listenConnections[i].matches(packet, tcpPacket)) {
-        return listenConnections[i];
-      }
-    }
-    return null;
-  }
-
-  /* The run method for checking connections, etc */
-  public synchronized void run() {
-    if (connectionNo > 0) {
-      long time = System.currentTimeMillis();
-      for (int i = 0; i < connectionNo; i++) {
-        TCPConnection connection = activeConnections[i];
-        switch (connection.state) {
-        case TCPConnection.ESTABLISHED:
-            /* here we should check for retransmissions... */
-            if (connection.outSize() > 0 &&
-        	(connection.lastSendTime + connection.retransmissionTime < time)) {
-        	System.out.println("### Timeout - retransmitting...");
-        	connection.resend();
-            }
-            if (connection.timeout != -1) {
-        	/* assume that we acked last incoming packet...? */
-        	if (connection.lastSendTime + connection.timeout < time) {
-        	    connection.close();
-        	}
-            }
-            break;
-        case TCPConnection.CLOSE_WAIT:
-            /* if nothing in buffer - close it! */
-            if (connection.outSize() == 0) {
-        	System.out.println("Closing - sending FIN");
-        	connection.state = TCPConnection.LAST_ACK;
-        	connection.sendFIN();
-            } else {
-        	/* send something from the buffer */
-        	connection.resend();
-          }
-          break;
-        case TCPConnection.FIN_WAIT_1:
-        case TCPConnection.FIN_WAIT_2:
-            if (connection.lastSendTime + connection.retransmissionTime < time) {
-                /* should probably resend the FIN! */
-                connection.resend();
-            }
-            break;
-        case TCPConnection.TIME_WAIT:
-            /* wait for a while ... */
-            if (connection.lastSendTime + TCPConnection.TIME_WAIT_MILLIS < time) {
-        	System.out.println("TCPHandler: TIME_WAIT over => CLOSED!");
-        	connection.state = TCPConnection.CLOSED;
-            }
-            break;
-        case TCPConnection.CLOSED:
-            System.out.println("TCPHandler: Connection is closed... removing connection " + connection.pos);
-            connection.closed();
-            connectionNo--;
-            if (connectionNo > 0) {
-        	/* move the last connection to this position - we do not need
-        	 * this any more ??!!
-        	 */
-        	activeConnections[i] = activeConnections[connectionNo];
-        	activeConnections[i].pos = (byte) i;
-        	i--; /* allow processing of that connection too */
-            }
-            break;
-        }
-      }
-    }
-  }
-
-  public void printStatus(PrintStream out) {
-	  out.println("---- TCP Connection info ----");
-	  for (int i = 0; i < connectionNo; i++) {
-		  out.println("* Connection " + i + " in state: " + activeConnections[i].state);
-	  }
-  }
-
-}
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import se.sics.jipv6.util.Log;
+import se.sics.jipv6.util.Trace;
+
+
+public class TCPHandler extends TimerTask {
+  /* MAX 16 simult. connections for now */
+  private static final int MAX_CONNECTIONS = 16;
+  private static final int MAX_LISTEN = 16;
+  /* SYNs sent by connect before giving up */
+  private static final int MAX_SYN = 5;
+
+  TCPConnection[] activeConnections = new TCPConnection[MAX_CONNECTIONS];
+  TCPConnection[] listenConnections = new TCPConnection[MAX_LISTEN];
+  
+  int connectionNo = 0;
+  int listenNo = 0;
+  int nextPort = 49152 + (int) (System.nanoTime() & 0x3fff);
+  IPStack ipStack;
+  Timer timer;
+  
+  /* milliseconds between the checks of all connections without event loop */
+  private static final int POLL_INTERVAL = 100;
+
+  public TCPHandler(IPStack stack) {
+    this.ipStack = stack;
+    if (stack.getEventLoop() == null) {
+      timer = ipStack.getTimer();
+      timer.schedule(this, POLL_INTERVAL, POLL_INTERVAL);
+    }
+  }
+  
+  public synchronized TCPConnection addListenConnection(int port) {
+    TCPConnection conn = listenConnections[listenNo++] =
+      new TCPConnection(ipStack, null);
+
+    conn.localPort = port;
+    conn.state = TCPConnection.LISTEN;
+    return conn;
+  }
+
+  public synchronized void removeListenConnection(TCPConnection conn) {
+    for (int i = 0; i < listenNo; i++) {
+      if (listenConnections[i] == conn) {
+        listenConnections[i] = listenConnections[--listenNo];
+        listenConnections[listenNo] = null;
+        conn.state = TCPConnection.CLOSED;
+        return;
+      }
+    }
+  }
+
+  /* active open - the SYN is sent where the stack runs */
+  public TCPConnection connect(IPv6Address address, int port, int localPort) {
+    final TCPConnection c = new TCPConnection(ipStack, null);
+    c.externalIP = address;
+    c.externalPort = port;
+    c.localIP = address.isLinkLocal() ? ipStack.myLocalIPAddress : ipStack.myIPAddress;
+    c.localPort = localPort;
+    c.state = TCPConnection.SYN_SENT;
+    ipStack.execute(new Runnable() {
+      public void run() {
+        if (connectionNo == MAX_CONNECTIONS) {
+          if (Log.TCP.warn) Log.TCP.warn("TCPHandler: too many connections - can not connect");
+          c.state = TCPConnection.CLOSED;
+          c.signal();
+          return;
+        }
+        addConnection(c);
+        TCPPacket syn = c.createPacket();
+        syn.flags = TCPPacket.SYN;
+        c.sendNext = (int) (System.currentTimeMillis() * 7);
+        try {
+          c.send(syn);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        c.sentUnack = c.sendNext = c.sendNext + 1;
+        c.synCount = 1;
+        updateTimer(c);
+      }
+    });
+    return c;
+  }
+
+  /* next local port for connect - in the dynamic range */
+  synchronized int nextLocalPort() {
+    for (int i = 0; i < 16384; i++) {
+      int port = nextPort;
+      nextPort = nextPort == 65535 ? 49152 : nextPort + 1;
+      boolean used = false;
+      for (int j = 0; j < connectionNo && !used; j++) {
+        used = activeConnections[j].localPort == port;
+      }
+      if (!used) {
+        return port;
+      }
+    }
+    throw new IllegalStateException("no free local port");
+  }
+
+  private synchronized void addConnection(TCPConnection c) {
+      c.pos = (byte) connectionNo;
+      activeConnections[connectionNo++] = c;
+  }
+
+  public void handlePacket(IPv6Packet packet) {
+      TCPPacket tcpPacket = (TCPPacket) packet.getIPPayload();
+
+      TCPConnection connection = findConnection(packet, tcpPacket);
+      if (connection == null) {
+          connection = findListenConnection(packet, tcpPacket);
+          if (connection == null) {
+              if (Log.TCP.debug) Log.TCP.log("TCPHandler: can not find active or listen connection for this packet");
+          } else {
+              if (tcpPacket.isSyn()) {
+                  TCPPacket tcpReply = createAck(tcpPacket, TCPPacket.SYN);
+                  TCPConnection tc = new TCPConnection(ipStack, packet.netInterface);
+                  /* setup the connection */
+                  tc.externalIP = packet.getSourceAddress();
+                  tc.externalPort = tcpPacket.sourcePort;
+                  tc.localIP = ipStack.myIPAddress;
+                  tc.localPort = tcpPacket.destinationPort;
+                  tc.state = TCPConnection.SYN_RECEIVED;
+                  tc.receiveNext = tcpPacket.seqNo + 1;
+                  tc.sentUnack = tc.sendNext = tcpReply.seqNo = (int) (System.currentTimeMillis() * 7);
+
+                  addConnection(tc);
+
+                  /* established => report to listeners... */
+                  connection.newConnection(tc);
+
+                  tcpReply.ackNo = tc.receiveNext;
+                  try {
+                      tc.send(tcpReply);
+                  } catch (IOException e) {
+                      e.printStackTrace();
+                  }
+                  tc.sentUnack = tc.sendNext = tc.sendNext + 1;
+                  tc.serverConnection = connection;          
+              } else {
+                  if (Log.TCP.debug) Log.TCP.log("TCPHandler: dropping packet & sending RST - likely for old connection?");
+                  TCPPacket tcpReply = tcpPacket.replyPacket();
+                  tcpReply.flags = TCPPacket.RST | TCPPacket.ACK;
+                  tcpReply.seqNo = tcpPacket.ackNo;
+                  tcpReply.ackNo = tcpPacket.seqNo + 1;
+                  IPv6Packet ipReply = packet.replyPacket(tcpReply);
+                  ipStack.sendPacket(ipReply, packet.netInterface);
+              }
+          }
+      } else {
+      if (tcpPacket.isReset()) {
+          /* something is very wrong - just close and remove... */
+          connection.state = TCPConnection.CLOSED;
+      }
+      switch(connection.state) {
+      case TCPConnection.SYN_RECEIVED:
+        if (tcpPacket.isAck()) {
+          if (Log.TCP.debug) Log.TCP.log("TCPConnection: gotten ACK on syn! => ESTABLISHED!! " + connection.pos);
+          connection.state = TCPConnection.ESTABLISHED;
+          if (Trace.enabled) Trace.event(Trace.TCP_STATE, connection.localPort, connection.state);
+          connection.receive(tcpPacket);
+          /* for any early outputter to the output stream */
+          connection.signal();
+        }
+        break;
+      case TCPConnection.SYN_SENT:
+        if (tcpPacket.isSyn() && tcpPacket.isAck() &&
+            tcpPacket.ackNo == connection.sendNext) {
+          if (Log.TCP.debug) Log.TCP.log("TCPConnection: gotten SYN+ACK => ESTABLISHED!! " + connection.pos);
+          connection.state = TCPConnection.ESTABLISHED;
+          if (Trace.enabled) Trace.event(Trace.TCP_STATE, connection.localPort, connection.state);
+          connection.sentUnack = tcpPacket.ackNo;
+          connection.receiveNext = tcpPacket.seqNo + 1;
+          connection.sendAck(tcpPacket);
+          connection.signal();
+        } else {
+          connection.sendReset();
+        }
+        break;
+      case TCPConnection.ESTABLISHED:
+        if (tcpPacket.isFin()) {
+          if (Log.TCP.debug) Log.TCP.log("TCPConnection: received FIN => CLOSE_WAIT!!!");
+          connection.state = TCPConnection.CLOSE_WAIT;
+        }
+        
+        connection.receive(tcpPacket);
+        break;
+      case TCPConnection.LAST_ACK:
+	  if (tcpPacket.isAck()) {
+	      if (Log.TCP.debug) Log.TCP.log("Received ACK on FIN => CLOSED! " + connection.pos);
+	      connection.state = TCPConnection.CLOSED;
+	  }
+        break;
+      case TCPConnection.FIN_WAIT_1:
+        if (tcpPacket.isAck()) {
+          connection.state = TCPConnection.FIN_WAIT_2;
+        }
+        if (tcpPacket.isFin()) {
+            connection.state = TCPConnection.TIME_WAIT;
+        }
+        connection.receive(tcpPacket);
+        break;
+      case TCPConnection.FIN_WAIT_2:
+        if (tcpPacket.isFin()) {
+          if (Log.TCP.debug) Log.TCP.log("TCPHandler: setting connection in TIME_WAIT... " + connection.pos);
+          connection.state = TCPConnection.TIME_WAIT;
+          connection.lastSendTime = System.currentTimeMillis();
+          connection.receiveNext++;
+          connection.sendAck(tcpPacket);
+        } else {
+          connection.sendReset();
+        }
+        break;
+      case TCPConnection.CLOSE_WAIT:
+        /* ignore... */
+          connection.sendReset();
+        break;
+      }
+      updateTimer(connection);
+    }
+  }
+  
+  static TCPPacket createAck(TCPPacket tcpPacket, int flags) {
+    TCPPacket tcpReply = tcpPacket.replyPacket();
+    tcpReply.flags |= flags | TCPPacket.ACK;
+    return tcpReply;
+  }
+  
+  private TCPConnection findConnection(IPv6Packet packet, TCPPacket tcpPacket) {
+    for (int i = 0; i < connectionNo; i++) {
+      if (activeConnections[i].matches(packet, tcpPacket)) {
+        return activeConnections[i];
+      }
+    }
+    return null;
+  }
+
+  private TCPConnection findListenConnection(IPv6Packet packet, TCPPacket tcpPacket) {
+    for (int i = 0; i < listenNo; i++) {
+      if (listenConnections[i].matches(packet, tcpPacket)) {
+        return listenConnections[i];
+      }
+    }
+    return null;
+  }
+
+  /* The run method for checking connections, etc */
+  public synchronized void run() {
+    if (connectionNo > 0) {
+      long time = System.currentTimeMillis();
+      for (int i = 0; i < connectionNo; i++) {
+        if (check(activeConnections[i], time)) {
+          removeConnection(i);
+          i--; /* allow processing of the moved connection too */
+        }
+      }
+    }
+  }
+
+  /* timer actions of one connection - returns true when it is closed */
+  private boolean check(TCPConnection connection, long time) {
+    switch (connection.state) {
+    case TCPConnection.SYN_SENT:
+        if (connection.lastSendTime + connection.retransmissionTime < time) {
+            if (connection.synCount >= MAX_SYN) {
+                if (Log.TCP.debug) Log.TCP.log("TCPHandler: no SYN+ACK => CLOSED!");
+                connection.state = TCPConnection.CLOSED;
+                return true;
+            }
+            connection.resend();
+        }
+        break;
+    case TCPConnection.ESTABLISHED:
+        /* here we should check for retransmissions... */
+        if (connection.outSize() > 0 &&
+            (connection.lastSendTime + connection.retransmissionTime < time)) {
+            if (Log.TCP.debug) Log.TCP.log("### Timeout - retransmitting...");
+            connection.resend();
+        }
+        if (connection.timeout != -1) {
+            /* assume that we acked last incoming packet...? */
+            if (connection.lastSendTime + connection.timeout < time) {
+                connection.close();
+            }
+        }
+        break;
+    case TCPConnection.CLOSE_WAIT:
+        /* if nothing in buffer - close it! */
+        if (connection.outSize() == 0) {
+            if (Log.TCP.debug) Log.TCP.log("Closing - sending FIN");
+            connection.state = TCPConnection.LAST_ACK;
+            connection.sendFIN();
+        } else {
+            /* send something from the buffer */
+            connection.resend();
+        }
+        break;
+    case TCPConnection.FIN_WAIT_1:
+    case TCPConnection.FIN_WAIT_2:
+        if (connection.lastSendTime + connection.retransmissionTime < time) {
+            /* should probably resend the FIN! */
+            connection.resend();
+        }
+        break;
+    case TCPConnection.TIME_WAIT:
+        /* wait for a while ... */
+        if (connection.lastSendTime + TCPConnection.TIME_WAIT_MILLIS < time) {
+            if (Log.TCP.debug) Log.TCP.log("TCPHandler: TIME_WAIT over => CLOSED!");
+            connection.state = TCPConnection.CLOSED;
+        }
+        break;
+    case TCPConnection.CLOSED:
+        return true;
+    }
+    return false;
+  }
+
+  private void removeConnection(int i) {
+    TCPConnection connection = activeConnections[i];
+    if (Log.TCP.debug) Log.TCP.log("TCPHandler: Connection is closed... removing connection " + connection.pos);
+    if (Trace.enabled) Trace.event(Trace.TCP_STATE, connection.localPort, TCPConnection.CLOSED);
+    if (connection.timer != null) {
+      connection.timer.cancel();
+      connection.timer = null;
+    }
+    connection.closed();
+    connectionNo--;
+    /* move the last connection to this position */
+    activeConnections[i] = activeConnections[connectionNo];
+    activeConnections[i].pos = (byte) i;
+    activeConnections[connectionNo] = null;
+    connection.pos = -1;
+  }
+
+  /* when the timer actions of the connection are due next - the time
+   * an action is taken in check (-1 for no timer) */
+  private static long getDeadline(TCPConnection connection, long time) {
+    switch (connection.state) {
+    case TCPConnection.SYN_SENT:
+        return connection.lastSendTime + connection.retransmissionTime + 1;
+    case TCPConnection.ESTABLISHED: {
+        long deadline = -1;
+        if (connection.outSize() > 0) {
+            deadline = connection.lastSendTime + connection.retransmissionTime + 1;
+        }
+        if (connection.timeout != -1) {
+            long t = connection.lastSendTime + connection.timeout + 1;
+            if (deadline == -1 || t < deadline) {
+                deadline = t;
+            }
+        }
+        return deadline;
+    }
+    case TCPConnection.CLOSE_WAIT:
+        /* drains the buffer - same pace as the polling timer */
+        return time + POLL_INTERVAL;
+    case TCPConnection.FIN_WAIT_1:
+    case TCPConnection.FIN_WAIT_2:
+        return connection.lastSendTime + connection.retransmissionTime + 1;
+    case TCPConnection.TIME_WAIT:
+        return connection.lastSendTime + TCPConnection.TIME_WAIT_MILLIS + 1;
+    case TCPConnection.CLOSED:
+        return time;
+    default:
+        return -1;
+    }
+  }
+
+  /* Event loop: each connection has one timeout on the timing wheel at
+   * its next deadline instead of being polled. Called on the loop after
+   * anything that may have changed the deadline. */
+  void updateTimer(final TCPConnection connection) {
+    EventLoop loop = ipStack.getEventLoop();
+    if (loop == null || connection.pos < 0) {
+      return;
+    }
+    long time = System.currentTimeMillis();
+    long deadline = getDeadline(connection, time);
+    if (connection.timer != null) {
+      if (connection.timer.isPending() && connection.timerDeadline == deadline) {
+        return;
+      }
+      connection.timer.cancel();
+      connection.timer = null;
+    }
+    if (deadline != -1) {
+      connection.timerDeadline = deadline;
+      connection.timer = loop.schedule(new Runnable() {
+        public void run() {
+          connection.timer = null;
+          timeout(connection);
+        }
+      }, deadline - time);
+    }
+  }
+
+  private void timeout(TCPConnection connection) {
+    if (connection.pos < 0 || activeConnections[connection.pos] != connection) {
+      return;
+    }
+    if (check(connection, System.currentTimeMillis())) {
+      removeConnection(connection.pos);
+    } else {
+      updateTimer(connection);
+    }
+  }
+
+  public void printStatus(PrintStream out) {
+	  out.println("---- TCP Connection info ----");
+	  for (int i = 0; i < connectionNo; i++) {
+		  out.println("* Connection " + i + " in state: " + activeConnections[i].state);
+	  }
+  }
+
+}
@@ -1,77 +1,118 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-
-import java.io.IOException;
-import java.io.OutputStream;
-
-public class TCPOutputStream extends OutputStream {
-
-  /* a tiny output buffer for buffering to a TCP packet */
-  byte[] output = new byte[40];
-  int pos = 0;
-  TCPConnection connection;
-  
-  TCPOutputStream(TCPConnection connection) {
-    this.connection = connection;
-  }
-
-  public synchronized void write(int data) throws IOException {
-    if (connection.state != TCPConnection.ESTABLISHED) {
-      throw new IOException("TCP connection not open state: " + connection.state);
-    }
-    output[pos++] = (byte) (data & 0xff);
-
-    /* oops, the buffer is full... - send packet immediately */
-    if (pos == output.length) {
-      flush();
-    }
-  }
-
-  public synchronized void flush() throws IOException {
-    byte[] buffer = new byte[pos];
-    for (int i = 0; i < pos; i++) {
-      buffer[i] = output[i];
-    }
-    pos = 0;
-    connection.send(buffer);
-  }
-}
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TCPOutputStream extends OutputStream {
+
+  /* a tiny output buffer for buffering to a TCP packet */
+  byte[] output = new byte[40];
+  int pos = 0;
+  TCPConnection connection;
+  /* not synchronized - a writer blocked on the connection must not pin
+   * the carrier of a virtual thread */
+  private final ReentrantLock lock = new ReentrantLock();
+  
+  TCPOutputStream(TCPConnection connection) {
+    this.connection = connection;
+  }
+
+  public void write(int data) throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      output[pos++] = (byte) (data & 0xff);
+
+      /* oops, the buffer is full... - send packet immediately */
+      if (pos == output.length) {
+        flush();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* fills the buffer a packet at a time instead of byte by byte */
+  public void write(byte[] data, int off, int len) throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      while (len > 0) {
+        int n = Math.min(len, output.length - pos);
+        System.arraycopy(data, off, output, pos, n);
+        pos += n;
+        off += n;
+        len -= n;
+        if (pos == output.length) {
+          flush();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (connection.state != TCPConnection.ESTABLISHED) {
+      throw new IOException("TCP connection not open state: " + connection.state);
+    }
+  }
+
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      if (pos == 0) {
+        return;
+      }
+      byte[] buffer = new byte[pos];
+      for (int i = 0; i < pos; i++) {
+        buffer[i] = output[i];
+      }
+      pos = 0;
+      connection.send(buffer);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package se.sics.jipv6.core;
+
+import java.nio.ByteBuffer;
+
+import se.sics.jipv6.util.Log;
+
+/* The data of a TCP connection as a publisher (see
+ * TCPConnection.getPublisher). The advertised receive window is the free
+ * space of the buffer, so a subscriber that stops requesting stops the
+ * peer. Segments beyond the window are not acked and sent again by the
+ * peer - a window update is sent when the subscriber has made room.
+ */
+public class TCPPublisher extends BufferPublisher {
+
+    /* bytes buffered for the subscriber - the largest window advertised */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TCPConnection connection;
+    private long refused;
+
+    final TCPListener listener = new TCPListener() {
+        public void newConnection(TCPConnection connection) {
+        }
+        public void connectionClosed(TCPConnection connection) {
+            complete(null);
+        }
+        public void tcpDataReceived(TCPConnection source, TCPPacket packet) {
+            /* within the window - fits unless the capacity was exceeded */
+            if (!offer(ByteBuffer.wrap(packet.payload))) {
+                refused++;
+                Log.TCP.error("TCPPublisher: no room for " + packet.payload.length + " bytes");
+            }
+        }
+    };
+
+    TCPPublisher(TCPConnection connection, int capacity) {
+        super(Math.min(capacity, 0xffff));
+        this.connection = connection;
+        connection.flowControl = true;
+        connection.receiveWindow = getCapacity();
+        connection.updateWindow();
+    }
+
+    public TCPConnection getConnection() {
+        return connection;
+    }
+
+    /* the window follows the buffer - acks sent after this carry it */
+    protected void bufferChanged(int free) {
+        connection.receiveWindow = free;
+    }
+
+    protected void released(int bytes) {
+        connection.updateWindow();
+    }
+
+    /* the subscriber does not want more - close our side */
+    protected void cancelled() {
+        connection.close();
+    }
+
+    public String toString() {
+        return "TCPPublisher delivered: " + getDeliveredCount() + " free: " + free() +
+            " window: " + connection.receiveWindow + " refused: " + refused;
+    }
+}
@@ -0,0 +1,218 @@
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Accept for a listening port. New connections are queued by the stack
+ * and returned by accept once the handshake is done. Like TCPSocket it
+ * only waits on conditions, so accept can run on a virtual thread.
+ *
+ * acceptAsync returns at once - its futures are served before blocking
+ * accepts and completed on the stack thread. Data that arrives before
+ * the connection has a reader is not acked, so the peer sends it again.
+ */
+public class TCPServerSocket {
+
+    private final IPStack[] stacks;
+    private final TCPConnection[] listening;
+    private final ArrayDeque<TCPConnection> pending = new ArrayDeque<TCPConnection>();
+    private final ArrayDeque<CompletableFuture<TCPConnection>> waiting =
+        new ArrayDeque<CompletableFuture<TCPConnection>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition accepted = lock.newCondition();
+    private boolean closed;
+    private int timeout;
+
+    private final TCPListener listener = new TCPListener() {
+        public void newConnection(TCPConnection connection) {
+            CompletableFuture<TCPConnection> future = null;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                future = waiting.poll();
+                if (future == null) {
+                    pending.add(connection);
+                    accepted.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (future != null) {
+                handOver(connection, future);
+            }
+        }
+        public void connectionClosed(TCPConnection connection) {
+        }
+        public void tcpDataReceived(TCPConnection source, TCPPacket packet) {
+        }
+    };
+
+    public TCPServerSocket(IPStack stack, int port) {
+        this(new IPStack[] {stack}, port);
+    }
+
+    /* connections of all shards are accepted here */
+    public TCPServerSocket(ShardedIPStack stack, int port) {
+        this(shards(stack), port);
+    }
+
+    private TCPServerSocket(IPStack[] stacks, int port) {
+        this.stacks = stacks;
+        listening = new TCPConnection[stacks.length];
+        for (int i = 0; i < stacks.length; i++) {
+            listening[i] = stacks[i].listen(port);
+            if (listening[i] == null) {
+                close();
+                throw new IllegalStateException("No free TCP connection for port " + port);
+            }
+            listening[i].setTCPListener(listener);
+        }
+    }
+
+    private static IPStack[] shards(ShardedIPStack stack) {
+        IPStack[] stacks = new IPStack[stack.getShardCount()];
+        for (int i = 0; i < stacks.length; i++) {
+            stacks[i] = stack.getShard(i);
+        }
+        return stacks;
+    }
+
+    /* milliseconds for accept, 0 for no timeout */
+    public void setSoTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /* the future gets the connection when established - or waits for the
+     * next one if the handshake fails */
+    private void handOver(TCPConnection connection, final CompletableFuture<TCPConnection> future) {
+        connection.whenEstablished().whenComplete(new BiConsumer<TCPConnection, Throwable>() {
+            public void accept(TCPConnection c, Throwable failure) {
+                if (failure == null) {
+                    future.complete(c);
+                    return;
+                }
+                TCPConnection next = null;
+                lock.lock();
+                try {
+                    if (closed) {
+                        future.completeExceptionally(new IOException("Server socket closed"));
+                        return;
+                    }
+                    next = pending.poll();
+                    if (next == null) {
+                        waiting.addFirst(future);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (next != null) {
+                    handOver(next, future);
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<TCPConnection> acceptAsync() {
+        CompletableFuture<TCPConnection> future = new CompletableFuture<TCPConnection>();
+        TCPConnection connection;
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(new IOException("Server socket closed"));
+                return future;
+            }
+            connection = pending.poll();
+            if (connection == null) {
+                waiting.add(future);
+                return future;
+            }
+        } finally {
+            lock.unlock();
+        }
+        handOver(connection, future);
+        return future;
+    }
+
+    public TCPSocket accept() throws IOException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        while (true) {
+            TCPConnection connection;
+            lock.lock();
+            try {
+                while (pending.isEmpty()) {
+                    if (closed) {
+                        throw new IOException("Server socket closed");
+                    }
+                    try {
+                        if (timeout <= 0) {
+                            accepted.await();
+                        } else if ((nanos = accepted.awaitNanos(nanos)) <= 0) {
+                            throw new SocketTimeoutException("Accept timed out");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Accept interrupted");
+                    }
+                }
+                connection = pending.poll();
+            } finally {
+                lock.unlock();
+            }
+            /* queued at the SYN - wait for the final ACK */
+            long left = 0;
+            if (timeout > 0) {
+                nanos = deadline - System.nanoTime();
+                left = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+            /* the reader before the handshake ends - data can come with the ACK */
+            TCPSocket socket = new TCPSocket(connection);
+            boolean established = false;
+            try {
+                established = connection.awaitEstablished(left);
+            } finally {
+                if (!established) {
+                    connection.close();
+                }
+            }
+            if (established) {
+                return socket;
+            }
+            /* the handshake failed - wait for the next one */
+        }
+    }
+
+    public void close() {
+        ArrayDeque<CompletableFuture<TCPConnection>> failed;
+        lock.lock();
+        try {
+            closed = true;
+            accepted.signalAll();
+            failed = new ArrayDeque<CompletableFuture<TCPConnection>>(waiting);
+            waiting.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<TCPConnection> future : failed) {
+            future.completeExceptionally(new IOException("Server socket closed"));
+        }
+        for (int i = 0; i < listening.length; i++) {
+            if (listening[i] != null) {
+                stacks[i].unlisten(listening[i]);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,106 @@
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/* Blocking socket on top of a TCPConnection, for one thread (typically a
+ * virtual thread) per connection. All waits are on locks and conditions,
+ * never on monitors, so a blocked virtual thread releases its carrier.
+ *
+ * The timeout set with setSoTimeout applies to read and to write waiting
+ * for buffer space - a SocketTimeoutException is thrown when it expires.
+ * The connection stays open, unlike with TCPConnection.setTimeout.
+ */
+public class TCPSocket {
+
+    private final TCPConnection connection;
+    private final InputStream input;
+    private final OutputStream output;
+
+    /* the input stream takes the listener so no data is lost */
+    TCPSocket(TCPConnection connection) {
+        this.connection = connection;
+        input = connection.getInputStream();
+        output = connection.getOutputStream();
+    }
+
+    /* timeout 0 waits for the handshake until the SYNs are given up */
+    public static TCPSocket connect(IPStack stack, IPv6Address address, int port,
+            long timeout) throws IOException {
+        return open(stack.connect(address, port), timeout);
+    }
+
+    public static TCPSocket connect(ShardedIPStack stack, IPv6Address address, int port,
+            long timeout) throws IOException {
+        return open(stack.connect(address, port), timeout);
+    }
+
+    private static TCPSocket open(TCPConnection connection, long timeout) throws IOException {
+        if (connection == null) {
+            throw new IOException("No free TCP connection");
+        }
+        TCPSocket socket = new TCPSocket(connection);
+        boolean established = false;
+        try {
+            established = connection.awaitEstablished(timeout);
+        } finally {
+            if (!established) {
+                connection.close();
+            }
+        }
+        if (!established) {
+            throw new IOException("Connection refused");
+        }
+        return socket;
+    }
+
+    public TCPConnection getConnection() {
+        return connection;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    public int read() throws IOException {
+        return input.read();
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        return input.read(b, off, len);
+    }
+
+    /* the data is sent when written - no flush needed */
+    public void write(byte[] b, int off, int len) throws IOException {
+        output.write(b, off, len);
+        output.flush();
+    }
+
+    /* milliseconds, 0 for no timeout */
+    public void setSoTimeout(int timeout) {
+        connection.setSoTimeout(timeout > 0 ? timeout : -1);
+    }
+
+    public int getSoTimeout() {
+        return connection.soTimeout == -1 ? 0 : connection.soTimeout;
+    }
+
+    public boolean isConnected() {
+        return connection.state == TCPConnection.ESTABLISHED;
+    }
+
+    public void close() throws IOException {
+        output.flush();
+        input.close();
+    }
+
+    public String toString() {
+        return "TCPSocket " + connection.externalIP + ":" + connection.externalPort +
+            " local port: " + connection.localPort + " state: " + connection.state;
+    }
+}
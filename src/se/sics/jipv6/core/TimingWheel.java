@@ -0,0 +1,205 @@
+package se.sics.jipv6.core;
+
+/* Hashed timing wheel - timeouts are kept in a circular array of slots
+ * indexed by their expiry tick, so scheduling and cancelling are O(1) and
+ * each tick only looks at the timeouts of one slot. Timeouts further away
+ * than one turn of the wheel stay in their slot until their turn comes.
+ *
+ * A timeout fires at most one tick late and never early. The wheel is not
+ * thread safe - it is driven by the thread that owns it (see EventLoop)
+ * and all times are milliseconds of the clock passed to it.
+ */
+public class TimingWheel {
+
+    public static final long DEFAULT_TICK = 10;
+    public static final int DEFAULT_SLOTS = 512;
+
+    public static class Timeout {
+        final Runnable task;
+        /* 0 for a one shot timeout */
+        final long period;
+        long tick;
+        /* the wheel while in a slot */
+        TimingWheel wheel;
+        Timeout prev;
+        Timeout next;
+        volatile boolean cancelled;
+
+        public Timeout(Runnable task) {
+            this(task, 0);
+        }
+
+        public Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /* must be called by the thread driving the wheel */
+        public void cancel() {
+            cancelled = true;
+            if (wheel != null) {
+                wheel.remove(this);
+            }
+        }
+    }
+
+    private final long tickDuration;
+    private final Timeout[] slots;
+    private final int mask;
+    /* the next tick to process */
+    private long nextTick;
+    private int size;
+    /* the due timeouts of the tick being processed */
+    private Timeout[] expired = new Timeout[16];
+
+    private long fired;
+
+    public TimingWheel(long now) {
+        this(DEFAULT_TICK, DEFAULT_SLOTS, now);
+    }
+
+    /* slots is rounded up to a power of two */
+    public TimingWheel(long tickDuration, int slots, long now) {
+        int n = 1;
+        while (n < slots) {
+            n <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.slots = new Timeout[n];
+        mask = n - 1;
+        nextTick = now / tickDuration;
+    }
+
+    public Timeout schedule(Runnable task, long delay, long now) {
+        Timeout timeout = new Timeout(task);
+        schedule(timeout, delay, now);
+        return timeout;
+    }
+
+    public void schedule(Timeout timeout, long delay, long now) {
+        if (timeout.wheel != null) {
+            throw new IllegalStateException("timeout already scheduled");
+        }
+        timeout.tick = (now + Math.max(delay, 0)) / tickDuration;
+        add(timeout);
+    }
+
+    private void add(Timeout timeout) {
+        if (timeout.tick < nextTick) {
+            timeout.tick = nextTick;
+        }
+        /* at the head - a slot being processed never sees new timeouts */
+        int slot = (int) (timeout.tick & mask);
+        Timeout head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.wheel = this;
+        size++;
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        size--;
+    }
+
+    /* runs the timeouts of all ticks that have passed - returns the
+     * number of timeouts fired */
+    public int advance(long now) {
+        long last = now / tickDuration;
+        int count = 0;
+        while (nextTick < last) {
+            long tick = nextTick++;
+            /* take the whole slot before any task runs - tasks may cancel
+             * or schedule any timeout, also the ones of this slot */
+            int slot = (int) (tick & mask);
+            Timeout t = slots[slot];
+            slots[slot] = null;
+            int n = 0;
+            while (t != null) {
+                Timeout next = t.next;
+                t.prev = null;
+                t.next = null;
+                t.wheel = null;
+                size--;
+                if (t.cancelled) {
+                    /* cancelled from another thread - just dropped */
+                } else if (t.tick <= tick) {
+                    if (n == expired.length) {
+                        Timeout[] tmp = new Timeout[n * 2];
+                        System.arraycopy(expired, 0, tmp, 0, n);
+                        expired = tmp;
+                    }
+                    expired[n++] = t;
+                } else {
+                    /* a later turn of the wheel */
+                    add(t);
+                }
+                t = next;
+            }
+            for (int i = 0; i < n; i++) {
+                t = expired[i];
+                expired[i] = null;
+                /* cancelled or scheduled again by an earlier task */
+                if (t.cancelled || t.wheel != null) {
+                    continue;
+                }
+                count++;
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                if (t.period > 0 && !t.cancelled && t.wheel == null) {
+                    t.tick = tick + Math.max(1, t.period / tickDuration);
+                    add(t);
+                }
+            }
+        }
+        fired += count;
+        return count;
+    }
+
+    /* when the next tick is due */
+    public long getNextTickTime() {
+        return (nextTick + 1) * tickDuration;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFiredCount() {
+        return fired;
+    }
+
+    public String toString() {
+        return "TimingWheel tick: " + tickDuration + " slots: " + slots.length +
+            " pending: " + size + " fired: " + fired;
+    }
+}
@@ -1,71 +1,74 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of jipv6.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-
-package se.sics.jipv6.core;
-
-
-import java.io.IOException;
-
-public class UDPHandler {
-    private static final int MAX_LISTENERS = 16;
-    public UDPListener[] listeners = new UDPListener[MAX_LISTENERS];
-    public int[] listenPorts = new int[MAX_LISTENERS];    
-    int noListeners = 0;
-    
-    public void addUDPListener(UDPListener listener, int port) throws IOException {
-	if (noListeners < MAX_LISTENERS) {
-	    System.out.println("UDPHandler: adding listener for " + port);
-	    listeners[noListeners] = listener;
-	    listenPorts[noListeners++] = port;
-	} else {
-	    throw new IOException("Too many open connections...");
-	}
-    }
-
-    public void handlePacket(IPv6Packet packet, UDPPacket udpPacket) {
-	for (int i = 0; i < noListeners; i++) {
-	    if (listenPorts[i] == udpPacket.destinationPort) {
-		listeners[i].packetReceived(packet, udpPacket);
-		/* only one connection per port... */
-		return;
-	    }
-	}
-    }
-}
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of jipv6.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+
+package se.sics.jipv6.core;
+
+
+import java.io.IOException;
+
+import se.sics.jipv6.util.Log;
+import se.sics.jipv6.util.Trace;
+
+public class UDPHandler {
+    private static final int MAX_LISTENERS = 16;
+    public UDPListener[] listeners = new UDPListener[MAX_LISTENERS];
+    public int[] listenPorts = new int[MAX_LISTENERS];    
+    int noListeners = 0;
+    
+    public void addUDPListener(UDPListener listener, int port) throws IOException {
+	if (noListeners < MAX_LISTENERS) {
+	    if (Log.UDP.info) Log.UDP.log("adding listener for " + port);
+	    listeners[noListeners] = listener;
+	    listenPorts[noListeners++] = port;
+	} else {
+	    throw new IOException("Too many open connections...");
+	}
+    }
+
+    /* all listeners of the port get the datagram */
+    public void handlePacket(IPv6Packet packet, UDPPacket udpPacket) {
+	if (Trace.enabled) Trace.event(Trace.UDP_RECEIVE, udpPacket.destinationPort, udpPacket.getPayloadLength());
+	for (int i = 0; i < noListeners; i++) {
+	    if (listenPorts[i] == udpPacket.destinationPort) {
+		listeners[i].packetReceived(packet, udpPacket);
+	    }
+	}
+    }
+}
@@ -0,0 +1,44 @@
+package se.sics.jipv6.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* The datagrams to a UDP port as a publisher (see IPStack.udpPublisher).
+ * UDP has no flow control - datagrams that do not fit in the buffer while
+ * the subscriber is behind are dropped and counted.
+ */
+public class UDPPublisher extends BufferPublisher implements UDPListener {
+
+    /* bytes of datagram payloads buffered for the subscriber */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int port;
+    /* the shards of a ShardedIPStack share the publisher */
+    private final AtomicLong dropped = new AtomicLong();
+
+    UDPPublisher(int port, int capacity) {
+        super(capacity);
+        this.port = port;
+    }
+
+    /* the payload is copied out of the frame */
+    public void packetReceived(IPv6Packet ip, UDPPacket udp) {
+        byte[] payload = udp.getPayload();
+        if (payload != null && !offer(ByteBuffer.wrap(payload))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public String toString() {
+        return "UDPPublisher port: " + port + " delivered: " + getDeliveredCount() +
+            " dropped: " + dropped + " free: " + free();
+    }
+}
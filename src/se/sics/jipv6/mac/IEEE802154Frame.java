@@ -0,0 +1,191 @@
+package se.sics.jipv6.mac;
+
+import se.sics.jipv6.util.Utils;
+
+/* Decoded 802.15.4 MAC header. The parser does not allocate so one
+ * instance can be reused for every received frame. Addresses are kept
+ * as longs in the same byte order as the link address arrays (the first
+ * byte of the array is the top byte of the long).
+ */
+public class IEEE802154Frame {
+
+    int type;
+    boolean security;
+    boolean pending;
+    boolean ackRequest;
+    boolean panCompression;
+    int destMode;
+    int srcMode;
+    int version;
+    int seqNo;
+    int destPanID;
+    int srcPanID;
+    long destAddress;
+    long srcAddress;
+    int headerLength;
+    int payloadLength;
+
+    /* parse the header of the frame in data[offset..offset+len[ - returns
+     * false if the frame is too short for its header */
+    public boolean parse(byte[] data, int offset, int len) {
+        if (len < 3) {
+            return false;
+        }
+        int fcf0 = data[offset] & 0xff;
+        int fcf1 = data[offset + 1] & 0xff;
+        type = fcf0 & 7;
+        security = (fcf0 & (1 << IEEE802154Handler.SECURITY_BIT)) != 0;
+        pending = (fcf0 & (1 << IEEE802154Handler.PENDING_BIT)) != 0;
+        ackRequest = (fcf0 & (1 << IEEE802154Handler.ACKREQ_BIT)) != 0;
+        panCompression = (fcf0 & (1 << IEEE802154Handler.PANCOMPR_BIT)) != 0;
+        destMode = (fcf1 >> 2) & 3;
+        version = (fcf1 >> 4) & 3;
+        srcMode = (fcf1 >> 6) & 3;
+        seqNo = data[offset + 2] & 0xff;
+
+        int pos = 3;
+        int needed = pos + (destMode > 0 ? 2 + getAddressLength(destMode) : 0) +
+            (srcMode > 0 ? (panCompression ? 0 : 2) + getAddressLength(srcMode) : 0);
+        if (needed > len) {
+            return false;
+        }
+        pos += offset;
+        destPanID = 0;
+        destAddress = 0;
+        if (destMode > 0) {
+            destPanID = get16LE(data, pos);
+            pos += 2;
+            destAddress = getAddress(data, pos, destMode);
+            pos += getAddressLength(destMode);
+        }
+        srcPanID = 0;
+        srcAddress = 0;
+        if (srcMode > 0) {
+            if (!panCompression) {
+                srcPanID = get16LE(data, pos);
+                pos += 2;
+            } else {
+                srcPanID = destPanID;
+            }
+            srcAddress = getAddress(data, pos, srcMode);
+            pos += getAddressLength(srcMode);
+        }
+        headerLength = pos - offset;
+        payloadLength = len - headerLength;
+        return true;
+    }
+
+    public static int getAddressLength(int mode) {
+        return mode == IEEE802154Handler.LONG_ADDRESS ? 8 :
+            mode == IEEE802154Handler.SHORT_ADDRESS ? 2 : 0;
+    }
+
+    static int get16LE(byte[] data, int pos) {
+        return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8);
+    }
+
+    /* addresses are sent little endian */
+    static long getAddress(byte[] data, int pos, int mode) {
+        int n = getAddressLength(mode);
+        long address = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            address = (address << 8) | (data[pos + i] & 0xff);
+        }
+        return address;
+    }
+
+    /* copy a long address into an address array (big endian) */
+    public static byte[] toBytes(long address, int mode) {
+        int n = getAddressLength(mode);
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = (byte) (address >> ((n - 1 - i) * 8));
+        }
+        return data;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isSecurity() {
+        return security;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+
+    public boolean isAckRequest() {
+        return ackRequest;
+    }
+
+    public boolean isPanCompression() {
+        return panCompression;
+    }
+
+    public int getDestinationMode() {
+        return destMode;
+    }
+
+    public int getSourceMode() {
+        return srcMode;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getSeqNo() {
+        return seqNo;
+    }
+
+    public int getDestinationPanID() {
+        return destPanID;
+    }
+
+    public int getSourcePanID() {
+        return srcPanID;
+    }
+
+    public long getDestinationAddress() {
+        return destAddress;
+    }
+
+    public long getSourceAddress() {
+        return srcAddress;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public static String getTypeName(int type) {
+        return type >= 0 && type < IEEE802154Handler.TYPE_NAMES.length ?
+            IEEE802154Handler.TYPE_NAMES[type] : ("TYPE" + type);
+    }
+
+    private static String addressToString(long address, int mode) {
+        if (mode == IEEE802154Handler.SHORT_ADDRESS) {
+            return Utils.hex16((int) address);
+        } else if (mode == IEEE802154Handler.LONG_ADDRESS) {
+            return Utils.hex16((int) (address >>> 48)) + ":" +
+                Utils.hex16((int) (address >>> 32)) + ":" +
+                Utils.hex16((int) (address >>> 16)) + ":" +
+                Utils.hex16((int) address);
+        }
+        return "";
+    }
+
+    /* same format as IEEE802154Handler.printPacket */
+    public String toString() {
+        return "802.15.4 " + getTypeName(type) + " from " + Utils.hex16(srcPanID) + "/" +
+            addressToString(srcAddress, srcMode) + " to " + Utils.hex16(destPanID) + "/" +
+            addressToString(destAddress, destMode) + " seqNo: " + seqNo + " vers: " +
+            version + " len: " + payloadLength;
+    }
+}
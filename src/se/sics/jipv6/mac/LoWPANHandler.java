@@ -1,99 +1,164 @@
-/**
- * Copyright (c) 2009, Swedish Institute of Computer Science.
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the Institute nor the names of its contributors
- *    may be used to endorse or promote products derived from this software
- *    without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
- * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
- * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
- * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
- * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
- * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
- * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
- * SUCH DAMAGE.
- *
- * This file is part of MSPSim.
- *
- * $Id: $
- *
- * -----------------------------------------------------------------
- *
- *
- * Author  : Joakim Eriksson
- * Created :  mar 2009
- * Updated : $Date:$
- *           $Revision:$
- */
-package se.sics.jipv6.mac;
-
-import se.sics.jipv6.core.AbstractPacketHandler;
-import se.sics.jipv6.core.IPStack;
-import se.sics.jipv6.core.IPv6Packet;
-import se.sics.jipv6.core.NetworkInterface;
-import se.sics.jipv6.core.Packet;
-
-public class LoWPANHandler extends AbstractPacketHandler implements NetworkInterface {
-  
-  private IPStack ipStack;
-  
-  public LoWPANHandler() {
-  }
-
-  public void setIPStack(IPStack stack) {
-    ipStack = stack;
-  }
-  
-  public String getName() {
-    return "6lowpan";
-  }
-  
-  public boolean isReady() {
-    return true;
-  }
-  
-  public void packetReceived(Packet packet) {
-    /* create IP packet based on the correct dispatch */
-    IPv6Packet ipPacket = new IPv6Packet(packet);
-    int dispatch = packet.getData(0);
-    packet.setAttribute("6lowpan.dispatch", dispatch);
-    /* remove the dispatch and continue */
-    ipPacket.incPos(1);
-    if (dispatch == ipStack.getDefaultPacketer().getDispatch()) {
-      ipStack.getDefaultPacketer().parsePacketData(ipPacket);
-      /* send in the packet */
-      ipPacket.netInterface = this;
-      ipStack.receivePacket(ipPacket);
-    }
-  }
-
-  public void sendPacket(IPv6Packet packet) {
-    /* LoWPANHandler is for IP over 802.15.4 */
-    // Get packeter and create packet
-    byte[] data = ipStack.getPacketer().generatePacketData((IPv6Packet)packet);
-    packet.setBytes(data);
-    /* set the dispatch */
-    byte[] data2 = new byte[1];
-    data2[0] = ipStack.getPacketer().getDispatch();
-    packet.prependBytes(data2);
-    /* give to lower layer for sending on... */
-    lowerLayer.sendPacket(packet);
-  }
-
-  public void sendPacket(Packet packet) {
-    sendPacket((IPv6Packet) packet);
-  }
-
+/**
+ * Copyright (c) 2009, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id: $
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * Author  : Joakim Eriksson
+ * Created :  mar 2009
+ * Updated : $Date:$
+ *           $Revision:$
+ */
+package se.sics.jipv6.mac;
+
+import se.sics.jipv6.core.AbstractPacketHandler;
+import se.sics.jipv6.core.EventLoop;
+import se.sics.jipv6.core.IPStack;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.LoWPANFragmenter;
+import se.sics.jipv6.core.NetworkInterface;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.PacketAttributes;
+import se.sics.jipv6.core.PacketPool;
+import se.sics.jipv6.util.Trace;
+
+public class LoWPANHandler extends AbstractPacketHandler implements NetworkInterface {
+
+  public static final String DISPATCH = "6lowpan.dispatch";
+  public static final PacketAttributes.Key DISPATCH_KEY = PacketAttributes.registerInt(DISPATCH);
+  
+  /* 127 bytes - 2 bytes FCS - 23 bytes 802.15.4 header (long addresses
+   * and no PAN ID compression) */
+  public static final int DEFAULT_MAX_PAYLOAD = 102;
+
+  private IPStack ipStack;
+  private LoWPANFragmenter fragmenter = new LoWPANFragmenter();
+  private int maxPayload = DEFAULT_MAX_PAYLOAD;
+  
+  public LoWPANHandler() {
+  }
+
+  /* the max frame payload (including the dispatch) - larger packets
+   * are fragmented */
+  public void setMaxPayload(int size) {
+    maxPayload = size;
+  }
+
+  public int getMaxPayload() {
+    return maxPayload;
+  }
+
+  /* handlers sending to the same link must share the fragmenter so the
+   * datagram tags do not clash */
+  public void setFragmenter(LoWPANFragmenter fragmenter) {
+    this.fragmenter = fragmenter;
+  }
+
+  public void setIPStack(IPStack stack) {
+    ipStack = stack;
+  }
+  
+  public String getName() {
+    return "6lowpan";
+  }
+  
+  public boolean isReady() {
+    return true;
+  }
+  
+  public void packetReceived(Packet packet) {
+    EventLoop loop = ipStack.getEventLoop();
+    if (loop != null && !loop.inEventLoop()) {
+      /* the frame buffer belongs to the receiving thread */
+      final Packet copy = packet.copy();
+      loop.execute(new Runnable() {
+        public void run() {
+          packetReceived(copy);
+        }
+      });
+      return;
+    }
+    /* create IP packet based on the correct dispatch */
+    PacketPool pool = PacketPool.get();
+    IPv6Packet ipPacket = pool.newIPv6Packet(packet);
+    int dispatch = packet.getData(0);
+    packet.setAttribute(DISPATCH_KEY, dispatch);
+    if (Trace.enabled) Trace.event(Trace.LOWPAN_RECEIVE, dispatch & 0xff, packet.getPayloadLength());
+    /* remove the dispatch and continue */
+    ipPacket.incPos(1);
+    if (dispatch == ipStack.getDefaultPacketer().getDispatch()) {
+      ipStack.getDefaultPacketer().parsePacketData(ipPacket);
+      /* send in the packet */
+      ipPacket.netInterface = this;
+      if (!deliver(ipPacket)) {
+        /* kept by another thread */
+        return;
+      }
+    }
+    pool.release(ipPacket);
+  }
+
+  /* hands a received packet to the IP stack - returns false if the
+   * packet is still used after the call and must not be recycled */
+  protected boolean deliver(IPv6Packet packet) {
+    ipStack.receivePacket(packet);
+    return true;
+  }
+
+  public void sendPacket(IPv6Packet packet) {
+    /* LoWPANHandler is for IP over 802.15.4 */
+    // Get packeter and create packet
+    ipStack.getPacketer().generatePacket(packet);
+    byte dispatch = ipStack.getPacketer().getDispatch();
+    LoWPANFragmenter.Fragments fragments = fragmenter.fragment(packet, maxPayload - 1);
+    if (Trace.enabled) Trace.event(Trace.LOWPAN_SEND, dispatch & 0xff, packet.getTotalLength());
+    if (fragments == null) {
+      /* set the dispatch - written into the headroom of the packet buffer */
+      int pos = packet.reserveHeader(1);
+      packet.getBuffer()[pos] = dispatch;
+      /* give to lower layer for sending on... */
+      lowerLayer.sendPacket(packet);
+    } else {
+      /* each fragment is sent before the next is created */
+      while (fragments.hasNext()) {
+        Packet fragment = fragments.next();
+        int pos = fragment.reserveHeader(1);
+        fragment.getBuffer()[pos] = dispatch;
+        lowerLayer.sendPacket(fragment);
+      }
+    }
+  }
+
+  public void sendPacket(Packet packet) {
+    sendPacket((IPv6Packet) packet);
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package se.sics.jipv6.mac;
+
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.PacketAttributes;
+
+/* What the receiving radio knows about a frame - filled in by the input
+ * (ZEP, serial radio...) and carried to the analyzers as packet
+ * attributes. Values the input does not provide are UNKNOWN and are not
+ * set as attributes. Instances are reused for each frame.
+ */
+public class RadioInfo {
+
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    public static final String TIMESTAMP = "radio.timestamp";
+    public static final String RADIO_ID = "radio.id";
+    public static final String CHANNEL = "radio.channel";
+    public static final String RSSI = "radio.rssi";
+    public static final String LQI = "radio.lqi";
+    public static final String CRC_OK = "radio.crcok";
+
+    /* nanoseconds since the epoch */
+    public static final PacketAttributes.Key TIMESTAMP_KEY = PacketAttributes.registerInt(TIMESTAMP);
+    public static final PacketAttributes.Key RADIO_ID_KEY = PacketAttributes.registerInt(RADIO_ID);
+    public static final PacketAttributes.Key CHANNEL_KEY = PacketAttributes.registerInt(CHANNEL);
+    /* dBm */
+    public static final PacketAttributes.Key RSSI_KEY = PacketAttributes.registerInt(RSSI);
+    public static final PacketAttributes.Key LQI_KEY = PacketAttributes.registerInt(LQI);
+    /* 1 if the radio reported a correct FCS */
+    public static final PacketAttributes.Key CRC_OK_KEY = PacketAttributes.registerInt(CRC_OK);
+
+    private long timestamp;
+    private int radioId;
+    private int channel;
+    private int rssi;
+    private int lqi;
+    private int crcOk;
+
+    public RadioInfo() {
+        reset();
+    }
+
+    public void reset() {
+        timestamp = 0;
+        radioId = UNKNOWN;
+        channel = UNKNOWN;
+        rssi = UNKNOWN;
+        lqi = UNKNOWN;
+        crcOk = UNKNOWN;
+    }
+
+    public void copy(RadioInfo info) {
+        timestamp = info.timestamp;
+        radioId = info.radioId;
+        channel = info.channel;
+        rssi = info.rssi;
+        lqi = info.lqi;
+        crcOk = info.crcOk;
+    }
+
+    public void setAttributes(Packet packet) {
+        if (timestamp != 0) packet.setAttribute(TIMESTAMP_KEY, timestamp);
+        if (radioId != UNKNOWN) packet.setAttribute(RADIO_ID_KEY, radioId);
+        if (channel != UNKNOWN) packet.setAttribute(CHANNEL_KEY, channel);
+        if (rssi != UNKNOWN) packet.setAttribute(RSSI_KEY, rssi);
+        if (lqi != UNKNOWN) packet.setAttribute(LQI_KEY, lqi);
+        if (crcOk != UNKNOWN) packet.setAttribute(CRC_OK_KEY, crcOk);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public int getRadioId() {
+        return radioId;
+    }
+
+    public void setRadioId(int radioId) {
+        this.radioId = radioId;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    public int getRSSI() {
+        return rssi;
+    }
+
+    public void setRSSI(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public int getLQI() {
+        return lqi;
+    }
+
+    public void setLQI(int lqi) {
+        this.lqi = lqi;
+    }
+
+    public int getCRCOk() {
+        return crcOk;
+    }
+
+    public void setCRCOk(boolean ok) {
+        crcOk = ok ? 1 : 0;
+    }
+
+    public String toString() {
+        return "radio: " + radioId + " channel: " + channel + " rssi: " + rssi +
+            " lqi: " + lqi + " crc: " + crcOk + " time: " + timestamp;
+    }
+}
@@ -0,0 +1,115 @@
+package se.sics.jipv6.mac;
+
+import se.sics.jipv6.core.AbstractPacketHandler;
+import se.sics.jipv6.core.IPStack;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.LoWPANFragmenter;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.ShardedIPStack;
+
+/* 6LoWPAN layer of a ShardedIPStack - one LoWPANHandler per shard.
+ *
+ * Frames are spread over the shards by link source so all fragments of a
+ * datagram are reassembled by the same shard. After decompression the
+ * packet is handed to the shard owning its flow, through the lock free
+ * task queue of that shard's event loop. Sends of all shards go to the
+ * one lower layer (radio) in turn.
+ */
+public class ShardedLoWPANHandler extends AbstractPacketHandler {
+
+    private final ShardedIPStack stack;
+    private final Shard[] shards;
+    /* one for all shards - unique datagram tags on the link */
+    private final LoWPANFragmenter fragmenter = new LoWPANFragmenter();
+
+    private class Shard extends LoWPANHandler {
+        final int index;
+        /* only updated by the thread of the shard */
+        long received;
+        long handedOver;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        protected boolean deliver(IPv6Packet packet) {
+            received++;
+            int owner = stack.getShardIndex(packet);
+            if (owner == index) {
+                return super.deliver(packet);
+            }
+            handedOver++;
+            packet.netInterface = shards[owner];
+            stack.getShard(owner).receivePacket(packet);
+            return false;
+        }
+    }
+
+    public ShardedLoWPANHandler(ShardedIPStack stack) {
+        this.stack = stack;
+        shards = new Shard[stack.getShardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            IPStack ipStack = stack.getShard(i);
+            Shard shard = new Shard(i);
+            shard.setIPStack(ipStack);
+            shard.setFragmenter(fragmenter);
+            shard.setLowerLayerHandler(this);
+            ipStack.setLinkLayerHandler(shard);
+            shards[i] = shard;
+        }
+    }
+
+    public void setMaxPayload(int size) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setMaxPayload(size);
+        }
+    }
+
+    public LoWPANHandler getShardHandler(int index) {
+        return shards[index];
+    }
+
+    /* the frame is copied and handed over unless the caller is the loop */
+    public void packetReceived(Packet packet) {
+        byte[] source = packet.getLinkSource();
+        int h = 0;
+        if (source != null) {
+            for (int i = 0; i < source.length; i++) {
+                h = h * 31 + source[i];
+            }
+            h ^= h >>> 16;
+        }
+        shards[(h & 0x7fffffff) % shards.length].packetReceived(packet);
+    }
+
+    public synchronized void sendPacket(Packet packet) {
+        lowerLayer.sendPacket(packet);
+    }
+
+    public long getReceivedCount() {
+        long count = 0;
+        for (int i = 0; i < shards.length; i++) {
+            count += shards[i].received;
+        }
+        return count;
+    }
+
+    /* packets decompressed by one shard and handled by another */
+    public long getHandedOverCount() {
+        long count = 0;
+        for (int i = 0; i < shards.length; i++) {
+            count += shards[i].handedOver;
+        }
+        return count;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ShardedLoWPANHandler received: ").append(getReceivedCount())
+            .append(" handed over: ").append(getHandedOverCount());
+        for (int i = 0; i < shards.length; i++) {
+            sb.append(" [").append(i).append("] ").append(shards[i].received);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package se.sics.jipv6.pcap;
+
+/* Receives captured 802.15.4 frames (without FCS). The data is only valid
+ * during the call.
+ */
+public interface CaptureListener {
+
+    /* timestamp in nanoseconds since the epoch, interfaceId identifies
+     * the radio the frame was captured on */
+    public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len);
+
+    /* the channel the frame was received on, -1 if not known - listeners
+     * that do not record it get the frame without */
+    default void captureFrame(long timestamp, int interfaceId, int channelNo, byte[] data, int offset, int len) {
+        captureFrame(timestamp, interfaceId, data, offset, len);
+    }
+}
@@ -0,0 +1,931 @@
+package se.sics.jipv6.pcap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import se.sics.jipv6.mac.IEEE802154Frame;
+
+/* Append-only store of sniffed frames with time and source queries.
+ *
+ * Frames are collected into blocks that are Deflater compressed and
+ * appended to a segment file. For each block the time range is kept (a
+ * sparse time index) and for each source address the blocks it sent
+ * frames in (a posting list), so a query only inflates the blocks that
+ * can contain matching frames. When a segment is full its index is
+ * written next to it and the segment is read memory mapped from then on.
+ *
+ *   <n>.frames  [raw length][compressed length][deflated block]...
+ *   <n>.index   block table + posting lists
+ *
+ * A block holds [timestamp 8][interface 2][length 2][frame] records. A
+ * segment without index (the store was not closed) is indexed again when
+ * the store is opened; a partly written block at its end is dropped.
+ *
+ * Appending only copies the frame into an in-memory block; full blocks
+ * are compressed and written by a separate thread so a capture tap never
+ * waits for the disk. When all blocks are waiting to be written
+ * captureFrame drops the frame and counts it, append waits.
+ */
+public class CaptureStore implements CaptureListener, Closeable {
+
+    private static boolean DEBUG = false;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_BLOCK_COUNT = 8;
+
+    static final int INDEX_MAGIC = 0x4a495836;
+    static final int BLOCK_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int MAX_FRAME_SIZE = 0xffff;
+
+    private final File directory;
+    private final Object lock = new Object();
+    /* all segments - the last one is appended to - guarded by lock */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    /* blocks - guarded by lock. Full blocks stay queued until they are
+     * in the index so a query always finds a frame in one of them. */
+    private final int blockCapacity;
+    private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+    private final ArrayDeque<Block> full = new ArrayDeque<Block>();
+    private Block filling;
+    private final IEEE802154Frame frame = new IEEE802154Frame();
+    private final long[] keyTmp = new long[1];
+    private boolean running = true;
+    private boolean forceRequested;
+    private final Thread writerThread;
+
+    /* used by the writer thread only */
+    private Segment active;
+    private long maxSegmentSize = DEFAULT_SEGMENT_SIZE;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed;
+
+    private volatile long frames;
+    /* counted by the capture thread and the block writer */
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public CaptureStore(File directory) throws IOException {
+        this(directory, DEFAULT_BLOCK_SIZE);
+    }
+
+    public CaptureStore(File directory, int blockSize) throws IOException {
+        this(directory, blockSize, DEFAULT_BLOCK_COUNT);
+    }
+
+    public CaptureStore(File directory, int blockSize, int blockCount) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        blockCapacity = Math.max(blockSize, RECORD_HEADER_SIZE + MAX_FRAME_SIZE);
+        for (int i = 0; i < Math.max(blockCount, 2); i++) {
+            free.add(new Block(blockCapacity));
+        }
+        filling = free.poll();
+        compressed = new byte[blockCapacity + blockCapacity / 16 + 64];
+        open();
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "capture-store-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /* records waiting to be compressed and written */
+    private static class Block {
+        final ByteBuffer data;
+        long minTime;
+        long maxTime;
+        int frames;
+        long[] sources = new long[16];
+        int sourceCount;
+
+        Block(int capacity) {
+            data = ByteBuffer.allocate(capacity);
+            data.order(ByteOrder.BIG_ENDIAN);
+            reset();
+        }
+
+        void reset() {
+            data.clear();
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            frames = 0;
+            sourceCount = 0;
+        }
+
+        void addSource(long key) {
+            for (int i = 0; i < sourceCount; i++) {
+                if (sources[i] == key) {
+                    return;
+                }
+            }
+            if (sourceCount == sources.length) {
+                sources = Arrays.copyOf(sources, sourceCount * 2);
+            }
+            sources[sourceCount++] = key;
+        }
+
+        boolean hasSource(long key) {
+            for (int i = 0; i < sourceCount; i++) {
+                if (sources[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /* takes effect for the next block written */
+    public void setMaxSegmentSize(long size) {
+        maxSegmentSize = size;
+    }
+
+    /* Deflater level 0 - 9 */
+    public void setCompressionLevel(int level) {
+        deflater.setLevel(level);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void open() throws IOException {
+        File[] files = directory.listFiles();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".frames")) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - 7)));
+                } catch (NumberFormatException e) {
+                    /* not ours */
+                }
+            }
+        }
+        Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sorted);
+        for (Integer id : sorted) {
+            Segment segment = new Segment(id);
+            if (segment.indexFile.isFile()) {
+                segment.readIndex();
+            } else {
+                if (DEBUG) System.out.println("CaptureStore: indexing " + segment.dataFile);
+                segment.rebuildIndex();
+                segment.writeIndex();
+            }
+            segments.add(segment);
+            for (int i = 0; i < segment.blocks; i++) {
+                frames += segment.frameCounts[i];
+            }
+        }
+    }
+
+    /* a link address as used in the posting lists - short addresses are
+     * marked in the top byte so they do not clash with long addresses */
+    public static long getSourceKey(byte[] address) {
+        long key = 0;
+        for (int i = 0; i < address.length; i++) {
+            key = (key << 8) | (address[i] & 0xff);
+        }
+        if (address.length < 8) {
+            key ^= (long) address.length << 56;
+        }
+        return key;
+    }
+
+    /* the posting key of a parsed frame - false if it has no source */
+    static boolean getSourceKey(IEEE802154Frame frame, long[] key) {
+        int len = IEEE802154Frame.getAddressLength(frame.getSourceMode());
+        if (len == 0) {
+            return false;
+        }
+        key[0] = len < 8 ? frame.getSourceAddress() ^ ((long) len << 56) : frame.getSourceAddress();
+        return true;
+    }
+
+    /* never waits - the frame is dropped if all blocks are being written */
+    public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len) {
+        try {
+            if (!add(timestamp, interfaceId, data, offset, len, false)) {
+                dropped.incrementAndGet();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            if (DEBUG) e.printStackTrace();
+        }
+    }
+
+    /* waits for a free block if all are being written */
+    public void append(long timestamp, int interfaceId, byte[] data, int offset, int len)
+        throws IOException {
+        add(timestamp, interfaceId, data, offset, len, true);
+    }
+
+    private boolean add(long timestamp, int interfaceId, byte[] data, int offset, int len,
+            boolean wait) throws IOException {
+        if (len > MAX_FRAME_SIZE) {
+            throw new IOException("frame too large: " + len);
+        }
+        synchronized (lock) {
+            if (!running) {
+                throw new IOException("store closed");
+            }
+            if (filling == null || filling.data.remaining() < RECORD_HEADER_SIZE + len) {
+                queueBlock();
+                while ((filling = free.poll()) == null) {
+                    if (!wait) {
+                        return false;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            Block b = filling;
+            b.data.putLong(timestamp);
+            b.data.putShort((short) interfaceId);
+            b.data.putShort((short) len);
+            b.data.put(data, offset, len);
+            if (timestamp < b.minTime) b.minTime = timestamp;
+            if (timestamp > b.maxTime) b.maxTime = timestamp;
+            b.frames++;
+            frames++;
+            if (frame.parse(data, offset, len) && getSourceKey(frame, keyTmp)) {
+                b.addSource(keyTmp[0]);
+            }
+        }
+        return true;
+    }
+
+    /* hand the block being filled to the writer - called with the lock held */
+    private void queueBlock() {
+        if (filling != null && filling.frames > 0) {
+            full.add(filling);
+            filling = null;
+            lock.notifyAll();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Block b;
+            boolean force;
+            synchronized (lock) {
+                while (full.isEmpty() && running && !forceRequested) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (full.isEmpty() && !running) {
+                    /* wake up a waiting flush */
+                    lock.notifyAll();
+                    return;
+                }
+                /* stays queued - and visible to queries - until indexed */
+                b = full.peek();
+                force = b == null;
+            }
+            if (force) {
+                try {
+                    if (active != null) {
+                        active.channel.force(false);
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    if (DEBUG) e.printStackTrace();
+                }
+                synchronized (lock) {
+                    forceRequested = false;
+                    lock.notifyAll();
+                }
+                continue;
+            }
+            try {
+                writeBlock(b);
+            } catch (IOException e) {
+                /* the block is lost - continue in a new segment */
+                synchronized (lock) {
+                    full.poll();
+                    errors.addAndGet(b.frames);
+                    b.reset();
+                    free.add(b);
+                    lock.notifyAll();
+                }
+                if (DEBUG) e.printStackTrace();
+                sealActive();
+            }
+        }
+    }
+
+    /* compress and append a block - writer thread only */
+    private void writeBlock(Block b) throws IOException {
+        if (active == null) {
+            int id;
+            synchronized (lock) {
+                id = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).id + 1;
+            }
+            Segment segment = new Segment(id);
+            segment.create();
+            active = segment;
+            synchronized (lock) {
+                segments.add(segment);
+            }
+        }
+        int rawLen = b.data.position();
+        deflater.reset();
+        deflater.setInput(b.data.array(), 0, rawLen);
+        deflater.finish();
+        int compLen = 0;
+        while (!deflater.finished()) {
+            if (compLen == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compLen += deflater.deflate(compressed, compLen, compressed.length - compLen);
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(rawLen);
+        header.putInt(compLen);
+        header.flip();
+        long offset = active.size;
+        ByteBuffer[] out = new ByteBuffer[] { header, ByteBuffer.wrap(compressed, 0, compLen) };
+        long len = BLOCK_HEADER_SIZE + compLen;
+        long written = 0;
+        while (written < len) {
+            written += active.channel.write(out);
+        }
+        active.size += len;
+        synchronized (lock) {
+            /* in the index and out of the queue at once */
+            active.addBlock(offset, compLen, rawLen, b.minTime, b.maxTime, b.frames,
+                    b.sources, b.sourceCount);
+            full.poll();
+            b.reset();
+            free.add(b);
+            lock.notifyAll();
+        }
+        if (active.size >= maxSegmentSize) {
+            sealActive();
+        }
+    }
+
+    private void sealActive() {
+        if (active != null) {
+            try {
+                active.seal();
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                if (DEBUG) e.printStackTrace();
+            }
+            active = null;
+        }
+    }
+
+    /* make everything appended so far visible on disk */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            queueBlock();
+            forceRequested = true;
+            lock.notifyAll();
+            while ((forceRequested || !full.isEmpty()) && writerThread.isAlive()) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /* Delivers the frames with from <= timestamp <= to, sent by the given
+     * source (any source if null), in the order they were appended.
+     * Returns the number of frames delivered. The listener is called
+     * without any lock held - appending goes on meanwhile. */
+    public long query(long from, long to, byte[] source, CaptureListener listener) throws IOException {
+        boolean hasKey = source != null;
+        long key = hasKey ? getSourceKey(source) : 0;
+        Query q = new Query(from, to, hasKey, key, listener);
+        ArrayList<View> views = new ArrayList<View>();
+        ArrayList<byte[]> pending = new ArrayList<byte[]>();
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                View v = segment.view(q);
+                if (v != null) {
+                    views.add(v);
+                }
+            }
+            /* blocks not written yet - and the one being filled */
+            for (Block b : full) {
+                addPending(pending, b, q);
+            }
+            if (filling != null) {
+                addPending(pending, filling, q);
+            }
+        }
+        try {
+            for (View v : views) {
+                v.query(q);
+            }
+            for (byte[] data : pending) {
+                q.scan(data, 0, data.length);
+            }
+        } finally {
+            q.inflater.end();
+        }
+        return q.count;
+    }
+
+    private static void addPending(ArrayList<byte[]> pending, Block b, Query q) {
+        if (b.frames > 0 && b.maxTime >= q.from && b.minTime <= q.to &&
+                (!q.hasKey || b.hasSource(q.key))) {
+            pending.add(Arrays.copyOf(b.data.array(), b.data.position()));
+        }
+    }
+
+    /* state of one query - one per call so queries can run in parallel */
+    private class Query {
+        final long from;
+        final long to;
+        final boolean hasKey;
+        final long key;
+        final CaptureListener listener;
+        final Inflater inflater = new Inflater();
+        final IEEE802154Frame frame = new IEEE802154Frame();
+        final long[] frameKey = new long[1];
+        byte[] raw = new byte[blockCapacity];
+        byte[] input;
+        long count;
+        long blocksRead;
+
+        Query(long from, long to, boolean hasKey, long key, CaptureListener listener) {
+            this.from = from;
+            this.to = to;
+            this.hasKey = hasKey;
+            this.key = key;
+            this.listener = listener;
+        }
+
+        void inflate(ByteBuffer data, int rawLen) throws IOException {
+            if (raw.length < rawLen) {
+                raw = new byte[rawLen];
+            }
+            inflater.reset();
+            inflater.setInput(data);
+            try {
+                int n = 0;
+                while (n < rawLen && !inflater.finished()) {
+                    int r = inflater.inflate(raw, n, rawLen - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != rawLen) {
+                    throw new IOException("corrupt block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt block", e);
+            }
+            blocksRead++;
+            scan(raw, 0, rawLen);
+        }
+
+        void scan(byte[] data, int pos, int end) {
+            while (pos + RECORD_HEADER_SIZE <= end) {
+                long ts = getLong(data, pos);
+                int iface = ((data[pos + 8] & 0xff) << 8) | (data[pos + 9] & 0xff);
+                int len = ((data[pos + 10] & 0xff) << 8) | (data[pos + 11] & 0xff);
+                pos += RECORD_HEADER_SIZE;
+                if (ts >= from && ts <= to && (!hasKey ||
+                        (frame.parse(data, pos, len) && getSourceKey(frame, frameKey) &&
+                         frameKey[0] == key))) {
+                    listener.captureFrame(ts, iface, data, pos, len);
+                    count++;
+                }
+                pos += len;
+            }
+        }
+    }
+
+    static long getLong(byte[] data, int pos) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (data[pos + i] & 0xff);
+        }
+        return v;
+    }
+
+    private static class Posting {
+        int[] blocks = new int[4];
+        int count;
+
+        void add(int block) {
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+            }
+            blocks[count++] = block;
+        }
+    }
+
+    private class Segment {
+        final int id;
+        final File dataFile;
+        final File indexFile;
+        /* while appended to */
+        volatile FileChannel channel;
+        long size;
+        /* when sealed - set before the channel is closed */
+        volatile MappedByteBuffer map;
+
+        /* block table */
+        int blocks;
+        long[] offsets = new long[64];
+        int[] compLens = new int[64];
+        int[] rawLens = new int[64];
+        long[] minTimes = new long[64];
+        long[] maxTimes = new long[64];
+        int[] frameCounts = new int[64];
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        final HashMap<Long, Posting> postings = new HashMap<Long, Posting>();
+
+        Segment(int id) {
+            this.id = id;
+            dataFile = new File(directory, String.format("%08d.frames", id));
+            indexFile = new File(directory, String.format("%08d.index", id));
+        }
+
+        void create() throws IOException {
+            channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            size = 0;
+        }
+
+        void addBlock(long offset, int compLen, int rawLen, long min, long max, int count,
+                long[] sources, int sourceCount) {
+            if (blocks == offsets.length) {
+                int n = blocks * 2;
+                offsets = Arrays.copyOf(offsets, n);
+                compLens = Arrays.copyOf(compLens, n);
+                rawLens = Arrays.copyOf(rawLens, n);
+                minTimes = Arrays.copyOf(minTimes, n);
+                maxTimes = Arrays.copyOf(maxTimes, n);
+                frameCounts = Arrays.copyOf(frameCounts, n);
+            }
+            offsets[blocks] = offset;
+            compLens[blocks] = compLen;
+            rawLens[blocks] = rawLen;
+            minTimes[blocks] = min;
+            maxTimes[blocks] = max;
+            frameCounts[blocks] = count;
+            if (min < minTime) minTime = min;
+            if (max > maxTime) maxTime = max;
+            for (int i = 0; i < sourceCount; i++) {
+                Posting p = postings.get(sources[i]);
+                if (p == null) {
+                    p = new Posting();
+                    postings.put(sources[i], p);
+                }
+                p.add(blocks);
+            }
+            blocks++;
+        }
+
+        void seal() throws IOException {
+            FileChannel fc = channel;
+            writeIndex();
+            mapData();
+            channel = null;
+            fc.close();
+        }
+
+        void mapData() throws IOException {
+            FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+            try {
+                map = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                fc.close();
+            }
+        }
+
+        void writeIndex() throws IOException {
+            int postingSize = 0;
+            for (Posting p : postings.values()) {
+                postingSize += 12 + 4 * p.count;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(20 + blocks * 36 + postingSize);
+            buf.putInt(INDEX_MAGIC);
+            buf.putLong(size);
+            buf.putInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                buf.putLong(offsets[i]);
+                buf.putInt(compLens[i]);
+                buf.putInt(rawLens[i]);
+                buf.putLong(minTimes[i]);
+                buf.putLong(maxTimes[i]);
+                buf.putInt(frameCounts[i]);
+            }
+            buf.putInt(postings.size());
+            for (Map.Entry<Long, Posting> e : postings.entrySet()) {
+                Posting p = e.getValue();
+                buf.putLong(e.getKey());
+                buf.putInt(p.count);
+                for (int i = 0; i < p.count; i++) {
+                    buf.putInt(p.blocks[i]);
+                }
+            }
+            buf.flip();
+            /* written under another name first so a crash does not leave a
+             * half written index */
+            File tmp = new File(directory, indexFile.getName() + ".tmp");
+            FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+                fc.force(true);
+            } finally {
+                fc.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("can not write " + indexFile);
+            }
+        }
+
+        void readIndex() throws IOException {
+            FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                if (buf.getInt() != INDEX_MAGIC) {
+                    throw new IOException("not a capture index: " + indexFile);
+                }
+                size = buf.getLong();
+                int n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    long offset = buf.getLong();
+                    int compLen = buf.getInt();
+                    int rawLen = buf.getInt();
+                    long min = buf.getLong();
+                    long max = buf.getLong();
+                    addBlock(offset, compLen, rawLen, min, max, buf.getInt(), null, 0);
+                }
+                int keys = buf.getInt();
+                for (int i = 0; i < keys; i++) {
+                    long key = buf.getLong();
+                    Posting p = new Posting();
+                    p.count = buf.getInt();
+                    p.blocks = new int[p.count];
+                    for (int j = 0; j < p.count; j++) {
+                        p.blocks[j] = buf.getInt();
+                    }
+                    postings.put(key, p);
+                }
+            } finally {
+                fc.close();
+            }
+            mapData();
+        }
+
+        /* read the blocks of a segment that was not sealed */
+        void rebuildIndex() throws IOException {
+            FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+            long fileSize = fc.size();
+            IEEE802154Frame f = new IEEE802154Frame();
+            Inflater inflater = new Inflater();
+            long[] key = new long[1];
+            long[] sources = new long[16];
+            try {
+                MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                long pos = 0;
+                byte[] raw = new byte[0];
+                while (pos + BLOCK_HEADER_SIZE <= fileSize) {
+                    int rawLen = buf.getInt((int) pos);
+                    int compLen = buf.getInt((int) pos + 4);
+                    if (rawLen <= 0 || compLen <= 0 || pos + BLOCK_HEADER_SIZE + compLen > fileSize) {
+                        break;
+                    }
+                    if (raw.length < rawLen) {
+                        raw = new byte[rawLen];
+                    }
+                    ByteBuffer in = buf.duplicate();
+                    in.position((int) pos + BLOCK_HEADER_SIZE);
+                    in.limit((int) pos + BLOCK_HEADER_SIZE + compLen);
+                    inflater.reset();
+                    inflater.setInput(in);
+                    try {
+                        if (inflater.inflate(raw, 0, rawLen) != rawLen) {
+                            break;
+                        }
+                    } catch (DataFormatException e) {
+                        break;
+                    }
+                    long min = Long.MAX_VALUE;
+                    long max = Long.MIN_VALUE;
+                    int count = 0;
+                    int sourceCount = 0;
+                    int p = 0;
+                    while (p + RECORD_HEADER_SIZE <= rawLen) {
+                        long ts = getLong(raw, p);
+                        int len = ((raw[p + 10] & 0xff) << 8) | (raw[p + 11] & 0xff);
+                        p += RECORD_HEADER_SIZE;
+                        if (ts < min) min = ts;
+                        if (ts > max) max = ts;
+                        count++;
+                        if (f.parse(raw, p, len) && getSourceKey(f, key)) {
+                            boolean found = false;
+                            for (int i = 0; i < sourceCount && !found; i++) {
+                                found = sources[i] == key[0];
+                            }
+                            if (!found) {
+                                if (sourceCount == sources.length) {
+                                    sources = Arrays.copyOf(sources, sourceCount * 2);
+                                }
+                                sources[sourceCount++] = key[0];
+                            }
+                        }
+                        p += len;
+                    }
+                    addBlock(pos, compLen, rawLen, min, max, count, sources, sourceCount);
+                    pos += BLOCK_HEADER_SIZE + compLen;
+                }
+                size = pos;
+            } finally {
+                inflater.end();
+                fc.close();
+            }
+            if (size < fileSize) {
+                /* drop the partly written block */
+                FileChannel wc = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE);
+                try {
+                    wc.truncate(size);
+                } finally {
+                    wc.close();
+                }
+            }
+            mapData();
+        }
+
+        /* what a query may read - taken with the store lock held as the
+         * writer goes on adding blocks */
+        View view(Query q) {
+            if (blocks == 0 || maxTime < q.from || minTime > q.to) {
+                return null;
+            }
+            View v = new View();
+            v.segment = this;
+            v.blocks = blocks;
+            v.offsets = offsets;
+            v.compLens = compLens;
+            v.rawLens = rawLens;
+            v.minTimes = minTimes;
+            v.maxTimes = maxTimes;
+            if (q.hasKey) {
+                Posting p = postings.get(q.key);
+                if (p == null) {
+                    return null;
+                }
+                v.posting = p.blocks;
+                v.postingCount = p.count;
+            }
+            v.map = map;
+            v.channel = channel;
+            return v;
+        }
+    }
+
+    /* The first blocks of a segment - the arrays are only appended to (or
+     * replaced by larger copies) so the entries below the counts stay
+     * valid without the lock. */
+    private static class View {
+        Segment segment;
+        int blocks;
+        long[] offsets;
+        int[] compLens;
+        int[] rawLens;
+        long[] minTimes;
+        long[] maxTimes;
+        int[] posting;
+        int postingCount;
+        MappedByteBuffer map;
+        FileChannel channel;
+
+        void query(Query q) throws IOException {
+            if (posting != null) {
+                for (int i = 0; i < postingCount; i++) {
+                    queryBlock(q, posting[i]);
+                }
+            } else {
+                for (int i = 0; i < blocks; i++) {
+                    queryBlock(q, i);
+                }
+            }
+        }
+
+        private void queryBlock(Query q, int i) throws IOException {
+            if (maxTimes[i] < q.from || minTimes[i] > q.to) {
+                return;
+            }
+            int start = (int) offsets[i] + BLOCK_HEADER_SIZE;
+            if (map == null) {
+                /* still appended to - not mapped yet */
+                if (q.input == null || q.input.length < compLens[i]) {
+                    q.input = new byte[compLens[i]];
+                }
+                ByteBuffer data = ByteBuffer.wrap(q.input, 0, compLens[i]);
+                try {
+                    while (data.hasRemaining()) {
+                        if (channel.read(data, start + data.position()) < 0) {
+                            throw new IOException("short read: " + segment.dataFile);
+                        }
+                    }
+                    data.flip();
+                    q.inflate(data, rawLens[i]);
+                    return;
+                } catch (ClosedChannelException e) {
+                    /* sealed meanwhile - it is mapped now */
+                    map = segment.map;
+                }
+            }
+            ByteBuffer data = map.duplicate();
+            data.position(start);
+            data.limit(start + compLens[i]);
+            q.inflate(data, rawLens[i]);
+        }
+    }
+
+    /* frames in the store */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /* frames dropped by captureFrame because the writer could not keep up */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /* frames that could not be stored */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    /* writes everything appended and seals the last segment */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            queueBlock();
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        sealActive();
+        synchronized (lock) {
+            segments.clear();
+        }
+        deflater.end();
+    }
+
+    public String toString() {
+        return "CaptureStore " + directory + " frames: " + frames + " dropped: " + dropped.get() +
+            " errors: " + errors.get();
+    }
+}
@@ -0,0 +1,331 @@
+package se.sics.jipv6.pcap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/* Capture tap writing frames to rotating pcapng files.
+ *
+ * captureFrame only copies the frame into an in-memory buffer; full
+ * buffers are written by a separate thread so the radio reader never
+ * waits for the disk. If all buffers are waiting to be written the frame
+ * is dropped and counted.
+ *
+ * Each radio is an interface (LINKTYPE_IEEE802_15_4_TAP with nanosecond
+ * timestamps) and the channel is stored in the TAP header of each frame.
+ * A new file is started when the current one would grow past the maximum
+ * size or is older than the maximum age.
+ */
+public class PcapNGWriter implements CaptureListener, Closeable {
+
+    private static boolean DEBUG = false;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+    public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    static final int TAP_TLV_FCS_TYPE = 0;
+    static final int TAP_TLV_CHANNEL = 3;
+    static final int TAP_CHANNEL_SIZE = 8;
+    /* TAP header: version, reserved, length + FCS type TLV + channel TLV */
+    static final int TAP_HEADER_SIZE = 4 + 8 + TAP_CHANNEL_SIZE;
+    static final int EPB_SIZE = 32;
+    static final int MAX_FRAME_SIZE = 65535;
+
+    private final String prefix;
+    private final int interfaceCount;
+    private final int[] channels;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> full = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer active;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    /* milliseconds - 0 for no time based rotation */
+    private long maxFileAge = 0;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /* used by the writer thread only */
+    private FileChannel channel;
+    private long fileSize;
+    private long fileStart;
+    private int fileIndex;
+
+    /* epoch time of System.nanoTime() == 0 */
+    private static final long NANO_EPOCH_OFFSET =
+        System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+    private long frames;
+    private long dropped;
+    private volatile long bytesWritten;
+    private volatile int filesWritten;
+
+    public PcapNGWriter(String prefix, int interfaceCount) {
+        this(prefix, interfaceCount, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /* files are named <prefix>-<n>.pcapng */
+    public PcapNGWriter(String prefix, int interfaceCount, int bufferSize, int bufferCount) {
+        this.prefix = prefix;
+        this.interfaceCount = interfaceCount;
+        channels = new int[interfaceCount];
+        for (int i = 0; i < interfaceCount; i++) {
+            channels[i] = -1;
+        }
+        for (int i = 0; i < bufferCount; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 2 * MAX_FRAME_SIZE));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            free.add(buffer);
+        }
+        active = free.poll();
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "pcapng-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /* epoch nanoseconds usable as capture timestamp */
+    public static long now() {
+        return NANO_EPOCH_OFFSET + System.nanoTime();
+    }
+
+    public void setMaxFileSize(long size) {
+        maxFileSize = size;
+    }
+
+    /* milliseconds */
+    public void setMaxFileAge(long age) {
+        maxFileAge = age;
+    }
+
+    /* how often buffered frames are written even if the buffer is not full */
+    public void setFlushInterval(long interval) {
+        flushInterval = interval;
+    }
+
+    /* channel recorded for frames from the radio - -1 if not known */
+    public void setChannel(int interfaceId, int channel) {
+        channels[interfaceId] = channel;
+    }
+
+    public void captureFrame(long timestamp, int interfaceId, byte[] data, int offset, int len) {
+        captureFrame(timestamp, interfaceId,
+                interfaceId >= 0 && interfaceId < interfaceCount ? channels[interfaceId] : -1,
+                data, offset, len);
+    }
+
+    public void captureFrame(long timestamp, int interfaceId, int channelNo, byte[] data, int offset, int len) {
+        if (interfaceId < 0 || interfaceId >= interfaceCount || len > MAX_FRAME_SIZE) {
+            dropped++;
+            return;
+        }
+        int tapSize = TAP_HEADER_SIZE - (channelNo < 0 ? TAP_CHANNEL_SIZE : 0);
+        int capLen = tapSize + len;
+        int padded = (capLen + 3) & ~3;
+        int blockLen = EPB_SIZE + padded;
+        synchronized (lock) {
+            if (active == null || active.remaining() < blockLen) {
+                if (!nextBuffer()) {
+                    dropped++;
+                    return;
+                }
+            }
+            ByteBuffer b = active;
+            b.putInt(6);
+            b.putInt(blockLen);
+            b.putInt(interfaceId);
+            b.putInt((int) (timestamp >>> 32));
+            b.putInt((int) timestamp);
+            b.putInt(capLen);
+            b.putInt(capLen);
+            /* TAP header */
+            b.put((byte) 0);
+            b.put((byte) 0);
+            b.putShort((short) tapSize);
+            b.putShort((short) TAP_TLV_FCS_TYPE);
+            b.putShort((short) 1);
+            /* no FCS + padding */
+            b.putInt(0);
+            if (channelNo >= 0) {
+                b.putShort((short) TAP_TLV_CHANNEL);
+                b.putShort((short) 3);
+                b.putShort((short) channelNo);
+                /* page 0 + padding */
+                b.putShort((short) 0);
+            }
+            b.put(data, offset, len);
+            for (int i = capLen; i < padded; i++) {
+                b.put((byte) 0);
+            }
+            b.putInt(blockLen);
+            frames++;
+        }
+    }
+
+    /* hand the active buffer to the writer - called with the lock held */
+    private boolean nextBuffer() {
+        if (active != null && active.position() > 0) {
+            full.add(active);
+            active = null;
+            lock.notify();
+        }
+        if (active == null) {
+            active = free.poll();
+        }
+        return active != null;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (lock) {
+                if (full.isEmpty() && running) {
+                    try {
+                        lock.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (full.isEmpty()) {
+                    if (active != null && active.position() > 0) {
+                        /* flush what we have */
+                        nextBuffer();
+                    } else if (!running) {
+                        closeFile();
+                        return;
+                    }
+                }
+                buffer = full.poll();
+            }
+            if (buffer == null) {
+                continue;
+            }
+            buffer.flip();
+            try {
+                write(buffer);
+            } catch (IOException e) {
+                /* drop this buffer and start a new file */
+                e.printStackTrace();
+                closeFile();
+            }
+            buffer.clear();
+            synchronized (lock) {
+                free.add(buffer);
+                if (active == null) {
+                    active = free.poll();
+                }
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        long time = System.currentTimeMillis();
+        if (channel != null && fileSize > 0 &&
+                (fileSize + buffer.remaining() > maxFileSize ||
+                 (maxFileAge > 0 && time - fileStart > maxFileAge))) {
+            closeFile();
+        }
+        if (channel == null) {
+            openFile(time);
+        }
+        int len = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        fileSize += len;
+        bytesWritten += len;
+    }
+
+    private void openFile(long time) throws IOException {
+        File file = new File(String.format("%s-%05d.pcapng", prefix, fileIndex++));
+        if (DEBUG) System.out.println("PcapNGWriter: writing " + file);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        fileStart = time;
+        ByteBuffer header = ByteBuffer.allocate(28 + interfaceCount * 32);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        /* section header */
+        header.putInt(PcapReader.PCAPNG_SHB);
+        header.putInt(28);
+        header.putInt(PcapReader.PCAPNG_BYTE_ORDER_MAGIC);
+        header.putShort((short) 1);
+        header.putShort((short) 0);
+        header.putLong(-1);
+        header.putInt(28);
+        /* one interface per radio with nanosecond resolution */
+        for (int i = 0; i < interfaceCount; i++) {
+            header.putInt(PcapReader.PCAPNG_IDB);
+            header.putInt(32);
+            header.putShort((short) PcapReader.LINKTYPE_IEEE802_15_4_TAP);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putShort((short) PcapReader.PCAPNG_OPT_IF_TSRESOL);
+            header.putShort((short) 1);
+            header.putInt(9);
+            /* opt_endofopt */
+            header.putInt(0);
+            header.putInt(32);
+        }
+        header.flip();
+        fileSize = 0;
+        write(header);
+        filesWritten++;
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /* frames lost because the disk could not keep up */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getFilesWritten() {
+        return filesWritten;
+    }
+
+    /* writes everything buffered and closes the current file */
+    public void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notify();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String toString() {
+        return "PcapNGWriter frames: " + frames + " dropped: " + dropped +
+            " bytes: " + bytesWritten + " files: " + filesWritten;
+    }
+}
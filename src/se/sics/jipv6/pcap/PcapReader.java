@@ -0,0 +1,392 @@
+package se.sics.jipv6.pcap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/* Memory mapped reader of pcap and pcapng files with 802.15.4 frames.
+ *
+ * The file is mapped in windows so captures larger than 2 GB can be read.
+ * Frames of other link types are skipped and the FCS is removed from
+ * LINKTYPE_IEEE802_15_4_WITHFCS frames.
+ */
+public class PcapReader implements Closeable {
+
+    public static final int LINKTYPE_IEEE802_15_4_WITHFCS = 195;
+    public static final int LINKTYPE_IEEE802_15_4_NOFCS = 230;
+    public static final int LINKTYPE_IEEE802_15_4_TAP = 283;
+
+    static final int PCAP_MAGIC = 0xa1b2c3d4;
+    static final int PCAP_MAGIC_NS = 0xa1b23c4d;
+    static final int PCAPNG_SHB = 0x0a0d0d0a;
+    static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    static final int PCAPNG_IDB = 1;
+    static final int PCAPNG_SPB = 3;
+    static final int PCAPNG_EPB = 6;
+    static final int PCAPNG_OPT_IF_TSRESOL = 9;
+
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_INTERFACES = 256;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    private final boolean pcapng;
+    /* classic pcap */
+    private int linkType;
+    private boolean nanoResolution;
+    /* pcapng - per interface in the current section */
+    private int[] linkTypes = new int[4];
+    private long[] unitsPerSecond = new long[4];
+    private int interfaceCount;
+
+    private long position;
+
+    /* the current frame */
+    private byte[] data = new byte[256];
+    private int length;
+    private long timestamp;
+    private int interfaceId;
+    private long frameOffset;
+
+    public PcapReader(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileSize = channel.size();
+        if (fileSize < 4) {
+            channel.close();
+            throw new IOException("not a pcap file: " + file);
+        }
+        map(0, 4);
+        window.order(ByteOrder.BIG_ENDIAN);
+        int magic = window.getInt(0);
+        if (magic == PCAPNG_SHB) {
+            pcapng = true;
+        } else {
+            pcapng = false;
+            if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NS) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else if (Integer.reverseBytes(magic) == PCAP_MAGIC ||
+                    Integer.reverseBytes(magic) == PCAP_MAGIC_NS) {
+                order = ByteOrder.LITTLE_ENDIAN;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                channel.close();
+                throw new IOException("not a pcap file: " + file);
+            }
+            nanoResolution = magic == PCAP_MAGIC_NS;
+            map(0, 24);
+            window.order(order);
+            linkType = window.getInt(20);
+            position = 24;
+        }
+    }
+
+    /* A second reader of the same file that continues at the position of
+     * the given reader - the readers are independent from then on and can
+     * be used by different threads. */
+    public PcapReader(PcapReader reader) throws IOException {
+        file = reader.file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileSize = reader.fileSize;
+        order = reader.order;
+        pcapng = reader.pcapng;
+        linkType = reader.linkType;
+        nanoResolution = reader.nanoResolution;
+        linkTypes = reader.linkTypes.clone();
+        unitsPerSecond = reader.unitsPerSecond.clone();
+        interfaceCount = reader.interfaceCount;
+        position = reader.position;
+    }
+
+    /* make [pos, pos + len[ available in the window */
+    private void map(long pos, int len) throws IOException {
+        if (pos >= windowStart && pos + len <= windowEnd && window != null) {
+            return;
+        }
+        long size = Math.min(Math.max(WINDOW_SIZE, len), fileSize - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        window.order(order);
+        windowStart = pos;
+        windowEnd = pos + size;
+    }
+
+    private int getInt(long pos) {
+        return window.getInt((int) (pos - windowStart));
+    }
+
+    private int getShort(long pos) {
+        return window.getShort((int) (pos - windowStart)) & 0xffff;
+    }
+
+    private void copy(long pos, int len) {
+        if (data.length < len) {
+            data = new byte[Math.max(len, data.length * 2)];
+        }
+        window.get((int) (pos - windowStart), data, 0, len);
+        length = len;
+    }
+
+    public boolean isPcapNG() {
+        return pcapng;
+    }
+
+    /* file offset of the next block/record */
+    public long getPosition() {
+        return position;
+    }
+
+    /* continue reading at the given block/record offset - must be an
+     * offset returned by getPosition or getFrameOffset */
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /* reads the next 802.15.4 frame - returns false at end of file */
+    public boolean next() throws IOException {
+        while (position < fileSize) {
+            boolean found = pcapng ? readBlock() : readRecord();
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean readRecord() throws IOException {
+        if (position + 16 > fileSize) {
+            position = fileSize;
+            return false;
+        }
+        map(position, 16);
+        long sec = getInt(position) & 0xffffffffL;
+        long frac = getInt(position + 4) & 0xffffffffL;
+        int inclLen = getInt(position + 8);
+        long start = position + 16;
+        if (inclLen < 0 || start + inclLen > fileSize) {
+            /* truncated capture */
+            position = fileSize;
+            return false;
+        }
+        frameOffset = position;
+        position = start + inclLen;
+        timestamp = sec * 1000000000L + (nanoResolution ? frac : frac * 1000);
+        interfaceId = 0;
+        return readFrame(linkType, start, inclLen);
+    }
+
+    private boolean readBlock() throws IOException {
+        if (position + 12 > fileSize) {
+            position = fileSize;
+            return false;
+        }
+        map(position, 12);
+        int type = getInt(position);
+        if (type == PCAPNG_SHB) {
+            /* new section - may change the byte order */
+            window.order(ByteOrder.BIG_ENDIAN);
+            int bom = getInt(position + 8);
+            order = bom == PCAPNG_BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            window.order(order);
+            interfaceCount = 0;
+        }
+        int blockLen = getInt(position + 4);
+        if (blockLen < 12 || position + blockLen > fileSize) {
+            position = fileSize;
+            return false;
+        }
+        long block = position;
+        map(block, blockLen);
+        frameOffset = block;
+        position = block + blockLen;
+        switch (type) {
+        case PCAPNG_IDB:
+            readInterface(block, blockLen);
+            return false;
+        case PCAPNG_EPB: {
+            int iface = getInt(block + 8);
+            long ts = ((getInt(block + 12) & 0xffffffffL) << 32) | (getInt(block + 16) & 0xffffffffL);
+            int capLen = getInt(block + 20);
+            /* 28 bytes of header and the trailing block length */
+            if (iface < 0 || iface >= interfaceCount || capLen < 0 || capLen > blockLen - 32) {
+                return false;
+            }
+            timestamp = toNanos(ts, unitsPerSecond[iface]);
+            interfaceId = iface;
+            return readFrame(linkTypes[iface], block + 28, capLen);
+        }
+        case PCAPNG_SPB: {
+            if (interfaceCount == 0) {
+                return false;
+            }
+            int len = Math.min(getInt(block + 8), blockLen - 16);
+            /* no timestamp in simple packet blocks */
+            timestamp = 0;
+            interfaceId = 0;
+            return len >= 0 && readFrame(linkTypes[0], block + 12, len);
+        }
+        default:
+            return false;
+        }
+    }
+
+    private void readInterface(long block, int blockLen) {
+        if (interfaceCount == MAX_INTERFACES) {
+            return;
+        }
+        if (interfaceCount == linkTypes.length) {
+            int[] lt = new int[interfaceCount * 2];
+            long[] u = new long[interfaceCount * 2];
+            System.arraycopy(linkTypes, 0, lt, 0, interfaceCount);
+            System.arraycopy(unitsPerSecond, 0, u, 0, interfaceCount);
+            linkTypes = lt;
+            unitsPerSecond = u;
+        }
+        linkTypes[interfaceCount] = getShort(block + 8);
+        long units = 1000000;
+        /* options */
+        long pos = block + 16;
+        long end = block + blockLen - 4;
+        while (pos + 4 <= end) {
+            int code = getShort(pos);
+            int len = getShort(pos + 2);
+            if (code == 0) {
+                break;
+            }
+            if (code == PCAPNG_OPT_IF_TSRESOL && len >= 1) {
+                int res = window.get((int) (pos + 4 - windowStart));
+                int exp = res & 0x7f;
+                if ((res & 0x80) != 0) {
+                    /* finer than 2^-62 s is clamped */
+                    units = 1L << Math.min(exp, 62);
+                } else {
+                    units = 1;
+                    for (int i = 0; i < exp && units <= Long.MAX_VALUE / 10; i++) {
+                        units *= 10;
+                    }
+                }
+            }
+            pos += 4 + ((len + 3) & ~3);
+        }
+        unitsPerSecond[interfaceCount++] = units;
+    }
+
+    /* ts in units per second as nanoseconds - the remainder is scaled
+     * without overflow also for resolutions finer than 1 ns */
+    static long toNanos(long ts, long units) {
+        long nanos = (ts / units) * 1000000000L;
+        long rem = ts % units;
+        if (units <= 1000000000L) {
+            return nanos + rem * 1000000000L / units;
+        }
+        if (units % 1000000000L == 0) {
+            return nanos + rem / (units / 1000000000L);
+        }
+        /* binary resolution - units is 2^shift with shift > 29: take the
+         * 128 bit product rem * 10^9 and shift it down */
+        int shift = Long.numberOfTrailingZeros(units);
+        long hi = Math.multiplyHigh(rem, 1000000000L);
+        long lo = rem * 1000000000L;
+        return nanos + ((hi << (64 - shift)) | (lo >>> shift));
+    }
+
+    private boolean readFrame(int linkType, long start, int len) {
+        switch (linkType) {
+        case LINKTYPE_IEEE802_15_4_WITHFCS:
+            if (len < 2) {
+                return false;
+            }
+            copy(start, len - 2);
+            return true;
+        case LINKTYPE_IEEE802_15_4_NOFCS:
+            copy(start, len);
+            return true;
+        case LINKTYPE_IEEE802_15_4_TAP: {
+            /* skip the TAP header (length is little endian) */
+            if (len < 4) {
+                return false;
+            }
+            int hlen = (window.get((int) (start + 2 - windowStart)) & 0xff) |
+                ((window.get((int) (start + 3 - windowStart)) & 0xff) << 8);
+            if (hlen < 4 || hlen > len) {
+                return false;
+            }
+            copy(start + hlen, len - hlen);
+            return true;
+        }
+        default:
+            return false;
+        }
+    }
+
+    /* the current frame is getData()[0..getLength()[ */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /* nanoseconds since the epoch - 0 if the capture has no timestamp */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getInterfaceId() {
+        return interfaceId;
+    }
+
+    /* file offset of the block/record of the current frame */
+    public long getFrameOffset() {
+        return frameOffset;
+    }
+
+    /* Feeds all remaining frames to the listener. With speed 0 the frames
+     * are delivered as fast as possible, otherwise the capture timing is
+     * followed (speed 2 is twice as fast as real time). Returns the number
+     * of frames delivered. */
+    public long replay(CaptureListener listener, double speed) throws IOException {
+        long count = 0;
+        long firstTimestamp = -1;
+        long startTime = System.nanoTime();
+        while (next()) {
+            if (speed > 0 && timestamp != 0) {
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                }
+                long due = startTime + (long) ((timestamp - firstTimestamp) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            listener.captureFrame(timestamp, interfaceId, data, 0, length);
+            count++;
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,258 @@
+package se.sics.jipv6.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.sics.jipv6.core.IPPayload;
+import se.sics.jipv6.core.IPv6Packet;
+
+/* Leveled logging per subsystem. A disabled level costs one field read -
+ * build messages only after checking it:
+ *
+ *   if (Log.TCP.debug) Log.TCP.log("ACK for " + n + " bytes");
+ *
+ * Lines are queued and printed by a writer thread, so the stack threads
+ * never wait for the console. When the queue is full lines are dropped
+ * and counted. The levels are set with -Djipv6.log=<level> for all
+ * subsystems and -Djipv6.log.<subsystem>=<level> for one, where level is
+ * off, error, warn, info or debug.
+ */
+public class Log {
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+
+    private static final String[] LEVELS = {"off", "error", "warn", "info", "debug"};
+    private static final int QUEUE_SIZE = 8192;
+
+    public static final Log IP = new Log("ip");
+    public static final Log ICMP = new Log("icmp");
+    public static final Log ND = new Log("nd");
+    public static final Log TCP = new Log("tcp");
+    public static final Log UDP = new Log("udp");
+    public static final Log LOWPAN = new Log("lowpan");
+    public static final Log MAC = new Log("mac");
+    public static final Log HTTP = new Log("http");
+
+    private static final Log[] ALL = {IP, ICMP, ND, TCP, UDP, LOWPAN, MAC, HTTP};
+
+    private static final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long written;
+    private static volatile PrintStream out = System.out;
+    private static volatile boolean async = !Boolean.getBoolean("jipv6.log.sync");
+    private static Thread writer;
+
+    private final String name;
+    private int level;
+
+    /* the levels as fields - read on every log call */
+    public boolean error;
+    public boolean warn;
+    public boolean info;
+    public boolean debug;
+
+    private Log(String name) {
+        this.name = name;
+        int level = parseLevel(System.getProperty("jipv6.log." + name,
+                System.getProperty("jipv6.log", "warn")));
+        setLevel(level < 0 ? WARN : level);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+        error = level >= ERROR;
+        warn = level >= WARN;
+        info = level >= INFO;
+        debug = level >= DEBUG;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= this.level && level > OFF;
+    }
+
+    /* -1 for an unknown level */
+    public static int parseLevel(String level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(level)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static Log getLog(String name) {
+        for (int i = 0; i < ALL.length; i++) {
+            if (ALL[i].name.equalsIgnoreCase(name)) {
+                return ALL[i];
+            }
+        }
+        return null;
+    }
+
+    /* "all" or a subsystem name - false if either is unknown */
+    public static boolean setLevel(String name, String level) {
+        int l = parseLevel(level);
+        if (l < 0) {
+            return false;
+        }
+        if ("all".equalsIgnoreCase(name)) {
+            for (int i = 0; i < ALL.length; i++) {
+                ALL[i].setLevel(l);
+            }
+            return true;
+        }
+        Log log = getLog(name);
+        if (log == null) {
+            return false;
+        }
+        log.setLevel(l);
+        return true;
+    }
+
+    public static void setOutput(PrintStream output) {
+        flush();
+        out = output;
+    }
+
+    /* synchronous logging keeps the order with other console output */
+    public static void setAsync(boolean on) {
+        flush();
+        async = on;
+    }
+
+    /* the caller checks the level - this always logs */
+    public void log(String message) {
+        write(name + ": " + message);
+    }
+
+    public void error(String message) {
+        if (error) write(name + " ERROR: " + message);
+    }
+
+    public void warn(String message) {
+        if (warn) write(name + " WARN: " + message);
+    }
+
+    public void info(String message) {
+        if (info) write(name + ": " + message);
+    }
+
+    public void debug(String message) {
+        if (debug) write(name + ": " + message);
+    }
+
+    /* text of printPacket - for building messages of enabled levels */
+    public static String text(IPPayload payload) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(buffer);
+        payload.printPacket(print);
+        print.flush();
+        return trim(buffer.toString());
+    }
+
+    public static String text(IPv6Packet packet) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(buffer);
+        packet.printPacket(print);
+        print.flush();
+        return trim(buffer.toString());
+    }
+
+    private static String trim(String text) {
+        int end = text.length();
+        while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    private static void write(String line) {
+        if (!async) {
+            synchronized (Log.class) {
+                out.println(line);
+            }
+            return;
+        }
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        queued.incrementAndGet();
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        String line = queue.take();
+                        PrintStream o = out;
+                        o.println(line);
+                        while ((line = queue.poll()) != null) {
+                            o.println(line);
+                            written++;
+                        }
+                        o.flush();
+                        written++;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "jipv6-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* waits until the lines queued so far are printed */
+    public static void flush() {
+        long target = queued.get();
+        while (writer != null && written < target) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public String toString() {
+        return name + "=" + LEVELS[level];
+    }
+
+    public static void printStatus(PrintStream out) {
+        StringBuilder sb = new StringBuilder("Log");
+        for (int i = 0; i < ALL.length; i++) {
+            sb.append(' ').append(ALL[i]);
+        }
+        sb.append(async ? " async" : " sync").append(" queued: ").append(queued.get())
+            .append(" dropped: ").append(dropped.get());
+        out.println(sb.toString());
+    }
+}
@@ -0,0 +1,148 @@
+package se.sics.jipv6.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* One I/O thread serving any number of non-blocking serial radio
+ * connections. Reads go in bulk into a shared direct buffer and are SLIP
+ * decoded by the connection; queued sends are written when the socket
+ * can take them.
+ */
+public class RadioSelector implements Runnable {
+
+    private static boolean DEBUG = false;
+
+    public static final int READ_BUFFER_SIZE = 16384;
+
+    private final Selector selector;
+    /* only used by the I/O thread */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /* registrations and write requests from other threads */
+    private final ConcurrentLinkedQueue<SerialRadioConnection> registrations =
+        new ConcurrentLinkedQueue<SerialRadioConnection>();
+    private final ConcurrentLinkedQueue<SerialRadioConnection> writeRequests =
+        new ConcurrentLinkedQueue<SerialRadioConnection>();
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public RadioSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "RadioSelector");
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void register(SerialRadioConnection connection) {
+        registrations.add(connection);
+        start();
+        selector.wakeup();
+    }
+
+    /* called when a connection has output the socket did not take */
+    void requestWrite(SerialRadioConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                processRequests();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SerialRadioConnection connection = (SerialRadioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(key, connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            if (connection.flushOutput()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        /* closed by another thread */
+                    } catch (IOException e) {
+                        if (DEBUG) e.printStackTrace();
+                        close(key, connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key, (SerialRadioConnection) key.attachment());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processRequests() {
+        SerialRadioConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+        while ((connection = writeRequests.poll()) != null) {
+            SocketChannel channel = connection.getChannel();
+            SelectionKey key = channel == null ? null : channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void read(SelectionKey key, SerialRadioConnection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        int n;
+        do {
+            readBuffer.clear();
+            n = channel.read(readBuffer);
+            if (n < 0) {
+                if (DEBUG) System.out.println("RadioSelector: connection closed");
+                close(key, connection);
+                return;
+            }
+            readBuffer.flip();
+            connection.slipDecode(readBuffer);
+            /* a full buffer means there is probably more to read */
+        } while (n == readBuffer.capacity());
+    }
+
+    private void close(SelectionKey key, SerialRadioConnection connection) {
+        key.cancel();
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
@@ -3,113 +3,203 @@ package se.sics.jipv6.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
-import se.sics.jipv6.yal.Encap;
-import se.sics.jipv6.yal.Encap.Error;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.yal.Encap.PayloadType;
+import se.sics.jipv6.yal.EncapCodec;
 
 public class SerialRadioConnection implements Runnable {
 
     private static boolean DEBUG = false;
     
-    private static final int SLIP_END = 0300;
-    private static final int SLIP_ESC = 0333;
-    private static final int SLIP_ESC_END = 0334;
-    private static final int SLIP_ESC_ESC = 0335;
+    public static final int PORT = 9999;
+    /* serial radio header in front of received frames */
+    public static final int SERIAL_HEADER_SIZE = 2;
+
     private Socket socket;
     private InputStream input;
     private OutputStream output;
-    
-    byte[] buffer = new byte[1000];
-    int pos;
+
+    /* non-blocking mode - served by a RadioSelector */
+    private SocketChannel channel;
+    private RadioSelector radioSelector;
+    /* SLIP frames the socket has not taken yet */
+    private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer[] gather = new ByteBuffer[8];
+
+    private final EncapCodec codec;
 
     public interface PacketListener {
         public void packetReceived(byte[] data);
     }
-    
+
+    /* receives the frames without copying - data is only valid during
+     * the call */
+    public interface FrameListener {
+        public void frameReceived(byte[] data, int offset, int len);
+    }
+
     PacketListener listener;
-    
+    FrameListener frameListener;
+
     public SerialRadioConnection(PacketListener listener) {
         this.listener = listener;
+        codec = new EncapCodec(new EncapCodec.Listener() {
+            public void payloadReceived(PayloadType type, byte[] data, int offset, int len) {
+                handlePayload(type, data, offset, len);
+            }
+        });
+    }
+
+    public SerialRadioConnection(FrameListener listener) {
+        this((PacketListener) null);
+        frameListener = listener;
+    }
+
+    public EncapCodec getCodec() {
+        return codec;
+    }
+
+    /* frames lost between the radio and us - from SERIAL_WITH_SEQNO gaps */
+    public long getSerialLostCount() {
+        return codec.getSeqNoLostCount();
+    }
+
+    /* frames the radio dropped on air - from its receive reports */
+    public long getAirLostCount() {
+        return codec.getAirLostCount();
     }
     
     public void connect(String host) throws UnknownHostException, IOException {
-        socket = new Socket(host, 9999);
+        socket = new Socket(host, PORT);
         input = socket.getInputStream();
         output = socket.getOutputStream();
         new Thread(this).start();
     }
 
-    private void handleSlipData(byte[] slipFrame) {
-        Encap encap = new Encap();
-        Error e = encap.parseEncap(slipFrame);
-        if (e == Error.OK) {
-            /* Send of data to something?? */
-            byte payload[] = encap.getPayloadData();
-            payload = Arrays.copyOfRange(payload, 2, payload.length);
+    /* connect and let the selector's thread handle all I/O */
+    public void connect(String host, RadioSelector selector) throws UnknownHostException, IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, PORT));
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        radioSelector = selector;
+        selector.register(this);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    private void handlePayload(PayloadType type, byte[] data, int offset, int len) {
+        switch (type) {
+        case SERIAL:
+        case SERIAL_WITH_SEQNO:
+            if (len < SERIAL_HEADER_SIZE) {
+                return;
+            }
+            offset += SERIAL_HEADER_SIZE;
+            len -= SERIAL_HEADER_SIZE;
             if (DEBUG) {
-                System.out.println("Payload (len = " + payload.length + ")");
-                for(int i = 0; i < payload.length; i++) {
-                    System.out.printf("%02x", payload[i]);
+                System.out.println("Payload (len = " + len + ")");
+                for(int i = 0; i < len; i++) {
+                    System.out.printf("%02x", data[offset + i]);
                 }
                 System.out.println();
             }
+            if (frameListener != null) {
+                frameListener.frameReceived(data, offset, len);
+            }
             if (listener != null) {
-                listener.packetReceived(payload);
+                listener.packetReceived(Arrays.copyOfRange(data, offset, offset + len));
             }
+            break;
+        case RECEIVE_REPORT:
+        case SLEEP_REPORT:
+            /* counted by the codec */
+            if (DEBUG) System.out.println("Radio " + type + " (len = " + len + ")");
+            break;
+        default:
+            if (DEBUG) System.out.println("Ignored encap " + type);
         }
     }
     
     public void send(byte[] data) throws IOException {
-        Encap encap = Encap.createSerial(data);
-        byte[] outData = encap.generateBytes();
-        for(int i = 0; i < outData.length; i++) {
-            switch((int) (outData[i] & 0xff)) {
-            case SLIP_END:
-                output.write(SLIP_ESC);
-                output.write(SLIP_ESC_END);
-                break;
-            case SLIP_ESC:
-                output.write(SLIP_ESC);
-                output.write(SLIP_ESC_ESC);
-            break;
-            default:
-                output.write(outData[i]);
+        send(data, 0, data.length);
+    }
+
+    /* send the frame of a packet straight from its buffer */
+    public void send(Packet packet) throws IOException {
+        send(packet.getBuffer(), packet.getOffset(), packet.getTotalLength());
+    }
+
+    /* Encap + SLIP encode the data into the output buffer and write it
+     * with one call - the data itself is never copied to an encap frame */
+    public synchronized void send(byte[] data, int offset, int len) throws IOException {
+        int pos = codec.encode(data, offset, len);
+        byte[] slipBuffer = codec.getEncodeBuffer();
+        if (channel != null) {
+            queueOutput(slipBuffer, pos);
+        } else {
+            output.write(slipBuffer, 0, pos);
+            output.flush();
+        }
+    }
+
+    /* write directly if nothing is queued, otherwise queue a copy for the
+     * selector thread */
+    private void queueOutput(byte[] data, int len) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(data, 0, len);
+        if (outQueue.isEmpty()) {
+            channel.write(frame);
+            if (!frame.hasRemaining()) {
+                return;
             }
         }
-        output.write(SLIP_END);
-        output.flush();
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        outQueue.add(copy);
+        if (outQueue.size() == 1) {
+            radioSelector.requestWrite(this);
+        }
     }
-    
+
+    /* called by the selector thread - returns true when all is written */
+    synchronized boolean flushOutput() throws IOException {
+        int n = outQueue.size();
+        if (n == 0) {
+            return true;
+        }
+        if (gather.length < n) {
+            gather = new ByteBuffer[n];
+        }
+        outQueue.toArray(gather);
+        channel.write(gather, 0, n);
+        Arrays.fill(gather, 0, n, null);
+        while (!outQueue.isEmpty() && !outQueue.peek().hasRemaining()) {
+            outQueue.poll();
+        }
+        return outQueue.isEmpty();
+    }
+
+    /* SLIP decode a chunk of received data - frames can span chunks */
+    void slipDecode(ByteBuffer data) {
+        codec.decode(data);
+    }
+
     public void run() {
-        int data;
-        boolean esc = false;
-        pos = 0;
+        byte[] chunk = new byte[4096];
+        int n;
         try {
-            while((data = input.read()) != -1) {
-                if (esc) {
-                    if (data == SLIP_ESC_END) {
-                        buffer[pos++] = (byte) SLIP_END;
-                    } else if (data == SLIP_ESC_ESC) {
-                        buffer[pos++] = (byte) SLIP_ESC;                    
-                    } else {
-                        System.out.println("Slip Error?");
-                    }
-                    esc = false;
-                } else {
-                    if (data == SLIP_END) {
-                        if (DEBUG) System.out.println("SLIP Frame received - len:" + pos);
-                        handleSlipData(Arrays.copyOf(buffer, pos));
-                        pos = 0;
-                    } else if (data == SLIP_ESC) {
-                        esc = true;
-                    } else {
-//                        System.out.println("Add byte to buffer: " + data);
-                        buffer[pos++] = (byte) data;
-                    }
-                }
+            while((n = input.read(chunk)) != -1) {
+                codec.decode(chunk, 0, n);
             }
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -123,6 +213,18 @@ public class SerialRadioConnection implements Runnable {
         }
     }
 
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            } else if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void send(String string) throws IOException {
         send(string.getBytes());
     }
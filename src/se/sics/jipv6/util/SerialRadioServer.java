@@ -0,0 +1,227 @@
+package se.sics.jipv6.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import se.sics.jipv6.yal.EncapCodec;
+
+/* Stand-in for a serial radio on TCP port 9999 - sends the frames of a
+ * TrafficGenerator to every client with the same SLIP + encap framing as
+ * the radio, so SerialRadioConnection and TestSniff can be load tested
+ * without hardware.
+ *
+ * A cycle of frames is generated and encoded once and then sent over and
+ * over, so the server itself costs close to nothing per frame. With rate 0
+ * the frames are sent as fast as the connection takes them.
+ */
+public class SerialRadioServer implements Runnable {
+
+    private static boolean DEBUG = false;
+
+    public static final int DEFAULT_CYCLE = 65536;
+    /* how often the rate limited sender wakes up */
+    private static final long TICK_NANOS = 1000000;
+
+    private final ServerSocketChannel serverChannel;
+    private final byte[] encoded;
+    /* end of each frame in encoded */
+    private final int[] frameEnds;
+    private volatile int rate;
+    private volatile boolean running = true;
+    private final CopyOnWriteArrayList<SocketChannel> clients = new CopyOnWriteArrayList<SocketChannel>();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public SerialRadioServer(int port, TrafficGenerator generator, int cycle) throws IOException {
+        EncapCodec codec = new EncapCodec(null);
+        byte[] serial = new byte[256];
+        byte[] out = new byte[cycle * 64];
+        int[] ends = new int[cycle];
+        int pos = 0;
+        int count = 0;
+        /* complete the last datagram so the cycle does not cut it */
+        while (count < cycle || generator.getPendingCount() > 0) {
+            byte[] frame = generator.nextFrame();
+            /* serial radio header in front of the frame */
+            System.arraycopy(frame, 0, serial, SerialRadioConnection.SERIAL_HEADER_SIZE, frame.length);
+            int len = codec.encode(serial, 0, SerialRadioConnection.SERIAL_HEADER_SIZE + frame.length);
+            if (pos + len > out.length) {
+                byte[] tmp = new byte[out.length * 2];
+                System.arraycopy(out, 0, tmp, 0, pos);
+                out = tmp;
+            }
+            if (count == ends.length) {
+                int[] tmp = new int[count * 2];
+                System.arraycopy(ends, 0, tmp, 0, count);
+                ends = tmp;
+            }
+            System.arraycopy(codec.getEncodeBuffer(), 0, out, pos, len);
+            pos += len;
+            ends[count++] = pos;
+        }
+        encoded = new byte[pos];
+        System.arraycopy(out, 0, encoded, 0, pos);
+        frameEnds = new int[count];
+        System.arraycopy(ends, 0, frameEnds, 0, count);
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    /* frames per second to each client - 0 for as fast as possible */
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getCycleLength() {
+        return frameEnds.length;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "SerialRadioServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            /* closing */
+        }
+        for (SocketChannel client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* closing */
+            }
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                final SocketChannel client = serverChannel.accept();
+                client.socket().setTcpNoDelay(true);
+                clients.add(client);
+                if (DEBUG) System.out.println("SerialRadioServer: client " + client.getRemoteAddress());
+                /* commands from the client are read and ignored */
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        ByteBuffer buffer = ByteBuffer.allocate(1024);
+                        try {
+                            while (client.read(buffer) >= 0) {
+                                buffer.clear();
+                            }
+                        } catch (IOException e) {
+                            /* closed */
+                        }
+                    }
+                }, "SerialRadioServer-reader");
+                reader.setDaemon(true);
+                reader.start();
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            send(client);
+                        } catch (IOException e) {
+                            if (DEBUG) System.out.println("SerialRadioServer: " + e);
+                        } finally {
+                            clients.remove(client);
+                            try {
+                                client.close();
+                            } catch (IOException e) {
+                                /* closed */
+                            }
+                        }
+                    }
+                }, "SerialRadioServer-writer");
+                writer.setDaemon(true);
+                writer.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void send(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        int next = 0;
+        long sent = 0;
+        long start = System.nanoTime();
+        while (running) {
+            int r = rate;
+            int end;
+            if (r <= 0) {
+                /* the rest of the cycle in one write */
+                end = frameEnds.length;
+            } else {
+                long due = (System.nanoTime() - start) * r / 1000000000L;
+                if (due <= sent) {
+                    LockSupport.parkNanos(TICK_NANOS);
+                    continue;
+                }
+                end = (int) Math.min(frameEnds.length, next + (due - sent));
+            }
+            int from = next == 0 ? 0 : frameEnds[next - 1];
+            buffer.limit(frameEnds[end - 1]);
+            buffer.position(from);
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+            framesSent.addAndGet(end - next);
+            bytesSent.addAndGet(frameEnds[end - 1] - from);
+            sent += end - next;
+            next = end == frameEnds.length ? 0 : end;
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /* SerialRadioServer [port] - -Djipv6.rate=<frames/s> (0 = saturate),
+     * -Djipv6.nodes=<n>, -Djipv6.seed=<n>, -Djipv6.storm=<weight> */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : SerialRadioConnection.PORT;
+        TrafficGenerator generator = new TrafficGenerator(Integer.getInteger("jipv6.nodes", 32),
+                Long.getLong("jipv6.seed", 1));
+        generator.setWeight(TrafficGenerator.Type.STORM, Integer.getInteger("jipv6.storm", 0));
+        SerialRadioServer server = new SerialRadioServer(port, generator,
+                Integer.getInteger("jipv6.cycle", DEFAULT_CYCLE));
+        server.setRate(Integer.getInteger("jipv6.rate", 1000));
+        server.start();
+        System.out.println("Serving " + server.getCycleLength() + " frames on port " + port);
+        System.out.println(generator);
+        long lastFrames = 0;
+        long lastBytes = 0;
+        while (true) {
+            Thread.sleep(1000);
+            long frames = server.getFramesSent();
+            long bytes = server.getBytesSent();
+            System.out.printf("clients:%d frames/s:%d kbytes/s:%d\n", server.getClientCount(),
+                    frames - lastFrames, (bytes - lastBytes) / 1024);
+            lastFrames = frames;
+            lastBytes = bytes;
+        }
+    }
+}
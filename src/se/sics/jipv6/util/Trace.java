@@ -0,0 +1,174 @@
+package se.sics.jipv6.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Binary trace of stack events in a ring buffer - for finding out what
+ * happened without printing on the hot path. An event is three longs
+ * (time, event and two int arguments, sequence number) written without
+ * locks or allocation. The oldest events are overwritten.
+ *
+ * Off by default - enabled with -Djipv6.trace=<events> (rounded up to a
+ * power of two) or setEnabled. Check enabled before computing arguments.
+ * Events being written while the ring is dumped can be left out.
+ */
+public class Trace {
+
+    public static final int IP_RECEIVE = 1;
+    public static final int IP_SEND = 2;
+    public static final int IP_DROP = 3;
+    public static final int TCP_RECEIVE = 4;
+    public static final int TCP_SEND = 5;
+    public static final int TCP_RESEND = 6;
+    public static final int TCP_STATE = 7;
+    public static final int TCP_REFUSED = 8;
+    public static final int UDP_RECEIVE = 9;
+    public static final int CHECKSUM_ERROR = 10;
+    public static final int LOWPAN_RECEIVE = 11;
+    public static final int LOWPAN_SEND = 12;
+    public static final int MAC_RECEIVE = 13;
+
+    private static final String[] NAMES = {
+        "-", "ip-receive", "ip-send", "ip-drop", "tcp-receive", "tcp-send",
+        "tcp-resend", "tcp-state", "tcp-refused", "udp-receive", "checksum-error",
+        "lowpan-receive", "lowpan-send", "mac-receive"
+    };
+
+    public static final int DEFAULT_SIZE = 65536;
+
+    /* plain field - one read per event when off */
+    public static boolean enabled;
+
+    private static long[] ring;
+    private static int mask;
+    private static final AtomicLong next = new AtomicLong();
+
+    static {
+        String size = System.getProperty("jipv6.trace");
+        if (size != null) {
+            try {
+                setEnabled(true, Integer.parseInt(size));
+            } catch (NumberFormatException e) {
+                setEnabled(true, DEFAULT_SIZE);
+            }
+        }
+    }
+
+    public static synchronized void setEnabled(boolean on) {
+        setEnabled(on, ring == null ? DEFAULT_SIZE : mask + 1);
+    }
+
+    /* a new size clears the ring */
+    public static synchronized void setEnabled(boolean on, int size) {
+        int n = 1;
+        while (n < size) {
+            n <<= 1;
+        }
+        if (ring == null || n != mask + 1) {
+            enabled = false;
+            ring = new long[n * 3];
+            mask = n - 1;
+            next.set(0);
+        }
+        enabled = on;
+    }
+
+    public static void event(int event, int a, int b) {
+        long[] r = ring;
+        if (!enabled || r == null) {
+            return;
+        }
+        long seq = next.getAndIncrement();
+        int i = (int) (seq & mask) * 3;
+        if (i + 2 >= r.length) {
+            /* resized by setEnabled */
+            return;
+        }
+        r[i] = System.nanoTime();
+        r[i + 1] = ((long) event << 32) | (a & 0xffffffffL);
+        /* last - marks the record as complete */
+        r[i + 2] = (seq << 32) | (b & 0xffffffffL);
+    }
+
+    public static long getEventCount() {
+        return next.get();
+    }
+
+    public static String getName(int event) {
+        return event > 0 && event < NAMES.length ? NAMES[event] : Integer.toString(event);
+    }
+
+    /* calls the visitor with the events in the ring, oldest first */
+    private interface Visitor {
+        void event(long seq, long time, int event, int a, int b) throws IOException;
+    }
+
+    private static int visit(Visitor visitor) throws IOException {
+        long[] r = ring;
+        if (r == null) {
+            return 0;
+        }
+        int size = r.length / 3;
+        long last = next.get();
+        long first = Math.max(0, last - size);
+        int count = 0;
+        for (long seq = first; seq < last; seq++) {
+            int i = (int) (seq & (size - 1)) * 3;
+            long time = r[i];
+            long data = r[i + 1];
+            long tail = r[i + 2];
+            if ((int) (tail >>> 32) != (int) seq) {
+                /* overwritten or not written yet */
+                continue;
+            }
+            visitor.event(seq, time, (int) (data >>> 32), (int) data, (int) tail);
+            count++;
+        }
+        return count;
+    }
+
+    /* Binary dump: "JIPT", version, count, then per event the sequence
+     * number and time (long) and event, a and b (int). */
+    public static int dump(OutputStream output) throws IOException {
+        final DataOutputStream out = new DataOutputStream(output);
+        final ByteArrayOutputStream events = new ByteArrayOutputStream();
+        final DataOutputStream eventOut = new DataOutputStream(events);
+        int count = visit(new Visitor() {
+            public void event(long seq, long time, int event, int a, int b) throws IOException {
+                eventOut.writeLong(seq);
+                eventOut.writeLong(time);
+                eventOut.writeInt(event);
+                eventOut.writeInt(a);
+                eventOut.writeInt(b);
+            }
+        });
+        out.writeBytes("JIPT");
+        out.writeInt(1);
+        out.writeInt(count);
+        events.writeTo(out);
+        out.flush();
+        return count;
+    }
+
+    public static void print(final PrintStream out) {
+        try {
+            final long[] start = {-1};
+            int count = visit(new Visitor() {
+                public void event(long seq, long time, int event, int a, int b) {
+                    if (start[0] < 0) {
+                        start[0] = time;
+                    }
+                    out.println(seq + " +" + (time - start[0]) / 1000 + "us " + getName(event) +
+                        " " + a + " " + b);
+                }
+            });
+            out.println("Trace: " + count + " of " + next.get() + " events");
+        } catch (IOException e) {
+            /* not thrown by the printer */
+        }
+    }
+}
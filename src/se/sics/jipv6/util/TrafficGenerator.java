@@ -0,0 +1,322 @@
+package se.sics.jipv6.util;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import se.sics.jipv6.core.HC06Packeter;
+import se.sics.jipv6.core.ICMP6Packet;
+import se.sics.jipv6.core.IPPayload;
+import se.sics.jipv6.core.IPv6Address;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.LoWPANFragmenter;
+import se.sics.jipv6.core.Packet;
+import se.sics.jipv6.core.RPLPacket;
+import se.sics.jipv6.core.UDPPacket;
+
+/* Synthetic 802.15.4 traffic of a 6LoWPAN/RPL network as a sniffer would
+ * see it - frames without FCS, HC06 compressed with context 0 = aaaa::/64.
+ *
+ * The network is a tree rooted at node 0 where node n has node (n - 1) / 2
+ * as parent. Each call to nextFrame picks a message type with probability
+ * proportional to its weight and a random node to send it. Datagrams that
+ * do not fit in a frame are fragmented, and a storm makes every node send
+ * a DIO at once (a global repair). The same seed gives the same frames.
+ */
+public class TrafficGenerator {
+
+    public enum Type {
+        DIO, DIS, DAO, NS, UDP, FRAGMENTED, STORM
+    }
+
+    public static final int PAN_ID = 0xabcd;
+    public static final int MAX_FRAME_SIZE = 127 - 2;
+
+    private static final byte[] PREFIX = new byte[] {
+        (byte) 0xaa, (byte) 0xaa, 0, 0, 0, 0, 0, 0
+    };
+    private static final byte[] ALL_RPL_NODES = IPv6Packet.parseAddress("ff02:0000:0000:0000:0000:0000:0000:001a");
+    private static final byte[] BROADCAST = new byte[] {(byte) 0xff, (byte) 0xff};
+    private static final int UDP_PORT = 0xf0b0;
+
+    private final int nodes;
+    private final byte[][] macAddresses;
+    private final Random random;
+    private final int[] weights = new int[Type.values().length];
+    private int totalWeight;
+    private int fragmentedSize = 400;
+
+    private final HC06Packeter packeter = new HC06Packeter();
+    private final LoWPANFragmenter fragmenter = new LoWPANFragmenter();
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+    private int seqNo;
+    private int dtsn;
+    private int daoSequence;
+
+    private final long[] counts = new long[Type.values().length];
+    private long frames;
+
+    public TrafficGenerator(int nodes, long seed) {
+        this.nodes = Math.max(2, nodes);
+        random = new Random(seed);
+        packeter.setContext(0, 0xaaaa0000, 0, 0, 0);
+        macAddresses = new byte[this.nodes][];
+        for (int i = 0; i < this.nodes; i++) {
+            macAddresses[i] = new byte[] {0x00, 0x12, 0x74, 0, 0, 0, (byte) (i >> 8), (byte) i};
+        }
+        /* a quiet network - mostly sensor data */
+        setWeight(Type.DIO, 10);
+        setWeight(Type.DIS, 2);
+        setWeight(Type.DAO, 5);
+        setWeight(Type.NS, 3);
+        setWeight(Type.UDP, 70);
+        setWeight(Type.FRAGMENTED, 10);
+        setWeight(Type.STORM, 0);
+    }
+
+    public void setWeight(Type type, int weight) {
+        totalWeight += weight - weights[type.ordinal()];
+        weights[type.ordinal()] = weight;
+    }
+
+    /* UDP payload size of the fragmented datagrams */
+    public void setFragmentedSize(int size) {
+        fragmentedSize = size;
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    public byte[] getMACAddress(int node) {
+        return macAddresses[node];
+    }
+
+    private int parent(int node) {
+        return (node - 1) / 2;
+    }
+
+    private byte[] address(byte[] prefix, int node) {
+        byte[] address = new byte[16];
+        System.arraycopy(prefix, 0, address, 0, 8);
+        System.arraycopy(macAddresses[node], 0, address, 8, 8);
+        /* universal/local bit */
+        address[8] ^= 0x02;
+        return address;
+    }
+
+    private byte[] linkLocal(int node) {
+        byte[] address = address(PREFIX, node);
+        address[0] = (byte) 0xfe;
+        address[1] = (byte) 0x80;
+        return address;
+    }
+
+    private byte[] global(int node) {
+        return address(PREFIX, node);
+    }
+
+    /* the next frame - a new array of the frame length */
+    public byte[] nextFrame() {
+        while (pending.isEmpty()) {
+            generate(pickType());
+        }
+        frames++;
+        return pending.poll();
+    }
+
+    /* frames of the last datagram that nextFrame has not returned yet */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private Type pickType() {
+        if (totalWeight <= 0) {
+            return Type.UDP;
+        }
+        int r = random.nextInt(totalWeight);
+        Type[] types = Type.values();
+        for (int i = 0; i < types.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return types[i];
+            }
+        }
+        return Type.UDP;
+    }
+
+    private void generate(Type type) {
+        counts[type.ordinal()]++;
+        int node = 1 + random.nextInt(nodes - 1);
+        switch (type) {
+        case DIO:
+            sendDIO(random.nextInt(nodes));
+            break;
+        case DIS: {
+            RPLPacket dis = new RPLPacket(RPLPacket.RPL_DIS);
+            dis.setBody(new byte[2]);
+            send(dis, linkLocal(node), ALL_RPL_NODES, node, -1);
+            break;
+        }
+        case DAO: {
+            RPLPacket dao = new RPLPacket(RPLPacket.RPL_DAO);
+            byte[] body = new byte[4 + 16 + 20 + 22];
+            /* instance, D flag (DODAG ID present), reserved, sequence */
+            body[1] = 0x40;
+            body[3] = (byte) daoSequence++;
+            System.arraycopy(global(0), 0, body, 4, 16);
+            /* target option */
+            body[20] = 5;
+            body[21] = 18;
+            body[23] = (byte) 128;
+            System.arraycopy(global(node), 0, body, 24, 16);
+            /* transit information option with the parent */
+            body[40] = 6;
+            body[41] = 20;
+            body[45] = (byte) 0xff;
+            System.arraycopy(global(parent(node)), 0, body, 46, 16);
+            dao.setBody(body);
+            send(dao, global(node), global(0), node, parent(node));
+            break;
+        }
+        case NS: {
+            int target = random.nextInt(nodes);
+            ICMP6Packet ns = new ICMP6Packet(ICMP6Packet.NEIGHBOR_SOLICITATION);
+            ns.setTargetAddress(global(target));
+            /* solicited node multicast address of the target */
+            byte[] dest = IPv6Packet.parseAddress("ff02:0000:0000:0000:0000:0001:ff00:0000");
+            byte[] t = global(target);
+            dest[13] = t[13];
+            dest[14] = t[14];
+            dest[15] = t[15];
+            send(ns, global(node), dest, node, -1);
+            break;
+        }
+        case UDP:
+            sendUDP(node, 8 + random.nextInt(32));
+            break;
+        case FRAGMENTED:
+            sendUDP(node, fragmentedSize);
+            break;
+        case STORM:
+            dtsn++;
+            for (int i = 0; i < nodes; i++) {
+                sendDIO(i);
+            }
+            break;
+        }
+    }
+
+    private void sendDIO(int node) {
+        RPLPacket dio = new RPLPacket(RPLPacket.RPL_DIO);
+        byte[] body = new byte[24 + 16];
+        /* instance, version, rank */
+        body[0] = 30;
+        body[1] = (byte) 240;
+        int rank = 256 * (1 + depth(node));
+        body[2] = (byte) (rank >> 8);
+        body[3] = (byte) rank;
+        /* grounded, MOP 2 (storing), DTSN */
+        body[4] = (byte) (0x80 | (2 << 3));
+        body[5] = (byte) dtsn;
+        System.arraycopy(global(0), 0, body, 8, 16);
+        /* DODAG configuration option */
+        body[24] = 4;
+        body[25] = 14;
+        body[27] = 8;
+        body[28] = 12;
+        body[29] = 1;
+        body[32] = 1;
+        dio.setBody(body);
+        send(dio, linkLocal(node), ALL_RPL_NODES, node, -1);
+    }
+
+    private int depth(int node) {
+        int depth = 0;
+        while (node > 0) {
+            node = parent(node);
+            depth++;
+        }
+        return depth;
+    }
+
+    /* sensor data to the root over the parent */
+    private void sendUDP(int node, int size) {
+        UDPPacket udp = new UDPPacket();
+        udp.setSourcePort(UDP_PORT + 1);
+        udp.setDestinationPort(UDP_PORT);
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        udp.setPayload(payload);
+        send(udp, global(node), global(0), node, parent(node));
+    }
+
+    /* compress the packet into one or more frames - linkDest -1 is broadcast */
+    private void send(IPPayload payload, byte[] source, byte[] dest, int linkSource, int linkDest) {
+        IPv6Packet packet = new IPv6Packet(payload, IPv6Address.valueOf(source), IPv6Address.valueOf(dest));
+        byte[] dst = linkDest < 0 ? BROADCAST : macAddresses[linkDest];
+        packet.setAttribute(Packet.LL_SOURCE_KEY, macAddresses[linkSource]);
+        packet.setAttribute(Packet.LL_DESTINATION_KEY, dst);
+        packeter.generatePacket(packet);
+        int headerSize = 3 + 2 + dst.length + 8;
+        LoWPANFragmenter.Fragments fragments = fragmenter.fragment(packet, MAX_FRAME_SIZE - headerSize);
+        if (fragments == null) {
+            addFrame(packet, macAddresses[linkSource], dst);
+        } else {
+            /* each fragment must be copied before the next is created */
+            while (fragments.hasNext()) {
+                addFrame(fragments.next(), macAddresses[linkSource], dst);
+            }
+        }
+    }
+
+    /* data frame with PAN ID compression - addresses are sent LSB first */
+    private void addFrame(Packet packet, byte[] src, byte[] dst) {
+        int pos = packet.reserveHeader(3 + 2 + dst.length + src.length);
+        byte[] buffer = packet.getBuffer();
+        int destMode = dst.length == 2 ? 2 : 3;
+        buffer[pos++] = (byte) (0x01 | 0x40 | (dst.length == 2 ? 0 : 0x20));
+        buffer[pos++] = (byte) ((destMode << 2) | (3 << 6));
+        buffer[pos++] = (byte) seqNo++;
+        buffer[pos++] = (byte) PAN_ID;
+        buffer[pos++] = (byte) (PAN_ID >> 8);
+        for (int i = dst.length - 1; i >= 0; i--) {
+            buffer[pos++] = dst[i];
+        }
+        for (int i = src.length - 1; i >= 0; i--) {
+            buffer[pos++] = src[i];
+        }
+        pending.add(packet.getBytes());
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public long getCount(Type type) {
+        return counts[type.ordinal()];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("TrafficGenerator nodes: ").append(nodes).append(" frames: ").append(frames);
+        Type[] types = Type.values();
+        for (int i = 0; i < types.length; i++) {
+            sb.append(' ').append(types[i]).append(':').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        TrafficGenerator generator = new TrafficGenerator(args.length > 0 ? Integer.parseInt(args[0]) : 16, 1);
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        for (int i = 0; i < n; i++) {
+            byte[] frame = generator.nextFrame();
+            StringBuilder sb = new StringBuilder();
+            for (byte b : frame) {
+                sb.append(Utils.hex8(b));
+            }
+            System.out.println("h:" + sb);
+        }
+        System.err.println(generator);
+    }
+}
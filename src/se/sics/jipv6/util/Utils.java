@@ -40,6 +40,8 @@
 
 package se.sics.jipv6.util;
 
+import java.lang.reflect.Method;
+
 public class Utils {
   private static final String str16 = "0000000000000000";
 
@@ -197,4 +199,39 @@ public class Utils {
     return true;
   }
 
+  /* Thread.ofVirtual() is not in the JDK we build against - found at run
+   * time, with a daemon platform thread when virtual threads are missing */
+  private static Method ofVirtual;
+  private static Method virtualName;
+  private static Method virtualStart;
+  static {
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      virtualName = builder.getMethod("name", String.class);
+      virtualStart = builder.getMethod("start", Runnable.class);
+    } catch (Exception e) {
+      ofVirtual = null;
+    }
+  }
+
+  public static boolean hasVirtualThreads() {
+    return ofVirtual != null;
+  }
+
+  /* starts the task on a new virtual thread if the JVM has them */
+  public static Thread startThread(String name, Runnable task) {
+    if (ofVirtual != null) {
+      try {
+        Object builder = virtualName.invoke(ofVirtual.invoke(null), name);
+        return (Thread) virtualStart.invoke(builder, task);
+      } catch (Exception e) {
+        ofVirtual = null;
+      }
+    }
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
 }
@@ -0,0 +1,295 @@
+package se.sics.jipv6.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+
+import se.sics.jipv6.mac.RadioInfo;
+import se.sics.jipv6.pcap.PcapNGWriter;
+
+/* Receives 802.15.4 frames sent as ZEP (ZigBee Encapsulation Protocol,
+ * version 1 and 2) over UDP by remote sniffers.
+ *
+ * The socket is drained in batches: after a wakeup all waiting datagrams
+ * (up to the batch size) are read into preallocated direct buffers before
+ * any of them is handled. Each sniffer (address + device id) gets a radio
+ * id from firstRadioId upwards, and lost ZEP v2 sequence numbers are
+ * counted. The FCS (or the RSSI/LQI that replaces it in LQI mode) is
+ * removed from the frames.
+ */
+public class ZepReceiver implements Runnable {
+
+    private static boolean DEBUG = false;
+
+    public static final int PORT = 17754;
+    public static final int DEFAULT_BATCH = 64;
+    public static final int MAX_DATAGRAM = 256;
+
+    static final int ZEP_V1_HEADER = 16;
+    static final int ZEP_V2_HEADER = 32;
+    static final int ZEP_V2_ACK_HEADER = 8;
+    static final int ZEP_TYPE_DATA = 1;
+    static final int ZEP_TYPE_ACK = 2;
+    /* seconds from 1900 (NTP) to 1970 */
+    static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    public interface Listener {
+        /* data is only valid during the call - and so is info */
+        public void frameReceived(RadioInfo info, byte[] data, int offset, int len);
+    }
+
+    /* a remote sniffer */
+    private static class Source {
+        final int deviceId;
+        final int radioId;
+        long lastSeqNo = -1;
+        long frames;
+        long lost;
+
+        Source(int deviceId, int radioId) {
+            this.deviceId = deviceId;
+            this.radioId = radioId;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Listener listener;
+    private final ByteBuffer[] batch;
+    private final byte[] frame = new byte[MAX_DATAGRAM];
+    private final RadioInfo info = new RadioInfo();
+    private final HashMap<SocketAddress, Source[]> sources = new HashMap<SocketAddress, Source[]>();
+    private int nextRadioId;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private long datagrams;
+    private long frames;
+    private long acks;
+    private long badDatagrams;
+    private long batches;
+    private long lost;
+
+    public ZepReceiver(int port, Listener listener) throws IOException {
+        this(new InetSocketAddress(port), listener, DEFAULT_BATCH, 0);
+    }
+
+    public ZepReceiver(InetSocketAddress address, Listener listener, int batchSize,
+            int firstRadioId) throws IOException {
+        this.listener = listener;
+        nextRadioId = firstRadioId;
+        batch = new ByteBuffer[Math.max(1, batchSize)];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            batch[i].order(ByteOrder.BIG_ENDIAN);
+        }
+        channel = DatagramChannel.open();
+        channel.socket().setReuseAddress(true);
+        /* room for bursts while a batch is handled */
+        channel.socket().setReceiveBufferSize(4 * 1024 * 1024);
+        channel.bind(address);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public void start() {
+        thread = new Thread(this, "ZepReceiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            if (thread != null) {
+                thread.join();
+            }
+            selector.close();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            /* closing */
+        }
+    }
+
+    public void run() {
+        SocketAddress[] senders = new SocketAddress[batch.length];
+        try {
+            while (running) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int n;
+                do {
+                    /* read all that is waiting... */
+                    n = 0;
+                    while (n < batch.length) {
+                        batch[n].clear();
+                        SocketAddress sender = channel.receive(batch[n]);
+                        if (sender == null) {
+                            break;
+                        }
+                        batch[n].flip();
+                        senders[n++] = sender;
+                    }
+                    if (n > 0) {
+                        batches++;
+                    }
+                    /* ...then handle it */
+                    for (int i = 0; i < n; i++) {
+                        handleDatagram(senders[i], batch[i]);
+                        senders[i] = null;
+                    }
+                } while (n == batch.length);
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleDatagram(SocketAddress sender, ByteBuffer buffer) {
+        datagrams++;
+        int len = buffer.remaining();
+        if (len < ZEP_V2_ACK_HEADER || buffer.get(0) != 'E' || buffer.get(1) != 'X') {
+            badDatagrams++;
+            return;
+        }
+        int version = buffer.get(2) & 0xff;
+        int header;
+        long timestamp;
+        long seqNo = -1;
+        int pos;
+        if (version == 1) {
+            header = ZEP_V1_HEADER;
+            pos = 3;
+            timestamp = 0;
+        } else if (version == 2) {
+            int type = buffer.get(3) & 0xff;
+            if (type == ZEP_TYPE_ACK) {
+                acks++;
+                return;
+            }
+            if (type != ZEP_TYPE_DATA) {
+                badDatagrams++;
+                return;
+            }
+            header = ZEP_V2_HEADER;
+            pos = 4;
+            if (len < header) {
+                badDatagrams++;
+                return;
+            }
+            long seconds = buffer.getInt(9) & 0xffffffffL;
+            long fraction = buffer.getInt(13) & 0xffffffffL;
+            timestamp = seconds == 0 ? 0 :
+                (seconds - NTP_EPOCH_OFFSET) * 1000000000L + ((fraction * 1000000000L) >>> 32);
+            seqNo = buffer.getInt(17) & 0xffffffffL;
+        } else {
+            badDatagrams++;
+            return;
+        }
+        if (len < header) {
+            badDatagrams++;
+            return;
+        }
+        int channelNo = buffer.get(pos) & 0xff;
+        int deviceId = buffer.getShort(pos + 1) & 0xffff;
+        boolean crcMode = buffer.get(pos + 3) != 0;
+        int lqi = buffer.get(pos + 4) & 0xff;
+        int frameLen = buffer.get(header - 1) & 0xff;
+        if (frameLen < 2 || header + frameLen > len) {
+            badDatagrams++;
+            return;
+        }
+        Source source = getSource(sender, deviceId);
+        source.frames++;
+        if (seqNo >= 0) {
+            if (source.lastSeqNo >= 0) {
+                long diff = (seqNo - source.lastSeqNo - 1) & 0xffffffffL;
+                if (diff > 0 && diff < 0x80000000L) {
+                    source.lost += diff;
+                    lost += diff;
+                }
+            }
+            source.lastSeqNo = seqNo;
+        }
+        /* the frame without the two last bytes */
+        buffer.position(header);
+        buffer.get(frame, 0, frameLen - 2);
+        info.reset();
+        info.setTimestamp(timestamp != 0 ? timestamp : PcapNGWriter.now());
+        info.setRadioId(source.radioId);
+        info.setChannel(channelNo);
+        info.setLQI(lqi);
+        if (!crcMode) {
+            /* CC24xx style: RSSI and CRC ok + correlation instead of FCS */
+            info.setRSSI(buffer.get(header + frameLen - 2));
+            info.setCRCOk((buffer.get(header + frameLen - 1) & 0x80) != 0);
+        }
+        frames++;
+        if (listener != null) {
+            listener.frameReceived(info, frame, 0, frameLen - 2);
+        }
+    }
+
+    private Source getSource(SocketAddress sender, int deviceId) {
+        Source[] list = sources.get(sender);
+        if (list != null) {
+            for (Source s : list) {
+                if (s.deviceId == deviceId) {
+                    return s;
+                }
+            }
+        }
+        Source source = new Source(deviceId, nextRadioId++);
+        if (DEBUG) System.out.println("ZEP sniffer " + sender + "/" + deviceId + " is radio " + source.radioId);
+        Source[] tmp = new Source[list == null ? 1 : list.length + 1];
+        if (list != null) {
+            System.arraycopy(list, 0, tmp, 0, list.length);
+        }
+        tmp[tmp.length - 1] = source;
+        sources.put(sender, tmp);
+        return source;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public long getDatagramCount() {
+        return datagrams;
+    }
+
+    public long getBadDatagramCount() {
+        return badDatagrams;
+    }
+
+    /* frames missing in the ZEP v2 sequence numbers */
+    public long getLostCount() {
+        return lost;
+    }
+
+    /* datagrams per wakeup is datagrams / batches */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    public String toString() {
+        return "ZepReceiver datagrams: " + datagrams + " frames: " + frames + " acks: " + acks +
+            " bad: " + badDatagrams + " lost: " + lost + " batches: " + batches;
+    }
+}
@@ -52,107 +52,152 @@ public class Encap {
     private IVMode initVectorMode;
     private int payloadOffset;
     private byte[] payloadData;
+    private int payloadLength;
     private int optLen = 0;
     private boolean crcEnabled = false;
+    /* reused when parsing */
+    private final CRC32 parseCRC = new CRC32();
     
     public static Encap createSerial(byte[] serial) {
+        return createSerial(serial, 0, serial.length);
+    }
+
+    /* Serial encap of part of an array - the data is not copied */
+    public static Encap createSerial(byte[] serial, int offset, int len) {
         Encap encap = new Encap();
         encap.payloadType = PayloadType.SERIAL;
         encap.payloadTypeCode = PayloadType.SERIAL.getType();
         encap.fingerPrintMode = FingerPrintMode.LENOPT;
         encap.crcEnabled = true;
         encap.initVectorMode = IVMode.NONE;
-        encap.payloadOffset = 0;
+        encap.payloadOffset = offset;
+        encap.payloadLength = len;
         encap.payloadData = serial;
         return encap;
     }
-    
-    /* Only handles serial with CRC at the moment */
-    public byte[] generateBytes() {
+
+    public int getHeaderSize() {
         int encapSize = 4;
         if(fingerPrintMode == FingerPrintMode.LENOPT) {
-            /* Always CRC? */
-            encapSize += 8; /* 4 byte opt + len  + 4 byte CRC */
+            encapSize += 4; /* 4 byte opt + len */
         }
-        byte[] data = new byte[payloadData.length + encapSize];
-        data[0] = (byte) (version << 4);
-        data[1] = (byte) payloadTypeCode;
-        data[2] = (byte) errorCode;
-        data[3] = (byte) (fingerPrintMode.getMode() << 4 | initVectorMode.getMode());
-        data[4] = (byte) 0;
-        data[5] = (byte) (crcEnabled ? 1 : 0); /* CRC - enabled */
-        data[6] = (byte) (payloadData.length / 256);
-        data[7] = (byte) (payloadData.length & 255);
-        System.arraycopy(payloadData, 0, data, 8, payloadData.length);
-        
+        return encapSize;
+    }
+
+    /* Writes the encap header (everything before the payload) to data
+     * and returns the header size */
+    public int generateHeader(byte[] data, int pos) {
+        data[pos] = (byte) (version << 4);
+        data[pos + 1] = (byte) payloadTypeCode;
+        data[pos + 2] = (byte) errorCode;
+        data[pos + 3] = (byte) (fingerPrintMode.getMode() << 4 | initVectorMode.getMode());
+        if(fingerPrintMode == FingerPrintMode.LENOPT) {
+            data[pos + 4] = (byte) 0;
+            data[pos + 5] = (byte) (crcEnabled ? 1 : 0); /* CRC - enabled */
+            data[pos + 6] = (byte) (payloadLength / 256);
+            data[pos + 7] = (byte) (payloadLength & 255);
+        }
+        return getHeaderSize();
+    }
+
+    /* CRC over the given header followed by the payload */
+    public long calculateCRC(byte[] header, int pos, int len) {
         CRC32 crc = new CRC32();
-        crc.update(data, 0, 8);
-        crc.update(payloadData);
-        
-        int pos = 8 + payloadData.length; 
-        data[pos] = (byte) (crc.getValue() >> 0L);
-        data[pos + 1] = (byte) (crc.getValue() >> 8);
-        data[pos + 2] = (byte) (crc.getValue() >> 16);
-        data[pos + 3] = (byte) (crc.getValue() >> 24);
+        crc.update(header, pos, len);
+        crc.update(payloadData, payloadOffset, payloadLength);
+        return crc.getValue();
+    }
+
+    /* Only handles serial with CRC at the moment */
+    public byte[] generateBytes() {
+        int encapSize = getHeaderSize() + 4; /* + 4 byte CRC */
+        byte[] data = new byte[payloadLength + encapSize];
+        int hlen = generateHeader(data, 0);
+        System.arraycopy(payloadData, payloadOffset, data, hlen, payloadLength);
+
+        long crc = calculateCRC(data, 0, hlen);
+        int pos = hlen + payloadLength;
+        data[pos] = (byte) (crc >> 0L);
+        data[pos + 1] = (byte) (crc >> 8);
+        data[pos + 2] = (byte) (crc >> 16);
+        data[pos + 3] = (byte) (crc >> 24);
         
         return data;
     }
     
     public Error parseEncap(byte[] data) {
-        if (data == null || data.length < 4) {
+        if (data == null) {
             return Error.SHORT;
         }
-        this.payloadOffset = 4;
+        return parseEncap(data, 0, data.length);
+    }
+
+    /* Parses the encap frame in data[offset..offset+len[ - the payload is
+     * left in place and is only valid as long as data is */
+    public Error parseEncap(byte[] data, int offset, int len) {
+        if (data == null || len < 4) {
+            return Error.SHORT;
+        }
+        this.payloadOffset = offset + 4;
         this.payloadData = data;
-        this.version = (data[0] >> 4) & 0x0f;
-        int padding = data[0] & 0xf;
+        this.payloadLength = 0;
+        this.crcEnabled = false;
+        this.optLen = 0;
+        this.version = (data[offset] >> 4) & 0x0f;
+        int padding = data[offset] & 0xf;
         if (this.version > MAX_VERSION) {
             return Error.BAD_VERSION;
         }
-        this.errorCode = data[2] & 0xff;
-        this.payloadTypeCode = data[1] & 0xff;
+        this.errorCode = data[offset + 2] & 0xff;
+        this.payloadTypeCode = data[offset + 1] & 0xff;
         this.payloadType = PayloadType.getByType(this.payloadTypeCode);
 
-        int fingerPrintModeCode = (data[3] >> 4) & 0xf;
+        int fingerPrintModeCode = (data[offset + 3] >> 4) & 0xf;
         this.fingerPrintMode = FingerPrintMode.getByMode(fingerPrintModeCode);
         if (this.fingerPrintMode == null) {
             return Error.BAD_FINGERPRINT_MODE;
         }
         this.payloadOffset += this.fingerPrintMode.getSize();
-        
+        if (this.payloadOffset > offset + len) {
+            return Error.SHORT;
+        }
+
         if(this.fingerPrintMode == FingerPrintMode.LENOPT) {
             /* check if CRC is there - bit 1 of 16 (4 / 5) is CRC*/
             /* no support for SEQNO at the moment */
-            if ((data[5] == 1)) {
+            if ((data[offset + 5] & 1) == 1) {
                 this.crcEnabled = true;
             }
-            optLen = data[6] * 256 + data[7];
+            optLen = ((data[offset + 6] & 0xff) << 8) + (data[offset + 7] & 0xff);
         }
 
-        int initVectorModeCode = data[3] & 0xf;
+        int initVectorModeCode = data[offset + 3] & 0xf;
         this.initVectorMode = IVMode.getByMode(initVectorModeCode);
         if (this.initVectorMode == null) {
             return Error.BAD_INITVECTOR_MODE;
         }
         this.payloadOffset += this.initVectorMode.getSize();
 
-        if (this.payloadOffset + padding > data.length) {
+        int end = offset + len - (crcEnabled ? 4 : 0);
+        if (this.payloadOffset + padding > end) {
             return Error.SHORT;
         }
+        this.payloadLength = end - this.payloadOffset;
 
         if (DEBUG) {
-            System.out.println("Total Len: " + data.length);
-            System.out.println("payloadLen: " + optLen + " =?= " + (data.length - payloadOffset - (crcEnabled ? 4 : 0)));
+            System.out.println("Total Len: " + len);
+            System.out.println("payloadLen: " + optLen + " =?= " + payloadLength);
         }
 
-
         if (crcEnabled) {
-            CRC32 crc = new CRC32();
-            crc.update(data, 0, data.length - 4);
-            long crcV = ((data[data.length - 1] & 0xffL) << 24) + ((data[data.length - 2] & 0xff) << 16) +
-                    ((data[data.length - 3] & 0xff) << 8) + (data[data.length - 4] & 0xff);
+            CRC32 crc = parseCRC;
+            crc.reset();
+            crc.update(data, offset, len - 4);
+            long crcV = ((data[end + 3] & 0xffL) << 24) + ((data[end + 2] & 0xff) << 16) +
+                    ((data[end + 1] & 0xff) << 8) + (data[end] & 0xff);
             if (crc.getValue() != crcV) {
-                System.out.printf("CRC failed: %08x == %08x\n", crc.getValue(), crcV);
+                if (DEBUG) System.out.printf("CRC failed: %08x == %08x\n", crc.getValue(), crcV);
+                return Error.BAD_CHECKSUM;
             }
         }
         
@@ -205,8 +250,26 @@ public class Encap {
         return this.initVectorMode;
     }
 
+    /* a copy of the payload */
     public byte[] getPayloadData() {
-        return Arrays.copyOfRange(payloadData, payloadOffset, payloadData.length - (crcEnabled ? 4 : 0));
+        return Arrays.copyOfRange(payloadData, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /* the array holding the payload - see getPayloadOffset/Length */
+    public byte[] getPayloadBuffer() {
+        return payloadData;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public boolean isCRCEnabled() {
+        return crcEnabled;
     }
 
     public enum PayloadType {
@@ -0,0 +1,327 @@
+package se.sics.jipv6.yal;
+
+import java.nio.ByteBuffer;
+
+import se.sics.jipv6.yal.Encap.PayloadType;
+
+/**
+ * SLIP + Encap codec for serial radio streams.
+ *
+ * Received data is SLIP decoded into a growable frame buffer, the encap
+ * header and CRC are checked in place and the payload is handed to the
+ * listener as a slice of the frame buffer - no copies are made. The slice
+ * is only valid during the callback.
+ *
+ * SERIAL_WITH_SEQNO frames carry a 32 bit big endian sequence number in
+ * front of the serial data; gaps in it are counted as frames lost on the
+ * serial link.
+ *
+ * RECEIVE_REPORT frames carry the radio's receive counters as 32 bit big
+ * endian values: frames received and frames dropped on air (bad FCS or
+ * receive overflow). The increase of the dropped counter is counted as
+ * frames lost on air - next to the serial link loss above.
+ */
+public class EncapCodec {
+
+    private static boolean DEBUG = false;
+
+    public static final int SLIP_END = 0300;
+    public static final int SLIP_ESC = 0333;
+    public static final int SLIP_ESC_END = 0334;
+    public static final int SLIP_ESC_ESC = 0335;
+
+    public static final int INITIAL_FRAME_SIZE = 256;
+    public static final int MAX_FRAME_SIZE = 65536;
+    public static final int SEQNO_SIZE = 4;
+    public static final int RECEIVE_REPORT_SIZE = 8;
+
+    public interface Listener {
+        /* data[offset..offset+len[ is the payload without encap header,
+         * CRC and - for SERIAL_WITH_SEQNO - the sequence number */
+        public void payloadReceived(PayloadType type, byte[] data, int offset, int len);
+    }
+
+    private final Listener listener;
+    private final Encap encap = new Encap();
+
+    /* decode state - frames can span calls to decode */
+    private byte[] frame = new byte[INITIAL_FRAME_SIZE];
+    private int pos;
+    private boolean esc;
+    private boolean dropping;
+
+    /* encode buffer */
+    private byte[] header = new byte[32];
+    private byte[] out = new byte[INITIAL_FRAME_SIZE];
+
+    private boolean hasSeqNo;
+    private long lastSeqNo;
+
+    private long frameCount;
+    private long badFrames;
+    private long crcErrors;
+    private long oversized;
+    private long slipErrors;
+    private long seqGaps;
+    private long seqLost;
+    private long seqOutOfOrder;
+
+    private boolean hasReport;
+    private long lastReportReceived;
+    private long lastReportDropped;
+    private long receiveReports;
+    private long sleepReports;
+    private long radioReceived;
+    private long airLost;
+
+    public EncapCodec(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* SLIP decode all remaining bytes of data */
+    public void decode(ByteBuffer data) {
+        if (data.hasArray()) {
+            decode(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            for (int i = data.position(), n = data.limit(); i < n; i++) {
+                decodeByte(data.get(i) & 0xff);
+            }
+        }
+        data.position(data.limit());
+    }
+
+    public void decode(byte[] data, int offset, int len) {
+        for (int i = offset, n = offset + len; i < n; i++) {
+            decodeByte(data[i] & 0xff);
+        }
+    }
+
+    private void decodeByte(int c) {
+        if (esc) {
+            esc = false;
+            if (c == SLIP_ESC_END) {
+                c = SLIP_END;
+            } else if (c == SLIP_ESC_ESC) {
+                c = SLIP_ESC;
+            } else {
+                slipErrors++;
+                if (DEBUG) System.out.println("Slip Error?");
+            }
+        } else if (c == SLIP_END) {
+            if (dropping) {
+                dropping = false;
+            } else if (pos > 0) {
+                frameReceived(frame, 0, pos);
+            }
+            pos = 0;
+            return;
+        } else if (c == SLIP_ESC) {
+            esc = true;
+            return;
+        }
+        if (dropping) {
+            return;
+        }
+        if (pos == frame.length) {
+            if (frame.length >= MAX_FRAME_SIZE) {
+                /* drop the rest of the frame */
+                oversized++;
+                dropping = true;
+                pos = 0;
+                return;
+            }
+            byte[] tmp = new byte[frame.length * 2];
+            System.arraycopy(frame, 0, tmp, 0, pos);
+            frame = tmp;
+        }
+        frame[pos++] = (byte) c;
+    }
+
+    /* a complete SLIP frame - also usable for unframed encap data */
+    public void frameReceived(byte[] data, int offset, int len) {
+        frameCount++;
+        Encap.Error e = encap.parseEncap(data, offset, len);
+        if (e != Encap.Error.OK) {
+            if (e == Encap.Error.BAD_CHECKSUM) {
+                crcErrors++;
+            } else {
+                badFrames++;
+            }
+            if (DEBUG) System.out.println("Encap error: " + e);
+            return;
+        }
+        PayloadType type = encap.getPayloadType();
+        byte[] payload = encap.getPayloadBuffer();
+        int poff = encap.getPayloadOffset();
+        int plen = encap.getPayloadLength();
+        if (type == null) {
+            badFrames++;
+            if (DEBUG) System.out.println("Unknown payload type: " + encap.getPayloadTypeCode());
+            return;
+        }
+        if (type == PayloadType.SERIAL_WITH_SEQNO) {
+            if (plen < SEQNO_SIZE) {
+                badFrames++;
+                return;
+            }
+            checkSeqNo(get32(payload, poff));
+            poff += SEQNO_SIZE;
+            plen -= SEQNO_SIZE;
+        } else if (type == PayloadType.RECEIVE_REPORT) {
+            if (plen < RECEIVE_REPORT_SIZE) {
+                badFrames++;
+                return;
+            }
+            receiveReport(get32(payload, poff), get32(payload, poff + 4));
+        } else if (type == PayloadType.SLEEP_REPORT) {
+            sleepReports++;
+        }
+        if (listener != null) {
+            listener.payloadReceived(type, payload, poff, plen);
+        }
+    }
+
+    private static long get32(byte[] data, int pos) {
+        return ((data[pos] & 0xffL) << 24) | ((data[pos + 1] & 0xff) << 16) |
+            ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /* the counters are cumulative - only the increase since the last report
+     * counts. A decrease means the radio restarted its counters. */
+    private void receiveReport(long received, long dropped) {
+        receiveReports++;
+        if (hasReport && received >= lastReportReceived && dropped >= lastReportDropped) {
+            radioReceived += received - lastReportReceived;
+            airLost += dropped - lastReportDropped;
+        } else if (hasReport) {
+            radioReceived += received;
+            airLost += dropped;
+        }
+        if (DEBUG) System.out.println("Receive report: " + received + " dropped: " + dropped);
+        hasReport = true;
+        lastReportReceived = received;
+        lastReportDropped = dropped;
+    }
+
+    private void checkSeqNo(long seqNo) {
+        if (hasSeqNo) {
+            long diff = (seqNo - lastSeqNo - 1) & 0xffffffffL;
+            if (diff == 0) {
+                /* in order */
+            } else if (diff < 0x80000000L) {
+                seqGaps++;
+                seqLost += diff;
+            } else {
+                /* duplicate or reordered - keep the highest seen */
+                seqOutOfOrder++;
+                return;
+            }
+        }
+        hasSeqNo = true;
+        lastSeqNo = seqNo;
+    }
+
+    /* SLIP + encap encode data as a SERIAL frame - returns the length of the
+     * result in getEncodeBuffer() */
+    public int encode(byte[] data, int offset, int len) {
+        Encap e = Encap.createSerial(data, offset, len);
+        int hlen = e.generateHeader(header, 0);
+        long crc = e.calculateCRC(header, 0, hlen);
+        header[hlen] = (byte) crc;
+        header[hlen + 1] = (byte) (crc >> 8);
+        header[hlen + 2] = (byte) (crc >> 16);
+        header[hlen + 3] = (byte) (crc >> 24);
+
+        /* worst case every byte is escaped */
+        int maxSize = (hlen + len + 4) * 2 + 1;
+        if (out.length < maxSize) {
+            out = new byte[maxSize];
+        }
+        int pos = slipEncode(header, 0, hlen, 0);
+        pos = slipEncode(data, offset, len, pos);
+        pos = slipEncode(header, hlen, 4, pos);
+        out[pos++] = (byte) SLIP_END;
+        return pos;
+    }
+
+    public byte[] getEncodeBuffer() {
+        return out;
+    }
+
+    private int slipEncode(byte[] data, int offset, int len, int pos) {
+        byte[] out = this.out;
+        for(int i = offset, n = offset + len; i < n; i++) {
+            switch(data[i] & 0xff) {
+            case SLIP_END:
+                out[pos++] = (byte) SLIP_ESC;
+                out[pos++] = (byte) SLIP_ESC_END;
+                break;
+            case SLIP_ESC:
+                out[pos++] = (byte) SLIP_ESC;
+                out[pos++] = (byte) SLIP_ESC_ESC;
+                break;
+            default:
+                out[pos++] = data[i];
+            }
+        }
+        return pos;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getBadFrameCount() {
+        return badFrames;
+    }
+
+    public long getCRCErrorCount() {
+        return crcErrors;
+    }
+
+    public long getOversizedCount() {
+        return oversized;
+    }
+
+    public long getSlipErrorCount() {
+        return slipErrors;
+    }
+
+    /* number of sequence gaps and the number of frames missing in them */
+    public long getSeqNoGapCount() {
+        return seqGaps;
+    }
+
+    public long getSeqNoLostCount() {
+        return seqLost;
+    }
+
+    public long getSeqNoOutOfOrderCount() {
+        return seqOutOfOrder;
+    }
+
+    public long getReceiveReportCount() {
+        return receiveReports;
+    }
+
+    public long getSleepReportCount() {
+        return sleepReports;
+    }
+
+    /* frames received and frames dropped on air by the radio since the
+     * first receive report */
+    public long getRadioReceivedCount() {
+        return radioReceived;
+    }
+
+    public long getAirLostCount() {
+        return airLost;
+    }
+
+    public String getStatistics() {
+        return "frames: " + frameCount + " bad: " + badFrames + " crc: " + crcErrors +
+            " oversized: " + oversized + " slip: " + slipErrors + " gaps: " + seqGaps +
+            " lost: " + seqLost + " reordered: " + seqOutOfOrder +
+            " reports: " + receiveReports + " air lost: " + airLost;
+    }
+}
@@ -0,0 +1,149 @@
+package se.sics.jipv6.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import se.sics.jipv6.util.Utils;
+
+/* Two stacks wired back to back. The server writes far more than both its
+ * out buffer and the window of a slow subscriber, in segments that fill the
+ * out buffer exactly, so the writer keeps blocking on a full ring. Some
+ * segments are lost on the way and sent again from the ring - every byte
+ * must arrive, in order.
+ *
+ * Run with: ant test
+ */
+public class TCPFlowControlTest {
+
+    private static final int PORT = 7;
+    private static final int SIZE = 3000;
+    private static final int CAPACITY = 256;
+    /* four writes fill the out buffer of the connection */
+    private static final int SEGMENT = 32;
+    /* every LOSS:th data segment from the server is dropped */
+    private static final int LOSS = 25;
+
+    /* delivers the TCP packets of one stack to the other */
+    private static void wire(final IPStack from, final IPStack to, final boolean lossy) {
+        from.setLinkLayerHandler(new PacketHandler() {
+            private int segments;
+            public void addUpperLayerHandler(int id, PacketHandler handler) {
+            }
+            public void setLowerLayerHandler(PacketHandler handler) {
+            }
+            public void packetReceived(Packet packet) {
+            }
+            public void sendPacket(Packet packet) {
+                IPv6Packet source = (IPv6Packet) packet;
+                IPPayload payload = source.getIPPayload();
+                if (!(payload instanceof TCPPacket)) {
+                    return;
+                }
+                TCPPacket tcp = (TCPPacket) payload;
+                if (lossy && tcp.payload != null && tcp.payload.length > 0
+                        && ++segments % LOSS == 0) {
+                    /* lost - sent again from the out buffer */
+                    return;
+                }
+                byte[] data = payload.generatePacketData(source);
+                IPv6Packet ip = new IPv6Packet();
+                ip.setBytes(data);
+                ip.setSourceAddress(source.getSourceAddress());
+                ip.setDestinationAddress(source.getDestinationAddress());
+                ip.setNextHeader(TCPPacket.DISPATCH);
+                ip.payloadLen = data.length;
+                to.receivePacket(ip);
+            }
+        });
+    }
+
+    private static byte expected(int i) {
+        return (byte) (i * 7 + (i >> 8));
+    }
+
+    public static void main(String[] args) throws Exception {
+        IPStack client = new IPStack(new EventLoop());
+        IPStack server = new IPStack(new EventLoop());
+        client.setIPAddress(IPv6Address.valueOf(0xaaaa000000000000L, 1));
+        server.setIPAddress(IPv6Address.valueOf(0xaaaa000000000000L, 2));
+        wire(client, server, false);
+        wire(server, client, true);
+
+        final TCPServerSocket serverSocket = new TCPServerSocket(server, PORT);
+        Utils.startThread("tcp-test-writer", new Runnable() {
+            public void run() {
+                try {
+                    TCPSocket socket = serverSocket.accept();
+                    byte[] data = new byte[SIZE];
+                    for (int i = 0; i < data.length; i++) {
+                        data[i] = expected(i);
+                    }
+                    /* segments that add up to the ring size */
+                    for (int i = 0; i < data.length; i += SEGMENT) {
+                        socket.write(data, i, Math.min(SEGMENT, data.length - i));
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        TCPConnection connection = client.connect(server.getIPAddress(), PORT);
+        final byte[] received = new byte[SIZE * 2];
+        final int[] count = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        connection.getPublisher(CAPACITY).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            public void onNext(ByteBuffer buffer) {
+                synchronized (received) {
+                    while (buffer.hasRemaining() && count[0] < received.length) {
+                        received[count[0]++] = buffer.get();
+                    }
+                }
+                /* slow reader - the sender runs into the window */
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                subscription.request(1);
+            }
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+                done.countDown();
+            }
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            fail("timed out after " + count[0] + " bytes");
+        }
+        synchronized (received) {
+            if (count[0] != SIZE) {
+                fail("received " + count[0] + " of " + SIZE + " bytes");
+            }
+            for (int i = 0; i < SIZE; i++) {
+                if (received[i] != expected(i)) {
+                    fail("stream differs at byte " + i);
+                }
+            }
+        }
+        System.out.println("TCPFlowControlTest: " + SIZE + " bytes received in order");
+        System.exit(0);
+    }
+
+    private static void fail(String message) {
+        System.out.println("TCPFlowControlTest FAILED: " + message);
+        System.exit(1);
+    }
+}